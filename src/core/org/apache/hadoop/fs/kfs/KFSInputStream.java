@@ -36,18 +36,19 @@ class KFSInputStream extends FSInputStream {
     private long fsize;
 
     @Deprecated
-    public KFSInputStream(KfsAccess kfsAccess, String path) {
+    public KFSInputStream(KfsAccess kfsAccess, String path)
+        throws IOException {
       this(kfsAccess, path, null);
     }
 
     public KFSInputStream(KfsAccess kfsAccess, String path,
-                            FileSystem.Statistics stats) {
+                            FileSystem.Statistics stats) throws IOException {
         this.statistics = stats;
         this.kfsChannel = kfsAccess.kfs_open(path);
-        if (this.kfsChannel != null)
-            this.fsize = kfsAccess.kfs_filesize(path);
-        else
-            this.fsize = 0;
+        if (this.kfsChannel == null)
+            throw new FileNotFoundException("File " + path +
+                                            " does not exist.");
+        this.fsize = kfsAccess.kfs_filesize(path);
     }
 
     public long getPos() throws IOException {
@@ -24,6 +24,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
@@ -33,7 +34,7 @@ import org.apache.hadoop.util.Progressable;
 import org.kosmix.kosmosfs.access.KfsAccess;
 import org.kosmix.kosmosfs.access.KfsOutputChannel;
 
-class KFSOutputStream extends OutputStream {
+class KFSOutputStream extends OutputStream implements WritableByteChannel {
 
     private String path;
     private KfsOutputChannel kfsChannel;
@@ -69,6 +70,21 @@ class KFSOutputStream extends OutputStream {
         kfsChannel.write(ByteBuffer.wrap(b, off, len));
     }
 
+    /**
+     * Hand the buffer to KFS as is; callers holding direct buffers
+     * avoid the copy that wrapping a byte[] costs on the JNI side.
+     */
+    public int write(ByteBuffer src) throws IOException {
+        if (kfsChannel == null) {
+            throw new IOException("File closed");
+        }
+        return kfsChannel.write(src);
+    }
+
+    public boolean isOpen() {
+        return kfsChannel != null;
+    }
+
     public void flush() throws IOException {
         if (kfsChannel == null) {
             throw new IOException("File closed");
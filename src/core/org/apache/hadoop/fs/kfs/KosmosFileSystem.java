@@ -196,9 +196,8 @@ public class KosmosFileSystem extends FileSystem {
     }
 
     public FSDataInputStream open(Path path, int bufferSize) throws IOException {
-        if (!exists(path))
-            throw new IOException("File does not exist: " + path);
-
+        // no exists() check: the open fails with FileNotFoundException on its
+        // own, and saves a trip to the metaserver
         Path absolute = makeAbsolute(path);
         String srep = absolute.toUri().getPath();
 
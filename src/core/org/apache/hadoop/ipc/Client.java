@@ -35,6 +35,10 @@ import java.io.InputStream;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -72,6 +76,7 @@ public class Client {
                            //maxIdleTime msecs
   final private int maxRetries; //the max. no. of retries for socket connections
   private boolean tcpNoDelay; // if T then disable Nagle's Algorithm
+  private boolean compactEncoding; // if T then RPCs use the compact encoding
   private int pingInterval; // how often sends ping to the server in msecs
 
   private SocketFactory socketFactory;           // how to create sockets
@@ -80,6 +85,9 @@ public class Client {
   final private static String PING_INTERVAL_NAME = "ipc.ping.interval";
   final static int DEFAULT_PING_INTERVAL = 60000; // 1 min
   final static int PING_CALL_ID = -1;
+
+  // a connection's send buffer is dropped after a call larger than this
+  final static int MAX_SEND_BUFFER_SIZE = 64 * 1024;
   
   /**
    * set the ping interval value in configuration
@@ -127,6 +135,15 @@ public class Client {
     return refCount==0;
   }
 
+  /**
+   * Whether the connections of this client announce, in their
+   * {@link ConnectionHeader}, that RPC invocations are sent in the compact
+   * encoding.
+   */
+  boolean isCompactEncoding() {
+    return compactEncoding;
+  }
+
   /** A call waiting for a value. */
   private class Call {
     int id;                                       // call id
@@ -181,6 +198,7 @@ public class Client {
     private Socket socket = null;                 // connected socket
     private DataInputStream in;
     private DataOutputStream out;
+    private DataOutputBuffer sendBuf = new DataOutputBuffer(); // guarded by out
     
     // currently active calls
     private Hashtable<Integer, Call> calls = new Hashtable<Integer, Call>();
@@ -198,8 +216,8 @@ public class Client {
       
       UserGroupInformation ticket = remoteId.getTicket();
       Class<?> protocol = remoteId.getProtocol();
-      header = 
-        new ConnectionHeader(protocol == null ? null : protocol.getName(), ticket);
+      header = new ConnectionHeader(
+          protocol == null ? null : protocol.getName(), ticket, compactEncoding);
       
       this.setName("IPC Client (" + socketFactory.hashCode() +") connection to " +
           remoteId.getAddress().toString() +
@@ -462,29 +480,28 @@ public class Client {
         return;
       }
 
-      DataOutputBuffer d=null;
       try {
         synchronized (this.out) {
           if (LOG.isDebugEnabled())
             LOG.debug(getName() + " sending #" + call.id);
           
-          //for serializing the
-          //data to be written
-          d = new DataOutputBuffer();
-          d.writeInt(call.id);
-          call.param.write(d);
-          byte[] data = d.getData();
-          int dataLength = d.getLength();
+          //serialize the data to be written into the connection's buffer,
+          //which is reused from call to call
+          sendBuf.reset();
+          sendBuf.writeInt(call.id);
+          call.param.write(sendBuf);
+          byte[] data = sendBuf.getData();
+          int dataLength = sendBuf.getLength();
           out.writeInt(dataLength);      //first put the data length
           out.write(data, 0, dataLength);//write the data
           out.flush();
+          if (data.length > MAX_SEND_BUFFER_SIZE) {
+            // don't hold on to the memory of an unusually large call
+            sendBuf = new DataOutputBuffer();
+          }
         }
       } catch(IOException e) {
         markClosed(e);
-      } finally {
-        //the buffer is just an in-memory buffer, but it is still polite to
-        // close early
-        IOUtils.closeStream(d);
       }
     }  
 
@@ -602,6 +619,67 @@ public class Client {
     }
   }
 
+  /** Call implementation used for asynchronous calls: nobody waits on it
+   * until its value is asked for. */
+  private class AsyncCall extends Call implements Future<Writable> {
+    private InetSocketAddress addr;
+
+    public AsyncCall(Writable param, InetSocketAddress addr) {
+      super(param);
+      this.addr = addr;
+    }
+
+    /** Wake up every thread waiting for the value. */
+    protected synchronized void callComplete() {
+      this.done = true;
+      notifyAll();
+    }
+
+    /** A call cannot be cancelled once it has been sent. */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    public boolean isCancelled() {
+      return false;
+    }
+
+    public synchronized boolean isDone() {
+      return done;
+    }
+
+    public synchronized Writable get()
+      throws InterruptedException, ExecutionException {
+      while (!done) {
+        wait();
+      }
+      return getValue();
+    }
+
+    public synchronized Writable get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (!done) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          throw new TimeoutException("Call to " + addr + " timed out");
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+      return getValue();
+    }
+
+    private Writable getValue() throws ExecutionException {
+      if (error == null) {
+        return value;
+      }
+      if (error instanceof RemoteException) {
+        throw new ExecutionException(error);
+      }
+      throw new ExecutionException(wrapException(addr, error));
+    }
+  }
+
   /** Result collector for parallel calls. */
   private static class ParallelResults {
     private Writable[] values;
@@ -631,6 +709,8 @@ public class Client {
       conf.getInt("ipc.client.connection.maxidletime", 10000); //10s
     this.maxRetries = conf.getInt("ipc.client.connect.max.retries", 10);
     this.tcpNoDelay = conf.getBoolean("ipc.client.tcpnodelay", false);
+    this.compactEncoding =
+      conf.getBoolean("ipc.client.compact.encoding", false);
     this.pingInterval = getPingInterval(conf);
     if (LOG.isDebugEnabled()) {
       LOG.debug("The ping interval is" + this.pingInterval + "ms.");
@@ -748,6 +828,26 @@ public class Client {
     }
   }
 
+  /** Start a call, passing <code>param</code>, to the IPC server running at
+   * <code>address</code> which is servicing the <code>protocol</code> protocol,
+   * with the <code>ticket</code> credentials, without waiting for its value.
+   * Calls started this way are pipelined on the connection to the server:
+   * any number of them may be outstanding with no thread waiting on each.
+   * @return a future for the value; if there are network problems or the
+   *         remote code threw an exception its <code>get</code> throws an
+   *         ExecutionException whose cause is the IOException
+   * @throws IOException if no connection to the server can be set up
+   */
+  public Future<Writable> callAsync(Writable param, InetSocketAddress addr,
+                                    Class<?> protocol,
+                                    UserGroupInformation ticket)
+                                    throws IOException {
+    AsyncCall call = new AsyncCall(param, addr);
+    Connection connection = getConnection(addr, protocol, ticket, call);
+    connection.sendParam(call);                 // send the parameter
+    return call;
+  }
+
   /**
    * Take an IOException and the address we were trying to connect to
    * and return an IOException with the input exception as the cause.
@@ -19,6 +19,7 @@ package org.apache.hadoop.ipc;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.IOException;
 
 import org.apache.commons.logging.Log;
@@ -37,6 +38,7 @@ class ConnectionHeader implements Writable {
   
   private String protocol;
   private UserGroupInformation ugi = new UnixUserGroupInformation();
+  private boolean compactEncoding = false;
   
   public ConnectionHeader() {}
   
@@ -49,8 +51,19 @@ class ConnectionHeader implements Writable {
    *            the server
    */
   public ConnectionHeader(String protocol, UserGroupInformation ugi) {
+    this(protocol, ugi, false);
+  }
+
+  /**
+   * Create a new {@link ConnectionHeader}.
+   * @param compactEncoding whether the client sends its RPC invocations in
+   *                        the compact encoding
+   */
+  public ConnectionHeader(String protocol, UserGroupInformation ugi,
+                          boolean compactEncoding) {
     this.protocol = protocol;
     this.ugi = ugi;
+    this.compactEncoding = compactEncoding;
   }
 
   @Override
@@ -66,6 +79,13 @@ class ConnectionHeader implements Writable {
     } else {
       ugi = null;
     }
+
+    // older clients end the header here
+    try {
+      compactEncoding = in.readBoolean();
+    } catch (EOFException e) {
+      compactEncoding = false;
+    }
   }
 
   @Override
@@ -77,6 +97,7 @@ class ConnectionHeader implements Writable {
     } else {
       out.writeBoolean(false);
     }
+    out.writeBoolean(compactEncoding);
   }
 
   public String getProtocol() {
@@ -87,6 +108,10 @@ class ConnectionHeader implements Writable {
     return ugi;
   }
 
+  public boolean isCompactEncoding() {
+    return compactEncoding;
+  }
+
   public String toString() {
     return protocol + "-" + ugi;
   }
@@ -28,8 +28,18 @@ import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.net.SocketFactory;
 import javax.security.auth.Subject;
@@ -70,12 +80,134 @@ public class RPC {
   private RPC() {}                                  // no public ctor
 
 
-  /** A method invocation, including the method name and its parameters.*/
+  /**
+   * The methods of a protocol, looked up once: by name and parameter
+   * classes, and by the ids that the compact encoding of an
+   * {@link Invocation} uses for them.  The id of a method is a hash of its
+   * signature, so both sides agree on it whatever order the JVM lists the
+   * methods in; a method whose id collides with another's is sent by
+   * signature instead.
+   */
+  static class ProtocolMethods {
+    /** The id of methods that are sent by signature. */
+    static final int BY_SIGNATURE = 0;
+
+    private final String protocolName;
+    private final Map<String, List<Method>> byName =
+      new HashMap<String, List<Method>>();
+    private final Map<String, Method> bySignature =
+      new HashMap<String, Method>();
+    private final Map<Integer, Method> byId = new HashMap<Integer, Method>();
+    private final Map<Method, Integer> ids = new HashMap<Method, Integer>();
+
+    ProtocolMethods(Class<?> protocol) {
+      protocolName = protocol.getName();
+      Set<Integer> collisions = new HashSet<Integer>();
+      for (Method method : protocol.getMethods()) {
+        method.setAccessible(true);
+        List<Method> methods = byName.get(method.getName());
+        if (methods == null) {
+          methods = new ArrayList<Method>(1);
+          byName.put(method.getName(), methods);
+        }
+        methods.add(method);
+        String signature = getSignature(method);
+        bySignature.put(signature, method);
+        int id = signature.hashCode();
+        if (id == BY_SIGNATURE || byId.put(id, method) != null) {
+          collisions.add(id);
+        }
+      }
+      for (Integer id : collisions) {
+        byId.remove(id);
+      }
+      for (Map.Entry<Integer, Method> entry : byId.entrySet()) {
+        ids.put(entry.getValue(), entry.getKey());
+      }
+    }
+
+    static String getSignature(Method method) {
+      StringBuilder signature = new StringBuilder(method.getName());
+      signature.append('(');
+      Class<?>[] parameterTypes = method.getParameterTypes();
+      for (int i = 0; i < parameterTypes.length; i++) {
+        if (i != 0) {
+          signature.append(',');
+        }
+        signature.append(parameterTypes[i].getName());
+      }
+      return signature.append(')').toString();
+    }
+
+    /** The id of the method, or {@link #BY_SIGNATURE}. */
+    int getId(Method method) {
+      Integer id = ids.get(method);
+      return (id == null) ? BY_SIGNATURE : id;
+    }
+
+    Method getMethod(int id) throws IOException {
+      Method method = byId.get(id);
+      if (method == null) {
+        throw new IOException("Unknown method id " + id + " of " +
+                              protocolName);
+      }
+      return method;
+    }
+
+    Method getMethod(String signature) throws IOException {
+      Method method = bySignature.get(signature);
+      if (method == null) {
+        throw new IOException("Unknown method " + signature + " of " +
+                              protocolName);
+      }
+      return method;
+    }
+
+    Method getMethod(String name, Class<?>[] parameterClasses)
+      throws NoSuchMethodException {
+      List<Method> methods = byName.get(name);
+      if (methods != null) {
+        for (Method method : methods) {
+          if (Arrays.equals(method.getParameterTypes(), parameterClasses)) {
+            return method;
+          }
+        }
+      }
+      throw new NoSuchMethodException(protocolName + "." + name);
+    }
+  }
+
+  private static final Map<Class<?>, ProtocolMethods> PROTOCOL_METHODS =
+    new ConcurrentHashMap<Class<?>, ProtocolMethods>();
+
+  static ProtocolMethods getProtocolMethods(Class<?> protocol) {
+    ProtocolMethods methods = PROTOCOL_METHODS.get(protocol);
+    if (methods == null) {
+      methods = new ProtocolMethods(protocol);
+      PROTOCOL_METHODS.put(protocol, methods);
+    }
+    return methods;
+  }
+
+  /** A method invocation, including the method name and its parameters.
+   * In the compact encoding, the method is sent as its id in
+   * {@link ProtocolMethods}, and the parameters are written against the
+   * parameter types of the method, so that class names are only sent for
+   * Writables that are of a subclass of the declared type.
+   */
   private static class Invocation implements Writable, Configurable {
     private String methodName;
     private Class[] parameterClasses;
     private Object[] parameters;
     private Configuration conf;
+    // the protocol's methods if in the compact encoding, else null
+    private ProtocolMethods methods;
+    private Method method;
+
+    // tags that precede non-primitive parameters in the compact encoding
+    private static final byte NULL = 0;       // null
+    private static final byte DECLARED = 1;   // of the declared class
+    private static final byte SUBCLASS = 2;   // of the class named next
 
     public Invocation() {}
 
@@ -85,6 +217,24 @@ public class RPC {
       this.parameters = parameters;
     }
 
+    public Invocation(Method method, Object[] parameters,
+                      boolean compactEncoding) {
+      this(method, parameters);
+      if (compactEncoding) {
+        this.method = method;
+        this.methods = getProtocolMethods(method.getDeclaringClass());
+      }
+    }
+
+    /** An invocation to read in the compact encoding. */
+    Invocation(ProtocolMethods methods, Configuration conf) {
+      this.methods = methods;
+      this.conf = conf;
+    }
+
+    /** The method invoked, or null if it has to be looked up by name. */
+    Method getMethod() { return method; }
+
     /** The name of the method invoked. */
     public String getMethodName() { return methodName; }
 
@@ -95,6 +245,10 @@ public class RPC {
     public Object[] getParameters() { return parameters; }
 
     public void readFields(DataInput in) throws IOException {
+      if (methods != null) {
+        readCompact(in);
+        return;
+      }
       methodName = UTF8.readString(in);
       parameters = new Object[in.readInt()];
       parameterClasses = new Class[parameters.length];
@@ -106,6 +260,10 @@ public class RPC {
     }
 
     public void write(DataOutput out) throws IOException {
+      if (methods != null) {
+        writeCompact(out);
+        return;
+      }
       UTF8.writeString(out, methodName);
       out.writeInt(parameterClasses.length);
       for (int i = 0; i < parameterClasses.length; i++) {
@@ -114,6 +272,170 @@ public class RPC {
       }
     }
 
+    private void readCompact(DataInput in) throws IOException {
+      int id = in.readInt();
+      method = (id == ProtocolMethods.BY_SIGNATURE)
+        ? methods.getMethod(UTF8.readString(in)) : methods.getMethod(id);
+      methodName = method.getName();
+      parameterClasses = method.getParameterTypes();
+      parameters = new Object[parameterClasses.length];
+      for (int i = 0; i < parameters.length; i++) {
+        parameters[i] = readParameter(in, parameterClasses[i], conf);
+      }
+    }
+
+    private void writeCompact(DataOutput out) throws IOException {
+      int id = methods.getId(method);
+      out.writeInt(id);
+      if (id == ProtocolMethods.BY_SIGNATURE) {
+        UTF8.writeString(out, ProtocolMethods.getSignature(method));
+      }
+      for (int i = 0; i < parameterClasses.length; i++) {
+        writeParameter(out, parameters[i], parameterClasses[i]);
+      }
+    }
+
+    private static void writeParameter(DataOutput out, Object instance,
+                                       Class<?> declaredClass)
+      throws IOException {
+      if (declaredClass.isPrimitive()) {
+        writePrimitive(out, instance, declaredClass);
+        return;
+      }
+      if (instance == null) {
+        out.writeByte(NULL);
+        return;
+      }
+      if (declaredClass.isArray()) {
+        out.writeByte(DECLARED);
+        Class<?> componentType = declaredClass.getComponentType();
+        int length = Array.getLength(instance);
+        out.writeInt(length);
+        if (componentType == Long.TYPE) {         // e.g. block reports
+          long[] values = (long[])instance;
+          for (int i = 0; i < length; i++) {
+            out.writeLong(values[i]);
+          }
+        } else {
+          for (int i = 0; i < length; i++) {
+            writeParameter(out, Array.get(instance, i), componentType);
+          }
+        }
+      } else if (declaredClass == String.class) {
+        out.writeByte(DECLARED);
+        UTF8.writeString(out, (String)instance);
+      } else if (declaredClass.isEnum()) {
+        out.writeByte(DECLARED);
+        UTF8.writeString(out, ((Enum<?>)instance).name());
+      } else if (Writable.class.isAssignableFrom(declaredClass)) {
+        if (instance.getClass() == declaredClass) {
+          out.writeByte(DECLARED);
+        } else {
+          out.writeByte(SUBCLASS);
+          UTF8.writeString(out, instance.getClass().getName());
+        }
+        ((Writable)instance).write(out);
+      } else {
+        throw new IOException("Can't write: "+instance+" as "+declaredClass);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object readParameter(DataInput in, Class<?> declaredClass,
+                                        Configuration conf)
+      throws IOException {
+      if (declaredClass.isPrimitive()) {
+        return readPrimitive(in, declaredClass);
+      }
+      byte tag = in.readByte();
+      if (tag == NULL) {
+        return null;
+      }
+      if (declaredClass.isArray()) {
+        Class<?> componentType = declaredClass.getComponentType();
+        int length = in.readInt();
+        if (componentType == Long.TYPE) {
+          long[] values = new long[length];
+          for (int i = 0; i < length; i++) {
+            values[i] = in.readLong();
+          }
+          return values;
+        }
+        Object instance = Array.newInstance(componentType, length);
+        for (int i = 0; i < length; i++) {
+          Array.set(instance, i, readParameter(in, componentType, conf));
+        }
+        return instance;
+      } else if (declaredClass == String.class) {
+        return UTF8.readString(in);
+      } else if (declaredClass.isEnum()) {
+        return Enum.valueOf((Class<? extends Enum>)declaredClass,
+                            UTF8.readString(in));
+      } else {                                    // Writable
+        Class<?> instanceClass = declaredClass;
+        if (tag == SUBCLASS) {
+          String className = UTF8.readString(in);
+          try {
+            instanceClass = conf.getClassByName(className);
+          } catch (ClassNotFoundException e) {
+            throw (IOException)new IOException(
+                "Can't find class " + className).initCause(e);
+          }
+        }
+        Writable writable = WritableFactories.newInstance(
+            (Class<? extends Writable>)instanceClass, conf);
+        writable.readFields(in);
+        return writable;
+      }
+    }
+
+    private static void writePrimitive(DataOutput out, Object instance,
+                                       Class<?> declaredClass)
+      throws IOException {
+      if (declaredClass == Boolean.TYPE) {
+        out.writeBoolean(((Boolean)instance).booleanValue());
+      } else if (declaredClass == Character.TYPE) {
+        out.writeChar(((Character)instance).charValue());
+      } else if (declaredClass == Byte.TYPE) {
+        out.writeByte(((Byte)instance).byteValue());
+      } else if (declaredClass == Short.TYPE) {
+        out.writeShort(((Short)instance).shortValue());
+      } else if (declaredClass == Integer.TYPE) {
+        out.writeInt(((Integer)instance).intValue());
+      } else if (declaredClass == Long.TYPE) {
+        out.writeLong(((Long)instance).longValue());
+      } else if (declaredClass == Float.TYPE) {
+        out.writeFloat(((Float)instance).floatValue());
+      } else if (declaredClass == Double.TYPE) {
+        out.writeDouble(((Double)instance).doubleValue());
+      } else {
+        throw new IllegalArgumentException("Not a primitive: "+declaredClass);
+      }
+    }
+
+    private static Object readPrimitive(DataInput in, Class<?> declaredClass)
+      throws IOException {
+      if (declaredClass == Boolean.TYPE) {
+        return Boolean.valueOf(in.readBoolean());
+      } else if (declaredClass == Character.TYPE) {
+        return Character.valueOf(in.readChar());
+      } else if (declaredClass == Byte.TYPE) {
+        return Byte.valueOf(in.readByte());
+      } else if (declaredClass == Short.TYPE) {
+        return Short.valueOf(in.readShort());
+      } else if (declaredClass == Integer.TYPE) {
+        return Integer.valueOf(in.readInt());
+      } else if (declaredClass == Long.TYPE) {
+        return Long.valueOf(in.readLong());
+      } else if (declaredClass == Float.TYPE) {
+        return Float.valueOf(in.readFloat());
+      } else if (declaredClass == Double.TYPE) {
+        return Double.valueOf(in.readDouble());
+      } else {
+        throw new IllegalArgumentException("Not a primitive: "+declaredClass);
+      }
+    }
+
     public String toString() {
       StringBuffer buffer = new StringBuffer();
       buffer.append(methodName);
@@ -218,14 +540,23 @@ public class RPC {
       }
 
       ObjectWritable value = (ObjectWritable)
-        client.call(new Invocation(method, args), address, 
-                    method.getDeclaringClass(), ticket);
+        client.call(new Invocation(method, args, client.isCompactEncoding()),
+                    address, method.getDeclaringClass(), ticket);
       if (logDebug) {
         long callTime = System.currentTimeMillis() - startTime;
         LOG.debug("Call: " + method.getName() + " " + callTime);
       }
       return value.get();
     }
+
+    /** Start a call of the method without waiting for its value. */
+    public Future<Object> invokeAsync(Method method, Object[] args)
+      throws IOException {
+      return new AsyncValue(
+          client.callAsync(new Invocation(method, args,
+                                          client.isCompactEncoding()),
+                           address, method.getDeclaringClass(), ticket));
+    }
     
     /* close the IPC client that's responsible for this invoker's RPCs */ 
     synchronized private void close() {
@@ -236,6 +567,36 @@ public class RPC {
     }
   }
 
+  /** The value of an asynchronous call, unwrapped from its ObjectWritable. */
+  private static class AsyncValue implements Future<Object> {
+    private Future<Writable> call;
+
+    public AsyncValue(Future<Writable> call) {
+      this.call = call;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return call.cancel(mayInterruptIfRunning);
+    }
+
+    public boolean isCancelled() {
+      return call.isCancelled();
+    }
+
+    public boolean isDone() {
+      return call.isDone();
+    }
+
+    public Object get() throws InterruptedException, ExecutionException {
+      return ((ObjectWritable)call.get()).get();
+    }
+
+    public Object get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+      return ((ObjectWritable)call.get(timeout, unit)).get();
+    }
+  }
+
   /**
    * A version mismatch for the RPC protocol.
    */
@@ -394,6 +755,35 @@ public class RPC {
     }
   }
 
+  /**
+   * Start a call of a method through a proxy without waiting for its value,
+   * so that one thread can keep many calls outstanding on the proxy's
+   * connection.
+   * @param proxy a proxy returned by {@link #getProxy}
+   * @param method a method of the proxy's protocol
+   * @param args the arguments of the call
+   * @return a future for the method's return value; if the call fails its
+   *         <code>get</code> throws an ExecutionException whose cause is the
+   *         IOException
+   * @throws IOException if no connection to the server can be set up
+   * @throws IllegalArgumentException if the proxy isn't an RPC proxy, or
+   *         the method isn't one of its protocol's
+   */
+  public static Future<Object> callAsync(VersionedProtocol proxy,
+                                         Method method, Object... args)
+    throws IOException {
+    InvocationHandler handler = Proxy.isProxyClass(proxy.getClass())
+      ? Proxy.getInvocationHandler(proxy) : null;
+    if (!(handler instanceof Invoker)) {
+      throw new IllegalArgumentException(proxy + " is not an RPC proxy");
+    }
+    if (!method.getDeclaringClass().isInstance(proxy)) {
+      throw new IllegalArgumentException(method + " is not a method of " +
+                                         proxy);
+    }
+    return ((Invoker)handler).invokeAsync(method, args);
+  }
+
   /** 
    * Expert: Make multiple, parallel calls to a set of servers.
    * @deprecated Use {@link #call(Method, Object[][], InetSocketAddress[], UserGroupInformation, Configuration)} instead 
@@ -410,10 +800,11 @@ public class RPC {
                               UserGroupInformation ticket, Configuration conf)
     throws IOException {
 
+    Client client = CLIENTS.getClient(conf);
     Invocation[] invocations = new Invocation[params.length];
     for (int i = 0; i < params.length; i++)
-      invocations[i] = new Invocation(method, params[i]);
-    Client client = CLIENTS.getClient(conf);
+      invocations[i] =
+        new Invocation(method, params[i], client.isCompactEncoding());
     try {
     Writable[] wrappedValues = 
       client.call(invocations, addrs, method.getDeclaringClass(), ticket);
@@ -493,16 +884,29 @@ public class RPC {
                         false);
     }
 
+    @Override
+    protected Writable newParam(Class<?> protocol, boolean compactEncoding)
+      throws IOException {
+      if (!compactEncoding) {
+        return super.newParam(protocol, compactEncoding);
+      }
+      if (protocol == null) {
+        throw new IOException("The compact encoding needs a protocol");
+      }
+      return new Invocation(getProtocolMethods(protocol), getConf());
+    }
+
     public Writable call(Class<?> protocol, Writable param, long receivedTime) 
     throws IOException {
       try {
         Invocation call = (Invocation)param;
         if (verbose) log("Call: " + call);
 
-        Method method =
-          protocol.getMethod(call.getMethodName(),
-                                   call.getParameterClasses());
-        method.setAccessible(true);
+        Method method = call.getMethod();
+        if (method == null) {
+          method = getProtocolMethods(protocol).getMethod(
+              call.getMethodName(), call.getParameterClasses());
+        }
 
         long startTime = System.currentTimeMillis();
         Object value = method.invoke(instance, call.getParameters());
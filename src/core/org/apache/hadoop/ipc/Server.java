@@ -46,6 +46,7 @@ import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Iterator;
@@ -141,6 +142,7 @@ public abstract class Server {
   private String bindAddress; 
   private int port;                               // port we listen on
   private int handlerCount;                       // number of handler threads
+  private int readThreads;                        // number of read threads
   private Class<? extends Writable> paramClass;   // class of call parameters
   private int maxIdleTime;                        // the maximum idle time after 
                                                   // which a client may be disconnected
@@ -163,6 +165,12 @@ public abstract class Server {
   volatile private boolean running = true;         // true while server runs
   private BlockingQueue<Call> callQueue; // queued calls
 
+  // (protocol name --> queued calls) for the protocols whose calls are
+  // queued, and handled, apart from the others
+  private Map<String, BlockingQueue<Call>> protocolCallQueues =
+    new HashMap<String, BlockingQueue<Call>>();
+  private int protocolHandlerCount; // number of handler threads per protocol
+
   private List<Connection> connectionList = 
     Collections.synchronizedList(new LinkedList<Connection>());
   //maintain a list
@@ -230,11 +238,17 @@ public abstract class Server {
     }
   }
 
-  /** Listens on the socket. Creates jobs for the handler threads*/
+  /**
+   * Listens on the socket and accepts connections; each connection is
+   * handed to one of the readers, which read its calls and queue them for
+   * the handler threads.
+   */
   private class Listener extends Thread {
     
     private ServerSocketChannel acceptChannel = null; //the accept channel
     private Selector selector = null; //the selector that we use for the server
+    private Reader[] readers = null;
+    private int currentReader = 0;
     private InetSocketAddress address; //the address we bind at
     private Random rand = new Random();
     private long lastCleanupRunTime = 0; //the last time when a cleanup connec-
@@ -257,9 +271,122 @@ public abstract class Server {
 
       // Register accepts on the server socket with the selector.
       acceptChannel.register(selector, SelectionKey.OP_ACCEPT);
+      readers = new Reader[readThreads];
+      for (int i = 0; i < readThreads; i++) {
+        readers[i] = new Reader(i);
+      }
       this.setName("IPC Server listener on " + port);
       this.setDaemon(true);
     }
+
+    /**
+     * Reads calls from the connections handed to it by the listener, with
+     * a selector of its own.
+     */
+    private class Reader extends Thread {
+      private final Selector readSelector;
+      // connections accepted but not yet registered with readSelector;
+      // only the reader may register with it, as it is blocked in select()
+      private final BlockingQueue<Connection> pendingConnections =
+        new LinkedBlockingQueue<Connection>();
+
+      Reader(int instanceNumber) throws IOException {
+        readSelector = Selector.open();
+        this.setName("IPC Server reader " + instanceNumber + " on " + port);
+        this.setDaemon(true);
+      }
+
+      void addConnection(Connection c) {
+        pendingConnections.add(c);
+        readSelector.wakeup();
+      }
+
+      @Override
+      public void run() {
+        LOG.info(getName() + ": starting");
+        SERVER.set(Server.this);
+        while (running) {
+          SelectionKey key = null;
+          try {
+            registerPendingConnections();
+            readSelector.select();
+            Iterator<SelectionKey> iter =
+              readSelector.selectedKeys().iterator();
+            while (iter.hasNext()) {
+              key = iter.next();
+              iter.remove();
+              if (key.isValid() && key.isReadable()) {
+                doRead(key);
+              }
+              key = null;
+            }
+          } catch (OutOfMemoryError e) {
+            // see Listener#run()
+            LOG.warn("Out of Memory in server select", e);
+            closeCurrentConnection(key, e);
+            try { Thread.sleep(60000); } catch (Exception ie) {}
+          } catch (InterruptedException e) {
+            if (running) {                          // unexpected -- log it
+              LOG.info(getName() + " caught: " +
+                       StringUtils.stringifyException(e));
+            }
+          } catch (Exception e) {
+            closeCurrentConnection(key, e);
+          }
+        }
+        LOG.info("Stopping " + this.getName());
+        try {
+          readSelector.close();
+        } catch (IOException e) { }
+      }
+
+      private void registerPendingConnections() {
+        Connection c;
+        while ((c = pendingConnections.poll()) != null) {
+          try {
+            c.channel.register(readSelector, SelectionKey.OP_READ, c);
+          } catch (ClosedChannelException e) {
+            // closed, e.g. as idle, before we got to it
+            closeConnection(c);
+          }
+        }
+      }
+
+      void doRead(SelectionKey key) throws InterruptedException {
+        int count = 0;
+        Connection c = (Connection)key.attachment();
+        if (c == null) {
+          return;  
+        }
+        c.setLastContact(System.currentTimeMillis());
+        
+        try {
+          count = c.readAndProcess();
+        } catch (InterruptedException ieo) {
+          LOG.info(getName() + ": readAndProcess caught InterruptedException", ieo);
+          throw ieo;
+        } catch (Exception e) {
+          LOG.info(getName() + ": readAndProcess threw exception " + e + ". Count of bytes read: " + count, e);
+          count = -1; //so that the (count < 0) block is executed
+        }
+        if (count < 0) {
+          if (LOG.isDebugEnabled())
+            LOG.debug(getName() + ": disconnecting client " + 
+                      c.getHostAddress() + ". Number of active connections: "+
+                      numConnections);
+          closeConnection(c);
+          c = null;
+        }
+        else {
+          c.setLastContact(System.currentTimeMillis());
+        }
+      }
+
+      void doStop() {
+        readSelector.wakeup();
+        this.interrupt();
+      }
+    }
     /** cleanup connections from connectionList. Choose a random range
      * to scan and also have a limit on the number of the connections
      * that will be cleanedup per run. The criteria for cleanup is the time
@@ -312,10 +439,15 @@ public abstract class Server {
     public void run() {
       LOG.info(getName() + ": starting");
       SERVER.set(Server.this);
+      for (Reader reader : readers) {
+        reader.start();
+      }
       while (running) {
         SelectionKey key = null;
         try {
-          selector.select();
+          // wake up now and then to clean up idle connections; the
+          // readers, not this thread, see the traffic on them
+          selector.select(cleanupInterval);
           Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
           while (iter.hasNext()) {
             key = iter.next();
@@ -324,8 +456,6 @@ public abstract class Server {
               if (key.isValid()) {
                 if (key.isAcceptable())
                   doAccept(key);
-                else if (key.isReadable())
-                  doRead(key);
               }
             } catch (IOException e) {
             }
@@ -339,11 +469,6 @@ public abstract class Server {
           closeCurrentConnection(key, e);
           cleanupConnections(true);
           try { Thread.sleep(60000); } catch (Exception ie) {}
-        } catch (InterruptedException e) {
-          if (running) {                          // unexpected -- log it
-            LOG.info(getName() + " caught: " +
-                     StringUtils.stringifyException(e));
-          }
         } catch (Exception e) {
           closeCurrentConnection(key, e);
         }
@@ -393,13 +518,13 @@ public abstract class Server {
 
         channel.configureBlocking(false);
         channel.socket().setTcpNoDelay(tcpNoDelay);
-        SelectionKey readKey = channel.register(selector, SelectionKey.OP_READ);
-        c = new Connection(readKey, channel, System.currentTimeMillis());
-        readKey.attach(c);
+        c = new Connection(channel, System.currentTimeMillis());
         synchronized (connectionList) {
           connectionList.add(numConnections, c);
           numConnections++;
         }
+        readers[currentReader].addConnection(c);
+        currentReader = (currentReader + 1) % readers.length;
         if (LOG.isDebugEnabled())
           LOG.debug("Server connection from " + c.toString() +
               "; # active connections: " + numConnections +
@@ -407,41 +532,14 @@ public abstract class Server {
       }
     }
 
-    void doRead(SelectionKey key) throws InterruptedException {
-      int count = 0;
-      Connection c = (Connection)key.attachment();
-      if (c == null) {
-        return;  
-      }
-      c.setLastContact(System.currentTimeMillis());
-      
-      try {
-        count = c.readAndProcess();
-      } catch (InterruptedException ieo) {
-        LOG.info(getName() + ": readAndProcess caught InterruptedException", ieo);
-        throw ieo;
-      } catch (Exception e) {
-        LOG.info(getName() + ": readAndProcess threw exception " + e + ". Count of bytes read: " + count, e);
-        count = -1; //so that the (count < 0) block is executed
-      }
-      if (count < 0) {
-        if (LOG.isDebugEnabled())
-          LOG.debug(getName() + ": disconnecting client " + 
-                    c.getHostAddress() + ". Number of active connections: "+
-                    numConnections);
-        closeConnection(c);
-        c = null;
-      }
-      else {
-        c.setLastContact(System.currentTimeMillis());
-      }
-    }   
-
     synchronized void doStop() {
       if (selector != null) {
         selector.wakeup();
         Thread.yield();
       }
+      for (Reader reader : readers) {
+        reader.doStop();
+      }
       if (acceptChannel != null) {
         try {
           acceptChannel.socket().close();
@@ -717,6 +815,8 @@ public abstract class Server {
     
     ConnectionHeader header = new ConnectionHeader();
     Class<?> protocol;
+    // where the calls on this connection are queued
+    private BlockingQueue<Call> callQueue = Server.this.callQueue;
     
     Subject user = null;
 
@@ -726,8 +826,7 @@ public abstract class Server {
       new Call(AUTHROIZATION_FAILED_CALLID, null, null);
     private ByteArrayOutputStream authFailedResponse = new ByteArrayOutputStream();
     
-    public Connection(SelectionKey key, SocketChannel channel, 
-                      long lastContact) {
+    public Connection(SocketChannel channel, long lastContact) {
       this.channel = channel;
       this.lastContact = lastContact;
       this.data = null;
@@ -884,6 +983,10 @@ public abstract class Server {
         String protocolClassName = header.getProtocol();
         if (protocolClassName != null) {
           protocol = getProtocolClass(header.getProtocol(), conf);
+          BlockingQueue<Call> queue = protocolCallQueues.get(protocolClassName);
+          if (queue != null) {
+            callQueue = queue;
+          }
         }
       } catch (ClassNotFoundException cnfe) {
         throw new IOException("Unknown protocol: " + header.getProtocol());
@@ -902,7 +1005,7 @@ public abstract class Server {
       if (LOG.isDebugEnabled())
         LOG.debug(" got #" + id);
 
-      Writable param = ReflectionUtils.newInstance(paramClass, conf);           // read param
+      Writable param = newParam(protocol, header.isCompactEncoding()); // read param
       param.readFields(dis);        
         
       Call call = new Call(id, param, this);
@@ -924,7 +1027,10 @@ public abstract class Server {
 
   /** Handles queued calls . */
   private class Handler extends Thread {
-    public Handler(int instanceNumber) {
+    private final BlockingQueue<Call> callQueue;
+
+    public Handler(int instanceNumber, BlockingQueue<Call> callQueue) {
+      this.callQueue = callQueue;
       this.setDaemon(true);
       this.setName("IPC Server handler "+ instanceNumber + " on " + port);
     }
@@ -1018,6 +1124,15 @@ public abstract class Server {
     this.socketSendBufferSize = 0;
     this.maxQueueSize = handlerCount * MAX_QUEUE_SIZE_PER_HANDLER;
     this.callQueue  = new LinkedBlockingQueue<Call>(maxQueueSize); 
+    this.readThreads = Math.max(1,
+        conf.getInt("ipc.server.read.threadpool.size", 1));
+    this.protocolHandlerCount = conf.getInt("ipc.server.protocol.queue.handlers",
+                                            Math.max(1, handlerCount / 4));
+    for (String protocol :
+         conf.getStringCollection("ipc.server.protocol.queues")) {
+      protocolCallQueues.put(protocol.trim(), new LinkedBlockingQueue<Call>(
+          protocolHandlerCount * MAX_QUEUE_SIZE_PER_HANDLER));
+    }
     this.maxIdleTime = 2*conf.getInt("ipc.client.connection.maxidletime", 1000);
     this.maxConnectionsToNuke = conf.getInt("ipc.client.kill.max", 10);
     this.thresholdIdleConnections = conf.getInt("ipc.client.idlethreshold", 4000);
@@ -1085,11 +1200,20 @@ public abstract class Server {
   public synchronized void start() throws IOException {
     responder.start();
     listener.start();
-    handlers = new Handler[handlerCount];
+    handlers = new Handler[handlerCount +
+                           protocolCallQueues.size() * protocolHandlerCount];
     
-    for (int i = 0; i < handlerCount; i++) {
-      handlers[i] = new Handler(i);
-      handlers[i].start();
+    int i = 0;
+    for (; i < handlerCount; i++) {
+      handlers[i] = new Handler(i, callQueue);
+    }
+    for (BlockingQueue<Call> queue : protocolCallQueues.values()) {
+      for (int j = 0; j < protocolHandlerCount; j++, i++) {
+        handlers[i] = new Handler(i, queue);
+      }
+    }
+    for (Handler handler : handlers) {
+      handler.start();
     }
   }
 
@@ -1098,7 +1222,7 @@ public abstract class Server {
     LOG.info("Stopping server on " + port);
     running = false;
     if (handlers != null) {
-      for (int i = 0; i < handlerCount; i++) {
+      for (int i = 0; i < handlers.length; i++) {
         if (handlers[i] != null) {
           handlers[i].interrupt();
         }
@@ -1140,6 +1264,17 @@ public abstract class Server {
     return call(null, param, receiveTime);
   }
   
+  /**
+   * Create the instance that the parameter of a call is read into.
+   * @param protocol the protocol of the connection, or null
+   * @param compactEncoding whether the client announced in its connection
+   *                        header that it sends calls in the compact encoding
+   */
+  protected Writable newParam(Class<?> protocol, boolean compactEncoding)
+    throws IOException {
+    return ReflectionUtils.newInstance(paramClass, conf);
+  }
+
   /** Called for each call. */
   public abstract Writable call(Class<?> protocol,
                                Writable param, long receiveTime)
@@ -1168,7 +1303,11 @@ public abstract class Server {
    * @return The number of rpc calls in the queue.
    */
   public int getCallQueueLen() {
-    return callQueue.size();
+    int len = callQueue.size();
+    for (BlockingQueue<Call> queue : protocolCallQueues.values()) {
+      len += queue.size();
+    }
+    return len;
   }
   
   
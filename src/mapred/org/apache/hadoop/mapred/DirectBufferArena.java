@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool of equally sized direct buffers ("slabs") for data that is held
+ * in memory outside the java heap, such as shuffled map outputs.  A buffer
+ * of n bytes is made of ceil(n / slab size) slabs; released slabs are kept
+ * and handed out again instead of being freed, so that the arena grows to
+ * the peak usage once and then stops allocating.  Slabs released while the
+ * arena holds more than its limit, or after it is closed, are dropped
+ * instead, for the garbage collector to free.
+ */
+class DirectBufferArena {
+  private final int slabSize;
+  private final long maxBytes;
+  private final List<ByteBuffer> free = new ArrayList<ByteBuffer>();
+  private long allocatedBytes = 0;
+  private boolean closed = false;
+
+  /**
+   * @param slabSize the size of each slab
+   * @param maxBytes the most direct memory to keep in the arena
+   */
+  DirectBufferArena(int slabSize, long maxBytes) {
+    if (slabSize <= 0) {
+      throw new IllegalArgumentException("Bad slab size: " + slabSize);
+    }
+    this.slabSize = slabSize;
+    this.maxBytes = maxBytes;
+  }
+
+  int getSlabSize() {
+    return slabSize;
+  }
+
+  /** The bytes of direct memory held by the arena, in use or free. */
+  synchronized long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  /**
+   * Get the slabs for a buffer of the given length.  The slabs are cleared,
+   * to be filled in order with put().
+   */
+  synchronized ByteBuffer[] allocate(int length) {
+    ByteBuffer[] slabs = new ByteBuffer[(length + slabSize - 1) / slabSize];
+    for (int i = 0; i < slabs.length; i++) {
+      if (free.isEmpty()) {
+        slabs[i] = ByteBuffer.allocateDirect(slabSize);
+        allocatedBytes += slabSize;
+      } else {
+        slabs[i] = free.remove(free.size() - 1);
+        slabs[i].clear();
+      }
+    }
+    return slabs;
+  }
+
+  /** Return the slabs of a buffer to the pool. */
+  synchronized void release(ByteBuffer[] slabs) {
+    for (ByteBuffer slab : slabs) {
+      if (closed || allocatedBytes > maxBytes) {
+        allocatedBytes -= slabSize;
+      } else {
+        free.add(slab);
+      }
+    }
+  }
+
+  /**
+   * Drop the free slabs, and those released from now on: no more buffers
+   * will be allocated.
+   */
+  synchronized void close() {
+    closed = true;
+    allocatedBytes -= (long) free.size() * slabSize;
+    free.clear();
+  }
+}
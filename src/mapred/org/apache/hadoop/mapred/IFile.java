@@ -22,6 +22,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
@@ -564,4 +565,140 @@ class IFile {
       ramManager.unreserve(bufferSize);
     }
   }
+
+  /**
+   * <code>IFile.InMemoryReader</code> for map-output data that is held
+   * outside the java heap, in the slabs of a {@link DirectBufferArena}.
+   * Each record is copied into an on-heap buffer as it is read; the slabs
+   * go back to the arena when the reader is closed.
+   */
+  public static class DirectInMemoryReader<K, V> extends Reader<K, V> {
+    RamManager ramManager;
+    DirectBufferArena arena;
+    TaskAttemptID taskAttemptId;
+    ByteBuffer[] slabs;
+    int slab = 0;
+    byte[] record = new byte[0];
+
+    /**
+     * @param slabs the slabs of the data, filled with put()
+     * @param length the length of the data
+     */
+    public DirectInMemoryReader(RamManager ramManager, DirectBufferArena arena,
+                                TaskAttemptID taskAttemptId,
+                                ByteBuffer[] slabs, int length)
+                                throws IOException {
+      super(null, null, length, null, null);
+      this.ramManager = ramManager;
+      this.arena = arena;
+      this.taskAttemptId = taskAttemptId;
+      this.slabs = slabs;
+      bufferSize = length;
+      for (ByteBuffer b : slabs) {
+        b.flip();
+      }
+    }
+
+    @Override
+    public long getPosition() throws IOException {
+      return bytesRead;
+    }
+
+    @Override
+    public long getLength() {
+      return fileLength;
+    }
+
+    private ByteBuffer currentSlab() throws EOFException {
+      while (slab < slabs.length && !slabs[slab].hasRemaining()) {
+        ++slab;
+      }
+      if (slab == slabs.length) {
+        throw new EOFException("Rec# " + recNo + ": Read past the end of " +
+                               "map-output of " + taskAttemptId);
+      }
+      return slabs[slab];
+    }
+
+    private int readVInt() throws IOException {
+      byte first = currentSlab().get();
+      int len = WritableUtils.decodeVIntSize(first);
+      if (len == 1) {
+        return first;
+      }
+      long i = 0;
+      for (int idx = 0; idx < len - 1; idx++) {
+        i = (i << 8) | (currentSlab().get() & 0xFF);
+      }
+      return (int)(WritableUtils.isNegativeVInt(first) ? (i ^ -1L) : i);
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        ByteBuffer current = currentSlab();
+        int n = Math.min(len, current.remaining());
+        current.get(b, off, n);
+        off += n;
+        len -= n;
+      }
+    }
+
+    public boolean next(DataInputBuffer key, DataInputBuffer value)
+    throws IOException {
+      // Sanity check
+      if (eof) {
+        throw new EOFException("Completed reading " + bytesRead);
+      }
+
+      // Read key and value lengths
+      int keyLength = readVInt();
+      int valueLength = readVInt();
+      bytesRead += WritableUtils.getVIntSize(keyLength) +
+                   WritableUtils.getVIntSize(valueLength);
+
+      // Check for EOF
+      if (keyLength == EOF_MARKER && valueLength == EOF_MARKER) {
+        eof = true;
+        return false;
+      }
+
+      // Sanity check
+      if (keyLength < 0) {
+        throw new IOException("Rec# " + recNo + ": Negative key-length: " +
+                              keyLength);
+      }
+      if (valueLength < 0) {
+        throw new IOException("Rec# " + recNo + ": Negative value-length: " +
+                              valueLength);
+      }
+
+      // Copy the record out of the slabs
+      final int recordLength = keyLength + valueLength;
+      if (record.length < recordLength) {
+        record = new byte[Math.max(recordLength, record.length * 2)];
+      }
+      readFully(record, 0, recordLength);
+      key.reset(record, 0, keyLength);
+      value.reset(record, keyLength, valueLength);
+
+      // Record the byte
+      bytesRead += recordLength;
+
+      ++recNo;
+
+      return true;
+    }
+
+    public void close() {
+      // Release
+      if (slabs != null) {
+        arena.release(slabs);
+        slabs = null;
+      }
+      record = null;
+
+      // Inform the RamManager
+      ramManager.unreserve(bufferSize);
+    }
+  }
 }
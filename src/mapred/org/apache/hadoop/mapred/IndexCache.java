@@ -18,31 +18,59 @@
 package org.apache.hadoop.mapred;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.Path;
 
+/**
+ * Caches the index records of the map outputs on a tasktracker.  The
+ * records are stored in a single direct buffer, carved into fixed size
+ * blocks; a map's records take as many blocks as they need.  Lookups don't
+ * lock: a reader pins the map's entry, so that its blocks are not reused
+ * while they are being read.  When the cache is full, the oldest map of the
+ * job that holds the most cache is evicted, so that a job with many maps
+ * doesn't push the maps of the other jobs out.
+ */
 class IndexCache {
 
+  /** Index records per block of the cache */
+  private static final int RECORDS_PER_BLOCK = 16;
+  private static final int BLOCK_SIZE =
+    RECORDS_PER_BLOCK * MapTask.MAP_OUTPUT_INDEX_RECORD_LENGTH;
+
   private final JobConf conf;
   private final int totalMemoryAllowed;
-  private AtomicInteger totalMemoryUsed = new AtomicInteger();
   private static final Log LOG = LogFactory.getLog(IndexCache.class);
 
   private final ConcurrentHashMap<String,IndexInformation> cache =
     new ConcurrentHashMap<String,IndexInformation>();
-  
-  private final LinkedBlockingQueue<String> queue = 
-    new LinkedBlockingQueue<String>();
+
+  // The blocks, the free ones (a stack) and the cached maps of each job,
+  // oldest first; guarded by this
+  private final ByteBuffer slab;
+  private final int[] freeBlocks;
+  private int numFreeBlocks;
+  private final Map<String,JobIndexes> jobs =
+    new HashMap<String,JobIndexes>();
 
   public IndexCache(JobConf conf) {
     this.conf = conf;
-    totalMemoryAllowed =
-      conf.getInt("mapred.tasktracker.indexcache.mb", 10) * 1024 * 1024;
+    totalMemoryAllowed = (int) Math.min(Integer.MAX_VALUE,
+      conf.getInt("mapred.tasktracker.indexcache.mb", 10) * 1024L * 1024L);
+    freeBlocks = new int[totalMemoryAllowed / BLOCK_SIZE];
+    for (int i = 0; i < freeBlocks.length; i++) {
+      freeBlocks[i] = freeBlocks.length - 1 - i;
+    }
+    numFreeBlocks = freeBlocks.length;
+    slab = ByteBuffer.allocateDirect(freeBlocks.length * BLOCK_SIZE);
     LOG.info("IndexCache created with max memory = " + totalMemoryAllowed);
   }
 
@@ -59,46 +87,60 @@ class IndexCache {
   public IndexRecord getIndexInformation(String mapId, int reduce,
       Path fileName) throws IOException {
 
-    IndexInformation info = cache.get(mapId);
+    while (true) {
+      IndexInformation info = cache.get(mapId);
 
-    if (info == null) {
-      info = readIndexFileToCache(fileName, mapId);
-    } else {
-      synchronized (info) {
-        while (null == info.mapSpillRecord) {
-          try {
-            info.wait();
-          } catch (InterruptedException e) {
-            throw new IOException("Interrupted waiting for construction", e);
-          }
+      if (info == null) {
+        info = readIndexFileToCache(fileName, mapId);
+      } else {
+        waitForConstruction(info);
+        LOG.debug("IndexCache HIT: MapId " + mapId + " found");
+      }
+
+      if (!info.pin()) {
+        // evicted since we found it
+        continue;
+      }
+      try {
+        if (info.numRecords == 0 || info.numRecords <= reduce) {
+          throw new IOException("Invalid request " +
+            " Map Id = " + mapId + " Reducer = " + reduce +
+            " Index Info Length = " + info.numRecords);
+        }
+        if (info.records != null) {
+          return info.records.getIndex(reduce);
         }
+        int pos = getPosition(info.blocks, reduce);
+        return new IndexRecord(slab.getLong(pos), slab.getLong(pos + 8),
+                               slab.getLong(pos + 16));
+      } finally {
+        unpin(info);
       }
-      LOG.debug("IndexCache HIT: MapId " + mapId + " found");
     }
+  }
 
-    if (info.mapSpillRecord.size() == 0 ||
-        info.mapSpillRecord.size() < reduce) {
-      throw new IOException("Invalid request " +
-        " Map Id = " + mapId + " Reducer = " + reduce +
-        " Index Info Length = " + info.mapSpillRecord.size());
+  private static void waitForConstruction(IndexInformation info)
+  throws IOException {
+    if (info.isConstructed()) {
+      return;
+    }
+    synchronized (info) {
+      while (!info.isConstructed()) {
+        try {
+          info.wait();
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted waiting for construction", e);
+        }
+      }
     }
-    return info.mapSpillRecord.getIndex(reduce);
   }
 
   private IndexInformation readIndexFileToCache(Path indexFileName,
       String mapId) throws IOException {
     IndexInformation info;
-    IndexInformation newInd = new IndexInformation();
+    IndexInformation newInd = new IndexInformation(mapId);
     if ((info = cache.putIfAbsent(mapId, newInd)) != null) {
-      synchronized (info) {
-        while (null == info.mapSpillRecord) {
-          try {
-            info.wait();
-          } catch (InterruptedException e) {
-            throw new IOException("Interrupted waiting for construction", e);
-          }
-        }
-      }
+      waitForConstruction(info);
       LOG.debug("IndexCache HIT: MapId " + mapId + " found");
       return info;
     }
@@ -107,60 +149,215 @@ class IndexCache {
     try { 
       tmp = new SpillRecord(indexFileName, conf);
     } catch (Throwable e) { 
-      tmp = new SpillRecord(0);
       cache.remove(mapId);
+      newInd.setRecords(new SpillRecord(0));
       throw new IOException("Error Reading IndexFile", e);
-    } finally { 
-      synchronized (newInd) { 
-        newInd.mapSpillRecord = tmp;
-        newInd.notifyAll();
-      } 
-    } 
-    queue.add(mapId);
-    
-    if (totalMemoryUsed.addAndGet(newInd.getSize()) > totalMemoryAllowed) {
-      freeIndexInformation();
     }
+
+    int numRecords = tmp.size();
+    int[] blocks = allocate(
+        (numRecords + RECORDS_PER_BLOCK - 1) / RECORDS_PER_BLOCK);
+    if (blocks == null) {
+      // doesn't fit: serve it from the records just read
+      LOG.info("Index of " + mapId + " is too large to cache: " + numRecords +
+               " records");
+      cache.remove(mapId, newInd);
+      newInd.setRecords(tmp);
+      return newInd;
+    }
+    for (int i = 0; i < numRecords; i++) {
+      IndexRecord rec = tmp.getIndex(i);
+      int pos = getPosition(blocks, i);
+      slab.putLong(pos, rec.startOffset);
+      slab.putLong(pos + 8, rec.rawLength);
+      slab.putLong(pos + 16, rec.partLength);
+    }
+    newInd.setBlocks(blocks, numRecords);
+    // the loader holds a reference until the map can be evicted, so that
+    // the blocks aren't freed while they are being filled
+    synchronized (this) {
+      if (cache.get(mapId) == newInd) {
+        getJobIndexes(newInd.jobId, true).add(newInd);
+      } else {
+        // removed while it was being read; drop the cache's reference
+        unpin(newInd);
+      }
+    }
+    unpin(newInd);
     return newInd;
   }
 
+  private static int getPosition(int[] blocks, int record) {
+    return blocks[record / RECORDS_PER_BLOCK] * BLOCK_SIZE +
+      (record % RECORDS_PER_BLOCK) * MapTask.MAP_OUTPUT_INDEX_RECORD_LENGTH;
+  }
+
+  /**
+   * Get free blocks, evicting maps if need be.
+   * @return null if there is not enough space
+   */
+  private synchronized int[] allocate(int numBlocks) {
+    if (numBlocks > freeBlocks.length) {
+      return null;
+    }
+    while (numFreeBlocks < numBlocks && evictOne()) {
+      // maps that are being read are freed once the readers are done
+    }
+    if (numFreeBlocks < numBlocks) {
+      return null;
+    }
+    int[] blocks = new int[numBlocks];
+    for (int i = 0; i < numBlocks; i++) {
+      blocks[i] = freeBlocks[--numFreeBlocks];
+    }
+    return blocks;
+  }
+
+  private synchronized void free(int[] blocks) {
+    for (int block : blocks) {
+      freeBlocks[numFreeBlocks++] = block;
+    }
+  }
+
+  private void unpin(IndexInformation info) {
+    if (info.refs.decrementAndGet() == 0 && info.blocks != null) {
+      free(info.blocks);
+    }
+  }
+
+  private synchronized JobIndexes getJobIndexes(String jobId,
+                                                boolean create) {
+    JobIndexes job = jobs.get(jobId);
+    if (job == null && create) {
+      job = new JobIndexes();
+      jobs.put(jobId, job);
+    }
+    return job;
+  }
+
+  /**
+   * Evict the oldest map of the job that holds the most blocks.
+   * @return false if there is no map to evict
+   */
+  private synchronized boolean evictOne() {
+    String victimJob = null;
+    JobIndexes victim = null;
+    for (Map.Entry<String,JobIndexes> e : jobs.entrySet()) {
+      if (victim == null || e.getValue().bytes > victim.bytes) {
+        victimJob = e.getKey();
+        victim = e.getValue();
+      }
+    }
+    if (victim == null) {
+      return false;
+    }
+    Iterator<IndexInformation> it = victim.maps.values().iterator();
+    IndexInformation info = it.next();
+    it.remove();
+    victim.bytes -= info.getSize();
+    if (victim.maps.isEmpty()) {
+      jobs.remove(victimJob);
+    }
+    cache.remove(info.mapId, info);
+    unpin(info);
+    return true;
+  }
+
   /**
    * This method removes the map from the cache. It should be called when
    * a map output on this tracker is discarded.
    * @param mapId The taskID of this map.
    */
-  public void removeMap(String mapId) {
+  public synchronized void removeMap(String mapId) {
     IndexInformation info = cache.remove(mapId);
-    if (info != null) {
-      totalMemoryUsed.addAndGet(-info.getSize());
-      if (!queue.remove(mapId)) {
-        LOG.warn("Map ID" + mapId + " not found in queue!!");
-      }
-    } else {
+    if (info == null) {
       LOG.info("Map ID " + mapId + " not found in cache");
+      return;
     }
+    JobIndexes job = getJobIndexes(info.jobId, false);
+    if (job != null && job.maps.remove(mapId) != null) {
+      job.bytes -= info.getSize();
+      if (job.maps.isEmpty()) {
+        jobs.remove(info.jobId);
+      }
+      unpin(info);
+    }
+    // else it is still being read, and the reader drops it
   }
 
-  /**
-   * Bring memory usage below totalMemoryAllowed.
-   */
-  private synchronized void freeIndexInformation() {
-    while (totalMemoryUsed.get() > totalMemoryAllowed) {
-      String s = queue.remove();
-      IndexInformation info = cache.remove(s);
-      if (info != null) {
-        totalMemoryUsed.addAndGet(-info.getSize());
-      }
+  /** The cached maps of a job, oldest first, and the space they take */
+  private static class JobIndexes {
+    final LinkedHashMap<String,IndexInformation> maps =
+      new LinkedHashMap<String,IndexInformation>();
+    long bytes = 0;
+
+    void add(IndexInformation info) {
+      maps.put(info.mapId, info);
+      bytes += info.getSize();
     }
   }
 
   private static class IndexInformation {
-    SpillRecord mapSpillRecord;
+    final String mapId;
+    final String jobId;
+    // One reference for the cache, one per reader; the blocks are freed
+    // when the last one is dropped
+    final AtomicInteger refs = new AtomicInteger(2);
+    // The blocks of the records, or the records if they aren't cached
+    int[] blocks;
+    SpillRecord records;
+    int numRecords;
+    private volatile boolean constructed = false;
+
+    IndexInformation(String mapId) {
+      this.mapId = mapId;
+      this.jobId = getJobId(mapId);
+    }
+
+    private static String getJobId(String mapId) {
+      try {
+        return TaskAttemptID.forName(mapId).getJobID().toString();
+      } catch (IllegalArgumentException e) {
+        return "";
+      }
+    }
+
+    boolean isConstructed() {
+      return constructed;
+    }
+
+    synchronized void setBlocks(int[] blocks, int numRecords) {
+      this.blocks = blocks;
+      this.numRecords = numRecords;
+      constructed = true;
+      notifyAll();
+    }
+
+    synchronized void setRecords(SpillRecord records) {
+      this.records = records;
+      this.numRecords = records.size();
+      constructed = true;
+      notifyAll();
+    }
+
+    /**
+     * Take a reference to the blocks.
+     * @return false if the map has been evicted
+     */
+    boolean pin() {
+      while (true) {
+        int n = refs.get();
+        if (n == 0) {
+          return false;
+        }
+        if (refs.compareAndSet(n, n + 1)) {
+          return true;
+        }
+      }
+    }
 
     int getSize() {
-      return mapSpillRecord == null
-        ? 0
-        : mapSpillRecord.size() * MapTask.MAP_OUTPUT_INDEX_RECORD_LENGTH;
+      return (blocks == null) ? 0 : blocks.length * BLOCK_SIZE;
     }
   }
 }
@@ -61,8 +61,12 @@ interface InterTrackerProtocol extends VersionedProtocol {
    *            (HADOOP-4869) 
    * Version 24: Changed format of Task and TaskStatus for HADOOP-4759 
    * Version 25: JobIDs are passed in response to JobTracker restart 
+   * Version 26: ReduceTask, as sent in LaunchTaskAction, carries the
+   *             sailfish key range that the reduce works on
+   * Version 27: TaskCompletionEvent carries the rack of the tasktracker
+   *             and the size of the map output
    */
-  public static final long versionID = 25L;
+  public static final long versionID = 27L;
   
   public final static int TRACKERS_OK = 0;
   public final static int UNKNOWN_TASKTRACKER = 1;
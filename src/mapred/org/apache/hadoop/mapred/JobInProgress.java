@@ -21,6 +21,7 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
@@ -37,6 +38,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.mapred.JobHistory.Values;
 import org.apache.hadoop.metrics.MetricsContext;
 import org.apache.hadoop.metrics.MetricsRecord;
@@ -73,11 +75,28 @@ class JobInProgress {
   Path localJarFile = null;
 
   TaskInProgress maps[] = new TaskInProgress[0];
-  TaskInProgress reduces[] = new TaskInProgress[0];
+  // replaced by createReduceTIPs() with the job locked, but read without the
+  // lock by getReduceTasks() (servlets, task reports)
+  volatile TaskInProgress reduces[] = new TaskInProgress[0];
   TaskInProgress cleanup[] = new TaskInProgress[0];
   TaskInProgress setup[] = new TaskInProgress[0];
   int numMapTasks = 0;
   int numReduceTasks = 0;
+  // # of reduce TIPs that are created at a time when the # of reduces is
+  // bumped up at runtime
+  int reduceTIPChunkSize = 256;
+  // # of I-file partitions, once some partition has been split into key
+  // ranges (-1 until then); after a split, the reduce at index i need not work
+  // on partition i
+  int numReducePartitions = -1;
+  // key ranges for reduces that are working on a slice of a partition, by
+  // reduce index
+  Map<Integer, SailfishReduceKeyRange> reduceKeyRanges = 
+    new HashMap<Integer, SailfishReduceKeyRange>();
+  // ids of a sailfish job's cleanup and setup reduce TIPs; they are kept
+  // past the ids of the reduces, which are added to at runtime
+  static final int SAILFISH_CLEANUP_REDUCE_ID = Integer.MAX_VALUE - 1;
+  static final int SAILFISH_SETUP_REDUCE_ID = Integer.MAX_VALUE;
   
   // Counters to track currently running/finished/failed Map/Reduce task-attempts
   int runningMapTasks = 0;
@@ -92,6 +111,8 @@ class JobInProgress {
   
   private volatile int mapTasksToReclaim = 0;
   private volatile int reduceTasksToReclaim = 0;
+  // for sailfish jobs, what we push out to the workbuilder
+  private SailfishJobEvents sailfishEvents = null;
   
   // runningMapTasks include speculative tasks, so we need to capture 
   // speculative tasks separately 
@@ -278,6 +299,8 @@ class JobInProgress {
 
     this.numMapTasks = conf.getNumMapTasks();
     this.numReduceTasks = conf.getNumReduceTasks();
+    this.reduceTIPChunkSize = 
+      Math.max(1, conf.getInt("sailfish.mapred.reduce.tip.chunk", 256));
     this.taskCompletionEvents = new ArrayList<TaskCompletionEvent>
        (numMapTasks + numReduceTasks + 10);
 
@@ -300,6 +323,9 @@ class JobInProgress {
     this.nonRunningReduces = new LinkedList<TaskInProgress>();    
     this.runningReduces = new LinkedHashSet<TaskInProgress>();
     this.resourceEstimator = new ResourceEstimator(this);
+    if (conf.getBoolean("sailfish.mapred.job.use_ifile", false)) {
+      this.sailfishEvents = new SailfishJobEvents(jobid.toString());
+    }
     // initialize job progress
     this.progress.add(startTime, 0.0f, 0.0f);
   }
@@ -467,6 +493,7 @@ class JobInProgress {
     }
     LOG.info("Input size for job " + jobId + " = " + inputLength
         + ". Number of splits = " + splits.length);
+    publishSailfishEvents();
     if (numMapTasks > 0) { 
       nonRunningMapCache = createCache(splits, maxLevel);
     }
@@ -486,13 +513,15 @@ class JobInProgress {
       // that goes into determining where a given key goes.
       numReduceTasks = 1;
     }
-    this.reduces = new TaskInProgress[numReduceTasks];
+    // filled in before it is published to the unlocked readers
+    TaskInProgress[] newReduces = new TaskInProgress[numReduceTasks];
     for (int i = 0; i < numReduceTasks; i++) {
-      reduces[i] = new TaskInProgress(jobId, jobFile, 
+      newReduces[i] = new TaskInProgress(jobId, jobFile, 
           numMapTasks, i, 
           jobtracker, conf, this);
-      nonRunningReduces.add(reduces[i]);
+      nonRunningReduces.add(newReduces[i]);
     }
+    this.reduces = newReduces;
 
     // Calculate the minimum number of maps to be complete before 
     // we should start scheduling reduces
@@ -502,6 +531,28 @@ class JobInProgress {
                          DEFAULT_COMPLETED_MAPS_PERCENT_FOR_REDUCE_SLOWSTART) * 
            numMapTasks));
 
+    createSetupAndCleanupTIPs(jobFile);
+    
+    synchronized(jobInitKillStatus){
+      jobInitKillStatus.initDone = true;
+      if(jobInitKillStatus.killed) {
+        throw new KillInterruptedException("Job " + jobId + " killed in init");
+      }
+    }
+    
+    tasksInited.set(true);
+    JobHistory.JobInfo.logInited(profile.getJobID(), this.launchTime, 
+                                 numMapTasks, numReduceTasks);
+  }
+
+  /**
+   * Create the setup and cleanup TIPs, one map and one reduce of each.
+   */
+  void createSetupAndCleanupTIPs(String jobFile) {
+    // a sailfish job's reduces are added at runtime with the ids after
+    // numReduceTasks (see setNumReduceTasks() and splitReducePartition())
+    boolean sailfish = conf.getBoolean("sailfish.mapred.job.use_ifile", false);
+
     // create cleanup two cleanup tips, one map and one reduce.
     cleanup = new TaskInProgress[2];
 
@@ -514,7 +565,8 @@ class JobInProgress {
 
     // cleanup reduce tip.
     cleanup[1] = new TaskInProgress(jobId, jobFile, numMapTasks,
-                       numReduceTasks, jobtracker, conf, this);
+                       sailfish ? SAILFISH_CLEANUP_REDUCE_ID : numReduceTasks,
+                       jobtracker, conf, this);
     cleanup[1].setJobCleanupTask();
 
     // create two setup tips, one map and one reduce.
@@ -528,19 +580,9 @@ class JobInProgress {
 
     // setup reduce tip.
     setup[1] = new TaskInProgress(jobId, jobFile, numMapTasks,
-                       numReduceTasks + 1, jobtracker, conf, this);
+                       sailfish ? SAILFISH_SETUP_REDUCE_ID : numReduceTasks + 1,
+                       jobtracker, conf, this);
     setup[1].setJobSetupTask();
-    
-    synchronized(jobInitKillStatus){
-      jobInitKillStatus.initDone = true;
-      if(jobInitKillStatus.killed) {
-        throw new KillInterruptedException("Job " + jobId + " killed in init");
-      }
-    }
-    
-    tasksInited.set(true);
-    JobHistory.JobInfo.logInited(profile.getJobID(), this.launchTime, 
-                                 numMapTasks, numReduceTasks);
   }
 
   /////////////////////////////////////////////////////
@@ -613,14 +655,20 @@ class JobInProgress {
       LOG.warn("Job conf says that we cannot change the # of reducers dynamically.");
       return false;
     }
-    LOG.info("# of reducers so far: " + this.reduces.length);
-    if (this.reduces.length >= nReduces) {
+    LOG.info("# of reducers so far: " + numReduceTasks);
+    if (numReducePartitions >= 0) {
+      LOG.warn("Cannot change the # of reducers once partitions have been split");
+      return false;
+    }
+    if (numReduceTasks >= nReduces) {
       LOG.warn("Cannot decrease the # of reducers: have = " + numReduceTasks + " asked: " + nReduces);
       return false;
     }
+    if (nReduces > SAILFISH_CLEANUP_REDUCE_ID) {
+      LOG.warn("Cannot have more reducers than: " + SAILFISH_CLEANUP_REDUCE_ID);
+      return false;
+    }
     
-    int oldNumReducers = this.reduces.length;
-    numReduceTasks = nReduces;
     //
     // Create reduce tasks:  Assume that we were run with only 1 reduce task to start with.
     // This logic works primarily for Sailfish jobs.  Jobs are started with 1 reduce task;
@@ -628,23 +676,115 @@ class JobInProgress {
     // # of reduce tasks; then, we notify the job tracker with the desired # of reducer tasks.
     // At this point, we spin up the desired # of reduce tasks and throw them into the pile.
     //
-    String jobFile = profile.getJobFile();
-
-    TaskInProgress[] oldReduces = this.reduces;
+    // This is called with the JobTracker locked; so, we only bump up the count
+    // and create the first few TIPs here.  The rest are created a chunk at a
+    // time as the scheduler runs out of reduces to hand out (see
+    // findNewReduceTask()).  Until then, reduces that haven't been created
+    // show up in pendingReduces(), but not in getReduceTasks().
+    //
+    numReduceTasks = nReduces;
+    createReduceTIPs(reduceTIPChunkSize);
+    LOG.info("Changed the # of reduce tasks for job: " + jobId + " to " + nReduces);
+    return true;
+  }
 
-    this.reduces = new TaskInProgress[numReduceTasks]; 
+  /**
+   * Split a skewed I-file partition into key ranges, each of which is handled
+   * by a reduce task of its own.  The reduce for the partition is left with
+   * the keys before the first split key; a new reduce is added for each of
+   * the other ranges.  This has to be done before the partition's reduce
+   * has been run.
+   * @param partition the I-file partition
+   * @param splitKeys sorted keys (in their sailfish serialized form) at
+   *  which to split
+   */
+  public synchronized boolean splitReducePartition(int partition,
+      byte[][] splitKeys) {
+    if (! conf.getBoolean("sailfish.mapred.job.use_ifile", false)) {
+      LOG.warn("Job conf says that this isn't a sailfish job; can't split partitions.");
+      return false;
+    }
+    int numPartitions = 
+      (numReducePartitions >= 0) ? numReducePartitions : numReduceTasks;
+    if ((partition < 0) || (partition >= numPartitions) || 
+        (splitKeys.length == 0)) {
+      LOG.warn("Invalid split for partition: " + partition + " of " + numPartitions);
+      return false;
+    }
+    if (reduceKeyRanges.containsKey(partition)) {
+      LOG.warn("Partition: " + partition + " has already been split");
+      return false;
+    }
+    if (splitKeys.length > SAILFISH_CLEANUP_REDUCE_ID - numReduceTasks) {
+      LOG.warn("Too many split keys for partition: " + partition);
+      return false;
+    }
+    RawComparator<Object> comparator = 
+      SailfishSerialization.getRawComparator(conf.getMapOutputKeyClass());
+    for (int i = 1; i < splitKeys.length; i++) {
+      if (comparator.compare(splitKeys[i - 1], 0, splitKeys[i - 1].length,
+          splitKeys[i], 0, splitKeys[i].length) >= 0) {
+        LOG.warn("Split keys for partition: " + partition + " aren't sorted");
+        return false;
+      }
+    }
+    SailfishReduceKeyRange first = 
+      new SailfishReduceKeyRange(partition, null, splitKeys[0]);
+    if ((partition < reduces.length) && !reduces[partition].setKeyRange(first)) {
+      LOG.warn("Reduce for partition: " + partition + " has already been run");
+      return false;
+    }
+    numReducePartitions = numPartitions;
+    reduceKeyRanges.put(partition, first);
+    for (int i = 0; i < splitKeys.length; i++) {
+      reduceKeyRanges.put(numReduceTasks + i, 
+          new SailfishReduceKeyRange(partition, splitKeys[i],
+              (i + 1 < splitKeys.length) ? splitKeys[i + 1] : null));
+    }
+    numReduceTasks += splitKeys.length;
+    LOG.info("Split partition: " + partition + " of job: " + jobId + " into "
+        + (splitKeys.length + 1) + " ranges; # of reduce tasks is now " 
+        + numReduceTasks);
+    return true;
+  }
 
-    for (int i = 0; i < oldNumReducers; i++)
-      reduces[i] = oldReduces[i];
-    for (int i = oldNumReducers; i < numReduceTasks; i++) {
-      reduces[i] = new TaskInProgress(jobId, jobFile, 
+  /**
+   * Create up to count more of the reduce TIPs that setNumReduceTasks() asked
+   * for.
+   */
+  private synchronized void createReduceTIPs(int count) {
+    int oldNumReducers = reduces.length;
+    int newNumReducers = Math.min(numReduceTasks, oldNumReducers + count);
+    if (newNumReducers <= oldNumReducers) {
+      return;
+    }
+    String jobFile = profile.getJobFile();
+    TaskInProgress[] newReduces = new TaskInProgress[newNumReducers];
+    System.arraycopy(reduces, 0, newReduces, 0, oldNumReducers);
+    for (int i = oldNumReducers; i < newNumReducers; i++) {
+      newReduces[i] = new TaskInProgress(jobId, jobFile, 
           numMapTasks, i, 
           jobtracker, conf, this);
-      nonRunningReduces.add(reduces[i]);
+      SailfishReduceKeyRange keyRange = reduceKeyRanges.get(i);
+      if (keyRange != null) {
+        newReduces[i].setKeyRange(keyRange);
+      }
+      nonRunningReduces.add(newReduces[i]);
+    }
+    this.reduces = newReduces;
+    LOG.info("Created reduce TIPs " + oldNumReducers + " to "
+        + (newNumReducers - 1) + " of " + numReduceTasks + " for job: " + jobId);
+  }
+
+  /**
+   * Create the next chunk of reduce TIPs once fewer than a chunk of the ones
+   * already created are left to be scheduled.
+   */
+  synchronized void createReduceTIPsIfLow() {
+    if ((reduces.length < numReduceTasks) && 
+        (nonRunningReduces.size() < reduceTIPChunkSize)) {
+      createReduceTIPs(reduceTIPChunkSize);
     }
-    oldReduces = null;
-    LOG.info("Changed the # of reduce tasks for job: " + jobId + " to " + nReduces);
-    return true;
   }
 
   // Update the job start/launch time (upon restart) and log to history
@@ -699,7 +839,8 @@ class JobInProgress {
   }
   
   /**
-   * Get the list of reduce tasks
+   * Get the list of reduce tasks.  More reduces may be added later on, in a
+   * new array; the one returned is never changed.
    * @return the raw array of reduce tasks for this job
    */
   TaskInProgress[] getReduceTasks() {
@@ -739,6 +880,7 @@ class JobInProgress {
   
   void setMapPreemptionTarget(int schedUpdate) {
     mapTasksToReclaim = schedUpdate;
+    publishSailfishEvents();
   }
   
   int getReducePreemptionTarget() {
@@ -748,6 +890,27 @@ class JobInProgress {
   void setReducePreemptionTarget(int schedUpdate) {
     LOG.info(getJobID() + " preemption target set to " + schedUpdate);
     reduceTasksToReclaim = schedUpdate;
+    publishSailfishEvents();
+  }
+
+  /**
+   * Get the state that is streamed out to the workbuilder
+   * @return null if this isn't a sailfish job
+   */
+  SailfishJobEvents getSailfishEvents() {
+    return sailfishEvents;
+  }
+
+  /**
+   * Push the current # of unfinished maps and the preemption targets out to
+   * whoever is listening for this job's sailfish events.
+   */
+  private synchronized void publishSailfishEvents() {
+    if (sailfishEvents == null) {
+      return;
+    }
+    sailfishEvents.update(runningMapTasks + Math.abs(pendingMaps()),
+        mapTasksToReclaim, reduceTasksToReclaim);
   }
   
   /**
@@ -814,7 +977,9 @@ class JobInProgress {
   ////////////////////////////////////////////////////
 
   /**
-   * Assuming {@link JobTracker} is locked on entry.
+   * The heartbeats call this without the {@link JobTracker} locked, so
+   * nothing here may lock the {@link JobTracker}; see
+   * {@link JobTracker#finalizeJob(JobInProgress)}.
    */
   public synchronized void updateTaskStatus(TaskInProgress tip, 
                                             TaskStatus status) {
@@ -857,6 +1022,7 @@ class JobInProgress {
       TaskTrackerStatus ttStatus = 
         this.jobtracker.getTaskTracker(tip.machineWhereTaskRan(taskid));
       String httpTaskLogLocation = null; 
+      Node trackerNode = null;
 
       if (null != ttStatus){
         String host;
@@ -867,6 +1033,7 @@ class JobInProgress {
         }
         httpTaskLogLocation = "http://" + host + ":" + ttStatus.getHttpPort(); 
            //+ "/tasklog?plaintext=true&taskid=" + status.getTaskID();
+        trackerNode = jobtracker.getNode(ttStatus.getHost());
       }
 
       TaskCompletionEvent taskEvent = null;
@@ -883,6 +1050,10 @@ class JobInProgress {
                                            );
         taskEvent.setTaskRunTime((int)(status.getFinishTime() 
                                        - status.getStartTime()));
+        if (taskEvent.isMapTask()) {
+          // the reduces copy the biggest outputs first
+          taskEvent.setMapOutputSize(status.getOutputSize());
+        }
         tip.setSuccessEventNumber(taskCompletionEventTracker); 
       } else if (state == TaskStatus.State.COMMIT_PENDING) {
         // If it is the first attempt reporting COMMIT_PENDING
@@ -946,6 +1117,10 @@ class JobInProgress {
       //    other (speculative tasks) are marked KILLED by the TaskCommitThread
       // b. TIP.completedTask *does not* throw _any_ exception at all.
       if (taskEvent != null) {
+        if (trackerNode != null) {
+          // the reduces spread their copies over the racks of the maps
+          taskEvent.setTaskTrackerRack(trackerNode.getNetworkLocation());
+        }
         this.taskCompletionEvents.add(taskEvent);
         taskCompletionEventTracker++;
         if (state == TaskStatus.State.SUCCEEDED) {
@@ -970,7 +1145,7 @@ class JobInProgress {
                                               progressDelta / maps.length));
       } else {
         this.status.setReduceProgress((float) (this.status.reduceProgress() + 
-                                           (progressDelta / reduces.length)));
+                                           (progressDelta / numReduceTasks)));
       }
       // Update only if we are past update interval
       // This update is set to 3 sec for now
@@ -1380,6 +1555,7 @@ class JobInProgress {
       if (tip.getActiveTasks().size() > 1)
         speculativeMapTasks++;
       metrics.launchMap(id);
+      publishSailfishEvents();
     } else {
       ++runningReduceTasks;
       name = Values.REDUCE.name();
@@ -2022,6 +2198,10 @@ class JobInProgress {
       return -1; //see if a different TIP might work better. 
     }
     
+    // 0. create more of the reduce tips if setNumReduceTasks() asked for more
+    // than we have and we are running low
+    createReduceTIPsIfLow();
+
     // 1. check for a never-executed reduce tip
     // reducers don't have a cache and so pass -1 to explicitly call that out
     tip = findTaskFromList(nonRunningReduces, tts, numUniqueHosts, false);
@@ -2174,6 +2354,7 @@ class JobInProgress {
       if ((finishedMapTasks + failedMapTIPs) == (numMapTasks)) {
         this.status.setMapProgress(1.0f);
       }
+      publishSailfishEvents();
     } else {
       runningReduceTasks -= 1;
       if (oldNumAttempts > 1) {
@@ -2409,6 +2590,9 @@ class JobInProgress {
         finishedMapTasks -= 1;
       }
     }
+    if (tip.isMapTask()) {
+      publishSailfishEvents();
+    }
         
     // update job history
     // get taskStatus from tip
@@ -2483,6 +2667,9 @@ class JobInProgress {
                         tip.isMapTask() ? 
             ((++failedMapTIPs*100) > (mapFailuresPercent*numMapTasks)) :
             ((++failedReduceTIPs*100) > (reduceFailuresPercent*numReduceTasks));
+      if (tip.isMapTask()) {
+        publishSailfishEvents();
+      }
       
       if (killJob) {
         LOG.info("Aborting job " + profile.getJobID());
@@ -2581,6 +2768,9 @@ class JobInProgress {
    * from the various tables.
    */
   synchronized void garbageCollect() {
+    if (sailfishEvents != null) {
+      sailfishEvents.jobDone();
+    }
     // Let the JobTracker know that a job is complete
     jobtracker.getInstrumentation(
         ).decWaiting(getJobID(), pendingMaps() + pendingReduces());
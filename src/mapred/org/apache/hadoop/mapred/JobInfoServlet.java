@@ -48,21 +48,19 @@ public class JobInfoServlet extends HttpServlet {
 
     String status = null;
     String outString = null;
-    synchronized(tracker) {
-      JobID jobIdObj = JobID.forName(requestJobID);
-      JobInProgress job = tracker.getJob(jobIdObj);
-      if (job == null) {
-        outString = requestJobID + ":" + "NOTFOUND";
-      } else {
-        if (job.getStatus().getRunState() == JobStatus.RUNNING)
-          outString = requestJobID + ":" + "RUNNING";
-        if (job.getStatus().getRunState() == JobStatus.FAILED)
-          outString = requestJobID + ":" + "FAILED";
-        if (job.getStatus().getRunState() == JobStatus.SUCCEEDED)
-          outString = requestJobID + ":" + "SUCCEEDED";
-        if (job.getStatus().getRunState() == JobStatus.KILLED)
-          outString = requestJobID + ":" + "KILLED";
-      }
+    JobID jobIdObj = JobID.forName(requestJobID);
+    JobInProgress job = tracker.getJob(jobIdObj);
+    if (job == null) {
+      outString = requestJobID + ":" + "NOTFOUND";
+    } else {
+      if (job.getStatus().getRunState() == JobStatus.RUNNING)
+        outString = requestJobID + ":" + "RUNNING";
+      if (job.getStatus().getRunState() == JobStatus.FAILED)
+        outString = requestJobID + ":" + "FAILED";
+      if (job.getStatus().getRunState() == JobStatus.SUCCEEDED)
+        outString = requestJobID + ":" + "SUCCEEDED";
+      if (job.getStatus().getRunState() == JobStatus.KILLED)
+        outString = requestJobID + ":" + "KILLED";
     }
 
     out.write(outString.getBytes());
@@ -58,8 +58,10 @@ interface JobSubmissionProtocol extends VersionedProtocol {
    *             for HADOOP-4807
    * Version 20: Modified ClusterStatus to have the tasktracker expiry
    *             interval for HADOOP-4939                     
+   * Version 21: TaskCompletionEvent carries the rack of the tasktracker
+   *             and the size of the map output
    */
-  public static final long versionID = 20L;
+  public static final long versionID = 21L;
 
   /**
    * Allocate a name for the job.
@@ -36,11 +36,13 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.logging.Log;
@@ -112,7 +114,7 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
   // tracker could be blacklisted across all jobs
   private int MAX_BLACKLISTS_PER_TRACKER = 4;
   public static enum State { INITIALIZING, RUNNING }
-  State state = State.INITIALIZING;
+  volatile State state = State.INITIALIZING;
   private static final int FS_ACCESS_RETRY_PERIOD = 10000;
 
   private DNSToSwitchMapping dnsToSwitchMapping;
@@ -258,7 +260,7 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
                 if (age > TASKTRACKER_EXPIRY_INTERVAL) {
                   LOG.info("Launching task " + taskId + " timed out.");
                   TaskInProgress tip = null;
-                  tip = taskidToTIPMap.get(taskId);
+                  tip = taskAttempts.getTIP(taskId);
                   if (tip != null) {
                     JobInProgress job = tip.getJob();
                     String trackerName = getAssignedTracker(taskId);
@@ -283,6 +285,7 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
                 }
               }
             }
+            purgeFinalizedJobs();
           }
         } catch (InterruptedException ie) {
           // all done
@@ -374,6 +377,7 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
                 }
               }
             }
+            purgeFinalizedJobs();
           }
         } catch (InterruptedException iex) {
           break;
@@ -402,6 +406,7 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
       while (true) {
         try {
           Thread.sleep(RETIRE_JOB_CHECK_INTERVAL);
+          purgeFinalizedJobs();
           List<JobInProgress> retiredJobs = new ArrayList<JobInProgress>();
           long now = System.currentTimeMillis();
           long retireBefore = now - RETIRE_JOB_INTERVAL;
@@ -461,10 +466,13 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
   // The FaultInfo which indicates the number of faults of a tracker
   // and when the last fault occurred
   // and whether the tracker is blacklisted across all jobs or not
+  // The fault count and the blacklist flag are read without any lock;
+  // the flag is only changed with the taskTrackers lock held, together
+  // with the cluster capacity
   private static class FaultInfo {
-    int numFaults = 0;
+    volatile int numFaults = 0;
     long lastUpdated;
-    boolean blacklisted; 
+    volatile boolean blacklisted;
 
     FaultInfo() {
       numFaults = 0;
@@ -498,9 +506,10 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
   }
 
   private class FaultyTrackersInfo {
-    // A map from hostName to its faults
+    // A map from hostName to its faults; changed with the map locked, but
+    // looked up without the lock by isBlacklisted() and getFaultCount()
     private Map<String, FaultInfo> potentiallyFaultyTrackers = 
-              new HashMap<String, FaultInfo>();
+              new ConcurrentHashMap<String, FaultInfo>();
     // This count gives the number of blacklisted trackers in the cluster 
     // at any time. This is maintained to avoid iteration over 
     // the potentiallyFaultyTrackers to get blacklisted trackers. And also
@@ -530,8 +539,7 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
           if (shouldBlacklist(hostName, numFaults)) {
             LOG.info("Adding " + hostName + " to the blacklist" +
                      " across all jobs");
-            removeHostCapacity(hostName);
-            fi.setBlacklist(true);
+            removeHostCapacity(hostName, fi);
           }
         }
       }        
@@ -572,11 +580,12 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
      */
     void markTrackerHealthy(String hostName) {
       synchronized (potentiallyFaultyTrackers) {
-        FaultInfo fi = potentiallyFaultyTrackers.remove(hostName);
+        FaultInfo fi = potentiallyFaultyTrackers.get(hostName);
         if (fi != null && fi.isBlacklisted()) {
           LOG.info("Removing " + hostName + " from blacklist");
-          addHostCapacity(hostName);
+          addHostCapacity(hostName, fi);
         }
+        potentiallyFaultyTrackers.remove(hostName);
       }
     }
 
@@ -601,8 +610,7 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
           int numFaults = fi.getFaultCount() - 1;
           if (fi.isBlacklisted()) {
             LOG.info("Removing " + hostName + " from blacklist");
-            addHostCapacity(hostName);
-            fi.setBlacklist(false);
+            addHostCapacity(hostName, fi);
           }
           if (numFaults > 0) {
             fi.setFaultCount(numFaults);
@@ -615,8 +623,11 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
       }
     }
 
-    private void removeHostCapacity(String hostName) {
+    // The blacklist flag is changed along with the capacity, so that
+    // updateTaskTrackerStatus() sees the two agree
+    private void removeHostCapacity(String hostName, FaultInfo fi) {
       synchronized (taskTrackers) {
+        fi.setBlacklist(true);
         // remove the capacity of trackers on this host
         for (TaskTrackerStatus status : getStatusesOnHost(hostName)) {
           totalMapTaskCapacity -= status.getMaxMapTasks();
@@ -628,8 +639,9 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
     }
     
     // This is called on tracker's restart or after a day of blacklist.
-    private void addHostCapacity(String hostName) {
+    private void addHostCapacity(String hostName, FaultInfo fi) {
       synchronized (taskTrackers) {
+        fi.setBlacklist(false);
         int numTrackersOnHost = 0;
         // add the capacity of trackers on the host
         for (TaskTrackerStatus status : getStatusesOnHost(hostName)) {
@@ -650,21 +662,17 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
      * @return
      */
     boolean isBlacklisted(String hostName) {
-      synchronized (potentiallyFaultyTrackers) {
-        FaultInfo fi = null;
-        if ((fi = potentiallyFaultyTrackers.get(hostName)) != null) {
-          return fi.isBlacklisted();
-        }
+      FaultInfo fi = null;
+      if ((fi = potentiallyFaultyTrackers.get(hostName)) != null) {
+        return fi.isBlacklisted();
       }
       return false;
     }
     
     int getFaultCount(String hostName) {
-      synchronized (potentiallyFaultyTrackers) {
-        FaultInfo fi = null;
-        if ((fi = potentiallyFaultyTrackers.get(hostName)) != null) {
-          return fi.getFaultCount();
-        }
+      FaultInfo fi = null;
+      if ((fi = potentiallyFaultyTrackers.get(hostName)) != null) {
+        return fi.getFaultCount();
       }
       return 0;
     }
@@ -1424,6 +1432,8 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
   //
 
   // All the known jobs.  (jobid->JobInProgress)
+  // Changed with the jobs lock held; lookups with getJob() need only
+  // the jobs lock, not the JobTracker lock
   Map<JobID, JobInProgress> jobs = new TreeMap<JobID, JobInProgress>();
 
   // (user -> list of JobInProgress)
@@ -1438,24 +1448,32 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
   Map<String, Set<TaskAttemptID>> trackerToTasksToCleanup = 
     new HashMap<String, Set<TaskAttemptID>>();
   
-  // All the known TaskInProgress items, mapped to by taskids (taskid->TIP)
-  Map<TaskAttemptID, TaskInProgress> taskidToTIPMap =
-    new TreeMap<TaskAttemptID, TaskInProgress>();
-
-  // (taskid --> trackerID) 
-  TreeMap<TaskAttemptID, String> taskidToTrackerMap = new TreeMap<TaskAttemptID, String>();
-
-  // (trackerID->TreeSet of taskids running at that tracker)
-  TreeMap<String, Set<TaskAttemptID>> trackerToTaskMap =
-    new TreeMap<String, Set<TaskAttemptID>>();
-
-  // (trackerID -> TreeSet of completed taskids running at that tracker)
-  TreeMap<String, Set<TaskAttemptID>> trackerToMarkedTasksMap =
-    new TreeMap<String, Set<TaskAttemptID>>();
+  // All the known task attempts: (taskid --> TIP), (taskid --> trackerID)
+  // and (trackerID --> taskids running at that tracker)
+  final TaskAttemptTable taskAttempts = new TaskAttemptTable();
+
+  // (trackerID -> HashSet of completed taskids running at that tracker)
+  // Locked on its own, as the jobs mark their tasks with only the
+  // job locked
+  Map<String, Set<TaskAttemptID>> trackerToMarkedTasksMap =
+    new HashMap<String, Set<TaskAttemptID>>();
 
   // (trackerID --> last sent HeartBeatResponse)
+  // Each tracker's entry is read and replaced under that tracker's lock
   Map<String, HeartbeatResponse> trackerToHeartbeatResponseMap = 
-    new TreeMap<String, HeartbeatResponse>();
+    new ConcurrentHashMap<String, HeartbeatResponse>();
+
+  // Locks for the trackers' heartbeats, picked by the hash of the tracker
+  // name; a tracker's name changes whenever it restarts, so the locks are
+  // shared rather than kept per tracker.  Heartbeats from trackers with
+  // different locks are processed at the same time; see heartbeat() for the
+  // order in which the locks are taken
+  static final int NUM_TRACKER_LOCKS = 64;
+  private final Object[] trackerLocks = new Object[NUM_TRACKER_LOCKS];
+
+  // Jobs finalized since the last purgeFinalizedJobs()
+  private final Queue<JobInProgress> finalizedJobs =
+    new ConcurrentLinkedQueue<JobInProgress>();
 
   // (hostname --> Node (NetworkTopology))
   Map<String, Node> hostnameToNodeMap = 
@@ -1472,8 +1490,10 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
   //
   int totalMaps = 0;
   int totalReduces = 0;
-  private HashMap<String, TaskTrackerStatus> taskTrackers =
-    new HashMap<String, TaskTrackerStatus>();
+  // Changed with the taskTrackers lock held; single lookups and the
+  // cleanup marking in addJobForCleanup() go without the lock
+  private Map<String, TaskTrackerStatus> taskTrackers =
+    new ConcurrentHashMap<String, TaskTrackerStatus>();
   Map<String,Integer>uniqueHostsMap = new ConcurrentHashMap<String, Integer>();
   ExpireTrackers expireTrackers = new ExpireTrackers();
   Thread expireTrackersThread = null;
@@ -1557,6 +1577,10 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
     AVERAGE_BLACKLIST_THRESHOLD = 
       conf.getFloat("mapred.cluster.average.blacklist.threshold", 0.5f); 
 
+    for (int i = 0; i < trackerLocks.length; i++) {
+      trackerLocks[i] = new Object();
+    }
+
     // This is a directory of temporary submission files.  We delete it
     // on startup, and can delete any files that we're done with
     this.conf = conf;
@@ -1627,9 +1651,11 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
     }
     infoServer.addServlet("reducegraph", "/taskgraph", TaskGraphServlet.class);
     infoServer.addServlet("setnumreducers", "/setnumreducers", SetNumReducersServlet.class);
+    infoServer.addServlet("splitreducepartition", "/splitreducepartition", SailfishSplitReducePartitionServlet.class);
     infoServer.addServlet("numreduceslotsover", "/numreduceslotsover", SailfishNumReduceSlotsOverCapacityServlet.class);
     infoServer.addServlet("numunfinishedmaps", "/numunfinishedmaps", SailfishNumUnfinishedMapsServlet.class);
     infoServer.addServlet("numtaskpreempt", "/numtaskpreempt", SailfishNumTasksPreemptServlet.class);
+    infoServer.addServlet("sailfishjobevents", "/sailfishjobevents", SailfishJobEventsServlet.class);
     infoServer.addServlet("rerunmaptask", "/rerunmaptask", SailfishMapRerunnerServlet.class);
     infoServer.addServlet("jobinfo", "/jobinfo", JobInfoServlet.class);
     infoServer.addServlet("jobcounters", "/jobcounters", JobCountersServlet.class);
@@ -1941,62 +1967,40 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
       "'"  + taskid + "' to tip " + 
       tip.getTIPId() + ", for tracker '" + taskTracker + "'");
 
-    // taskid --> tracker
-    taskidToTrackerMap.put(taskid, taskTracker);
-
-    // tracker --> taskid
-    Set<TaskAttemptID> taskset = trackerToTaskMap.get(taskTracker);
-    if (taskset == null) {
-      taskset = new TreeSet<TaskAttemptID>();
-      trackerToTaskMap.put(taskTracker, taskset);
-    }
-    taskset.add(taskid);
-
-    // taskid --> TIP
-    taskidToTIPMap.put(taskid, tip);
-    
+    // taskid --> tracker, tracker --> taskid, taskid --> TIP
+    taskAttempts.add(taskid, taskTracker, tip);
   }
     
   void removeTaskEntry(TaskAttemptID taskid) {
-    // taskid --> tracker
-    String tracker = taskidToTrackerMap.remove(taskid);
-
-    // tracker --> taskid
-    if (tracker != null) {
-      Set<TaskAttemptID> trackerSet = trackerToTaskMap.get(tracker);
-      if (trackerSet != null) {
-        trackerSet.remove(taskid);
-      }
-    }
-
-    // taskid --> TIP
-    taskidToTIPMap.remove(taskid);
+    taskAttempts.remove(taskid);
         
     LOG.debug("Removing task '" + taskid + "'");
   }
     
   /**
    * Mark a 'task' for removal later.
-   * This function assumes that the JobTracker is locked on entry.
+   * This is called by the jobs with only the job locked.
    * 
    * @param taskTracker the tasktracker at which the 'task' was running
    * @param taskid completed (success/failure/killed) task
    */
   void markCompletedTaskAttempt(String taskTracker, TaskAttemptID taskid) {
     // tracker --> taskid
-    Set<TaskAttemptID> taskset = trackerToMarkedTasksMap.get(taskTracker);
-    if (taskset == null) {
-      taskset = new TreeSet<TaskAttemptID>();
-      trackerToMarkedTasksMap.put(taskTracker, taskset);
+    synchronized (trackerToMarkedTasksMap) {
+      Set<TaskAttemptID> taskset = trackerToMarkedTasksMap.get(taskTracker);
+      if (taskset == null) {
+        taskset = new HashSet<TaskAttemptID>();
+        trackerToMarkedTasksMap.put(taskTracker, taskset);
+      }
+      taskset.add(taskid);
     }
-    taskset.add(taskid);
       
     LOG.debug("Marked '" + taskid + "' from '" + taskTracker + "'");
   }
 
   /**
    * Mark all 'non-running' jobs of the job for pruning.
-   * This function assumes that the JobTracker is locked on entry.
+   * This function assumes that the job is locked on entry.
    * 
    * @param job the completed job
    */
@@ -2040,28 +2044,26 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
   /**
    * Remove all 'marked' tasks running on a given {@link TaskTracker}
    * from the {@link JobTracker}'s data-structures.
-   * This function assumes that the JobTracker is locked on entry.
    * 
    * @param taskTracker tasktracker whose 'non-running' tasks are to be purged
    */
   private void removeMarkedTasks(String taskTracker) {
     // Purge all the 'marked' tasks which were running at taskTracker
-    Set<TaskAttemptID> markedTaskSet = 
-      trackerToMarkedTasksMap.get(taskTracker);
+    Set<TaskAttemptID> markedTaskSet;
+    synchronized (trackerToMarkedTasksMap) {
+      markedTaskSet = trackerToMarkedTasksMap.remove(taskTracker);
+    }
     if (markedTaskSet != null) {
       for (TaskAttemptID taskid : markedTaskSet) {
         removeTaskEntry(taskid);
         LOG.info("Removed completed task '" + taskid + "' from '" + 
                  taskTracker + "'");
       }
-      // Clear
-      trackerToMarkedTasksMap.remove(taskTracker);
     }
   }
     
   /**
-   * Call {@link #removeTaskEntry(String)} for each of the
-   * job's tasks.
+   * Remove all of the job's task attempts from the lookup tables.
    * When the JobTracker is retiring the long-completed
    * job, either because it has outlived {@link #RETIRE_JOB_INTERVAL}
    * or the limit of {@link #MAX_COMPLETE_USER_JOBS_IN_MEMORY} jobs 
@@ -2070,29 +2072,20 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
    * 
    * @param job the job about to be 'retired'
    */
-  synchronized private void removeJobTasks(JobInProgress job) { 
-    for (TaskInProgress tip : job.getMapTasks()) {
-      for (TaskStatus taskStatus : tip.getTaskStatuses()) {
-        removeTaskEntry(taskStatus.getTaskID());
-      }
-    }
-    for (TaskInProgress tip : job.getReduceTasks()) {
-      for (TaskStatus taskStatus : tip.getTaskStatuses()) {
-        removeTaskEntry(taskStatus.getTaskID());
-      }
-    }
+  private void removeJobTasks(JobInProgress job) { 
+    taskAttempts.removeJob(job.getProfile().getJobID());
   }
     
   /**
    * Safe clean-up all data structures at the end of the 
    * job (success/failure/killed).
-   * Here we also ensure that for a given user we maintain 
-   * information for only MAX_COMPLETE_USER_JOBS_IN_MEMORY jobs 
-   * on the JobTracker.
+   * This is called by the job with only the job locked, so the rest of
+   * the clean-up, which needs the JobTracker and the jobs locked ahead of
+   * any job, is queued for {@link #purgeFinalizedJobs()}.
    *  
    * @param job completed job.
    */
-  synchronized void finalizeJob(JobInProgress job) {
+  void finalizeJob(JobInProgress job) {
     // Mark the 'non-running' tasks for pruning
     markCompletedJob(job);
     
@@ -2111,17 +2104,41 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
     final JobTrackerInstrumentation metrics = getInstrumentation();
     metrics.finalizeJob(conf, id);
     
-    long now = System.currentTimeMillis();
-    
     // mark the job for cleanup at all the trackers
     addJobForCleanup(id);
 
+    finalizedJobs.add(job);
+  }
+
+  /**
+   * Finish the clean-up of the jobs finalized since the last call.
+   * Here we also ensure that for a given user we maintain 
+   * information for only MAX_COMPLETE_USER_JOBS_IN_MEMORY jobs 
+   * on the JobTracker.
+   * This is called, with no job locked, by the heartbeats and the other
+   * paths that can complete a job, and periodically by {@link RetireJobs}.
+   */
+  private synchronized void purgeFinalizedJobs() {
+    JobInProgress job;
+    while ((job = finalizedJobs.poll()) != null) {
+      purgeFinalizedJob(job);
+    }
+  }
+
+  private void purgeFinalizedJob(JobInProgress job) {
+    long now = System.currentTimeMillis();
+
     // add the blacklisted trackers to potentially faulty list
-    if (job.getStatus().getRunState() == JobStatus.SUCCEEDED) {
-      if (job.getNoOfBlackListedTrackers() > 0) {
-        for (String hostName : job.getBlackListedTrackers()) {
-          faultyTrackers.incrementFaults(hostName);
-        }
+    List<String> blackListedTrackers = null;
+    synchronized (job) {
+      if (job.getStatus().getRunState() == JobStatus.SUCCEEDED &&
+          job.getNoOfBlackListedTrackers() > 0) {
+        blackListedTrackers = job.getBlackListedTrackers();
+      }
+    }
+    if (blackListedTrackers != null) {
+      for (String hostName : blackListedTrackers) {
+        faultyTrackers.incrementFaults(hostName);
       }
     }
     
@@ -2371,9 +2388,9 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
   }
   
   public TaskTrackerStatus getTaskTracker(String trackerID) {
-    synchronized (taskTrackers) {
-      return taskTrackers.get(trackerID);
-    }
+    // no lock: the jobs look trackers up with only the job locked, while
+    // lostTaskTracker() locks the jobs with the taskTrackers lock held
+    return taskTrackers.get(trackerID);
   }
 
   /**
@@ -2495,12 +2512,21 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
    * The {@link JobTracker} processes the status information sent by the 
    * {@link TaskTracker} and responds with instructions to start/stop 
    * tasks or jobs, and also 'reset' instructions during contingencies. 
+   * 
+   * Heartbeats from different trackers are processed at the same time.
+   * A heartbeat holds the lock of its tracker throughout (trackers whose
+   * names hash to the same lock take turns); under it, the
+   * tracker's status is recorded with the taskTrackers lock held, and the
+   * reported tasks are updated with only their job locked.  The
+   * {@link JobTracker} lock is taken, ahead of the taskTrackers and job
+   * locks, just to assign tasks, which keeps the {@link TaskScheduler}
+   * single-threaded, and to fail the tasks of a tracker that restarted.
    */
-  public synchronized HeartbeatResponse heartbeat(TaskTrackerStatus status, 
-                                                  boolean restarted,
-                                                  boolean initialContact,
-                                                  boolean acceptNewTasks, 
-                                                  short responseId) 
+  public HeartbeatResponse heartbeat(TaskTrackerStatus status, 
+                                     boolean restarted,
+                                     boolean initialContact,
+                                     boolean acceptNewTasks, 
+                                     short responseId) 
     throws IOException {
     LOG.debug("Got heartbeat from: " + status.getTrackerName() + 
               " (restarted: " + restarted + 
@@ -2513,8 +2539,34 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
       throw new DisallowedTaskTrackerException(status);
     }
 
-    // First check if the last heartbeat response got through
     String trackerName = status.getTrackerName();
+    HeartbeatResponse response;
+    synchronized (getTrackerLock(trackerName)) {
+      response = handleHeartbeat(trackerName, status, restarted,
+                                 initialContact, acceptNewTasks, responseId);
+    }
+    if (!finalizedJobs.isEmpty()) {
+      purgeFinalizedJobs();
+    }
+    return response;
+  }
+
+  Object getTrackerLock(String trackerName) {
+    return trackerLocks[(trackerName.hashCode() & Integer.MAX_VALUE)
+                        % trackerLocks.length];
+  }
+
+  /**
+   * Process a heartbeat with the tracker's lock held.
+   */
+  private HeartbeatResponse handleHeartbeat(String trackerName,
+                                            TaskTrackerStatus status, 
+                                            boolean restarted,
+                                            boolean initialContact,
+                                            boolean acceptNewTasks, 
+                                            short responseId) 
+    throws IOException {
+    // First check if the last heartbeat response got through
     long now = System.currentTimeMillis();
     boolean isBlacklisted = false;
     if (restarted) {
@@ -2586,9 +2638,12 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
       if (taskTrackerStatus == null) {
         LOG.warn("Unknown task tracker polling; ignoring: " + trackerName);
       } else {
-        List<Task> tasks = getSetupAndCleanupTasks(taskTrackerStatus);
-        if (tasks == null ) {
-          tasks = taskScheduler.assignTasks(taskTrackerStatus);
+        List<Task> tasks;
+        synchronized (this) {
+          tasks = getSetupAndCleanupTasks(taskTrackerStatus);
+          if (tasks == null ) {
+            tasks = taskScheduler.assignTasks(taskTrackerStatus);
+          }
         }
         if (tasks != null) {
           for (Task task : tasks) {
@@ -2738,9 +2793,30 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
   /**
    * Process incoming heartbeat messages from the task trackers.
    */
-  private synchronized boolean processHeartbeat(
-                                 TaskTrackerStatus trackerStatus, 
-                                 boolean initialContact) {
+  private boolean processHeartbeat(TaskTrackerStatus trackerStatus, 
+                                   boolean initialContact) {
+    boolean known;
+    if (initialContact) {
+      // a tracker that was seen before has restarted; its tasks are
+      // failed by lostTaskTracker(), which needs the JobTracker locked
+      // ahead of the taskTrackers, as in ExpireTrackers
+      synchronized (this) {
+        known = recordTrackerStatus(trackerStatus, initialContact);
+      }
+    } else {
+      known = recordTrackerStatus(trackerStatus, initialContact);
+    }
+    if (!known) {
+      return false;
+    }
+
+    updateTaskStatuses(trackerStatus);
+    
+    return true;
+  }
+
+  private boolean recordTrackerStatus(TaskTrackerStatus trackerStatus,
+                                      boolean initialContact) {
     String trackerName = trackerStatus.getTrackerName();
 
     synchronized (taskTrackers) {
@@ -2772,9 +2848,6 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
         }
       }
     }
-
-    updateTaskStatuses(trackerStatus);
-    
     return true;
   }
 
@@ -2782,26 +2855,28 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
    * A tracker wants to know if any of its Tasks have been
    * closed (because the job completed, whether successfully or not)
    */
-  private synchronized List<TaskTrackerAction> getTasksToKill(
-                                                              String taskTracker) {
+  private List<TaskTrackerAction> getTasksToKill(String taskTracker) {
     
-    Set<TaskAttemptID> taskIds = trackerToTaskMap.get(taskTracker);
+    Set<TaskAttemptID> taskIds = taskAttempts.getAttempts(taskTracker);
     List<TaskTrackerAction> killList = new ArrayList<TaskTrackerAction>();
     if (taskIds != null) {
       for (TaskAttemptID killTaskId : taskIds) {
-        TaskInProgress tip = taskidToTIPMap.get(killTaskId);
+        TaskInProgress tip = taskAttempts.getTIP(killTaskId);
         if (tip == null) {
           continue;
         }
-        if (tip.shouldClose(killTaskId)) {
-          // 
-          // This is how the JobTracker ends a task at the TaskTracker.
-          // It may be successfully completed, or may be killed in
-          // mid-execution.
-          //
-          if (!tip.getJob().isComplete()) {
-            killList.add(new KillTaskAction(killTaskId));
-            LOG.debug(taskTracker + " -> KillTaskAction: " + killTaskId);
+        JobInProgress job = tip.getJob();
+        synchronized (job) {
+          if (tip.shouldClose(killTaskId)) {
+            // 
+            // This is how the JobTracker ends a task at the TaskTracker.
+            // It may be successfully completed, or may be killed in
+            // mid-execution.
+            //
+            if (!job.isComplete()) {
+              killList.add(new KillTaskAction(killTaskId));
+              LOG.debug(taskTracker + " -> KillTaskAction: " + killTaskId);
+            }
           }
         }
       }
@@ -2823,6 +2898,7 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
    * Add a job to cleanup for the tracker.
    */
   private void addJobForCleanup(JobID id) {
+    // taskTrackers isn't locked: the job calling this is
     for (String taskTracker : taskTrackers.keySet()) {
       LOG.debug("Marking job " + id + " for cleanup by tracker " + taskTracker);
       synchronized (trackerToJobsToCleanup) {
@@ -2860,19 +2936,22 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
   /**
    * A tracker wants to know if any of its Tasks can be committed 
    */
-  private synchronized List<TaskTrackerAction> getTasksToSave(
-                                                 TaskTrackerStatus tts) {
+  private List<TaskTrackerAction> getTasksToSave(TaskTrackerStatus tts) {
     List<TaskStatus> taskStatuses = tts.getTaskReports();
     if (taskStatuses != null) {
       List<TaskTrackerAction> saveList = new ArrayList<TaskTrackerAction>();
       for (TaskStatus taskStatus : taskStatuses) {
         if (taskStatus.getRunState() == TaskStatus.State.COMMIT_PENDING) {
           TaskAttemptID taskId = taskStatus.getTaskID();
-          TaskInProgress tip = taskidToTIPMap.get(taskId);
+          TaskInProgress tip = taskAttempts.getTIP(taskId);
           if (tip == null) {
             continue;
           }
-          if (tip.shouldCommit(taskId)) {
+          boolean shouldCommit;
+          synchronized (tip.getJob()) {
+            shouldCommit = tip.shouldCommit(taskId);
+          }
+          if (shouldCommit) {
             saveList.add(new CommitTaskAction(taskId));
             LOG.debug(tts.getTrackerName() + 
                       " -> CommitTaskAction: " + taskId);
@@ -3085,11 +3164,13 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
 
   /**@deprecated use {@link #getClusterStatus(boolean)}*/
   @Deprecated
-  public synchronized ClusterStatus getClusterStatus() {
+  public ClusterStatus getClusterStatus() {
     return getClusterStatus(false);
   }
 
-  public synchronized ClusterStatus getClusterStatus(boolean detailed) {
+  public ClusterStatus getClusterStatus(boolean detailed) {
+    // the counts are kept under the taskTrackers lock, so that the
+    // status can be taken without waiting for a heartbeat to finish
     synchronized (taskTrackers) {
       if (detailed) {
         List<List<String>> trackerNames = taskTrackerNames();
@@ -3151,6 +3232,7 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
             newStatus);
       updateJobInProgressListeners(event);
     }
+    purgeFinalizedJobs();
   }
 
   public void initJob(JobInProgress job) {
@@ -3209,6 +3291,7 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
             newStatus);
       updateJobInProgressListeners(event);
     }
+    purgeFinalizedJobs();
   }
   
   /**
@@ -3236,12 +3319,10 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
   }
 
   public JobProfile getJobProfile(JobID jobid) {
-    synchronized (this) {
-      JobInProgress job = jobs.get(jobid);
-      if (job != null) {
-        return job.getProfile();
-      } 
-    }
+    JobInProgress job = getJob(jobid);
+    if (job != null) {
+      return job.getProfile();
+    } 
     return completedJobStatusStore.readJobProfile(jobid);
   }
   public JobStatus getJobStatus(JobID jobid) {
@@ -3249,35 +3330,29 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
       LOG.warn("JobTracker.getJobStatus() cannot get status for null jobid");
       return null;
     }
-    synchronized (this) {
-      JobInProgress job = jobs.get(jobid);
-      if (job != null) {
-        return job.getStatus();
-      } 
-    }
+    JobInProgress job = getJob(jobid);
+    if (job != null) {
+      return job.getStatus();
+    } 
     return completedJobStatusStore.readJobStatus(jobid);
   }
   public Counters getJobCounters(JobID jobid) {
-    synchronized (this) {
-      JobInProgress job = jobs.get(jobid);
-      if (job != null) {
-        return job.getCounters();
-      } 
-    }
+    JobInProgress job = getJob(jobid);
+    if (job != null) {
+      return job.getCounters();
+    } 
     return completedJobStatusStore.readCounters(jobid);
   }
   public JobProgressStats getJobProgressStats(JobID jobid) {
-    synchronized(this) {
-      JobInProgress job = jobs.get(jobid);
-      if (job != null) {
-        return job.getJobProgressStats();
-      } else {
-        return null;
-      }
+    JobInProgress job = getJob(jobid);
+    if (job != null) {
+      return job.getJobProgressStats();
+    } else {
+      return null;
     }
   }
-  public synchronized TaskReport[] getMapTaskReports(JobID jobid) {
-    JobInProgress job = jobs.get(jobid);
+  public TaskReport[] getMapTaskReports(JobID jobid) {
+    JobInProgress job = getJob(jobid);
     if (job == null) {
       return new TaskReport[0];
     } else {
@@ -3298,8 +3373,8 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
     }
   }
 
-  public synchronized TaskReport[] getReduceTaskReports(JobID jobid) {
-    JobInProgress job = jobs.get(jobid);
+  public TaskReport[] getReduceTaskReports(JobID jobid) {
+    JobInProgress job = getJob(jobid);
     if (job == null) {
       return new TaskReport[0];
     } else {
@@ -3318,8 +3393,8 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
     }
   }
 
-  public synchronized TaskReport[] getCleanupTaskReports(JobID jobid) {
-    JobInProgress job = jobs.get(jobid);
+  public TaskReport[] getCleanupTaskReports(JobID jobid) {
+    JobInProgress job = getJob(jobid);
     if (job == null) {
       return new TaskReport[0];
     } else {
@@ -3341,8 +3416,8 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
   
   }
   
-  public synchronized TaskReport[] getSetupTaskReports(JobID jobid) {
-    JobInProgress job = jobs.get(jobid);
+  public TaskReport[] getSetupTaskReports(JobID jobid) {
+    JobInProgress job = getJob(jobid);
     if (job == null) {
       return new TaskReport[0];
     } else {
@@ -3380,16 +3455,14 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
    * starting from fromEventId.
    * @see org.apache.hadoop.mapred.JobSubmissionProtocol#getTaskCompletionEvents(java.lang.String, int, int)
    */
-  public synchronized TaskCompletionEvent[] getTaskCompletionEvents(
+  public TaskCompletionEvent[] getTaskCompletionEvents(
       JobID jobid, int fromEventId, int maxEvents) throws IOException{
-    synchronized (this) {
-      JobInProgress job = this.jobs.get(jobid);
-      if (null != job) {
-        if (job.inited()) {
-          return job.getTaskCompletionEvents(fromEventId, maxEvents);
-        } else {
-          return EMPTY_EVENTS;
-        }
+    JobInProgress job = getJob(jobid);
+    if (null != job) {
+      if (job.inited()) {
+        return job.getTaskCompletionEvents(fromEventId, maxEvents);
+      } else {
+        return EMPTY_EVENTS;
       }
     }
     return completedJobStatusStore.readJobTaskCompletionEvents(jobid, fromEventId, maxEvents);
@@ -3458,10 +3531,12 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
     
   /** Mark a Task to be killed */
   public synchronized boolean killTask(TaskAttemptID taskid, boolean shouldFail) throws IOException{
-    TaskInProgress tip = taskidToTIPMap.get(taskid);
+    TaskInProgress tip = taskAttempts.getTIP(taskid);
     if(tip != null) {
       checkAccess(tip.getJob(), QueueManager.QueueOperation.ADMINISTER_JOBS);
-      return tip.killTask(taskid, shouldFail);
+      synchronized (tip.getJob()) {
+        return tip.killTask(taskid, shouldFail);
+      }
     }
     else {
       LOG.info("Kill task attempt failed since task " + taskid + " was not found");
@@ -3474,8 +3549,8 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
    * @param taskId the name of the task
    * @return The name of the task tracker
    */
-  public synchronized String getAssignedTracker(TaskAttemptID taskId) {
-    return taskidToTrackerMap.get(taskId);
+  public String getAssignedTracker(TaskAttemptID taskId) {
+    return taskAttempts.getTracker(taskId);
   }
     
   public JobStatus[] jobsToComplete() {
@@ -3498,7 +3573,9 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
   // JobTracker methods
   ///////////////////////////////////////////////////////////////
   public JobInProgress getJob(JobID jobid) {
-    return jobs.get(jobid);
+    synchronized (jobs) {
+      return jobs.get(jobid);
+    }
   }
 
   // Get the job directory in system directory
@@ -3537,6 +3614,8 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
    * be brand-new.  All task-tracker structures have already
    * been updated.  Just process the contained tasks and any
    * jobs that might be affected.
+   * The JobTracker needn't be locked on entry: each job is locked as its
+   * tasks are updated, and the JobTracker only to inform the listeners.
    */
   void updateTaskStatuses(TaskTrackerStatus status) {
     String trackerName = status.getTrackerName();
@@ -3574,7 +3653,7 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
         continue;
       }
 
-      TaskInProgress tip = taskidToTIPMap.get(taskId);
+      TaskInProgress tip = taskAttempts.getTIP(taskId);
       // Check if the tip is known to the jobtracker. In case of a restarted
       // jt, some tasks might join in later
       if (tip != null || hasRestarted()) {
@@ -3584,20 +3663,28 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
         }
         
         // Update the job and inform the listeners if necessary
-        JobStatus prevStatus = (JobStatus)job.getStatus().clone();
-        // Clone TaskStatus object here, because JobInProgress
-        // or TaskInProgress can modify this object and
-        // the changes should not get reflected in TaskTrackerStatus.
-        // An old TaskTrackerStatus is used later in countMapTasks, etc.
-        job.updateTaskStatus(tip, (TaskStatus)report.clone());
-        JobStatus newStatus = (JobStatus)job.getStatus().clone();
+        JobStatus prevStatus;
+        JobStatus newStatus;
+        // Other trackers update the job too; only the one that changes
+        // its state may tell the listeners
+        synchronized (job) {
+          prevStatus = (JobStatus)job.getStatus().clone();
+          // Clone TaskStatus object here, because JobInProgress
+          // or TaskInProgress can modify this object and
+          // the changes should not get reflected in TaskTrackerStatus.
+          // An old TaskTrackerStatus is used later in countMapTasks, etc.
+          job.updateTaskStatus(tip, (TaskStatus)report.clone());
+          newStatus = (JobStatus)job.getStatus().clone();
+        }
         
         // Update the listeners if an incomplete job completes
         if (prevStatus.getRunState() != newStatus.getRunState()) {
           JobStatusChangeEvent event = 
             new JobStatusChangeEvent(job, EventType.RUN_STATE_CHANGED, 
                                      prevStatus, newStatus);
-          updateJobInProgressListeners(event);
+          synchronized (this) {
+            updateJobInProgressListeners(event);
+          }
         }
       } else {
         LOG.info("Serious problem.  While updating status, cannot find taskid " 
@@ -3608,7 +3695,7 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
       List<TaskAttemptID> failedFetchMaps = report.getFetchFailedMaps();
       if (failedFetchMaps != null) {
         for (TaskAttemptID mapTaskId : failedFetchMaps) {
-          TaskInProgress failedFetchMap = taskidToTIPMap.get(mapTaskId);
+          TaskInProgress failedFetchMap = taskAttempts.getTIP(mapTaskId);
           
           if (failedFetchMap != null) {
             // Gather information about the map which has to be failed, if need be
@@ -3645,53 +3732,55 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
     // Inform the recovery manager
     recoveryManager.unMarkTracker(trackerName);
     
-    Set<TaskAttemptID> lostTasks = trackerToTaskMap.get(trackerName);
-    trackerToTaskMap.remove(trackerName);
+    Set<TaskAttemptID> lostTasks = taskAttempts.removeTracker(trackerName);
 
     if (lostTasks != null) {
       // List of jobs which had any of their tasks fail on this tracker
       Set<JobInProgress> jobsWithFailures = new HashSet<JobInProgress>(); 
       for (TaskAttemptID taskId : lostTasks) {
-        TaskInProgress tip = taskidToTIPMap.get(taskId);
+        TaskInProgress tip = taskAttempts.getTIP(taskId);
         JobInProgress job = tip.getJob();
 
-        // Completed reduce tasks never need to be failed, because 
-        // their outputs go to dfs
-        // And completed maps with zero reducers of the job 
-        // never need to be failed. 
-        if (!tip.isComplete() || 
-            (tip.isMapTask() && !tip.isJobSetupTask() && 
-             job.desiredReduces() != 0)) {
-          if ((tip.isComplete() && tip.isMapTask() && job.getJobConf()
-              .getBoolean("sailfish.mapred.job.use_ifile", false))) {
-            // #!# Addition by Sriram: If the completed map task is from a
-            // Sailfish job
-            // and it was running on this tracker, we don't need to re-run it:
-            // the output from the mapper is saved into I-file.
-            // The I-file is in DFS.
+        // the heartbeats update the job's tasks with only the job locked
+        synchronized (job) {
+          // Completed reduce tasks never need to be failed, because 
+          // their outputs go to dfs
+          // And completed maps with zero reducers of the job 
+          // never need to be failed. 
+          if (!tip.isComplete() || 
+              (tip.isMapTask() && !tip.isJobSetupTask() && 
+               job.desiredReduces() != 0)) {
+            if ((tip.isComplete() && tip.isMapTask() && job.getJobConf()
+                .getBoolean("sailfish.mapred.job.use_ifile", false))) {
+              // #!# Addition by Sriram: If the completed map task is from a
+              // Sailfish job
+              // and it was running on this tracker, we don't need to re-run it:
+              // the output from the mapper is saved into I-file.
+              // The I-file is in DFS.
+              markCompletedTaskAttempt(trackerName, taskId);
+            }
+            // if the job is done, we don't want to change anything
+            if (job.getStatus().getRunState() == JobStatus.RUNNING ||
+                job.getStatus().getRunState() == JobStatus.PREP) {
+              // the state will be KILLED_UNCLEAN, if the task(map or reduce) 
+              // was RUNNING on the tracker
+              TaskStatus.State killState = (tip.isRunningTask(taskId) && 
+                !tip.isJobSetupTask() && !tip.isJobCleanupTask()) ? 
+                TaskStatus.State.KILLED_UNCLEAN : TaskStatus.State.KILLED;
+              job.failedTask(tip, taskId, ("Lost task tracker: " + trackerName), 
+                             (tip.isMapTask() ? 
+                                 TaskStatus.Phase.MAP : 
+                                 TaskStatus.Phase.REDUCE), 
+                              killState,
+                              trackerName);
+              jobsWithFailures.add(job);
+            }
+          } else {
+            // Completed 'reduce' task and completed 'maps' with zero 
+            // reducers of the job, not failed;
+            // only removed from data-structures.
             markCompletedTaskAttempt(trackerName, taskId);
           }
-          // if the job is done, we don't want to change anything
-          if (job.getStatus().getRunState() == JobStatus.RUNNING ||
-              job.getStatus().getRunState() == JobStatus.PREP) {
-            // the state will be KILLED_UNCLEAN, if the task(map or reduce) 
-            // was RUNNING on the tracker
-            TaskStatus.State killState = (tip.isRunningTask(taskId) && 
-              !tip.isJobSetupTask() && !tip.isJobCleanupTask()) ? 
-              TaskStatus.State.KILLED_UNCLEAN : TaskStatus.State.KILLED;
-            job.failedTask(tip, taskId, ("Lost task tracker: " + trackerName), 
-                           (tip.isMapTask() ? 
-                               TaskStatus.Phase.MAP : 
-                               TaskStatus.Phase.REDUCE), 
-                            killState,
-                            trackerName);
-            jobsWithFailures.add(job);
-          }
-        } else {
-          // Completed 'reduce' task and completed 'maps' with zero 
-          // reducers of the job, not failed;
-          // only removed from data-structures.
-          markCompletedTaskAttempt(trackerName, taskId);
         }
       }
       
@@ -56,6 +56,11 @@ interface MRConstants {
    * The reduce task number for which this map output is being transferred
    */
   public static final String FOR_REDUCE_TASK = "for-reduce-task";
+
+  /**
+   * The number of map outputs in a batched map output transfer
+   */
+  public static final String MAP_OUTPUT_COUNT = "Map-Output-Count";
   
   public static final String WORKDIR = "work";
 }
@@ -32,8 +32,16 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -46,6 +54,7 @@ import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
@@ -512,6 +521,8 @@ public class MapTask extends Task { // !#! Sriram: change private to public
   private class NewOutputCollector<K,V>
     extends org.apache.hadoop.mapreduce.RecordWriter<K,V> {
     private final MapOutputCollector<K,V> collector;
+    // the collector that the mapper hooks up to the I-file appender
+    private final MapOutputCollector<K,V> sailfishCollector;
     private final org.apache.hadoop.mapreduce.Partitioner<K,V> partitioner;
     private final int partitions;
 
@@ -523,9 +534,20 @@ public class MapTask extends Task { // !#! Sriram: change private to public
                        ) throws IOException, ClassNotFoundException {
       // !#! Sriram: Add the sailfish collector to setup for mapreduce
       if (job.getBoolean("sailfish.mapred.job.use_ifile", false)) {
-        collector = new SailfishMapCollector<K,V>(job, reporter);
+        sailfishCollector = new SailfishMapCollector<K,V>(job, reporter);
+        // the same combiner as the old API SailfishMapRunner would use
+        CombinerRunner<K,V> combinerRunner =
+          SailfishCombiningCollector.createCombinerRunner(job, getTaskID(),
+              reporter.getCounter(COMBINE_INPUT_RECORDS), reporter, committer);
+        if (combinerRunner != null) {
+          collector = new SailfishCombiningCollector<K,V>(job, reporter,
+              combinerRunner, sailfishCollector);
+        } else {
+          collector = sailfishCollector;
+        }
       } else {
         collector = new MapOutputBuffer<K,V>(umbilical, job, reporter);
+        sailfishCollector = null;
       }
       partitions = jobContext.getNumReduceTasks();
       if (partitions > 0) {
@@ -543,7 +565,7 @@ public class MapTask extends Task { // !#! Sriram: change private to public
     
     //!#! Sriram: Add the sailfish setup for mapreduce
     public MapOutputCollector<K,V> getCollector() {
-      return collector;
+      return sailfishCollector;
     }
 
     @Override
@@ -723,13 +745,23 @@ public class MapTask extends Task { // !#! Sriram: change private to public
     private int kvindex = 0;           // marks end of collected
     private final int[] kvoffsets;     // indices into kvindices
     private final int[] kvindices;     // partition, k/v offsets into kvbuffer
+    private final int[] kvprefixes;    // key prefixes, by record; null if
+                                       // the sort doesn't use them
+    private final int[] kvsortbuf;     // scratch space for grouping records
+                                       // by partition; null if single
+                                       // threaded
     private volatile int bufstart = 0; // marks beginning of spill
     private volatile int bufend = 0;   // marks beginning of collectable
     private volatile int bufvoid = 0;  // marks the point where we should stop
                                        // reading at the end of the buffer
     private int bufindex = 0;          // marks end of collected
     private int bufmark = 0;           // marks end of record
-    private byte[] kvbuffer;           // main output buffer
+    private byte[] kvbuffer;           // main output buffer; null if it
+                                       // is off-heap
+    private ByteBuffer kvdirect;       // main output buffer, if off-heap
+    private ByteBuffer kvdirectOut;    // the view of kvdirect that collect
+                                       // writes through
+    private final int bufcapacity;     // size of the main output buffer
     private static final int PARTITION = 0; // partition offset in acct
     private static final int KEYSTART = 1;  // key offset in acct
     private static final int VALSTART = 2;  // val offset in acct
@@ -744,6 +776,44 @@ public class MapTask extends Task { // !#! Sriram: change private to public
     private final int softBufferLimit;
     private final int minSpillsForCombine;
     private final IndexedSorter sorter;
+    private final SortKeyPrefix keyPrefix;
+    private final int spillThreads;
+    private final ExecutorService spillPool; // null if single threaded
+    // the views of an off-heap kvbuffer that each thread reads through
+    private final ThreadLocal<ByteBuffer> kvdirectIn =
+      new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+          return kvdirect.duplicate();
+        }
+      };
+    // the keys being compared, copied out of an off-heap kvbuffer
+    private final ThreadLocal<DataInputBuffer[]> compareKeys =
+      new ThreadLocal<DataInputBuffer[]>() {
+        @Override
+        protected DataInputBuffer[] initialValue() {
+          return new DataInputBuffer[] {
+              new DataInputBuffer(), new DataInputBuffer() };
+        }
+      };
+    private final DataInputBuffer prefixKey = new DataInputBuffer();
+    // the comparators of the spill threads; comparators aren't thread safe
+    private final ThreadLocal<RawComparator<K>> spillComparator =
+      new ThreadLocal<RawComparator<K>>() {
+        @SuppressWarnings("unchecked")
+        @Override
+        protected RawComparator<K> initialValue() {
+          return job.getOutputKeyComparator();
+        }
+      };
+    // the sorters of the spill threads; map.sort.class needn't be thread safe
+    private final ThreadLocal<IndexedSorter> spillSorter =
+      new ThreadLocal<IndexedSorter>() {
+        @Override
+        protected IndexedSorter initialValue() {
+          return ReflectionUtils.newInstance(sorter.getClass(), job);
+        }
+      };
     private final ReentrantLock spillLock = new ReentrantLock();
     private final Condition spillDone = spillLock.newCondition();
     private final Condition spillReady = spillLock.newCondition();
@@ -791,21 +861,65 @@ public class MapTask extends Task { // !#! Sriram: change private to public
       sorter = ReflectionUtils.newInstance(
             job.getClass("map.sort.class", QuickSort.class, IndexedSorter.class), job);
       LOG.info("io.sort.mb = " + sortmb);
+      comparator = job.getOutputKeyComparator();
+      keyPrefix = job.getBoolean("map.sort.key.prefix", false)
+        ? SortKeyPrefixes.getSortKeyPrefix(job, comparator)
+        : null;
+      spillThreads = job.getInt("io.sort.spill.threads", 1);
+      // with key prefixes and with spill threads, each record has an int
+      // more of accounting
+      int recsize = RECSIZE;
+      if (keyPrefix != null) {
+        recsize += 4;
+      }
+      if (spillThreads > 1) {
+        recsize += 4;
+      }
       // buffers and accounting
       int maxMemUsage = sortmb << 20;
       int recordCapacity = (int)(maxMemUsage * recper);
-      recordCapacity -= recordCapacity % RECSIZE;
-      kvbuffer = new byte[maxMemUsage - recordCapacity];
-      bufvoid = kvbuffer.length;
-      recordCapacity /= RECSIZE;
+      recordCapacity -= recordCapacity % recsize;
+      bufcapacity = maxMemUsage - recordCapacity;
+      if (job.getBoolean("io.sort.offheap", false)) {
+        LOG.info("Allocating " + bufcapacity + " bytes of off-heap data buffer");
+        kvdirect = ByteBuffer.allocateDirect(bufcapacity);
+        kvdirectOut = kvdirect.duplicate();
+        kvbuffer = null;
+      } else {
+        kvbuffer = new byte[bufcapacity];
+      }
+      bufvoid = bufcapacity;
+      recordCapacity /= recsize;
       kvoffsets = new int[recordCapacity];
       kvindices = new int[recordCapacity * ACCTSIZE];
-      softBufferLimit = (int)(kvbuffer.length * spillper);
+      if (keyPrefix != null) {
+        LOG.info("Sorting with key prefixes from " +
+                 keyPrefix.getClass().getName());
+        kvprefixes = new int[recordCapacity];
+      } else {
+        kvprefixes = null;
+      }
+      if (spillThreads > 1) {
+        LOG.info("Sorting and spilling with " + spillThreads + " threads");
+        kvsortbuf = new int[recordCapacity];
+        spillPool = Executors.newFixedThreadPool(spillThreads,
+            new ThreadFactory() {
+              private int n = 0;
+              public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SpillSorter " + (n++));
+                t.setDaemon(true);
+                return t;
+              }
+            });
+      } else {
+        kvsortbuf = null;
+        spillPool = null;
+      }
+      softBufferLimit = (int)(bufcapacity * spillper);
       softRecordLimit = (int)(kvoffsets.length * spillper);
-      LOG.info("data buffer = " + softBufferLimit + "/" + kvbuffer.length);
+      LOG.info("data buffer = " + softBufferLimit + "/" + bufcapacity);
       LOG.info("record buffer = " + softRecordLimit + "/" + kvoffsets.length);
       // k/v serialization
-      comparator = job.getOutputKeyComparator();
       keyClass = (Class<K>)job.getMapOutputKeyClass();
       valClass = (Class<V>)job.getMapOutputValueClass();
       serializationFactory = new SerializationFactory(job);
@@ -933,6 +1047,11 @@ public class MapTask extends Task { // !#! Sriram: change private to public
         kvindices[ind + PARTITION] = partition;
         kvindices[ind + KEYSTART] = keystart;
         kvindices[ind + VALSTART] = valstart;
+        if (kvprefixes != null) {
+          resetToKey(prefixKey, keystart, valstart - keystart);
+          kvprefixes[kvindex] = keyPrefix.getPrefix(prefixKey.getData(),
+              prefixKey.getPosition(), valstart - keystart);
+        }
         kvindex = kvnext;
       } catch (MapBufferTooSmallException e) {
         LOG.info("Record too large for in-memory buffer: " + e.getMessage());
@@ -945,17 +1064,38 @@ public class MapTask extends Task { // !#! Sriram: change private to public
 
     /**
      * Compare logical range, st i, j MOD offset capacity.
-     * Compare by partition, then by key.
+     * Compare by partition, then by key prefix (if any), then by key.
      * @see IndexedSortable#compare
      */
     public int compare(int i, int j) {
+      return compare(i, j, comparator);
+    }
+
+    private int compare(int i, int j, RawComparator<K> comparator) {
       final int ii = kvoffsets[i % kvoffsets.length];
       final int ij = kvoffsets[j % kvoffsets.length];
       // sort by partition
       if (kvindices[ii + PARTITION] != kvindices[ij + PARTITION]) {
         return kvindices[ii + PARTITION] - kvindices[ij + PARTITION];
       }
+      // sort by key prefix; kvprefixes is indexed by record
+      if (kvprefixes != null) {
+        final int pi = kvprefixes[ii / ACCTSIZE];
+        final int pj = kvprefixes[ij / ACCTSIZE];
+        if (pi != pj) {
+          return (pi < pj) ? -1 : 1;
+        }
+      }
       // sort by key
+      if (kvdirect != null) {
+        final int li = kvindices[ii + VALSTART] - kvindices[ii + KEYSTART];
+        final int lj = kvindices[ij + VALSTART] - kvindices[ij + KEYSTART];
+        final DataInputBuffer[] keys = compareKeys.get();
+        resetToKey(keys[0], kvindices[ii + KEYSTART], li);
+        resetToKey(keys[1], kvindices[ij + KEYSTART], lj);
+        return comparator.compare(keys[0].getData(), 0, li,
+                                  keys[1].getData(), 0, lj);
+      }
       return comparator.compare(kvbuffer,
           kvindices[ii + KEYSTART],
           kvindices[ii + VALSTART] - kvindices[ii + KEYSTART],
@@ -964,6 +1104,48 @@ public class MapTask extends Task { // !#! Sriram: change private to public
           kvindices[ij + VALSTART] - kvindices[ij + KEYSTART]);
     }
 
+    /**
+     * Copy bytes out of kvbuffer.
+     */
+    private void getBytes(int pos, byte[] b, int off, int len) {
+      if (kvdirect == null) {
+        System.arraycopy(kvbuffer, pos, b, off, len);
+      } else {
+        ByteBuffer in = kvdirectIn.get();
+        in.position(pos);
+        in.get(b, off, len);
+      }
+    }
+
+    /**
+     * Copy bytes into kvbuffer; only collect writes to kvbuffer.
+     */
+    private void putBytes(byte[] b, int off, int pos, int len) {
+      if (kvdirect == null) {
+        System.arraycopy(b, off, kvbuffer, pos, len);
+      } else {
+        kvdirectOut.position(pos);
+        kvdirectOut.put(b, off, len);
+      }
+    }
+
+    /**
+     * Point a buffer at a key in kvbuffer.  If kvbuffer is off-heap, the key
+     * is copied into the buffer's own array, which starts at 0.
+     */
+    private void resetToKey(DataInputBuffer key, int start, int length) {
+      if (kvdirect == null) {
+        key.reset(kvbuffer, start, length);
+        return;
+      }
+      byte[] data = key.getData();
+      if (data.length < length) {
+        data = new byte[Math.max(length, 2 * data.length)];
+      }
+      getBytes(start, data, 0, length);
+      key.reset(data, 0, length);
+    }
+
     /**
      * Swap logical indices st i, j MOD offset capacity.
      * @see IndexedSortable#swap
@@ -1018,7 +1200,21 @@ public class MapTask extends Task { // !#! Sriram: change private to public
         // conservative path
         int headbytelen = bufvoid - bufmark;
         bufvoid = bufmark;
-        if (bufindex + headbytelen < bufstart) {
+        if (kvdirect != null) {
+          byte[] headtmp = new byte[headbytelen];
+          getBytes(bufmark, headtmp, 0, headbytelen);
+          byte[] keytmp = new byte[bufindex];
+          getBytes(0, keytmp, 0, bufindex);
+          if (bufindex + headbytelen < bufstart) {
+            putBytes(keytmp, 0, headbytelen, bufindex);
+            putBytes(headtmp, 0, 0, headbytelen);
+            bufindex += headbytelen;
+          } else {
+            bufindex = 0;
+            out.write(headtmp);
+            out.write(keytmp);
+          }
+        } else if (bufindex + headbytelen < bufstart) {
           System.arraycopy(kvbuffer, 0, kvbuffer, headbytelen, bufindex);
           System.arraycopy(kvbuffer, bufvoid, kvbuffer, 0, headbytelen);
           bufindex += headbytelen;
@@ -1093,7 +1289,7 @@ public class MapTask extends Task { // !#! Sriram: change private to public
                   : (bufvoid - bufend) + bufindex) + len;
                 bufstart = bufend = bufindex = bufmark = 0;
                 kvstart = kvend = kvindex = 0;
-                bufvoid = kvbuffer.length;
+                bufvoid = bufcapacity;
                 throw new MapBufferTooSmallException(size + " bytes");
               }
             }
@@ -1117,12 +1313,12 @@ public class MapTask extends Task { // !#! Sriram: change private to public
         // here, we know that we have sufficient space to write
         if (buffull) {
           final int gaplen = bufvoid - bufindex;
-          System.arraycopy(b, off, kvbuffer, bufindex, gaplen);
+          putBytes(b, off, bufindex, gaplen);
           len -= gaplen;
           off += gaplen;
           bufindex = 0;
         }
-        System.arraycopy(b, off, kvbuffer, bufindex, len);
+        putBytes(b, off, bufindex, len);
         bufindex += len;
       }
     }
@@ -1162,12 +1358,21 @@ public class MapTask extends Task { // !#! Sriram: change private to public
       try {
         spillThread.interrupt();
         spillThread.join();
+        if (spillPool != null) {
+          // the pool threads hold on to their views of kvbuffer until they
+          // exit; they are idle, so this doesn't take long
+          spillPool.shutdown();
+          spillPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
       } catch (InterruptedException e) {
         throw (IOException)new IOException("Spill failed"
             ).initCause(e);
       }
       // release sort buffer before the merge
       kvbuffer = null;
+      kvdirect = null;
+      kvdirectOut = null;
+      kvdirectIn.remove();
       mergeParts();
     }
 
@@ -1198,7 +1403,7 @@ public class MapTask extends Task { // !#! Sriram: change private to public
             } finally {
               spillLock.lock();
               if (bufend < bufindex && bufindex < bufstart) {
-                bufvoid = kvbuffer.length;
+                bufvoid = bufcapacity;
               }
               kvstart = kvend;
               bufstart = bufend;
@@ -1208,6 +1413,8 @@ public class MapTask extends Task { // !#! Sriram: change private to public
           Thread.currentThread().interrupt();
         } finally {
           spillLock.unlock();
+          // drop this thread's view of an off-heap kvbuffer
+          kvdirectIn.remove();
           spillThreadRunning = false;
         }
       }
@@ -1242,11 +1449,31 @@ public class MapTask extends Task { // !#! Sriram: change private to public
         final int endPosition = (kvend > kvstart)
           ? kvend
           : kvoffsets.length + kvend;
-        sorter.sort(MapOutputBuffer.this, kvstart, endPosition, reporter);
+        int[] partitionStarts = null;
+        if (spillPool == null) {
+          sorter.sort(MapOutputBuffer.this, kvstart, endPosition, reporter);
+        } else {
+          partitionStarts = parallelSort(kvstart, endPosition);
+        }
+        // the partitions being serialized by the spill threads
+        SpillSegments segments = null;
+        if (partitionStarts != null && combinerRunner == null) {
+          segments = new SpillSegments(partitionStarts);
+        }
         int spindex = kvstart;
         IndexRecord rec = new IndexRecord();
         InMemValBytes value = new InMemValBytes();
         for (int i = 0; i < partitions; ++i) {
+          if (segments != null && segments.get(i) != null) {
+            SpillSegment segment = getResult(segments.get(i));
+            rec.startOffset = out.getPos();
+            out.write(segment.data.getData(), 0, segment.data.getLength());
+            rec.rawLength = segment.rawLength;
+            rec.partLength = segment.partLength;
+            spillRec.putIndex(rec, i);
+            spindex = partitionStarts[i + 1];
+            continue;
+          }
           IFile.Writer<K, V> writer = null;
           try {
             long segmentStart = out.getPos();
@@ -1260,9 +1487,9 @@ public class MapTask extends Task { // !#! Sriram: change private to public
                             + PARTITION] == i) {
                 final int kvoff = kvoffsets[spindex % kvoffsets.length];
                 getVBytesForOffset(kvoff, value);
-                key.reset(kvbuffer, kvindices[kvoff + KEYSTART],
-                          (kvindices[kvoff + VALSTART] - 
-                           kvindices[kvoff + KEYSTART]));
+                resetToKey(key, kvindices[kvoff + KEYSTART],
+                           (kvindices[kvoff + VALSTART] - 
+                            kvindices[kvoff + KEYSTART]));
                 writer.append(key, value);
                 ++spindex;
               }
@@ -1316,6 +1543,168 @@ public class MapTask extends Task { // !#! Sriram: change private to public
       }
     }
 
+    /** A partition of a spill, serialized by a spill thread. */
+    private class SpillSegment {
+      final DataOutputBuffer data = new DataOutputBuffer();
+      long rawLength;
+      long partLength;
+    }
+
+    private <T> T getResult(Future<T> future) throws IOException {
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        throw (IOException)new IOException("Interrupted in spill"
+            ).initCause(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw (IOException)new IOException("Spill failed"
+            ).initCause(e.getCause());
+      }
+    }
+
+    /**
+     * Sort the records of a spill with the spill threads.  The records are
+     * grouped by partition (a counting sort on the partition), and then the
+     * partitions are sorted in parallel.
+     * @return the position of the first record of each partition, and the
+     *         end position at the end
+     */
+    private int[] parallelSort(final int start, final int end)
+    throws IOException {
+      final int len = kvoffsets.length;
+      final int[] partitionStarts = new int[partitions + 1];
+      for (int i = start; i < end; ++i) {
+        ++partitionStarts[kvindices[kvoffsets[i % len] + PARTITION] + 1];
+      }
+      for (int p = 0; p < partitions; ++p) {
+        partitionStarts[p + 1] += partitionStarts[p];
+      }
+      final int[] next = partitionStarts.clone();
+      for (int i = start; i < end; ++i) {
+        final int kvoff = kvoffsets[i % len];
+        kvsortbuf[next[kvindices[kvoff + PARTITION]]++] = kvoff;
+      }
+      for (int k = 0; k < end - start; ++k) {
+        kvoffsets[(start + k) % len] = kvsortbuf[k];
+      }
+      for (int p = 0; p <= partitions; ++p) {
+        partitionStarts[p] += start;
+      }
+
+      // sort runs of partitions of about the same size, a few per thread
+      final int minRun = Math.max(1, (end - start) / (4 * spillThreads));
+      final IndexedSortable sortable = new IndexedSortable() {
+        public int compare(int i, int j) {
+          return MapOutputBuffer.this.compare(i, j, spillComparator.get());
+        }
+        public void swap(int i, int j) {
+          MapOutputBuffer.this.swap(i, j);
+        }
+      };
+      List<Future<Object>> runs = new ArrayList<Future<Object>>();
+      int p = 0;
+      while (p < partitions) {
+        final int firstPartition = p;
+        while (p < partitions &&
+               partitionStarts[p + 1] - partitionStarts[firstPartition]
+                 < minRun) {
+          ++p;
+        }
+        final int lastPartition = Math.min(p, partitions - 1);
+        p = lastPartition + 1;
+        runs.add(spillPool.submit(new Callable<Object>() {
+          public Object call() {
+            for (int q = firstPartition; q <= lastPartition; ++q) {
+              if (partitionStarts[q + 1] - partitionStarts[q] > 1) {
+                spillSorter.get().sort(sortable, partitionStarts[q],
+                            partitionStarts[q + 1], reporter);
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Object> run : runs) {
+        getResult(run);
+      }
+      return partitionStarts;
+    }
+
+    /**
+     * Serializes (and compresses) the partitions of a sorted spill on the
+     * spill threads, a few partitions ahead of the one being written out.
+     * Only partitions that are small enough are done this way, since each
+     * one is buffered until it is written out; at most a quarter of the
+     * size of the sort buffer is buffered.  The size of a partition is
+     * taken from its records, since they need not be of the same size.
+     */
+    private class SpillSegments {
+      private final int[] partitionStarts;
+      private final long maxSegment;
+      private final int window;
+      private final List<Future<SpillSegment>> segments;
+
+      SpillSegments(int[] partitionStarts) {
+        this.partitionStarts = partitionStarts;
+        this.maxSegment = bufcapacity / (8 * spillThreads);
+        this.window = 2 * spillThreads;
+        this.segments = new ArrayList<Future<SpillSegment>>(partitions);
+      }
+
+      /**
+       * @return the segment of partition i; null if the caller is to write
+       *         the partition out itself
+       */
+      Future<SpillSegment> get(int i) {
+        while (segments.size() < partitions && segments.size() < i + window) {
+          segments.add(start(segments.size()));
+        }
+        return segments.get(i);
+      }
+
+      private Future<SpillSegment> start(int i) {
+        final int start = partitionStarts[i];
+        final int end = partitionStarts[i + 1];
+        long size = 0;
+        for (int spindex = start; spindex < end; ++spindex) {
+          size += getRecordLength(kvoffsets[spindex % kvoffsets.length]);
+          if (size > maxSegment) {
+            return null;
+          }
+        }
+        return spillPool.submit(new Callable<SpillSegment>() {
+          public SpillSegment call() throws IOException {
+            SpillSegment segment = new SpillSegment();
+            FSDataOutputStream segmentOut =
+              new FSDataOutputStream(segment.data, null);
+            IFile.Writer<K, V> writer =
+              new Writer<K, V>(job, segmentOut, keyClass, valClass, codec,
+                               spilledRecordsCounter);
+            try {
+              DataInputBuffer key = new DataInputBuffer();
+              InMemValBytes value = new InMemValBytes();
+              for (int spindex = start; spindex < end; ++spindex) {
+                final int kvoff = kvoffsets[spindex % kvoffsets.length];
+                getVBytesForOffset(kvoff, value);
+                resetToKey(key, kvindices[kvoff + KEYSTART],
+                           (kvindices[kvoff + VALSTART] - 
+                            kvindices[kvoff + KEYSTART]));
+                writer.append(key, value);
+              }
+            } finally {
+              writer.close();
+            }
+            segment.rawLength = writer.getRawLength();
+            segment.partLength = writer.getCompressedLength();
+            return segment;
+          }
+        });
+      }
+    }
+
     /**
      * Handles the degenerate case where serialization fails to fit in
      * the in-memory buffer, so we must spill the record from collect
@@ -1323,7 +1712,7 @@ public class MapTask extends Task { // !#! Sriram: change private to public
      */
     private void spillSingleRecord(final K key, final V value,
                                    int partition) throws IOException {
-      long size = kvbuffer.length + partitions * APPROX_HEADER_LENGTH;
+      long size = bufcapacity + partitions * APPROX_HEADER_LENGTH;
       FSDataOutputStream out = null;
       try {
         // create spill file
@@ -1380,6 +1769,21 @@ public class MapTask extends Task { // !#! Sriram: change private to public
       }
     }
 
+    /**
+     * The # of bytes of the key and value of the record at the given offset.
+     * Should only be called during a spill.
+     */
+    private int getRecordLength(int kvoff) {
+      final int nextindex = (kvoff / ACCTSIZE ==
+                            (kvend - 1 + kvoffsets.length) % kvoffsets.length)
+        ? bufend
+        : kvindices[(kvoff + ACCTSIZE + KEYSTART) % kvindices.length];
+      final int keystart = kvindices[kvoff + KEYSTART];
+      return (nextindex >= keystart)
+        ? nextindex - keystart
+        : (bufvoid - keystart) + nextindex;
+    }
+
     /**
      * Given an offset, populate vbytes with the associated set of
      * deserialized value bytes. Should only be called during a spill.
@@ -1392,13 +1796,14 @@ public class MapTask extends Task { // !#! Sriram: change private to public
       int vallen = (nextindex >= kvindices[kvoff + VALSTART])
         ? nextindex - kvindices[kvoff + VALSTART]
         : (bufvoid - kvindices[kvoff + VALSTART]) + nextindex;
-      vbytes.reset(kvbuffer, kvindices[kvoff + VALSTART], vallen);
+      vbytes.resetToValue(kvindices[kvoff + VALSTART], vallen);
     }
 
     /**
      * Inner class wrapping valuebytes, used for appendRaw.
      */
     protected class InMemValBytes extends DataInputBuffer {
+      private byte[] scratch = new byte[0];
       private byte[] buffer;
       private int start;
       private int length;
@@ -1418,6 +1823,24 @@ public class MapTask extends Task { // !#! Sriram: change private to public
         
         super.reset(this.buffer, this.start, this.length);
       }
+
+      /**
+       * Point at a value in kvbuffer, which may wrap around the end of
+       * kvbuffer.  If kvbuffer is off-heap, the value is copied.
+       */
+      void resetToValue(int start, int length) {
+        if (kvdirect == null) {
+          reset(kvbuffer, start, length);
+          return;
+        }
+        if (scratch.length < length) {
+          scratch = new byte[Math.max(length, 2 * scratch.length)];
+        }
+        final int taillen = Math.min(length, bufvoid - start);
+        getBytes(start, scratch, 0, taillen);
+        getBytes(0, scratch, taillen, length - taillen);
+        super.reset(scratch, 0, length);
+      }
     }
 
     protected class MRResultIterator implements RawKeyValueIterator {
@@ -1434,8 +1857,8 @@ public class MapTask extends Task { // !#! Sriram: change private to public
       }
       public DataInputBuffer getKey() throws IOException {
         final int kvoff = kvoffsets[current % kvoffsets.length];
-        keybuf.reset(kvbuffer, kvindices[kvoff + KEYSTART],
-                     kvindices[kvoff + VALSTART] - kvindices[kvoff + KEYSTART]);
+        resetToKey(keybuf, kvindices[kvoff + KEYSTART],
+                   kvindices[kvoff + VALSTART] - kvindices[kvoff + KEYSTART]);
         return keybuf;
       }
       public DataInputBuffer getValue() throws IOException {
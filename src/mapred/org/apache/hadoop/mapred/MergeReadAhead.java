@@ -0,0 +1,297 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Asynchronous read-ahead for the on-disk segments of a merge.  Each segment
+ * reads its file in large chunks: while the merge consumes one chunk, the
+ * next one is read by an I/O thread.  The I/O threads are grouped into one
+ * queue per directory of mapred.local.dir, so that each disk sees a few
+ * large sequential reads at a time instead of many small ones.  The chunk
+ * size is picked so that the segments of a merge pass stay within
+ * io.sort.merge.readahead.memory.
+ */
+class MergeReadAhead {
+  private static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+  // the I/O queues of the jvm, by local directory
+  private static final Map<String, ExecutorService> queues =
+    new HashMap<String, ExecutorService>();
+
+  private final String[] localDirs;
+  private final int threadsPerDisk;
+  private final long memory;
+  private final int maxChunkSize;
+
+  private MergeReadAhead(Configuration conf) {
+    String[] dirs = conf.getStrings("mapred.local.dir");
+    localDirs = (dirs == null) ? new String[0] : new String[dirs.length];
+    for (int i = 0; i < localDirs.length; i++) {
+      localDirs[i] = new Path(dirs[i].trim()).toUri().getPath();
+    }
+    threadsPerDisk = Math.max(1,
+        conf.getInt("io.sort.merge.readahead.threads", 1));
+    memory = conf.getLong("io.sort.merge.readahead.memory", 64L << 20);
+    maxChunkSize = Math.max(MIN_CHUNK_SIZE,
+        conf.getInt("io.sort.merge.readahead.size", 4 << 20));
+  }
+
+  /**
+   * @return null if read-ahead is off for this job
+   */
+  static MergeReadAhead get(Configuration conf) {
+    if (conf == null || !conf.getBoolean("io.sort.merge.readahead", false)) {
+      return null;
+    }
+    return new MergeReadAhead(conf);
+  }
+
+  /**
+   * The chunk size for each of the given number of segments: two chunks
+   * of each segment are in memory at a time.
+   */
+  int getChunkSize(int numSegments) {
+    long size = memory / (2L * Math.max(1, numSegments));
+    return (int) Math.max(MIN_CHUNK_SIZE, Math.min(maxChunkSize, size));
+  }
+
+  /**
+   * Open a segment of a file for reading with read-ahead.
+   */
+  FSDataInputStream open(FileSystem fs, Path file, long offset, long length,
+                         int chunkSize) throws IOException {
+    FSDataInputStream in = fs.open(file);
+    try {
+      in.seek(offset);
+      return new FSDataInputStream(new ReadAheadInputStream(in, length,
+          chunkSize, getQueue(file)));
+    } catch (IOException ioe) {
+      in.close();
+      throw ioe;
+    }
+  }
+
+  private ExecutorService getQueue(Path file) {
+    String path = file.toUri().getPath();
+    String disk = "";
+    for (String dir : localDirs) {
+      if (path.startsWith(dir) && dir.length() > disk.length()) {
+        disk = dir;
+      }
+    }
+    synchronized (queues) {
+      ExecutorService queue = queues.get(disk);
+      if (queue == null) {
+        final String name = "Merge read-ahead " + disk;
+        queue = Executors.newFixedThreadPool(threadsPerDisk,
+            new ThreadFactory() {
+              private int n = 0;
+              public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + " " + (n++));
+                t.setDaemon(true);
+                return t;
+              }
+            });
+        queues.put(disk, queue);
+      }
+      return queue;
+    }
+  }
+
+  /**
+   * Reads a stream sequentially, one chunk ahead of the reader.  Only one
+   * chunk is read at a time, so the underlying stream is never used by two
+   * threads at once.  Seeks are not supported.
+   */
+  private static class ReadAheadInputStream extends FSInputStream {
+    private final FSDataInputStream in;
+    private final ExecutorService queue;
+    private long remaining;      // bytes not yet requested from the disk
+    private long pos = 0;
+    private byte[] buffer;
+    private byte[] spare;
+    private int bufferPos = 0;
+    private int bufferLength = 0;
+    private Future<Integer> pending;
+    // set by whoever gets to the pending read first: the I/O thread, to
+    // read the chunk, or close(), to drop it
+    private AtomicBoolean pendingClaimed;
+
+    ReadAheadInputStream(FSDataInputStream in, long length, int chunkSize,
+                         ExecutorService queue) {
+      this.in = in;
+      this.queue = queue;
+      this.remaining = length;
+      buffer = new byte[(int) Math.min(chunkSize, Math.max(length, 1))];
+      spare = new byte[buffer.length];
+      readAhead();
+    }
+
+    private void readAhead() {
+      if (remaining <= 0) {
+        pending = null;
+        return;
+      }
+      final byte[] b = spare;
+      final int n = (int) Math.min(remaining, b.length);
+      final AtomicBoolean claimed = new AtomicBoolean(false);
+      remaining -= n;
+      pendingClaimed = claimed;
+      pending = queue.submit(new Callable<Integer>() {
+        public Integer call() throws IOException {
+          if (!claimed.compareAndSet(false, true)) {
+            // the stream was closed before we got to it
+            return 0;
+          }
+          IOUtils.readFully(in, b, 0, n);
+          return n;
+        }
+      });
+    }
+
+    /**
+     * Wait for the chunk being read and start reading the next one.
+     * @return false at the end of the stream
+     */
+    private boolean nextChunk() throws IOException {
+      if (pending == null) {
+        return false;
+      }
+      int n;
+      try {
+        n = pending.get();
+      } catch (InterruptedException e) {
+        throw (IOException)new IOException("Interrupted in read-ahead"
+            ).initCause(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw (IOException)new IOException("Read-ahead failed"
+            ).initCause(e.getCause());
+      }
+      byte[] tmp = buffer;
+      buffer = spare;
+      spare = tmp;
+      bufferPos = 0;
+      bufferLength = n;
+      readAhead();
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (bufferPos == bufferLength && !nextChunk()) {
+        return -1;
+      }
+      pos++;
+      return buffer[bufferPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (bufferPos == bufferLength && !nextChunk()) {
+        return -1;
+      }
+      int n = Math.min(len, bufferLength - bufferPos);
+      System.arraycopy(buffer, bufferPos, b, off, n);
+      bufferPos += n;
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return bufferLength - bufferPos;
+    }
+
+    @Override
+    public long getPos() {
+      return pos;
+    }
+
+    @Override
+    public void seek(long target) throws IOException {
+      if (target != pos) {
+        throw new IOException("Cannot seek in a read-ahead stream");
+      }
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos) {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (pending != null) {
+        if (pendingClaimed.compareAndSet(false, true)) {
+          // the read never started, and now it won't
+          pending.cancel(false);
+        } else {
+          // the I/O thread is reading; don't close the stream under it
+          waitForPending();
+        }
+      }
+      pending = null;
+      in.close();
+    }
+
+    private void waitForPending() {
+      boolean interrupted = false;
+      try {
+        while (true) {
+          try {
+            pending.get();
+            return;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          } catch (ExecutionException e) {
+            // the reader never asked for the chunk
+            return;
+          }
+        }
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+}
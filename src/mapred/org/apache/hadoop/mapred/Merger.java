@@ -36,7 +36,6 @@ import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.mapred.IFile.Reader;
 import org.apache.hadoop.mapred.IFile.Writer;
-import org.apache.hadoop.util.PriorityQueue;
 import org.apache.hadoop.util.Progress;
 import org.apache.hadoop.util.Progressable;
 
@@ -200,10 +199,17 @@ class Merger {
       this.segmentLength = reader.getLength();
     }
 
-    private void init(Counters.Counter readsCounter) throws IOException {
+    private void init(Counters.Counter readsCounter, MergeReadAhead readAhead,
+                      int chunkSize) throws IOException {
       if (reader == null) {
-        FSDataInputStream in = fs.open(file);
-        in.seek(segmentOffset);
+        FSDataInputStream in;
+        if (readAhead != null) {
+          in = readAhead.open(fs, file, segmentOffset, segmentLength,
+                              chunkSize);
+        } else {
+          in = fs.open(file);
+          in.seek(segmentOffset);
+        }
         reader = new Reader<K, V>(conf, in, segmentLength, codec, readsCounter);
       }
     }
@@ -233,8 +239,15 @@ class Merger {
     }
   }
   
+  /**
+   * Merges the segments with a tournament (loser) tree: each internal node
+   * holds the segment that lost the match at that node, so replacing the
+   * smallest key costs one comparison per level on the way back up.  When
+   * the keys have a {@link SortKeyPrefix}, the prefix of each segment's
+   * current key is cached and the comparator is only called on a tie.
+   */
   private static class MergeQueue<K extends Object, V extends Object> 
-  extends PriorityQueue<Segment<K, V>> implements RawKeyValueIterator {
+  implements RawKeyValueIterator {
     Configuration conf;
     FileSystem fs;
     CompressionCodec codec;
@@ -242,6 +255,16 @@ class Merger {
     List<Segment<K, V>> segments = new ArrayList<Segment<K,V>>();
     
     RawComparator<K> comparator;
+    SortKeyPrefix keyPrefix;
+    MergeReadAhead readAhead;
+    
+    // The segments of the current pass (null once exhausted), the prefixes
+    // of their current keys and the tree: losers[0] is the index of the
+    // segment with the smallest key, losers[n] is the loser at node n
+    private List<Segment<K, V>> players = new ArrayList<Segment<K, V>>();
+    private int[] prefixes;
+    private int[] losers;
+    private int numLive;
     
     private long totalBytesProcessed;
     private float progPerByte;
@@ -311,10 +334,14 @@ class Merger {
     }
 
     public void close() throws IOException {
-      Segment<K, V> segment;
-      while((segment = pop()) != null) {
-        segment.close();
+      for (int i = 0; i < players.size(); i++) {
+        Segment<K, V> segment = players.get(i);
+        if (segment != null) {
+          players.set(i, null);
+          segment.close();
+        }
       }
+      numLive = 0;
     }
 
     public DataInputBuffer getKey() throws IOException {
@@ -325,35 +352,39 @@ class Merger {
       return value;
     }
 
-    private void adjustPriorityQueue(Segment<K, V> reader) throws IOException{
+    private void adjustTree(int winner) throws IOException {
+      Segment<K, V> reader = players.get(winner);
       long startPos = reader.getPosition();
       boolean hasNext = reader.next();
       long endPos = reader.getPosition();
       totalBytesProcessed += endPos - startPos;
       mergeProgress.set(totalBytesProcessed * progPerByte);
       if (hasNext) {
-        adjustTop();
+        setPrefix(winner);
       } else {
-        pop();
+        players.set(winner, null);
+        numLive--;
         reader.close();
       }
+      replay(winner);
     }
 
     public boolean next() throws IOException {
-      if (size() == 0)
+      if (numLive == 0)
         return false;
 
       if (minSegment != null) {
         //minSegment is non-null for all invocations of next except the first
-        //one. For the first invocation, the priority queue is ready for use
-        //but for the subsequent invocations, first adjust the queue 
-        adjustPriorityQueue(minSegment);
-        if (size() == 0) {
+        //one. For the first invocation, the tree is ready for use
+        //but for the subsequent invocations, first replay the winner's
+        //matches with its next key
+        adjustTree(losers[0]);
+        if (numLive == 0) {
           minSegment = null;
           return false;
         }
       }
-      minSegment = top();
+      minSegment = players.get(losers[0]);
       
       key = minSegment.getKey();
       value = minSegment.getValue();
@@ -361,10 +392,77 @@ class Merger {
       return true;
     }
 
-    @SuppressWarnings("unchecked")
-    protected boolean lessThan(Object a, Object b) {
-      DataInputBuffer key1 = ((Segment<K, V>)a).getKey();
-      DataInputBuffer key2 = ((Segment<K, V>)b).getKey();
+    /**
+     * Set up the tree for a pass over the given segments, each of which
+     * must be positioned at its first key.
+     */
+    private void initTree(List<Segment<K, V>> segmentsToMerge) {
+      players = new ArrayList<Segment<K, V>>(segmentsToMerge);
+      int k = players.size();
+      numLive = k;
+      prefixes = new int[k];
+      losers = new int[Math.max(k, 1)];
+      for (int i = 0; i < k; i++) {
+        setPrefix(i);
+      }
+      // play the first round bottom up: leaves are at k..2k-1, node n
+      // plays the winners of nodes 2n and 2n+1
+      int[] winners = new int[2 * k];
+      for (int i = 0; i < k; i++) {
+        winners[k + i] = i;
+      }
+      for (int n = k - 1; n > 0; n--) {
+        int a = winners[2 * n];
+        int b = winners[2 * n + 1];
+        if (lessThan(b, a)) {
+          winners[n] = b;
+          losers[n] = a;
+        } else {
+          winners[n] = a;
+          losers[n] = b;
+        }
+      }
+      losers[0] = (k > 1) ? winners[1] : 0;
+    }
+
+    /**
+     * Replay the matches on the path from the leaf of the given segment to
+     * the root, after its key has changed.
+     */
+    private void replay(int winner) {
+      for (int n = (winner + players.size()) >>> 1; n > 0; n >>>= 1) {
+        int loser = losers[n];
+        if (lessThan(loser, winner)) {
+          losers[n] = winner;
+          winner = loser;
+        }
+      }
+      losers[0] = winner;
+    }
+
+    private void setPrefix(int i) {
+      if (keyPrefix != null) {
+        DataInputBuffer k = players.get(i).getKey();
+        int s = k.getPosition();
+        prefixes[i] = keyPrefix.getPrefix(k.getData(), s, k.getLength() - s);
+      }
+    }
+
+    /** An exhausted segment loses against every other segment. */
+    private boolean lessThan(int a, int b) {
+      Segment<K, V> segment1 = players.get(a);
+      Segment<K, V> segment2 = players.get(b);
+      if (segment1 == null) {
+        return false;
+      }
+      if (segment2 == null) {
+        return true;
+      }
+      if (keyPrefix != null && prefixes[a] != prefixes[b]) {
+        return prefixes[a] < prefixes[b];
+      }
+      DataInputBuffer key1 = segment1.getKey();
+      DataInputBuffer key2 = segment2.getKey();
       int s1 = key1.getPosition();
       int l1 = key1.getLength() - s1;
       int s2 = key2.getPosition();
@@ -388,6 +486,8 @@ class Merger {
                                      Counters.Counter writesCounter)
         throws IOException {
       LOG.info("Merging " + segments.size() + " sorted segments");
+      keyPrefix = SortKeyPrefixes.getMergeKeyPrefix(conf, comparator);
+      readAhead = MergeReadAhead.get(conf);
       
       //create the MergeStreams from the sorted map created in the constructor
       //and dump the final output to a file
@@ -407,6 +507,8 @@ class Merger {
         int segmentsConsidered = 0;
         int numSegmentsToConsider = factor;
         long startBytes = 0; // starting bytes of segments of this merge
+        int chunkSize = (readAhead == null) ? 0 : readAhead.getChunkSize(
+            Math.min(factor, segments.size()));
         while (true) {
           //extract the smallest 'factor' number of segments  
           //Call cleanup on the empty segments (no key/value data)
@@ -415,7 +517,7 @@ class Merger {
           for (Segment<K, V> segment : mStream) {
             // Initialize the segment at the last possible moment;
             // this helps in ensuring we don't use buffers until we need them
-            segment.init(readsCounter);
+            segment.init(readsCounter, readAhead, chunkSize);
             long startPos = segment.getPosition();
             boolean hasNext = segment.next();
             long endPos = segment.getPosition();
@@ -440,12 +542,8 @@ class Merger {
           numSegmentsToConsider = factor - segmentsConsidered;
         }
         
-        //feed the streams to the priority queue
-        initialize(segmentsToMerge.size());
-        clear();
-        for (Segment<K, V> segment : segmentsToMerge) {
-          put(segment);
-        }
+        //feed the streams to the tournament tree
+        initTree(segmentsToMerge);
         
         //if we have lesser number of segments remaining, then just return the
         //iterator, else do another single level merge
@@ -499,8 +597,7 @@ class Merger {
           writeFile(this, writer, reporter, conf);
           writer.close();
           
-          //we finished one single level merge; now clean up the priority 
-          //queue
+          //we finished one single level merge; now clean up the tree
           this.close();
 
           // Add the newly create segment to the list of segments to be merged
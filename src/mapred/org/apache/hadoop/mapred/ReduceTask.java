@@ -18,9 +18,13 @@
 
 package org.apache.hadoop.mapred;
 
+import java.io.BufferedInputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -31,6 +35,7 @@ import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -41,6 +46,7 @@ import java.util.LinkedHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
@@ -62,6 +68,7 @@ import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableFactories;
 import org.apache.hadoop.io.WritableFactory;
@@ -80,6 +87,7 @@ import org.apache.hadoop.metrics.MetricsContext;
 import org.apache.hadoop.metrics.MetricsRecord;
 import org.apache.hadoop.metrics.MetricsUtil;
 import org.apache.hadoop.metrics.Updater;
+import org.apache.hadoop.net.NetworkTopology;
 import org.apache.hadoop.util.Progress;
 import org.apache.hadoop.util.Progressable;
 import org.apache.hadoop.util.ReflectionUtils;
@@ -99,6 +107,8 @@ class ReduceTask extends Task {
   private static final Log LOG = LogFactory.getLog(ReduceTask.class.getName());
   private int numMaps;
   private int reducePartition = -1;  // !#! Added by Sriram
+  // the slice of the I-file to work on; null means all of it
+  private SailfishReduceKeyRange keyRange = null;
   private ReduceCopier reduceCopier;
 
   private CompressionCodec codec;
@@ -169,6 +179,20 @@ class ReduceTask extends Task {
     return null;
   }
 
+  /**
+   * Work on a slice of an I-file; the I-file partition need not be the same
+   * as the task's partition.
+   */
+  void setKeyRange(SailfishReduceKeyRange keyRange) {
+    this.keyRange = keyRange;
+    this.reducePartition = keyRange.getPartition();
+  }
+
+  /** The slice of an I-file to work on; null means all of it. */
+  SailfishReduceKeyRange getKeyRange() {
+    return keyRange;
+  }
+
   @Override
   public TaskRunner createRunner(TaskTracker tracker, TaskInProgress tip) 
   throws IOException {
@@ -200,6 +224,10 @@ class ReduceTask extends Task {
     super.write(out);
 
     out.writeInt(numMaps);                        // write the number of maps
+    out.writeBoolean(keyRange != null);
+    if (keyRange != null) {
+      keyRange.write(out);
+    }
   }
 
   @Override
@@ -207,6 +235,13 @@ class ReduceTask extends Task {
     super.readFields(in);
 
     numMaps = in.readInt();
+    if (in.readBoolean()) {
+      SailfishReduceKeyRange r = new SailfishReduceKeyRange();
+      r.readFields(in);
+      setKeyRange(r);
+    } else {
+      keyRange = null;
+    }
   }
   
   // Get the input files for the reducer.
@@ -485,7 +520,8 @@ class ReduceTask extends Task {
         SailfishReduceHelper.SailfishReduceValuesIterator<INKEY,INVALUE> values = 
             new SailfishReduceHelper.SailfishReduceValuesIterator<INKEY, INVALUE>(
                 reducePartition, comparator, keyClass, valueClass, job, 
-                reporter, reducePhase, reduceInputValueCounter);
+                reporter, reducePhase, reduceInputValueCounter,
+                umbilical, getTaskID(), keyRange);
 
             values.informReduceProgress();
             while (values.more()) {
@@ -494,6 +530,7 @@ class ReduceTask extends Task {
               values.nextKey();
               values.informReduceProgress();
             }
+            values.close();
       } else {
         ReduceValuesIterator<INKEY,INVALUE> values = isSkipping() ? 
             new SkippingReduceValuesIterator<INKEY,INVALUE>(rIter, 
@@ -600,7 +637,8 @@ class ReduceTask extends Task {
       final SailfishReduceHelper.SailfishNewReduceValuesIterator<INKEY,INVALUE> values = 
           new SailfishReduceHelper.SailfishNewReduceValuesIterator<INKEY, INVALUE>(
               reducePartition, comparator, keyClass, valueClass, job, 
-              reporter, reducePhase, reduceInputValueCounter);
+              reporter, reducePhase, reduceInputValueCounter,
+              umbilical, getTaskID(), keyRange);
 
       values.informReduceProgress();
       rIter = new RawKeyValueIterator() {
@@ -672,14 +710,21 @@ class ReduceTask extends Task {
     private ReduceTask reduceTask;
     
     /**
-     * the list of map outputs currently being copied
+     * the list of map outputs currently being copied; the map outputs in
+     * each batch are on the same host and are fetched over one connection
+     */
+    private List<List<MapOutputLocation>> scheduledCopies;
+
+    /**
+     * the max number of map outputs to fetch from a host in one request
      */
-    private List<MapOutputLocation> scheduledCopies;
+    private int fetchBatchSize;
     
     /**
      *  the results of dispatched copy attempts
      */
-    private List<CopyResult> copyResults;
+    // package-private for the tests
+    List<CopyResult> copyResults;
     
     /**
      *  the number of outputs to copy in parallel
@@ -709,11 +754,29 @@ class ReduceTask extends Task {
      */
     private Set<String> uniqueHosts;
     
+    /**
+     * Map of host -> rack, as the jobtracker resolved them for the task
+     * completion events
+     */
+    private final Map<String, String> hostRacks =
+      new ConcurrentHashMap<String, String>();
+    
+    /**
+     * Map of rack -> the number of its hosts from which we are copying
+     */
+    private Map<String, Integer> rackCopies = new HashMap<String, Integer>();
+    
     /**
      * A reference to the RamManager for writing the map outputs to.
      */
     
-    private ShuffleRamManager ramManager;
+    ShuffleRamManager ramManager;
+    
+    /**
+     * The slabs that hold in-memory map outputs outside the heap, or null
+     * if they are held in byte arrays.
+     */
+    private DirectBufferArena arena = null;
     
     /**
      * A reference to the local file system for writing the map outputs to.
@@ -871,7 +934,7 @@ class ReduceTask extends Task {
      * The map for (Hosts, List of MapIds from this Host) maintaining
      * map output locations
      */
-    private final Map<String, List<MapOutputLocation>> mapLocations = 
+    final Map<String, List<MapOutputLocation>> mapLocations = 
       new ConcurrentHashMap<String, List<MapOutputLocation>>();
     
     /**
@@ -934,7 +997,7 @@ class ReduceTask extends Task {
     }
 
     /** Represents the result of an attempt to copy a map output */
-    private class CopyResult {
+    class CopyResult {
       
       // the map output location against which a copy attempt was made
       private final MapOutputLocation loc;
@@ -942,21 +1005,33 @@ class ReduceTask extends Task {
       // the size of the file copied, -1 if the transfer failed
       private final long size;
       
+      // is this the last result of the batch that the copy was part of?
+      private final boolean lastOfBatch;
+      
       //a flag signifying whether a copy result is obsolete
       private static final int OBSOLETE = -2;
       
-      CopyResult(MapOutputLocation loc, long size) {
+      // a flag for a map output of a batch that wasn't got to; it isn't a
+      // failed fetch of that map
+      private static final int UNTRIED = -3;
+      
+      CopyResult(MapOutputLocation loc, long size, boolean lastOfBatch) {
         this.loc = loc;
         this.size = size;
+        this.lastOfBatch = lastOfBatch;
       }
       
       public boolean getSuccess() { return size >= 0; }
       public boolean isObsolete() { 
         return size == OBSOLETE;
       }
+      public boolean isUntried() {
+        return size == UNTRIED;
+      }
       public long getSize() { return size; }
       public String getHost() { return loc.getHost(); }
       public MapOutputLocation getLocation() { return loc; }
+      public boolean isLastOfBatch() { return lastOfBatch; }
     }
     
     private int nextMapOutputCopierId = 0;
@@ -964,18 +1039,25 @@ class ReduceTask extends Task {
     /**
      * Abstraction to track a map-output.
      */
-    private class MapOutputLocation {
+    class MapOutputLocation {
       TaskAttemptID taskAttemptId;
       TaskID taskId;
       String ttHost;
       URL taskOutput;
+      long size;
       
       public MapOutputLocation(TaskAttemptID taskAttemptId, 
                                String ttHost, URL taskOutput) {
+        this(taskAttemptId, ttHost, taskOutput, -1);
+      }
+      
+      public MapOutputLocation(TaskAttemptID taskAttemptId, 
+                               String ttHost, URL taskOutput, long size) {
         this.taskAttemptId = taskAttemptId;
         this.taskId = this.taskAttemptId.getTaskID();
         this.ttHost = ttHost;
         this.taskOutput = taskOutput;
+        this.size = size;
       }
       
       public TaskAttemptID getTaskAttemptId() {
@@ -993,6 +1075,13 @@ class ReduceTask extends Task {
       public URL getOutputLocation() {
         return taskOutput;
       }
+      
+      /**
+       * @return the size of the map's whole output, or -1 if not known
+       */
+      public long getSize() {
+        return size;
+      }
     }
     
     /** Describes the output of a map; could either be on disk or in-memory. */
@@ -1004,6 +1093,8 @@ class ReduceTask extends Task {
       final Configuration conf;
       
       byte[] data;
+      ByteBuffer[] slabs;
+      int dataLength;
       final boolean inMemory;
       long compressedSize;
       
@@ -1029,6 +1120,23 @@ class ReduceTask extends Task {
         this.conf = null;
         
         this.data = data;
+        this.dataLength = data.length;
+        this.compressedSize = compressedLength;
+        
+        this.inMemory = true;
+      }
+      
+      public MapOutput(TaskID mapId, TaskAttemptID mapAttemptId,
+                       ByteBuffer[] slabs, int dataLength,
+                       int compressedLength) {
+        this.mapId = mapId;
+        this.mapAttemptId = mapAttemptId;
+        
+        this.file = null;
+        this.conf = null;
+        
+        this.slabs = slabs;
+        this.dataLength = dataLength;
         this.compressedSize = compressedLength;
         
         this.inMemory = true;
@@ -1037,6 +1145,10 @@ class ReduceTask extends Task {
       public void discard() throws IOException {
         if (inMemory) {
           data = null;
+          if (slabs != null) {
+            arena.release(slabs);
+            slabs = null;
+          }
         } else {
           FileSystem fs = file.getFileSystem(conf);
           fs.delete(file, true);
@@ -1073,18 +1185,39 @@ class ReduceTask extends Task {
                                 maxInMemCopyUse);
         }
         // Allow unit tests to fix Runtime memory
-        maxSize = (int)(conf.getInt("mapred.job.reduce.total.mem.bytes",
+        long heapSize = (int)(conf.getInt("mapred.job.reduce.total.mem.bytes",
             (int)Math.min(Runtime.getRuntime().maxMemory(), Integer.MAX_VALUE))
           * maxInMemCopyUse);
+        // Map outputs held off-heap aren't limited by the heap size
+        maxSize = conf.getBoolean("mapred.job.shuffle.offheap", false)
+          ? conf.getLong("mapred.job.shuffle.offheap.buffer.bytes", heapSize)
+          : heapSize;
         maxSingleShuffleLimit = (long)(maxSize * MAX_SINGLE_SHUFFLE_SEGMENT_FRACTION);
         LOG.info("ShuffleRamManager: MemoryLimit=" + maxSize + 
                  ", MaxSingleShuffleLimit=" + maxSingleShuffleLimit);
       }
       
+      long getMemoryLimit() {
+        return maxSize;
+      }
+
+      /**
+       * The memory that a map output of the given size takes up: a whole
+       * number of slabs when the map outputs are held off-heap.
+       */
+      private long getChargedSize(int requestedSize) {
+        if (arena == null) {
+          return requestedSize;
+        }
+        long slabSize = arena.getSlabSize();
+        return (requestedSize + slabSize - 1) / slabSize * slabSize;
+      }
+
       public synchronized boolean reserve(int requestedSize, InputStream in) 
       throws InterruptedException {
+        long chargedSize = getChargedSize(requestedSize);
         // Wait till the request can be fulfilled...
-        while ((size + requestedSize) > maxSize) {
+        while ((size + chargedSize) > maxSize) {
           
           // Close the input...
           if (in != null) {
@@ -1112,16 +1245,30 @@ class ReduceTask extends Task {
           }
         }
         
-        size += requestedSize;
+        size += chargedSize;
         
         return (in != null);
       }
       
+      /**
+       * Reserve memory only if it is available right away.
+       * @return true if the memory was reserved
+       */
+      public synchronized boolean tryReserve(int requestedSize) {
+        long chargedSize = getChargedSize(requestedSize);
+        if ((size + chargedSize) > maxSize) {
+          return false;
+        }
+        size += chargedSize;
+        return true;
+      }
+      
       public synchronized void unreserve(int requestedSize) {
-        size -= requestedSize;
+        long chargedSize = getChargedSize(requestedSize);
+        size -= chargedSize;
         
         synchronized (dataAvailable) {
-          fullSize -= requestedSize;
+          fullSize -= chargedSize;
           --numClosed;
         }
         
@@ -1163,7 +1310,7 @@ class ReduceTask extends Task {
       
       public void closeInMemoryFile(int requestedSize) {
         synchronized (dataAvailable) {
-          fullSize += requestedSize;
+          fullSize += getChargedSize(requestedSize);
           ++numClosed;
           dataAvailable.notify();
         }
@@ -1190,18 +1337,20 @@ class ReduceTask extends Task {
 
       boolean canFitInMemory(long requestedSize) {
         return (requestedSize < Integer.MAX_VALUE && 
-                requestedSize < maxSingleShuffleLimit);
+                getChargedSize((int)requestedSize) < maxSingleShuffleLimit);
       }
     }
 
     /** Copies map outputs as they become available */
-    private class MapOutputCopier extends Thread {
+    class MapOutputCopier extends Thread {
       // basic/unit connection timeout (in milliseconds)
       private final static int UNIT_CONNECT_TIMEOUT = 30 * 1000;
       // default read timeout (in milliseconds)
       private final static int DEFAULT_READ_TIMEOUT = 3 * 60 * 1000;
 
       private MapOutputLocation currentLocation = null;
+      // the # of map outputs of the current batch whose copy isn't finished
+      private int batchRemaining = 0;
       private int id = nextMapOutputCopierId++;
       private Reporter reporter;
       
@@ -1209,6 +1358,9 @@ class ReduceTask extends Task {
       private CompressionCodec codec = null;
       private Decompressor decompressor = null;
       
+      // Staging buffer for copying map outputs into the arena's slabs
+      private byte[] slabCopyBuffer = null;
+      
       public MapOutputCopier(JobConf job, Reporter reporter) {
         setName("MapOutputCopier " + reduceTask.getTaskID() + "." + id);
         LOG.debug(getName() + " created");
@@ -1250,7 +1402,8 @@ class ReduceTask extends Task {
         if (currentLocation != null) {
           LOG.debug(getName() + " finishing " + currentLocation + " =" + size);
           synchronized (copyResults) {
-            copyResults.add(new CopyResult(currentLocation, size));
+            copyResults.add(new CopyResult(currentLocation, size,
+                                           --batchRemaining == 0));
             copyResults.notify();
           }
           currentLocation = null;
@@ -1264,32 +1417,22 @@ class ReduceTask extends Task {
       public void run() {
         while (true) {        
           try {
-            MapOutputLocation loc = null;
-            long size = -1;
+            List<MapOutputLocation> locs = null;
             
             synchronized (scheduledCopies) {
               while (scheduledCopies.isEmpty()) {
                 scheduledCopies.wait();
               }
-              loc = scheduledCopies.remove(0);
+              locs = scheduledCopies.remove(0);
             }
             
-            try {
-              shuffleClientMetrics.threadBusy();
-              start(loc);
-              size = copyOutput(loc);
-              shuffleClientMetrics.successFetch();
-            } catch (IOException e) {
-              LOG.warn(reduceTask.getTaskID() + " copy failed: " +
-                       loc.getTaskAttemptId() + " from " + loc.getHost());
-              LOG.warn(StringUtils.stringifyException(e));
-              shuffleClientMetrics.failedFetch();
-              
-              // Reset 
-              size = -1;
-            } finally {
-              shuffleClientMetrics.threadFree();
-              finish(size);
+            if (locs.size() == 1) {
+              synchronized (this) {
+                batchRemaining = 1;
+              }
+              copyOne(locs.get(0));
+            } else {
+              copyBatch(locs);
             }
           } catch (InterruptedException e) { 
             break; // ALL DONE
@@ -1315,6 +1458,251 @@ class ReduceTask extends Task {
           
       }
       
+      /** Copies a map output over its own connection. */
+      private void copyOne(MapOutputLocation loc) throws InterruptedException {
+        long size = -1;
+        try {
+          shuffleClientMetrics.threadBusy();
+          start(loc);
+          size = copyOutput(loc);
+          shuffleClientMetrics.successFetch();
+        } catch (IOException e) {
+          LOG.warn(reduceTask.getTaskID() + " copy failed: " +
+                   loc.getTaskAttemptId() + " from " + loc.getHost());
+          LOG.warn(StringUtils.stringifyException(e));
+          shuffleClientMetrics.failedFetch();
+          
+          // Reset 
+          size = -1;
+        } finally {
+          shuffleClientMetrics.threadFree();
+          finish(size);
+        }
+      }
+
+      /**
+       * Copies several map outputs from a host over one connection.  The
+       * map outputs that the host doesn't have are failed.  If the copy
+       * fails, so does the map output that was being (or about to be)
+       * copied, and the rest are given back to be scheduled again.  If we
+       * run out of memory to shuffle into, the rest of the batch is copied
+       * one by one.
+       */
+      void copyBatch(List<MapOutputLocation> locs)
+      throws InterruptedException {
+        synchronized (this) {
+          batchRemaining = locs.size();
+        }
+        List<MapOutputLocation> pending = new LinkedList<MapOutputLocation>(locs);
+        String host = locs.get(0).getHost();
+        try {
+          shuffleClientMetrics.threadBusy();
+          copyOutputs(pending);
+        } catch (IOException e) {
+          LOG.warn(reduceTask.getTaskID() + " batched copy of " + locs.size() +
+                   " map outputs from " + host + " failed");
+          LOG.warn(StringUtils.stringifyException(e));
+          if (getLocation() != null) {
+            shuffleClientMetrics.failedFetch();
+            finish(-1);
+          } else if (!pending.isEmpty()) {
+            // the one that was next; so that the host is backed off from
+            failAll(pending.subList(0, 1));
+          }
+          requeueAll(pending);
+        } finally {
+          shuffleClientMetrics.threadFree();
+        }
+        for (MapOutputLocation loc : pending) {
+          copyOne(loc);
+        }
+      }
+
+      private void failAll(List<MapOutputLocation> locs) {
+        for (MapOutputLocation loc : locs) {
+          shuffleClientMetrics.failedFetch();
+          start(loc);
+          finish(-1);
+        }
+        locs.clear();
+      }
+
+      private void requeueAll(List<MapOutputLocation> locs) {
+        for (MapOutputLocation loc : locs) {
+          start(loc);
+          finish(CopyResult.UNTRIED);
+        }
+        locs.clear();
+      }
+
+      /**
+       * Fetch a batch of map outputs.  The locations are removed from the
+       * list as they are copied; when we return, the list has the ones
+       * that should be copied by themselves.
+       */
+      private void copyOutputs(List<MapOutputLocation> pending)
+      throws IOException, InterruptedException {
+        int reduce = reduceTask.getTaskID().getTaskID().getId();
+        URL first = pending.get(0).getOutputLocation();
+        StringBuilder mapIds = new StringBuilder();
+        for (MapOutputLocation loc : pending) {
+          if (mapIds.length() > 0) {
+            mapIds.append(',');
+          }
+          mapIds.append(loc.getTaskAttemptId());
+        }
+        URL url = new URL(first.getProtocol(), first.getHost(), first.getPort(),
+                          first.getPath() + "?job=" + 
+                          reduceTask.getJobID() + "&map=" + mapIds +
+                          "&reduce=" + getPartition());
+
+        URLConnection connection = url.openConnection();
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+            getInputStream(connection, STALLED_COPY_TIMEOUT,
+                           DEFAULT_READ_TIMEOUT), 64 * 1024));
+        try {
+          int count = getMapOutputCount(connection);
+          for (int i = 0; i < count; i++) {
+            // read the segment header
+            TaskAttemptID mapId = TaskAttemptID.forName(Text.readString(input));
+            long decompressedLength = WritableUtils.readVLong(input);
+            long compressedLength = WritableUtils.readVLong(input);
+            int forReduce = WritableUtils.readVInt(input);
+            MapOutputLocation loc = null;
+            for (MapOutputLocation l : pending) {
+              if (l.getTaskAttemptId().equals(mapId)) {
+                loc = l;
+                break;
+              }
+            }
+            if (loc == null || forReduce != reduce ||
+                compressedLength < 0 || decompressedLength < 0) {
+              throw new IOException("Unexpected map output " + mapId + 
+                  " for reduce " + forReduce + " with compressed len: " + 
+                  compressedLength + ", decompressed len: " + 
+                  decompressedLength + " in a batch from " + loc);
+            }
+            LOG.info("header: " + mapId + ", compressed len: " + 
+                     compressedLength + ", decompressed len: " + 
+                     decompressedLength);
+
+            InputStream segment = new SegmentInputStream(input, compressedLength);
+            if (copiedMapOutputs.contains(loc.getTaskId()) || 
+                obsoleteMapIds.contains(loc.getTaskAttemptId())) {
+              pending.remove(loc);
+              start(loc);
+              segment.close();
+              shuffleClientMetrics.successFetch();
+              finish(CopyResult.OBSOLETE);
+              continue;
+            }
+
+            boolean shuffleInMemory =
+              ramManager.canFitInMemory(decompressedLength);
+            if (shuffleInMemory &&
+                !ramManager.tryReserve((int) decompressedLength)) {
+              // waiting for memory with the connection open would tie up
+              // the tasktracker; copy the rest one at a time
+              LOG.info("No memory to shuffle " + mapId + " into; copying " +
+                       pending.size() + " map outputs from " +
+                       loc.getHost() + " one at a time");
+              return;
+            }
+            pending.remove(loc);
+            start(loc);
+            long size = copyOutput(loc, segment, shuffleInMemory,
+                                   decompressedLength, compressedLength);
+            segment.close();
+            shuffleClientMetrics.successFetch();
+            finish(size);
+          }
+        } finally {
+          IOUtils.cleanup(LOG, input);
+        }
+        // the server couldn't find the rest
+        if (!pending.isEmpty()) {
+          LOG.warn(reduceTask.getTaskID() + " " + pending.size() + 
+                   " map outputs were missing in a batch from " + 
+                   pending.get(0).getHost());
+          failAll(pending);
+        }
+      }
+
+      /**
+       * The # of map outputs in the reply to a batch.
+       */
+      private int getMapOutputCount(URLConnection connection)
+      throws IOException {
+        String count = connection.getHeaderField(MAP_OUTPUT_COUNT);
+        try {
+          return Integer.parseInt(count);
+        } catch (NumberFormatException e) {
+          throw new IOException("Invalid " + MAP_OUTPUT_COUNT + " header '" +
+                                count + "' in the reply from " +
+                                connection.getURL());
+        }
+      }
+
+      /**
+       * The map output of a segment of a batch; closing it skips to the
+       * next segment, rather than closing the connection.
+       */
+      private class SegmentInputStream extends FilterInputStream {
+        private long remaining;
+
+        SegmentInputStream(InputStream in, long length) {
+          super(in);
+          this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+          if (remaining <= 0) {
+            return -1;
+          }
+          int b = in.read();
+          if (b < 0) {
+            throw new EOFException("Connection closed in a map output");
+          }
+          remaining--;
+          return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          if (remaining <= 0) {
+            return -1;
+          }
+          int n = in.read(b, off, (int) Math.min(len, remaining));
+          if (n < 0) {
+            throw new EOFException("Connection closed in a map output");
+          }
+          remaining -= n;
+          return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+          long skipped = in.skip(Math.min(n, remaining));
+          remaining -= skipped;
+          return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+          return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() throws IOException {
+          while (remaining > 0) {
+            if (skip(remaining) <= 0 && read() < 0) {
+              break;
+            }
+          }
+        }
+      }
+
       /** Copies a a map output from a remote host, via HTTP. 
        * @param currentLocation the map output location to be copied
        * @return the path (fully qualified) of the copied file
@@ -1329,15 +1717,8 @@ class ReduceTask extends Task {
           return CopyResult.OBSOLETE;
         } 
  
-        // a temp filename. If this file gets created in ramfs, we're fine,
-        // else, we will check the localFS to find a suitable final location
-        // for this path
         TaskAttemptID reduceId = reduceTask.getTaskID();
-        Path filename = new Path("/" + TaskTracker.getIntermediateOutputDir(
-                                 reduceId.getJobID().toString(),
-                                 reduceId.toString()) 
-                                 + "/map_" +
-                                 loc.getTaskId().getId() + ".out");
+        Path filename = getMapOutputFilename(loc);
         
         // Copy the map output to a temp file whose name is unique to this attempt 
         Path tmpMapOutput = new Path(filename+"-"+id);
@@ -1351,6 +1732,57 @@ class ReduceTask extends Task {
                                 loc.getHost());
         }
         
+        return addMapOutput(loc, mapOutput, filename);
+      }
+
+      /**
+       * Copies a map output from a segment of a batch.  If it is to be
+       * shuffled in memory, the memory has been reserved.
+       */
+      private long copyOutput(MapOutputLocation loc, InputStream input,
+                              boolean shuffleInMemory, long decompressedLength,
+                              long compressedLength)
+      throws IOException, InterruptedException {
+        Path filename = getMapOutputFilename(loc);
+        MapOutput mapOutput = null;
+        if (shuffleInMemory) {
+          LOG.info("Shuffling " + decompressedLength + " bytes (" + 
+              compressedLength + " raw bytes) " + 
+              "into RAM from " + loc.getTaskAttemptId());
+          mapOutput = shuffleInMemory(loc, input, (int)decompressedLength,
+                                      (int)compressedLength);
+        } else {
+          LOG.info("Shuffling " + decompressedLength + " bytes (" + 
+              compressedLength + " raw bytes) " + 
+              "into Local-FS from " + loc.getTaskAttemptId());
+          mapOutput = shuffleToDisk(loc, input, new Path(filename+"-"+id),
+                                    compressedLength);
+        }
+        return addMapOutput(loc, mapOutput, filename);
+      }
+
+      /**
+       * a temp filename. If this file gets created in ramfs, we're fine,
+       * else, we will check the localFS to find a suitable final location
+       * for this path
+       */
+      private Path getMapOutputFilename(MapOutputLocation loc) {
+        TaskAttemptID reduceId = reduceTask.getTaskID();
+        return new Path("/" + TaskTracker.getIntermediateOutputDir(
+                        reduceId.getJobID().toString(),
+                        reduceId.toString()) 
+                        + "/map_" +
+                        loc.getTaskId().getId() + ".out");
+      }
+
+      /**
+       * Add a copied map output to the ones to be merged.
+       * @return the size of the map output
+       */
+      private long addMapOutput(MapOutputLocation loc, MapOutput mapOutput,
+                                Path filename) throws IOException {
+        Path tmpMapOutput;
+
         // The size of the map-output
         long bytes = mapOutput.compressedSize;
         
@@ -1490,7 +1922,30 @@ class ReduceTask extends Task {
               compressedLength + " raw bytes) " + 
               "into RAM from " + mapOutputLoc.getTaskAttemptId());
 
-          mapOutput = shuffleInMemory(mapOutputLoc, connection, input,
+          // Reserve ram for the map-output
+          boolean createdNow = ramManager.reserve((int)decompressedLength,
+                                                  input);
+      
+          // Reconnect if we need to
+          if (!createdNow) {
+            // Reconnect
+            try {
+              connection = mapOutputLoc.getOutputLocation().openConnection();
+              input = getInputStream(connection, STALLED_COPY_TIMEOUT, 
+                                     DEFAULT_READ_TIMEOUT);
+            } catch (IOException ioe) {
+              LOG.info("Failed reopen connection to fetch map-output from " + 
+                       mapOutputLoc.getHost());
+            
+              // Inform the ram-manager
+              ramManager.closeInMemoryFile((int)decompressedLength);
+              ramManager.unreserve((int)decompressedLength);
+            
+              throw ioe;
+            }
+          }
+
+          mapOutput = shuffleInMemory(mapOutputLoc, input,
                                       (int)decompressedLength,
                                       (int)compressedLength);
         } else {
@@ -1550,34 +2005,14 @@ class ReduceTask extends Task {
         }
       }
 
+      /**
+       * Copy a map output into memory; the memory for it has been reserved.
+       */
       private MapOutput shuffleInMemory(MapOutputLocation mapOutputLoc,
-                                        URLConnection connection, 
                                         InputStream input,
                                         int mapOutputLength,
                                         int compressedLength)
       throws IOException, InterruptedException {
-        // Reserve ram for the map-output
-        boolean createdNow = ramManager.reserve(mapOutputLength, input);
-      
-        // Reconnect if we need to
-        if (!createdNow) {
-          // Reconnect
-          try {
-            connection = mapOutputLoc.getOutputLocation().openConnection();
-            input = getInputStream(connection, STALLED_COPY_TIMEOUT, 
-                                   DEFAULT_READ_TIMEOUT);
-          } catch (IOException ioe) {
-            LOG.info("Failed reopen connection to fetch map-output from " + 
-                     mapOutputLoc.getHost());
-            
-            // Inform the ram-manager
-            ramManager.closeInMemoryFile(mapOutputLength);
-            ramManager.unreserve(mapOutputLength);
-            
-            throw ioe;
-          }
-        }
-
         IFileInputStream checksumIn = 
           new IFileInputStream(input,compressedLength);
 
@@ -1590,22 +2025,31 @@ class ReduceTask extends Task {
         }
       
         // Copy map-output into an in-memory buffer
-        byte[] shuffleData = new byte[mapOutputLength];
-        MapOutput mapOutput = 
-          new MapOutput(mapOutputLoc.getTaskId(), 
-                        mapOutputLoc.getTaskAttemptId(), shuffleData, compressedLength);
+        byte[] shuffleData = null;
+        MapOutput mapOutput;
+        if (arena != null) {
+          mapOutput =
+            new MapOutput(mapOutputLoc.getTaskId(),
+                          mapOutputLoc.getTaskAttemptId(),
+                          arena.allocate(mapOutputLength), mapOutputLength,
+                          compressedLength);
+        } else {
+          shuffleData = new byte[mapOutputLength];
+          mapOutput = 
+            new MapOutput(mapOutputLoc.getTaskId(), 
+                          mapOutputLoc.getTaskAttemptId(), shuffleData, compressedLength);
+        }
         
         int bytesRead = 0;
         try {
-          int n = input.read(shuffleData, 0, shuffleData.length);
+          int n = readShuffleData(input, mapOutput, 0);
           while (n > 0) {
             bytesRead += n;
             shuffleClientMetrics.inputBytes(n);
 
             // indicate we're making progress
             reporter.progress();
-            n = input.read(shuffleData, bytesRead, 
-                           (shuffleData.length-bytesRead));
+            n = readShuffleData(input, mapOutput, bytesRead);
           }
 
           LOG.info("Read " + bytesRead + " bytes from map-output for " +
@@ -1663,7 +2107,7 @@ class ReduceTask extends Task {
         }
 
         // TODO: Remove this after a 'fix' for HADOOP-3647
-        if (mapOutputLength > 0) {
+        if (mapOutputLength > 0 && shuffleData != null) {
           DataInputBuffer dib = new DataInputBuffer();
           dib.reset(shuffleData, 0, shuffleData.length);
           LOG.info("Rec #1 from " + mapOutputLoc.getTaskAttemptId() + " -> (" + 
@@ -1675,6 +2119,35 @@ class ReduceTask extends Task {
         return mapOutput;
       }
       
+      /**
+       * Read the next bytes of an in-memory map output, at the given offset
+       * of its data.
+       * @return the number of bytes read; 0 once the data is full
+       */
+      private int readShuffleData(InputStream input, MapOutput mapOutput,
+                                  int offset) throws IOException {
+        if (mapOutput.data != null) {
+          return input.read(mapOutput.data, offset,
+                            mapOutput.dataLength - offset);
+        }
+        if (offset == mapOutput.dataLength) {
+          return 0;
+        }
+        // the slabs are filled in order, so the current one is at offset
+        ByteBuffer slab = mapOutput.slabs[offset / arena.getSlabSize()];
+        if (slabCopyBuffer == null) {
+          slabCopyBuffer = new byte[64 * 1024];
+        }
+        int n = input.read(slabCopyBuffer, 0,
+            Math.min(slabCopyBuffer.length,
+                     Math.min(slab.remaining(),
+                              mapOutput.dataLength - offset)));
+        if (n > 0) {
+          slab.put(slabCopyBuffer, 0, n);
+        }
+        return n;
+      }
+      
       private MapOutput shuffleToDisk(MapOutputLocation mapOutputLoc,
                                       InputStream input,
                                       Path filename,
@@ -1809,11 +2282,13 @@ class ReduceTask extends Task {
       this.umbilical = umbilical;      
       this.reduceTask = ReduceTask.this;
 
-      this.scheduledCopies = new ArrayList<MapOutputLocation>(100);
+      this.scheduledCopies = new ArrayList<List<MapOutputLocation>>(100);
       this.copyResults = new ArrayList<CopyResult>(100);    
       this.numCopiers = conf.getInt("mapred.reduce.parallel.copies", 5);
       this.maxInFlight = 4 * numCopiers;
       this.maxBackoff = conf.getInt("mapred.reduce.copy.backoff", 300);
+      this.fetchBatchSize =
+        Math.max(1, conf.getInt("mapred.reduce.copy.batch.size", 1));
       Counters.Counter combineInputCounter = 
         reporter.getCounter(Task.Counter.COMBINE_INPUT_RECORDS);
       this.combinerRunner = CombinerRunner.create(conf, getTaskID(),
@@ -1853,6 +2328,11 @@ class ReduceTask extends Task {
 
       // Setup the RamManager
       ramManager = new ShuffleRamManager(conf);
+      if (conf.getBoolean("mapred.job.shuffle.offheap", false)) {
+        arena = new DirectBufferArena(
+            conf.getInt("mapred.job.shuffle.offheap.slab.size", 64 * 1024),
+            ramManager.getMemoryLimit());
+      }
 
       localFileSys = FileSystem.getLocal(conf);
 
@@ -1965,6 +2445,7 @@ class ReduceTask extends Task {
           // now walk through the cache and schedule what we can
           int numScheduled = 0;
           int numDups = 0;
+          int numRackLimited = 0;
           
           synchronized (scheduledCopies) {
   
@@ -1974,6 +2455,21 @@ class ReduceTask extends Task {
             hostList.addAll(mapLocations.keySet()); 
             
             Collections.shuffle(hostList, this.random);
+            
+            // Then copy from the hosts with the most bytes left first, so
+            // that the end of the shuffle isn't spent on a few busy hosts
+            final Map<String, Long> bytesPending = new HashMap<String, Long>();
+            for (String host : hostList) {
+              bytesPending.put(host, getBytesPending(mapLocations.get(host)));
+            }
+            Collections.sort(hostList, new Comparator<String>() {
+              public int compare(String h1, String h2) {
+                return bytesPending.get(h2).compareTo(bytesPending.get(h1));
+              }
+            });
+            
+            // Spread the copies over the racks that have outputs left
+            int maxRackCopies = getMaxRackCopies(hostList, bytesPending);
               
             Iterator<String> hostsItr = hostList.iterator();
 
@@ -2014,11 +2510,21 @@ class ReduceTask extends Task {
               if (penalized)
                 continue;
 
+              String rack = getRack(host);
+              Integer copiesFromRack = rackCopies.get(rack);
+              if (copiesFromRack != null && 
+                  copiesFromRack.intValue() >= maxRackCopies) {
+                numRackLimited++;
+                continue;
+              }
+
+              List<MapOutputLocation> batch = null;
               synchronized (knownOutputsByLoc) {
               
                 locItr = knownOutputsByLoc.iterator();
             
-                while (locItr.hasNext()) {
+                while (locItr.hasNext() &&
+                       (batch == null || batch.size() < fetchBatchSize)) {
               
                   MapOutputLocation loc = locItr.next();
               
@@ -2028,14 +2534,25 @@ class ReduceTask extends Task {
                     continue;
                   }
 
-                  uniqueHosts.add(host);
-                  scheduledCopies.add(loc);
+                  if (batch == null) {
+                    batch = new ArrayList<MapOutputLocation>(fetchBatchSize);
+                  } else if (!loc.getOutputLocation().getAuthority().equals(
+                      batch.get(0).getOutputLocation().getAuthority())) {
+                    // a different tasktracker on the same host
+                    continue;
+                  }
+                  batch.add(loc);
                   locItr.remove();  // remove from knownOutputs
                   numInFlight++; numScheduled++;
-
-                  break; //we have a map from this host
                 }
               }
+              if (batch != null) {
+                // we have a batch of maps from this host
+                uniqueHosts.add(host);
+                rackCopies.put(rack, 
+                    (copiesFromRack == null) ? 1 : copiesFromRack + 1);
+                scheduledCopies.add(batch);
+              }
             }
             scheduledCopies.notifyAll();
           }
@@ -2043,7 +2560,8 @@ class ReduceTask extends Task {
           if (numScheduled > 0 || logNow) {
             LOG.info(reduceTask.getTaskID() + " Scheduled " + numScheduled +
                    " outputs (" + penaltyBox.size() +
-                   " slow hosts and" + numDups + " dup hosts)");
+                   " slow hosts and" + numDups + " dup hosts and " +
+                   numRackLimited + " hosts on busy racks)");
           }
 
           if (penaltyBox.size() > 0 && logNow) {
@@ -2107,6 +2625,9 @@ class ReduceTask extends Task {
                        " Ignoring obsolete copy result for Map Task: " + 
                        cr.getLocation().getTaskAttemptId() + " from host: " + 
                        cr.getHost());
+            } else if (cr.isUntried()) {
+              // the batch it was in failed before getting to it
+              retryFetches.add(cr.getLocation());
             } else {
               retryFetches.add(cr.getLocation());
               
@@ -2197,7 +2718,18 @@ class ReduceTask extends Task {
                        cr.getHost() + " to penalty box, next contact in " +
                        (currentBackOff/1000) + " seconds");
             }
-            uniqueHosts.remove(cr.getHost());
+            if (cr.isLastOfBatch()) {
+              uniqueHosts.remove(cr.getHost());
+              String rack = getRack(cr.getHost());
+              Integer copiesFromRack = rackCopies.get(rack);
+              if (copiesFromRack != null) {
+                if (copiesFromRack.intValue() <= 1) {
+                  rackCopies.remove(rack);
+                } else {
+                  rackCopies.put(rack, copiesFromRack - 1);
+                }
+              }
+            }
             numInFlight--;
           }
         }
@@ -2228,6 +2760,10 @@ class ReduceTask extends Task {
         }
         
         ramManager.close();
+        if (arena != null) {
+          // no more map outputs are copied into memory
+          arena.close();
+        }
         
         //Do a merge of in-memory files (if there are any)
         if (mergeThrowable == null) {
@@ -2255,6 +2791,65 @@ class ReduceTask extends Task {
         return mergeThrowable == null && copiedMapOutputs.size() == numMaps;
     }
     
+    /**
+     * The rack of a host that we copy from.
+     */
+    String getRack(String host) {
+      String rack = hostRacks.get(host);
+      return (rack == null) ? NetworkTopology.DEFAULT_RACK : rack;
+    }
+    
+    /**
+     * The bytes left to copy from a host.  Outputs of unknown size count as
+     * a byte each, so that without sizes the hosts go by the # of outputs.
+     */
+    long getBytesPending(List<MapOutputLocation> locs) {
+      if (locs == null) {
+        // the mapping was cleared; see fetchOutputs()
+        return 0;
+      }
+      long bytes = 0;
+      synchronized (locs) {
+        for (MapOutputLocation loc : locs) {
+          bytes += Math.max(1, loc.getSize());
+        }
+      }
+      return bytes;
+    }
+    
+    /**
+     * Add a map output to a host's list, ahead of the smaller ones, so that
+     * the biggest outputs are copied first.
+     */
+    void addBySize(List<MapOutputLocation> locs, MapOutputLocation loc) {
+      synchronized (locs) {
+        ListIterator<MapOutputLocation> it = locs.listIterator();
+        while (it.hasNext()) {
+          if (it.next().getSize() < loc.getSize()) {
+            it.previous();
+            break;
+          }
+        }
+        it.add(loc);
+      }
+    }
+    
+    /**
+     * The most hosts of one rack to copy from at a time: the copiers are
+     * spread evenly over the racks that are being copied from or have
+     * outputs left.
+     */
+    int getMaxRackCopies(List<String> hosts, Map<String, Long> bytesPending) {
+      Set<String> racks = new HashSet<String>(rackCopies.keySet());
+      for (String host : hosts) {
+        if (bytesPending.get(host) > 0) {
+          racks.add(getRack(host));
+        }
+      }
+      return Math.max(1, (numCopiers + racks.size() - 1) / 
+                         Math.max(1, racks.size()));
+    }
+    
     private long createInMemorySegments(
         List<Segment<K, V>> inMemorySegments, long leaveBytes)
         throws IOException {
@@ -2264,15 +2859,18 @@ class ReduceTask extends Task {
         // closed but not yet present in mapOutputsFilesInMemory
         long fullSize = 0L;
         for (MapOutput mo : mapOutputsFilesInMemory) {
-          fullSize += mo.data.length;
+          fullSize += mo.dataLength;
         }
         while(fullSize > leaveBytes) {
           MapOutput mo = mapOutputsFilesInMemory.remove(0);
-          totalSize += mo.data.length;
-          fullSize -= mo.data.length;
-          Reader<K, V> reader = 
-            new InMemoryReader<K, V>(ramManager, mo.mapAttemptId,
-                                     mo.data, 0, mo.data.length);
+          totalSize += mo.dataLength;
+          fullSize -= mo.dataLength;
+          Reader<K, V> reader = (mo.slabs != null)
+            ? new DirectInMemoryReader<K, V>(ramManager, arena,
+                                             mo.mapAttemptId, mo.slabs,
+                                             mo.dataLength)
+            : new InMemoryReader<K, V>(ramManager, mo.mapAttemptId,
+                                       mo.data, 0, mo.data.length);
           Segment<K, V> segment = 
             new Segment<K, V>(reader, true);
           inMemorySegments.add(segment);
@@ -2670,7 +3268,7 @@ class ReduceTask extends Task {
       }
     }
 
-    private class GetMapEventsThread extends Thread {
+    class GetMapEventsThread extends Thread {
       
       private IntWritable fromEventId = new IntWritable(0);
       private static final long SLEEP_TIME = 1000;
@@ -2717,7 +3315,7 @@ class ReduceTask extends Task {
        * from a given event ID.
        * @throws IOException
        */  
-      private int getMapCompletionEvents() throws IOException {
+      int getMapCompletionEvents() throws IOException {
         
         int numNewMaps = 0;
         
@@ -2765,13 +3363,15 @@ class ReduceTask extends Task {
                                       "/mapOutput?job=" + taskId.getJobID() +
                                       "&map=" + taskId + 
                                       "&reduce=" + getPartition());
+              hostRacks.put(host, event.getTaskTrackerRack());
               List<MapOutputLocation> loc = mapLocations.get(host);
               if (loc == null) {
                 loc = Collections.synchronizedList
                   (new LinkedList<MapOutputLocation>());
                 mapLocations.put(host, loc);
                }
-              loc.add(new MapOutputLocation(taskId, host, mapOutputLocation));
+              addBySize(loc, new MapOutputLocation(taskId, host,
+                  mapOutputLocation, event.getMapOutputSize()));
               numNewMaps ++;
             }
             break;
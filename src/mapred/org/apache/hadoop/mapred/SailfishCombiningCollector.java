@@ -0,0 +1,284 @@
+/**
+ * Copyright 2010 Yahoo Corporation.  All rights reserved.
+ * This file is part of the Sailfish project.
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ */
+
+package org.apache.hadoop.mapred;
+
+import static org.apache.hadoop.mapred.Task.Counter.COMBINE_OUTPUT_RECORDS;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.mapred.MapTask.MapOutputCollector;
+import org.apache.hadoop.mapred.Task.CombinerRunner;
+import org.apache.hadoop.mapred.Task.OldCombinerRunner;
+import org.apache.hadoop.mapred.Task.TaskReporter;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.IndexedSorter;
+import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.QuickSort;
+
+/**
+ * Sits between the mapper and the SailfishMapCollector and runs the combiner
+ * over the map output before it goes to the I-files.  Records are buffered
+ * in serialized form; when the buffer fills up (or at flush/close), the
+ * buffered records are sorted by partition and key, and each partition is
+ * run through the combiner with the output going down to the sailfish
+ * collector.
+ * @author sriramr
+ *
+ * @param <K>
+ * @param <V>
+ */
+class SailfishCombiningCollector<K extends Object, V extends Object>
+    implements MapOutputCollector<K, V>, IndexedSortable {
+
+  static final private Log LOG =
+    LogFactory.getLog(SailfishCombiningCollector.class);
+
+  // layout of a record's entry in kvindices
+  private static final int PARTITION = 0;
+  private static final int KEYSTART = 1;
+  private static final int VALSTART = 2;
+  private static final int VALEND = 3;
+  private static final int ACCTSIZE = 4;
+
+  private final MapOutputCollector<K, V> out;
+  private final CombinerRunner<K, V> combinerRunner;
+  private final RawComparator<K> comparator;
+  private final Serializer<K> keySerializer;
+  private final Serializer<V> valSerializer;
+  private final Counters.Counter combineOutputCounter;
+  private final IndexedSorter sorter = new QuickSort();
+  private final int bufferLimit;
+  private final DataOutputBuffer kvbuffer = new DataOutputBuffer();
+  private int[] kvindices;
+  private int[] kvoffsets;
+  private int numRecords = 0;
+  private int numCombines = 0;
+
+  /**
+   * @return the combiner set with sailfish.mapred.combiner.class, or null
+   * if the job should use its own
+   */
+  @SuppressWarnings("rawtypes")
+  static Class<? extends Reducer> getCombinerClass(JobConf job) {
+    return job.getClass("sailfish.mapred.combiner.class", null, Reducer.class);
+  }
+
+  /**
+   * Make the combiner for a new API map: the sailfish combiner if there is
+   * one, else the job's own.
+   * @return the combiner runner, or null for none
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  static <K, V> CombinerRunner<K, V> createCombinerRunner(JobConf job,
+      TaskAttemptID taskId, Counters.Counter inputCounter,
+      TaskReporter reporter,
+      org.apache.hadoop.mapreduce.OutputCommitter committer)
+      throws ClassNotFoundException {
+    Class<? extends Reducer> cls = getCombinerClass(job);
+    if (cls != null) {
+      return new OldCombinerRunner(cls, job, inputCounter, reporter);
+    }
+    return CombinerRunner.create(job, taskId, inputCounter, reporter,
+        committer);
+  }
+
+  @SuppressWarnings("unchecked")
+  SailfishCombiningCollector(JobConf job, Reporter reporter,
+      CombinerRunner<K, V> combinerRunner, MapOutputCollector<K, V> out) {
+    this.out = out;
+    this.combinerRunner = combinerRunner;
+    this.comparator = job.getOutputKeyComparator();
+    SerializationFactory serializationFactory = new SerializationFactory(job);
+    keySerializer = serializationFactory.getSerializer(
+        (Class<K>) job.getMapOutputKeyClass());
+    valSerializer = serializationFactory.getSerializer(
+        (Class<V>) job.getMapOutputValueClass());
+    try {
+      keySerializer.open(kvbuffer);
+      valSerializer.open(kvbuffer);
+    } catch (IOException e) {
+      // opening on an in-memory buffer doesn't do i/o
+      throw new RuntimeException(e);
+    }
+    combineOutputCounter = reporter.getCounter(COMBINE_OUTPUT_RECORDS);
+    bufferLimit = job.getInt("sailfish.mapred.combiner.buffer.size",
+        16 * 1024 * 1024);
+    int maxRecords = job.getInt("sailfish.mapred.combiner.buffer.records",
+        256 * 1024);
+    kvindices = new int[maxRecords * ACCTSIZE];
+    kvoffsets = new int[maxRecords];
+    LOG.info("Sailfish map-side combiner: buffer = " + bufferLimit
+        + " bytes ; max records = " + maxRecords);
+  }
+
+  @Override
+  public void collect(K key, V value, int partition) throws IOException,
+      InterruptedException {
+    int keystart = kvbuffer.getLength();
+    keySerializer.serialize(key);
+    int valstart = kvbuffer.getLength();
+    valSerializer.serialize(value);
+    int ind = numRecords * ACCTSIZE;
+    kvindices[ind + PARTITION] = partition;
+    kvindices[ind + KEYSTART] = keystart;
+    kvindices[ind + VALSTART] = valstart;
+    kvindices[ind + VALEND] = kvbuffer.getLength();
+    kvoffsets[numRecords] = ind;
+    numRecords++;
+    if ((numRecords == kvoffsets.length) ||
+        (kvbuffer.getLength() >= bufferLimit)) {
+      combineAndSend();
+    }
+  }
+
+  /**
+   * Sort what we have buffered and push each partition thru the combiner.
+   */
+  private void combineAndSend() throws IOException, InterruptedException {
+    if (numRecords == 0) {
+      return;
+    }
+    sorter.sort(this, 0, numRecords);
+    int start = 0;
+    while (start < numRecords) {
+      int partition = kvindices[kvoffsets[start] + PARTITION];
+      int end = start + 1;
+      while ((end < numRecords) &&
+          (kvindices[kvoffsets[end] + PARTITION] == partition)) {
+        end++;
+      }
+      try {
+        combinerRunner.combine(new BufferIterator(start, end),
+            new PartitionCollector(partition));
+      } catch (ClassNotFoundException cnf) {
+        throw new IOException("can't find class ", cnf);
+      }
+      start = end;
+    }
+    numCombines++;
+    numRecords = 0;
+    kvbuffer.reset();
+  }
+
+  @Override
+  public int compare(int i, int j) {
+    final int ii = kvoffsets[i];
+    final int ij = kvoffsets[j];
+    // sort by partition
+    if (kvindices[ii + PARTITION] != kvindices[ij + PARTITION]) {
+      return kvindices[ii + PARTITION] - kvindices[ij + PARTITION];
+    }
+    // sort by key
+    return comparator.compare(kvbuffer.getData(),
+        kvindices[ii + KEYSTART],
+        kvindices[ii + VALSTART] - kvindices[ii + KEYSTART],
+        kvbuffer.getData(),
+        kvindices[ij + KEYSTART],
+        kvindices[ij + VALSTART] - kvindices[ij + KEYSTART]);
+  }
+
+  @Override
+  public void swap(int i, int j) {
+    int tmp = kvoffsets[i];
+    kvoffsets[i] = kvoffsets[j];
+    kvoffsets[j] = tmp;
+  }
+
+  @Override
+  public void flush() throws IOException, InterruptedException,
+      ClassNotFoundException {
+    combineAndSend();
+    LOG.info("Sailfish map-side combiner ran " + numCombines + " times");
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException, InterruptedException {
+    combineAndSend();
+    out.close();
+  }
+
+  /**
+   * Iterates over a sorted range of the buffered records.
+   */
+  private class BufferIterator implements RawKeyValueIterator {
+    private final DataInputBuffer keybuf = new DataInputBuffer();
+    private final DataInputBuffer valbuf = new DataInputBuffer();
+    private final int end;
+    private int current;
+
+    BufferIterator(int start, int end) {
+      this.end = end;
+      current = start - 1;
+    }
+
+    public boolean next() throws IOException {
+      return ++current < end;
+    }
+
+    public DataInputBuffer getKey() throws IOException {
+      final int ind = kvoffsets[current];
+      keybuf.reset(kvbuffer.getData(), kvindices[ind + KEYSTART],
+          kvindices[ind + VALSTART] - kvindices[ind + KEYSTART]);
+      return keybuf;
+    }
+
+    public DataInputBuffer getValue() throws IOException {
+      final int ind = kvoffsets[current];
+      valbuf.reset(kvbuffer.getData(), kvindices[ind + VALSTART],
+          kvindices[ind + VALEND] - kvindices[ind + VALSTART]);
+      return valbuf;
+    }
+
+    public Progress getProgress() {
+      return null;
+    }
+
+    public void close() {
+    }
+  }
+
+  /**
+   * Sends the combiner output for a partition down to the sailfish collector.
+   */
+  private class PartitionCollector implements OutputCollector<K, V> {
+    private final int partition;
+
+    PartitionCollector(int partition) {
+      this.partition = partition;
+    }
+
+    public void collect(K key, V value) throws IOException {
+      combineOutputCounter.increment(1);
+      try {
+        out.collect(key, value, partition);
+      } catch (InterruptedException ie) {
+        throw new IOException("Interrupted while collecting combiner output",
+            ie);
+      }
+    }
+  }
+}
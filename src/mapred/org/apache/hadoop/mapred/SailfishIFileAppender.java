@@ -0,0 +1,414 @@
+/**
+ * Copyright 2010 Yahoo Corporation.  All rights reserved.
+ * This file is part of the Sailfish project.
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ */
+
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * In-JVM replacement for the forked kappender.  Records are batched per
+ * partition in direct buffers and each batch is appended to the partition's
+ * I-file in KFS as one block:
+ *   <magic><mapper id><attempt><# of records><payload len><payload>
+ * where the payload is a run of records laid out the same way as the
+ * kappender lays them out: <pktSize><key len><key><data len><data>.
+ *
+ * Unlike kappender, which shares one file per partition among all the maps,
+ * every map attempt writes its own file per partition:
+ * /jobs/<jobid>/<partition>/<mapper id>_<attempt>.  KFS (as of 0.2.2) has
+ * no atomic record append, only an open at the end of the file, so maps
+ * appending to a shared file could overwrite or interleave each other's
+ * blocks.  With a file per attempt nobody else writes to it, and the reduce
+ * side can skip the files of failed/re-run attempts without reading them.
+ * The header still says whose block it is, as a check.  The block format
+ * is not the one that kappender writes; I-files written this way can only
+ * be read by SailfishIFileMerger, which is why this appender turns on the
+ * in-process merger for the job's reduces.
+ * @author sriramr
+ *
+ */
+class SailfishIFileAppender {
+
+  static final private Log LOG = LogFactory.getLog(SailfishIFileAppender.class);
+
+  static final String INPROCESS_APPENDER =
+    "sailfish.mapred.job.inprocess_appender";
+
+  static final int BLOCK_MAGIC = 0x5A1F15E1;
+  static final int BLOCK_HEADER_LEN = 20;
+
+  private final FileSystem kfs;
+  private final Path basedir;
+  private final int mapperId;
+  private final int attempt;
+  private final int bufferSize;
+  private final long memoryLimit;
+  // allocated lazily; a map need not write to every partition
+  private final ByteBuffer[] buffers;
+  private final int[] recordCounts;
+  private final FSDataOutputStream[] ifiles;
+  private long bytesBuffered = 0;
+  private long bytesAppended = 0;
+  // for streams that can't take a ByteBuffer directly
+  private byte[] scratch;
+  private boolean closed = false;
+  // the record being serialized thru the record stream: its partition, and
+  // where it and its value start in the partition's buffer
+  private int recPartition = -1;
+  private int recStart;
+  private int recValStart;
+  private final OutputStream recordStream = new OutputStream() {
+    @Override
+    public void write(int b) throws IOException {
+      recordBuffer(1).put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      recordBuffer(len).put(b, off, len);
+    }
+  };
+
+  /**
+   * Does the job write its I-files from the map JVMs?
+   */
+  static boolean isEnabled(JobConf job) {
+    return job.getBoolean(INPROCESS_APPENDER, false);
+  }
+
+  /**
+   * The directory that holds the map attempts' I-files for a partition.
+   */
+  static Path getIFileDir(Path basedir, int partition) {
+    return new Path(basedir, Integer.toString(partition));
+  }
+
+  /**
+   * The I-file that a map attempt writes for a partition.
+   */
+  static Path getIFile(Path basedir, int partition, int mapperId,
+      int attempt) {
+    return new Path(getIFileDir(basedir, partition),
+        getIFileName(mapperId, attempt));
+  }
+
+  /**
+   * The name of a map attempt's I-file within a partition's directory.
+   */
+  static String getIFileName(int mapperId, int attempt) {
+    return mapperId + "_" + attempt;
+  }
+
+  /**
+   * Get the mapper id and attempt back out of an I-file's name.
+   * @return {mapper id, attempt} or null if the name isn't one of ours
+   */
+  static int[] parseIFileName(String name) {
+    int sep = name.indexOf('_');
+    if (sep <= 0) {
+      return null;
+    }
+    try {
+      return new int[] { Integer.parseInt(name.substring(0, sep)),
+          Integer.parseInt(name.substring(sep + 1)) };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  SailfishIFileAppender(JobConf job, int mapperId, int attempt)
+      throws IOException {
+    this(job, FileSystem.get(URI.create("kfs://"
+        + job.get("sailfish.kfs.metaserver.host") + ":"
+        + job.get("sailfish.kfs.metaserver.port") + "/"), job),
+        new Path("/jobs/" + job.get("mapred.job.id")), mapperId, attempt);
+  }
+
+  SailfishIFileAppender(JobConf job, FileSystem kfs, Path basedir,
+      int mapperId, int attempt) throws IOException {
+    this.kfs = kfs;
+    this.basedir = basedir;
+    this.mapperId = mapperId;
+    this.attempt = attempt;
+    this.memoryLimit = job.getLong("sailfish.iappender.memory.limit",
+        64L * 1024 * 1024);
+    int numPartitions = job.getNumReduceTasks();
+    // with lots of partitions, shrink the buffers so that the direct memory
+    // held by the appender stays close to the limit
+    this.bufferSize = (int) Math.max(4096, Math.min(
+        job.getInt("sailfish.iappender.buffer.size", 64 * 1024),
+        memoryLimit / Math.max(1, numPartitions)));
+    buffers = new ByteBuffer[numPartitions];
+    recordCounts = new int[numPartitions];
+    ifiles = new FSDataOutputStream[numPartitions];
+    LOG.info("In-process appender for mapper: " + mapperId + " attempt: "
+        + attempt + " writing to " + kfs.getUri() + basedir + " ; partitions = "
+        + numPartitions + " ; buffer size = " + bufferSize);
+  }
+
+  /**
+   * Append a single record to the partition's buffer.  The record is framed
+   * as: <pktSize><key len><key><data len><data>
+   */
+  void append(int partition, byte[] key, int keyLen, byte[] val, int valLen)
+      throws IOException {
+    int pktSize = keyLen + valLen + 4 + 4;
+    ByteBuffer buf = reserve(partition, pktSize + 4);
+    buf.putInt(pktSize);
+    buf.putInt(keyLen);
+    buf.put(key, 0, keyLen);
+    buf.putInt(valLen);
+    buf.put(val, 0, valLen);
+    recordCounts[partition]++;
+    bytesBuffered += pktSize + 4;
+    if (bytesBuffered > memoryLimit) {
+      flushLargest();
+    }
+  }
+
+  /**
+   * The stream that startRecord()/startValue()/endRecord() serialize a
+   * record through, straight into its partition's buffer.  Only serializers
+   * that write through to the stream (nothing held back between calls) may
+   * be opened on it.
+   */
+  OutputStream getRecordStream() {
+    return recordStream;
+  }
+
+  /**
+   * Start a record for the partition; the key is to be written to the record
+   * stream next.  The lengths are filled in by endRecord().
+   */
+  void startRecord(int partition) throws IOException {
+    // <pktSize><key len> now and <data len> later
+    ByteBuffer buf = reserve(partition, 12);
+    recPartition = partition;
+    recStart = buf.position();
+    recValStart = -1;
+    buf.position(recStart + 8);
+  }
+
+  /**
+   * The key is done; the value is to be written to the record stream next.
+   */
+  void startValue() throws IOException {
+    ByteBuffer buf = recordBuffer(4);
+    recValStart = buf.position();
+    buf.position(recValStart + 4);
+  }
+
+  /**
+   * Fill in the lengths of the record that was serialized thru the record
+   * stream.
+   * @return the # of key and value bytes in the record
+   */
+  int endRecord() throws IOException {
+    ByteBuffer buf = buffers[recPartition];
+    int keyLen = recValStart - recStart - 8;
+    int valLen = buf.position() - recValStart - 4;
+    buf.putInt(recStart, keyLen + valLen + 8);
+    buf.putInt(recStart + 4, keyLen);
+    buf.putInt(recValStart, valLen);
+    recordCounts[recPartition]++;
+    bytesBuffered += buf.position() - recStart;
+    recPartition = -1;
+    if (bytesBuffered > memoryLimit) {
+      flushLargest();
+    }
+    return keyLen + valLen;
+  }
+
+  /**
+   * Drop a record that failed to serialize.
+   */
+  void abortRecord() {
+    if (recPartition >= 0) {
+      buffers[recPartition].position(recStart);
+      recPartition = -1;
+    }
+  }
+
+  /**
+   * Make room for len more bytes of the record being serialized.  When the
+   * buffer is full, the complete records ahead of this one go out as a block
+   * and what we have of the record moves to the front of the buffer, which
+   * is grown if need be.
+   */
+  private ByteBuffer recordBuffer(int len) throws IOException {
+    ByteBuffer buf = buffers[recPartition];
+    if (buf.remaining() >= len) {
+      return buf;
+    }
+    int partialLen = buf.position() - recStart;
+    byte[] partial = new byte[partialLen];
+    buf.position(recStart);
+    buf.get(partial);
+    buf.position(recStart);
+    writeBlock(recPartition);
+    if (buf.capacity() < BLOCK_HEADER_LEN + partialLen + len) {
+      buf = ByteBuffer.allocateDirect(Math.max(bufferSize,
+          BLOCK_HEADER_LEN + 2 * (partialLen + len)));
+      buffers[recPartition] = buf;
+    }
+    buf.clear();
+    buf.position(BLOCK_HEADER_LEN);
+    buf.put(partial);
+    if (recValStart >= 0) {
+      recValStart += BLOCK_HEADER_LEN - recStart;
+    }
+    recStart = BLOCK_HEADER_LEN;
+    return buf;
+  }
+
+  /**
+   * Make sure that the partition's buffer has room for len more bytes; if
+   * needed, flush what we have and/or grow the buffer.
+   */
+  private ByteBuffer reserve(int partition, int len) throws IOException {
+    ByteBuffer buf = buffers[partition];
+    if (buf != null && buf.remaining() >= len) {
+      return buf;
+    }
+    if (buf != null) {
+      writeBlock(partition);
+    }
+    if (buf == null || buf.capacity() < len + BLOCK_HEADER_LEN) {
+      buf = ByteBuffer.allocateDirect(Math.max(bufferSize,
+          len + BLOCK_HEADER_LEN));
+      buffers[partition] = buf;
+    }
+    buf.clear();
+    buf.position(BLOCK_HEADER_LEN);
+    return buf;
+  }
+
+  private void flushLargest() throws IOException {
+    int victim = -1;
+    int victimSize = 0;
+    for (int i = 0; i < buffers.length; i++) {
+      if ((buffers[i] != null) && (buffers[i].position() > victimSize)) {
+        victim = i;
+        victimSize = buffers[i].position();
+      }
+    }
+    if (victim >= 0) {
+      writeBlock(victim);
+    }
+  }
+
+  /**
+   * Fill in the block header and append the partition's buffer to its I-file.
+   */
+  private void writeBlock(int partition) throws IOException {
+    ByteBuffer buf = buffers[partition];
+    if ((buf == null) || (buf.position() <= BLOCK_HEADER_LEN)) {
+      return;
+    }
+    int payloadLen = buf.position() - BLOCK_HEADER_LEN;
+    buf.putInt(0, BLOCK_MAGIC);
+    buf.putInt(4, mapperId);
+    buf.putInt(8, attempt);
+    buf.putInt(12, recordCounts[partition]);
+    buf.putInt(16, payloadLen);
+    buf.flip();
+
+    // Write to the underlying KFS stream so that the direct buffer goes down
+    // to the chunkserver without being copied onto the heap.
+    OutputStream out = getIFile(partition).getWrappedStream();
+    if (out instanceof WritableByteChannel) {
+      WritableByteChannel channel = (WritableByteChannel) out;
+      while (buf.hasRemaining()) {
+        channel.write(buf);
+      }
+    } else {
+      if (scratch == null || scratch.length < buf.remaining()) {
+        scratch = new byte[buf.capacity()];
+      }
+      int len = buf.remaining();
+      buf.get(scratch, 0, len);
+      out.write(scratch, 0, len);
+    }
+    bytesAppended += buf.limit();
+    bytesBuffered -= payloadLen;
+    recordCounts[partition] = 0;
+    buf.clear();
+    buf.position(BLOCK_HEADER_LEN);
+  }
+
+  private FSDataOutputStream getIFile(int partition) throws IOException {
+    if (ifiles[partition] == null) {
+      // the file is this attempt's alone; if it is there, it is left over
+      // from an earlier incarnation of the attempt
+      ifiles[partition] = kfs.create(
+          getIFile(basedir, partition, mapperId, attempt), true);
+    }
+    return ifiles[partition];
+  }
+
+  /**
+   * Push all the buffered data out to the I-files.
+   */
+  void flush() throws IOException {
+    for (int i = 0; i < buffers.length; i++) {
+      writeBlock(i);
+      if (ifiles[i] != null) {
+        ifiles[i].flush();
+      }
+    }
+  }
+
+  void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    flush();
+    IOException ioe = null;
+    for (int i = 0; i < ifiles.length; i++) {
+      if (ifiles[i] == null) {
+        continue;
+      }
+      try {
+        ifiles[i].close();
+      } catch (IOException e) {
+        LOG.warn("Unable to close I-file for partition: " + i, e);
+        ioe = e;
+      }
+      ifiles[i] = null;
+    }
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = null;
+    }
+    LOG.info("In-process appender done: appended " + bytesAppended
+        + " bytes");
+    if (ioe != null) {
+      throw ioe;
+    }
+  }
+}
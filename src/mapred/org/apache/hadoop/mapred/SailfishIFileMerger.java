@@ -0,0 +1,583 @@
+/**
+ * Copyright 2010 Yahoo Corporation.  All rights reserved.
+ * This file is part of the Sailfish project.
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ */
+
+package org.apache.hadoop.mapred;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapred.IFile.Writer;
+import org.apache.hadoop.mapred.Merger.Segment;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.IndexedSorter;
+import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.QuickSort;
+
+/**
+ * In-JVM replacement for the forked imerger, for jobs whose I-files are
+ * written by SailfishIFileAppender (one per map attempt); imerger remains
+ * the reader of the I-files that kappender writes.  Reads the blocks of a
+ * partition's I-files from KFS and sorts the records by key.
+ * The I-files are read by a prefetch thread as the maps that wrote them
+ * finish, staying a bounded number of blocks ahead of the sort; only the
+ * file of the first successful attempt of each map is read.  When the
+ * reduce works on a key range, the prefetcher drops the records outside of
+ * it, so that they are neither queued nor copied into the sort buffer.
+ * Records are sorted in runs that fit the memory budget; if there is more
+ * than one run, the runs are spilled to local disk and merged with Merger.
+ * @author sriramr
+ *
+ */
+class SailfishIFileMerger<K extends Object, V extends Object>
+    implements RawKeyValueIterator, IndexedSortable {
+
+  static final private Log LOG = LogFactory.getLog(SailfishIFileMerger.class);
+
+  // layout of a record's entry in kvindices
+  private static final int KEYSTART = 0;
+  private static final int KEYLEN = 1;
+  private static final int VALSTART = 2;
+  private static final int VALLEN = 3;
+  private static final int ACCTSIZE = 4;
+
+  private final JobConf job;
+  private final FileSystem kfs;
+  // the partition's I-files, one per map attempt
+  private final Path ifileDir;
+  private final Class<K> keyClass;
+  private final Class<V> valClass;
+  private final RawComparator<K> comparator;
+  private final Progressable reporter;
+  // tells us whose I-files to read; null => all of them
+  private final IFileSource source;
+  // only the records with keys in this range are kept; null => all of them
+  private final SailfishReduceKeyRange keyRange;
+  // the sort buffer grows up to this size
+  private final int maxBufferSize;
+  private final int readBufferSize;
+  private final BlockingQueue<Block> prefetched;
+  private final IndexedSorter sorter = new QuickSort();
+  private final LocalDirAllocator lDirAlloc =
+    new LocalDirAllocator("mapred.local.dir");
+
+  private byte[] kvbuffer;
+  private int kvbufferLen = 0;
+  private int[] kvindices;
+  private int[] kvoffsets;
+  private int numRecords = 0;
+  private int totalRecords = 0;
+  private int numIFiles = 0;
+  private long bytesRead = 0;
+  private long recordsDropped = 0;
+  private final List<Segment<K, V>> runs = new ArrayList<Segment<K, V>>();
+  private RawKeyValueIterator iter;
+
+  /** Records from a block of an I-file; they are in data[0, length). */
+  private static class Block {
+    final int numRecords;
+    final byte[] data;
+    final int length;
+    final IOException error;
+
+    Block(int numRecords, byte[] data, int length, IOException error) {
+      this.numRecords = numRecords;
+      this.data = data;
+      this.length = length;
+      this.error = error;
+    }
+  }
+
+  private static final Block EOF_BLOCK = new Block(0, null, 0, null);
+
+  /**
+   * Hands the merger the map attempts whose I-files are to be read, as the
+   * maps finish.
+   */
+  interface IFileSource {
+    /**
+     * Wait for another map to finish.
+     * @return {map id, attempt} of the map's successful attempt, or null
+     * once every map has been handed out
+     */
+    int[] nextMapAttempt() throws IOException, InterruptedException;
+  }
+
+  /**
+   * The file system that holds the I-files.
+   */
+  static FileSystem getKfs(JobConf job) throws IOException {
+    return FileSystem.get(URI.create("kfs://"
+        + job.get("sailfish.kfs.metaserver.host") + ":"
+        + job.get("sailfish.kfs.metaserver.port") + "/"), job);
+  }
+
+  /**
+   * @param source the maps' successful attempts; null to take every I-file
+   * in the partition's directory, for when the maps are known to be done
+   * (such as when debugging a reduce against the I-files of an old job)
+   */
+  SailfishIFileMerger(JobConf job, FileSystem kfs, Path ifileDir,
+      Class<K> keyClass, Class<V> valClass, IFileSource source,
+      SailfishReduceKeyRange keyRange, Progressable reporter) {
+    this.job = job;
+    this.kfs = kfs;
+    this.ifileDir = ifileDir;
+    this.keyClass = keyClass;
+    this.valClass = valClass;
+    this.comparator = SailfishSerialization.getRawComparator(keyClass);
+    this.source = source;
+    this.keyRange = keyRange;
+    this.reporter = reporter;
+    // an array can't be bigger than this
+    this.maxBufferSize = (int) Math.min(Integer.MAX_VALUE - 8, Math.min(
+        job.getLong("sailfish.imerger.memory.limit", 256L * 1024 * 1024),
+        Runtime.getRuntime().maxMemory() / 2));
+    this.readBufferSize = job.getInt("sailfish.imerger.read.buffer.size",
+        4 * 1024 * 1024);
+    this.prefetched = new ArrayBlockingQueue<Block>(
+        job.getInt("sailfish.imerger.prefetch.blocks", 64));
+  }
+
+  /**
+   * The directory that holds a partition's I-files.
+   */
+  static Path getIFileDir(String jobId, int partition) {
+    return SailfishIFileAppender.getIFileDir(new Path("/jobs/" + jobId),
+        partition);
+  }
+
+  /**
+   * Pull in the maps' I-files as the maps finish and get them sorted.
+   * @return the # of records that the reducer will see
+   */
+  int start() throws IOException {
+    kvbuffer = new byte[Math.min(maxBufferSize, 1024 * 1024)];
+    kvindices = new int[1024 * ACCTSIZE];
+    kvoffsets = new int[1024];
+    LOG.info("In-process merge of " + ifileDir + " ; sort buffer limit = "
+        + maxBufferSize);
+
+    Prefetcher prefetcher = new Prefetcher();
+    prefetcher.start();
+    try {
+      Block b;
+      while ((b = prefetched.take()) != EOF_BLOCK) {
+        if (b.error != null) {
+          throw b.error;
+        }
+        addBlock(b);
+        reporter.progress();
+      }
+    } catch (InterruptedException ie) {
+      throw new IOException("Interrupted while reading " + ifileDir, ie);
+    } finally {
+      prefetcher.interrupt();
+    }
+
+    // Merger consumes the list of runs
+    int numRuns = runs.size() + 1;
+    if (runs.isEmpty()) {
+      // QuickSort doesn't take an empty range
+      if (numRecords > 0) {
+        sorter.sort(this, 0, numRecords, reporter);
+      }
+      iter = new InMemoryIterator();
+    } else {
+      spillRun();
+      kvbuffer = null;
+      iter = Merger.merge(job, FileSystem.getLocal(job).getRaw(), keyClass,
+          valClass, runs, job.getInt("io.sort.factor", 100),
+          new Path(job.get("mapred.task.id")), comparator, reporter,
+          null, null);
+    }
+    LOG.info("In-process merge of " + ifileDir + " done: records = "
+        + totalRecords + " ; runs = " + numRuns + " ; I-files = " + numIFiles
+        + " ; bytes read = " + bytesRead + " ; records outside the key range = "
+        + recordsDropped);
+    return totalRecords;
+  }
+
+  /**
+   * Copy the block into the sort buffer and index its records; a block is a
+   * run of <pktSize><key len><key><data len><data>.
+   */
+  private void addBlock(Block b) throws IOException {
+    if (kvbufferLen + b.length > kvbuffer.length) {
+      if (kvbuffer.length < maxBufferSize) {
+        // the maps' output may yet fit in memory
+        kvbuffer = Arrays.copyOf(kvbuffer, (int) Math.min(maxBufferSize,
+            Math.max(2L * kvbuffer.length, (long) kvbufferLen + b.length)));
+      }
+      if (kvbufferLen + b.length > kvbuffer.length) {
+        spillRun();
+        if (b.length > kvbuffer.length) {
+          kvbuffer = new byte[b.length];
+        }
+      }
+    }
+    if ((numRecords + b.numRecords) * ACCTSIZE > kvindices.length) {
+      int n = Math.max(kvoffsets.length * 2, numRecords + b.numRecords);
+      kvindices = Arrays.copyOf(kvindices, n * ACCTSIZE);
+      kvoffsets = Arrays.copyOf(kvoffsets, n);
+    }
+    System.arraycopy(b.data, 0, kvbuffer, kvbufferLen, b.length);
+    int pos = kvbufferLen;
+    for (int i = 0; i < b.numRecords; i++) {
+      int pktSize = WritableComparator.readInt(kvbuffer, pos);
+      int keyLen = WritableComparator.readInt(kvbuffer, pos + 4);
+      int ind = numRecords * ACCTSIZE;
+      kvindices[ind + KEYSTART] = pos + 8;
+      kvindices[ind + KEYLEN] = keyLen;
+      kvindices[ind + VALSTART] = pos + 8 + keyLen + 4;
+      kvindices[ind + VALLEN] =
+        WritableComparator.readInt(kvbuffer, pos + 8 + keyLen);
+      kvoffsets[numRecords] = ind;
+      numRecords++;
+      pos += 4 + pktSize;
+    }
+    if (pos != kvbufferLen + b.length) {
+      throw new IOException("Corrupt block in " + ifileDir + ": records end at "
+          + pos + " ; expected " + (kvbufferLen + b.length));
+    }
+    kvbufferLen = pos;
+    totalRecords += b.numRecords;
+  }
+
+  /**
+   * Sort what's in the buffer and write it out to local disk as an IFile.
+   */
+  private void spillRun() throws IOException {
+    if (numRecords == 0) {
+      return;
+    }
+    sorter.sort(this, 0, numRecords, reporter);
+    FileSystem rfs = FileSystem.getLocal(job).getRaw();
+    Path run = lDirAlloc.getLocalPathForWrite(job.get("mapred.task.id")
+        + "/sailfish_run_" + runs.size() + ".out", kvbufferLen, job);
+    Writer<K, V> writer = new Writer<K, V>(job, rfs, run, keyClass, valClass,
+        null, null);
+    try {
+      DataInputBuffer key = new DataInputBuffer();
+      DataInputBuffer val = new DataInputBuffer();
+      for (int i = 0; i < numRecords; i++) {
+        int ind = kvoffsets[i];
+        key.reset(kvbuffer, kvindices[ind + KEYSTART], kvindices[ind + KEYLEN]);
+        val.reset(kvbuffer, kvindices[ind + VALSTART], kvindices[ind + VALLEN]);
+        writer.append(key, val);
+      }
+    } finally {
+      writer.close();
+    }
+    runs.add(new Segment<K, V>(job, rfs, run, null, false));
+    LOG.info("Spilled run " + runs.size() + " of " + numRecords
+        + " records to " + run);
+    numRecords = 0;
+    kvbufferLen = 0;
+  }
+
+  @Override
+  public int compare(int i, int j) {
+    final int ii = kvoffsets[i];
+    final int ij = kvoffsets[j];
+    return comparator.compare(kvbuffer, kvindices[ii + KEYSTART],
+        kvindices[ii + KEYLEN], kvbuffer, kvindices[ij + KEYSTART],
+        kvindices[ij + KEYLEN]);
+  }
+
+  @Override
+  public void swap(int i, int j) {
+    int tmp = kvoffsets[i];
+    kvoffsets[i] = kvoffsets[j];
+    kvoffsets[j] = tmp;
+  }
+
+  @Override
+  public DataInputBuffer getKey() throws IOException {
+    return iter.getKey();
+  }
+
+  @Override
+  public DataInputBuffer getValue() throws IOException {
+    return iter.getValue();
+  }
+
+  @Override
+  public boolean next() throws IOException {
+    return iter.next();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (iter != null) {
+      iter.close();
+    }
+    kvbuffer = null;
+  }
+
+  @Override
+  public Progress getProgress() {
+    return iter.getProgress();
+  }
+
+  /**
+   * Reads the I-files of the successful map attempts block by block, with big
+   * reads from KFS, and queues the blocks up.
+   */
+  private class Prefetcher extends Thread {
+    // not shared with the sort, which runs at the same time
+    private final RawComparator<K> rangeComparator =
+      SailfishSerialization.getRawComparator(keyClass);
+    // the read buffer, used for one I-file after the other
+    private final ReadBuffer readBuffer = new ReadBuffer(readBufferSize);
+
+    Prefetcher() {
+      super("I-file prefetcher for " + ifileDir);
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (source == null) {
+          readAll();
+        } else {
+          int[] id;
+          while ((id = source.nextMapAttempt()) != null) {
+            readIFile(new Path(ifileDir,
+                SailfishIFileAppender.getIFileName(id[0], id[1])), id);
+          }
+        }
+        prefetched.put(EOF_BLOCK);
+      } catch (InterruptedException ie) {
+        // consumer is gone
+      } catch (Throwable t) {
+        // whatever went wrong (say, running out of memory on a bad block
+        // length), the consumer has to hear about it or it waits forever
+        IOException e = (t instanceof IOException) ? (IOException) t
+          : new IOException("Unable to read the I-files in " + ifileDir, t);
+        try {
+          prefetched.put(new Block(0, null, 0, e));
+        } catch (InterruptedException ie) {
+          // consumer is gone
+        }
+      }
+    }
+
+    /**
+     * Read every I-file in the partition's directory.
+     */
+    private void readAll() throws IOException, InterruptedException {
+      FileStatus[] stats = kfs.listStatus(ifileDir);
+      if (stats == null) {
+        // none of the maps had output for this partition
+        return;
+      }
+      for (FileStatus stat : stats) {
+        int[] id = SailfishIFileAppender.parseIFileName(
+            stat.getPath().getName());
+        if (id != null) {
+          readIFile(stat.getPath(), id);
+        }
+      }
+    }
+
+    /**
+     * Read the blocks of a map attempt's I-file; every block must be the
+     * attempt's own.
+     */
+    private void readIFile(Path ifile, int[] id)
+        throws IOException, InterruptedException {
+      FSDataInputStream file;
+      try {
+        file = kfs.open(ifile, readBufferSize);
+      } catch (FileNotFoundException e) {
+        // the map had no output for this partition
+        return;
+      }
+      numIFiles++;
+      readBuffer.setInput(file);
+      DataInputStream in = new DataInputStream(readBuffer);
+      try {
+        int[] header = new int[5];
+        long offset = 0;
+        while (true) {
+          in.mark(1);
+          if (in.read() < 0) {
+            // the map is done, so this is the end of its output
+            return;
+          }
+          in.reset();
+          readHeader(ifile, in, header, offset);
+          if ((header[1] != id[0]) || (header[2] != id[1])) {
+            throw new IOException("Corrupt I-file " + ifile + ": block of "
+                + "mapper " + header[1] + " attempt " + header[2]
+                + " at offset " + offset);
+          }
+          byte[] data = new byte[header[4]];
+          in.readFully(data);
+          queue(ifile, data, header[3]);
+          offset += SailfishIFileAppender.BLOCK_HEADER_LEN + header[4];
+        }
+      } finally {
+        file.close();
+      }
+    }
+
+    /**
+     * Read a block header: {magic, mapper id, attempt, # of records,
+     * payload length}.
+     */
+    private void readHeader(Path ifile, DataInputStream in, int[] header,
+        long offset)
+        throws IOException {
+      header[0] = in.readInt();
+      if (header[0] != SailfishIFileAppender.BLOCK_MAGIC) {
+        throw new IOException("Corrupt I-file " + ifile
+            + ": bad block magic " + Integer.toHexString(header[0])
+            + " at offset " + offset
+            + "; it wasn't written by the in-process appender");
+      }
+      for (int i = 1; i < header.length; i++) {
+        header[i] = in.readInt();
+      }
+      if ((header[3] < 0) || (header[4] < 0)) {
+        throw new IOException("Corrupt I-file " + ifile + ": bad block "
+            + "at offset " + offset);
+      }
+    }
+
+    private void queue(Path ifile, byte[] data, int blockRecords)
+        throws IOException, InterruptedException {
+      bytesRead += SailfishIFileAppender.BLOCK_HEADER_LEN + data.length;
+      Block b = (keyRange == null)
+        ? new Block(blockRecords, data, data.length, null)
+        : inRange(ifile, data, blockRecords);
+      if (b.numRecords > 0) {
+        prefetched.put(b);
+      }
+    }
+
+    /**
+     * Move the block's records whose keys are in keyRange to the front of the
+     * block, in place.
+     */
+    private Block inRange(Path ifile, byte[] data, int blockRecords)
+        throws IOException {
+      int pos = 0;
+      int end = 0;
+      int numInRange = 0;
+      for (int i = 0; i < blockRecords; i++) {
+        if (pos + 8 > data.length) {
+          throw new IOException("Corrupt I-file " + ifile + ": block has "
+              + i + " of " + blockRecords + " records");
+        }
+        int recLen = 4 + WritableComparator.readInt(data, pos);
+        int keyLen = WritableComparator.readInt(data, pos + 4);
+        if ((recLen < 12) || (pos + recLen > data.length)
+            || (keyLen < 0) || (keyLen > recLen - 12)) {
+          throw new IOException("Corrupt I-file " + ifile + ": bad record "
+              + "at offset " + pos + " of a block");
+        }
+        if (keyRange.compare(rangeComparator, data, pos + 8, keyLen) == 0) {
+          if (end != pos) {
+            System.arraycopy(data, pos, data, end, recLen);
+          }
+          end += recLen;
+          numInRange++;
+        }
+        pos += recLen;
+      }
+      recordsDropped += blockRecords - numInRange;
+      return new Block(numInRange, data, end, null);
+    }
+  }
+
+  /**
+   * A BufferedInputStream that can be pointed at another stream, so that
+   * the I-files of all the maps are read thru the same (big) buffer.  It is
+   * never closed; the stream under it is.
+   */
+  private static class ReadBuffer extends BufferedInputStream {
+    ReadBuffer(int size) {
+      super(null, size);
+    }
+
+    void setInput(InputStream in) {
+      this.in = in;
+      count = 0;
+      pos = 0;
+      markpos = -1;
+    }
+  }
+
+  /**
+   * Iterates over the sort buffer when everything fit in one run.
+   */
+  private class InMemoryIterator implements RawKeyValueIterator {
+    private final DataInputBuffer keybuf = new DataInputBuffer();
+    private final DataInputBuffer valbuf = new DataInputBuffer();
+    private final Progress progress = new Progress();
+    private int current = -1;
+
+    public boolean next() throws IOException {
+      if (++current >= numRecords) {
+        return false;
+      }
+      final int ind = kvoffsets[current];
+      keybuf.reset(kvbuffer, kvindices[ind + KEYSTART], kvindices[ind + KEYLEN]);
+      valbuf.reset(kvbuffer, kvindices[ind + VALSTART], kvindices[ind + VALLEN]);
+      progress.set((float) (current + 1) / numRecords);
+      return true;
+    }
+
+    public DataInputBuffer getKey() throws IOException {
+      return keybuf;
+    }
+
+    public DataInputBuffer getValue() throws IOException {
+      return valbuf;
+    }
+
+    public Progress getProgress() {
+      return progress;
+    }
+
+    public void close() {
+    }
+  }
+}
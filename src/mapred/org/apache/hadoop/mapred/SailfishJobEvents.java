@@ -0,0 +1,109 @@
+/**
+ * Copyright 2010 Yahoo Corporation.  All rights reserved.
+ * This file is part of the Sailfish project.
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ */
+
+package org.apache.hadoop.mapred;
+
+/**
+ * The state of a sailfish job that the workbuilder cares about: the # of
+ * unfinished maps and the map/reduce preemption targets.  JobInProgress
+ * publishes into here as the job's state changes; SailfishJobEventsServlet
+ * waits on it and hands each change to the workbuilder.  Readers only
+ * ever lock this object and never the JobInProgress or the JobTracker.
+ * @author sriramr
+ *
+ */
+class SailfishJobEvents {
+  private final String jobId;
+  // bumped on every change
+  private long version = 0;
+  private int unfinishedMaps = -1;
+  private int mapPreemptionTarget = 0;
+  private int reducePreemptionTarget = 0;
+  private boolean done = false;
+
+  SailfishJobEvents(String jobId) {
+    this.jobId = jobId;
+  }
+
+  synchronized void update(int unfinishedMaps, int mapPreemptionTarget,
+      int reducePreemptionTarget) {
+    if ((this.unfinishedMaps == unfinishedMaps)
+        && (this.mapPreemptionTarget == mapPreemptionTarget)
+        && (this.reducePreemptionTarget == reducePreemptionTarget)) {
+      return;
+    }
+    this.unfinishedMaps = unfinishedMaps;
+    this.mapPreemptionTarget = mapPreemptionTarget;
+    this.reducePreemptionTarget = reducePreemptionTarget;
+    version++;
+    notifyAll();
+  }
+
+  /**
+   * The job has finished (succeeded, failed or got killed); there will be no
+   * more updates.
+   */
+  synchronized void jobDone() {
+    done = true;
+    version++;
+    notifyAll();
+  }
+
+  synchronized boolean isDone() {
+    return done;
+  }
+
+  /**
+   * @return the version of the state; it goes up on every change
+   */
+  synchronized long getVersion() {
+    return version;
+  }
+
+  /**
+   * Wait for the state to move past the version that the caller has seen.
+   * @return the current version; this is the same as seen if we timed out
+   */
+  synchronized long awaitChange(long seen, long timeoutMs)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while ((version == seen) && !done) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        break;
+      }
+      wait(remaining);
+    }
+    return version;
+  }
+
+  /**
+   * Format the current state the way the polling servlets do:
+   *   <jobid>:<# of unfinished maps>:<map preemption target>:<reduce
+   *   preemption target>
+   * and, once the job is done, <jobid>:DONE
+   */
+  @Override
+  public synchronized String toString() {
+    if (done) {
+      return jobId + ":DONE";
+    }
+    return jobId + ":" + unfinishedMaps + ":" + mapPreemptionTarget + ":"
+      + reducePreemptionTarget;
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2010 Yahoo Corporation.  All rights reserved.
+ * This file is part of the Sailfish project.
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ */
+
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Long-poll replacement for the numunfinishedmaps, numreduceslotsover and
+ * numtaskpreempt servlets.  The workbuilder asks for a job's state along with
+ * the version of the state that it last saw:
+ *   /sailfishjobevents?jobid=<jobid>&version=<version>&timeout=<ms>
+ * The request is held until the state moves past that version or until the
+ * timeout (default 10 sec, at most 60 sec) runs out, whichever is first.
+ * The reply is two lines:
+ *   <version>
+ *   <jobid>:<# of unfinished maps>:<map preemption target>:<reduce
+ *   preemption target>
+ * or <jobid>:DONE once the job is done.  Leave out the version (or send -1)
+ * to get the current state right away.
+ *
+ * A held request ties up a Jetty thread, so only MAX_WAITERS requests are
+ * held at a time; beyond that, requests are answered right away and the
+ * workbuilder simply polls.  The JobTracker lock isn't taken.
+ * @author sriramr
+ *
+ */
+public class SailfishJobEventsServlet extends HttpServlet {
+  private static final long serialVersionUID = 967655739282794L;
+
+  public static final Log LOG =
+    LogFactory.getLog(SailfishJobEventsServlet.class);
+
+  static final long DEFAULT_TIMEOUT_MS = 10 * 1000;
+  static final long MAX_TIMEOUT_MS = 60 * 1000;
+  // # of requests that may be held at once, across all jobs
+  static final int MAX_WAITERS = 16;
+
+  private static final AtomicInteger waiters = new AtomicInteger(0);
+
+  @Override
+  // XXX: Should be a Post(); however, getting post with libcurl is a pain
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+  throws ServletException, IOException {
+    ServletContext context = getServletContext();
+    JobTracker tracker = (JobTracker) context.getAttribute("job.tracker");
+
+    String requestJobID = request.getParameter("jobid");
+    if (requestJobID == null) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                                   "Argument jobid is required");
+        return;
+    }
+    long seen = -1;
+    long timeoutMs = DEFAULT_TIMEOUT_MS;
+    try {
+      String versionParam = request.getParameter("version");
+      if (versionParam != null) {
+        seen = Long.parseLong(versionParam);
+      }
+      String timeoutParam = request.getParameter("timeout");
+      if (timeoutParam != null) {
+        timeoutMs = Math.min(MAX_TIMEOUT_MS, Long.parseLong(timeoutParam));
+      }
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "Bad version or timeout: " + e.getMessage());
+      return;
+    }
+
+    JobInProgress job = tracker.getJob(JobID.forName(requestJobID));
+    if ((job == null) || (job.getSailfishEvents() == null)) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND,
+          "Couldn't find sailfish job: " + requestJobID);
+      return;
+    }
+    String reply;
+    try {
+      reply = getEvents(job.getSailfishEvents(), seen, timeoutMs);
+    } catch (InterruptedException ie) {
+      LOG.info("Interrupted while waiting on events for job: " + requestJobID);
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+          "Interrupted");
+      return;
+    }
+    response.setContentType("text/plain");
+    OutputStream out = response.getOutputStream();
+    out.write(reply.getBytes());
+    out.close();
+  }
+
+  /**
+   * Wait, for at most timeoutMs, for the state to move past the version that
+   * the caller has seen; if too many requests are waiting already, don't.
+   * @return the reply: the current version and state, a line each
+   */
+  static String getEvents(SailfishJobEvents events, long seen,
+      long timeoutMs) throws InterruptedException {
+    if ((seen >= 0) && (timeoutMs > 0)) {
+      if (waiters.incrementAndGet() <= MAX_WAITERS) {
+        try {
+          events.awaitChange(seen, timeoutMs);
+        } finally {
+          waiters.decrementAndGet();
+        }
+      } else {
+        waiters.decrementAndGet();
+      }
+    }
+    // grab the version and the state that goes with it together
+    synchronized (events) {
+      return events.getVersion() + "\n" + events + "\n";
+    }
+  }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2010 Yahoo Corporation.  All rights reserved.
+ * This file is part of the Sailfish project.
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ */
+
+package org.apache.hadoop.mapred;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Turns map output keys into "normalized" byte strings: byte strings that
+ * sort (with memcmp) the same way that the keys do.  The sailfish chunk
+ * sorter and the imerger only know how to memcmp keys; so, a key type can be
+ * used with sailfish iff it is BinaryComparable (such as Text and
+ * BytesWritable, whose bytes are used as is) or it has a normalizer.
+ * Normalizers for IntWritable and LongWritable are built in (see
+ * SailfishKeyNormalizers); for other key types, in particular composite
+ * keys, set "sailfish.mapred.key.normalizer.class" to a class that
+ * implements this interface.  The configured normalizer is used for the
+ * job's map output key class only.  SailfishKeyNormalizers has helpers for
+ * encoding the fields of a composite key.
+ * @author sriramr
+ *
+ * @param <T> the key type
+ */
+public interface SailfishKeyNormalizer<T> {
+  /**
+   * Write out the normalized form of the key.
+   */
+  void normalize(T key, DataOutput out) throws IOException;
+
+  /**
+   * Rebuild a key from its normalized form.
+   * @param reuse if non-null, the key object to fill in
+   */
+  T denormalize(T reuse, byte[] b, int offset, int length) throws IOException;
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2010 Yahoo Corporation.  All rights reserved.
+ * This file is part of the Sailfish project.
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ */
+
+package org.apache.hadoop.mapred;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * The built-in key normalizers and helpers for writing normalizers for
+ * composite keys.  A composite key is normalized by writing out its fields,
+ * most significant first, with writeInt()/writeLong() for fixed width fields
+ * and writeBytes() for variable length ones; writeBytes() escapes and
+ * terminates the bytes so that a field never runs into the next one.
+ * @author sriramr
+ *
+ */
+public class SailfishKeyNormalizers {
+
+  /**
+   * Get the normalizer for a key class: the configured one if the class is
+   * the job's map output key class and a normalizer is configured, else a
+   * built-in one.  BinaryComparable keys (Text, BytesWritable, etc) don't
+   * need one: their bytes already compare the right way.
+   * @return null if there is no normalizer for the class
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> SailfishKeyNormalizer<T> getNormalizer(Configuration conf,
+      Class<?> c) {
+    Class<?> normalizerClass = (conf == null) ? null :
+      conf.getClass("sailfish.mapred.key.normalizer.class", null,
+          SailfishKeyNormalizer.class);
+    if ((normalizerClass != null) && (c == getMapOutputKeyClass(conf))) {
+      return (SailfishKeyNormalizer<T>)
+        ReflectionUtils.newInstance(normalizerClass, conf);
+    }
+    if (IntWritable.class.isAssignableFrom(c)) {
+      return (SailfishKeyNormalizer<T>) new IntWritableNormalizer();
+    }
+    if (LongWritable.class.isAssignableFrom(c)) {
+      return (SailfishKeyNormalizer<T>) new LongWritableNormalizer();
+    }
+    return null;
+  }
+
+  /** Same as JobConf.getMapOutputKeyClass(). */
+  private static Class<?> getMapOutputKeyClass(Configuration conf) {
+    Class<?> c = conf.getClass("mapred.mapoutput.key.class", null);
+    if (c == null) {
+      c = conf.getClass("mapred.output.key.class", LongWritable.class);
+    }
+    return c;
+  }
+
+  /** Ints: flip the sign bit and write big-endian. */
+  public static class IntWritableNormalizer
+      implements SailfishKeyNormalizer<IntWritable> {
+    public void normalize(IntWritable key, DataOutput out) throws IOException {
+      writeInt(key.get(), out);
+    }
+
+    public IntWritable denormalize(IntWritable reuse, byte[] b, int offset,
+        int length) {
+      IntWritable key = (reuse == null) ? new IntWritable() : reuse;
+      key.set(readInt(b, offset));
+      return key;
+    }
+  }
+
+  /** Longs: flip the sign bit and write big-endian. */
+  public static class LongWritableNormalizer
+      implements SailfishKeyNormalizer<LongWritable> {
+    public void normalize(LongWritable key, DataOutput out) throws IOException {
+      writeLong(key.get(), out);
+    }
+
+    public LongWritable denormalize(LongWritable reuse, byte[] b, int offset,
+        int length) {
+      LongWritable key = (reuse == null) ? new LongWritable() : reuse;
+      key.set(readLong(b, offset));
+      return key;
+    }
+  }
+
+  /** Write an int such that signed order == memcmp order. */
+  public static void writeInt(int v, DataOutput out) throws IOException {
+    out.writeInt(v ^ 0x80000000);
+  }
+
+  public static int readInt(byte[] b, int offset) {
+    return WritableComparator.readInt(b, offset) ^ 0x80000000;
+  }
+
+  /** Write a long such that signed order == memcmp order. */
+  public static void writeLong(long v, DataOutput out) throws IOException {
+    out.writeLong(v ^ Long.MIN_VALUE);
+  }
+
+  public static long readLong(byte[] b, int offset) {
+    return WritableComparator.readLong(b, offset) ^ Long.MIN_VALUE;
+  }
+
+  /**
+   * Write a variable length field of a composite key: a 0 byte is written
+   * as 0,0xff and the field ends with 0,1.  A field thus sorts before any
+   * field that it is a prefix of, and the fields after it don't affect the
+   * order of the field.
+   */
+  public static void writeBytes(byte[] b, int offset, int length,
+      DataOutput out) throws IOException {
+    int start = offset;
+    int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      if (b[i] == 0) {
+        out.write(b, start, i - start + 1);
+        out.write(0xff);
+        start = i + 1;
+      }
+    }
+    out.write(b, start, end - start);
+    out.write(0);
+    out.write(1);
+  }
+
+  /**
+   * Decode a field written by writeBytes().
+   * @param end the end of the normalized key that the field is in; the buffer
+   *  may hold more than the key
+   * @param out the field's bytes are appended here
+   * @return the offset of the next field
+   */
+  public static int readBytes(byte[] b, int offset, int end,
+      DataOutputBuffer out) throws IOException {
+    int start = offset;
+    int i = offset;
+    while (true) {
+      if (i + 1 >= end) {
+        throw new IOException("Unterminated field in normalized key");
+      }
+      if (b[i] == 0) {
+        if (b[i + 1] == 1) {
+          out.write(b, start, i - start);
+          return i + 2;
+        }
+        // an escaped 0
+        out.write(b, start, i - start + 1);
+        i += 2;
+        start = i;
+      } else {
+        i++;
+      }
+    }
+  }
+}
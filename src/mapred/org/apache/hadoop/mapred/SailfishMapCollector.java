@@ -31,8 +31,10 @@ import org.apache.hadoop.io.BinaryComparable;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.serializer.Serialization;
 import org.apache.hadoop.io.serializer.SerializationFactory;
 import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.io.serializer.WritableSerialization;
 import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Reporter;
@@ -50,6 +52,8 @@ public class SailfishMapCollector<K extends Object, V extends Object> implements
 
   static final private Log LOG = LogFactory.getLog(SailfishMapCollector.class);
   BufferedOutputStream kappenderStdin;
+  // set when the I-files are written from within this JVM
+  SailfishIFileAppender appender;
   private final Reporter reporter;
   private final Class<K> keyClass;
   private final Class<V> valClass;
@@ -63,6 +67,18 @@ public class SailfishMapCollector<K extends Object, V extends Object> implements
   private ByteBuffer bb;
   private byte[] packet;
   private boolean shouldSendKey = false;
+  // In-place framing: key and value are serialized straight into
+  // frameBuffer (or, with the appender, into the partition's buffer), behind
+  // room left for the headers, and the headers are filled in afterwards.
+  // The frame is then handed to kappender as is.  Both serializers write to
+  // the same place; so, this is only done when neither of them holds bytes
+  // back between calls.
+  private final boolean inPlaceFraming;
+  private final SailfishMapOutputBuffer frameBuffer;
+  private final int frameFlushSize;
+  private OutputStream kappenderOut;
+  // <partition><key len sent><pktSize><key len>
+  private static final int FRAME_HEADER_LEN = 16;
 
   @SuppressWarnings({ "unchecked", "deprecation" })
   public SailfishMapCollector(JobConf hadoopJob, Reporter tr)
@@ -70,12 +86,29 @@ public class SailfishMapCollector<K extends Object, V extends Object> implements
     reporter = tr;
     bb = ByteBuffer.allocate(4096);
     packet = new byte[4096];
-    keyOutputBuffer = new SailfishMapOutputBuffer();
-    valOutputBuffer = new SailfishMapOutputBuffer();
     keyClass = (Class<K>) hadoopJob.getMapOutputKeyClass();
     valClass = (Class<V>) hadoopJob.getMapOutputValueClass();
     serializationFactory = new SerializationFactory(hadoopJob);
-    SailfishSerialization sfs = new SailfishSerialization();
+    frameFlushSize = hadoopJob.getInt("sailfish.mapred.job.frame_size", 65536);
+    boolean inPlace = hadoopJob.getBoolean(
+        "sailfish.mapred.job.inplace_framing", false);
+    if (inPlace &&
+        !writesThrough(serializationFactory.getSerialization(valClass))) {
+      LOG.warn("In-place framing needs a serializer that writes straight " +
+          "through; " + valClass.getName() + " isn't serialized that way. " +
+          "Framing records in a staging buffer instead.");
+      inPlace = false;
+    }
+    inPlaceFraming = inPlace;
+    if (inPlaceFraming) {
+      frameBuffer = new SailfishMapOutputBuffer(frameFlushSize + 4096);
+      keyOutputBuffer = valOutputBuffer = frameBuffer;
+    } else {
+      frameBuffer = null;
+      keyOutputBuffer = new SailfishMapOutputBuffer();
+      valOutputBuffer = new SailfishMapOutputBuffer();
+    }
+    SailfishSerialization sfs = new SailfishSerialization(hadoopJob);
     keySerializer = (Serializer<K>) sfs.getSerializer(keyClass);
     // keySerializer = serializationFactory.getSerializer(keyClass);
     keySerializer.open(keyOutputBuffer);
@@ -88,6 +121,25 @@ public class SailfishMapCollector<K extends Object, V extends Object> implements
 
   public void setOutputStream(OutputStream os) {
     kappenderStdin = new BufferedOutputStream(os, 4096);
+    // frames are written whole; no need to go thru the buffered stream
+    kappenderOut = os;
+  }
+
+  void setAppender(SailfishIFileAppender appender) throws IOException {
+    this.appender = appender;
+    if (inPlaceFraming) {
+      // serialize records straight into the appender's partition buffers
+      keySerializer.open(appender.getRecordStream());
+      valSerializer.open(appender.getRecordStream());
+    }
+  }
+
+  /**
+   * Does the serialization put all of a record's bytes on the stream before
+   * serialize() returns?  The key serializers of SailfishSerialization do.
+   */
+  private static boolean writesThrough(Serialization<?> serialization) {
+    return serialization instanceof WritableSerialization;
   }
 
   /**
@@ -96,12 +148,26 @@ public class SailfishMapCollector<K extends Object, V extends Object> implements
   @Override
   public void collect(K key, V value, int partition) throws IOException,
       InterruptedException {
+    if (inPlaceFraming) {
+      collectInPlace(key, value, partition);
+      return;
+    }
     int keyLen, valLen, tKeyLen = 0;
     int pktSize, totalSize;
     keySerializer.serialize(key);
     valSerializer.serialize(value);
     keyLen = keyOutputBuffer.size();
     valLen = valOutputBuffer.size();
+    if (appender != null) {
+      // no framing for a pipe: the appender lays out the record itself
+      appender.append(partition, keyOutputBuffer.getByteArray(), keyLen,
+          valOutputBuffer.getByteArray(), valLen);
+      mapOutputRecordCounter.increment(1);
+      mapOutputByteCounter.increment(keyLen + valLen);
+      keyOutputBuffer.reset();
+      valOutputBuffer.reset();
+      return;
+    }
     // in the I-file, the K/V will be laid out as: <pktSize><key len><key><data
     // len><data>
     pktSize = keyLen + valLen + 4 + 4;
@@ -152,11 +218,80 @@ public class SailfishMapCollector<K extends Object, V extends Object> implements
     valOutputBuffer.reset();
   }
 
+  /**
+   * Serialize the record straight into the frame buffer; the layout is the
+   * same as what collect() builds up in bb:
+   *   <partition><0><pktSize><key len><key><data len><data>
+   */
+  private void collectInPlace(K key, V value, int partition)
+      throws IOException {
+    if (appender != null) {
+      appender.startRecord(partition);
+      try {
+        keySerializer.serialize(key);
+        appender.startValue();
+        valSerializer.serialize(value);
+      } catch (IOException e) {
+        appender.abortRecord();
+        throw e;
+      }
+      mapOutputRecordCounter.increment(1);
+      mapOutputByteCounter.increment(appender.endRecord());
+      return;
+    }
+    int start = frameBuffer.size();
+    int keyLen, valLen, pktSize;
+    try {
+      frameBuffer.skip(FRAME_HEADER_LEN);
+      keySerializer.serialize(key);
+      keyLen = frameBuffer.size() - start - FRAME_HEADER_LEN;
+      frameBuffer.skip(4);
+      valSerializer.serialize(value);
+      valLen = frameBuffer.size() - start - FRAME_HEADER_LEN - keyLen - 4;
+    } catch (IOException e) {
+      frameBuffer.truncate(start);
+      throw e;
+    }
+    pktSize = keyLen + valLen + 4 + 4;
+    frameBuffer.putInt(start, partition);
+    frameBuffer.putInt(start + 4, 0);
+    frameBuffer.putInt(start + 8, pktSize);
+    frameBuffer.putInt(start + 12, keyLen);
+    frameBuffer.putInt(start + FRAME_HEADER_LEN + keyLen, valLen);
+    mapOutputRecordCounter.increment(1);
+    mapOutputByteCounter.increment(keyLen + valLen);
+    if (frameBuffer.size() >= frameFlushSize) {
+      writeFrame();
+    }
+  }
+
+  private void writeFrame() throws IOException {
+    kappenderOut.write(frameBuffer.getByteArray(), 0, frameBuffer.size());
+    frameBuffer.reset();
+  }
+
   @Override
   /**
    * Tell KAppender to flush and shutdown.
    */
   public void close() throws IOException {
+    if (appender != null) {
+      appender.flush();
+      LOG.info("All done...flushed the appender");
+      return;
+    }
+    if (inPlaceFraming) {
+      int start = frameBuffer.size();
+      frameBuffer.skip(16);
+      frameBuffer.putInt(start, -1);
+      frameBuffer.putInt(start + 4, 0);
+      frameBuffer.putInt(start + 8, 4);
+      frameBuffer.putInt(start + 12, 0xDEADDEAD);
+      writeFrame();
+      kappenderOut.flush();
+      LOG.info("All done...sending shutdown sequence is done");
+      return;
+    }
     // send the close sequence: bogus partition followed by 0-byte key and 4 bytes: 0xDEADDEAD
     // telling the appender to exit
     int totalSize = 16;
@@ -175,6 +310,15 @@ public class SailfishMapCollector<K extends Object, V extends Object> implements
 
   @Override
   public void flush() throws IOException, InterruptedException {
+    if (appender != null) {
+      appender.flush();
+      return;
+    }
+    if (inPlaceFraming) {
+      writeFrame();
+      kappenderOut.flush();
+      return;
+    }
     kappenderStdin.flush();
   }
 
@@ -19,6 +19,7 @@
 package org.apache.hadoop.mapred;
 
 import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 
 /**
  * Wrapper class that helps us get the underlying buffer in a ByteArrayOutputStream without copying.
@@ -35,4 +36,33 @@ public class SailfishMapOutputBuffer extends ByteArrayOutputStream {
   public byte[] getByteArray() {
     return buf;
   }
+
+  /**
+   * Leave room for len bytes (such as a length header) that will be filled
+   * in later via putInt().
+   */
+  public void skip(int len) {
+    if (count + len > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + len));
+    }
+    count += len;
+  }
+
+  /**
+   * Overwrite 4 bytes at pos with v in big-endian order (what
+   * DataInputStream.readInt() expects).
+   */
+  public void putInt(int pos, int v) {
+    buf[pos] = (byte) (v >>> 24);
+    buf[pos + 1] = (byte) (v >>> 16);
+    buf[pos + 2] = (byte) (v >>> 8);
+    buf[pos + 3] = (byte) v;
+  }
+
+  /**
+   * Drop everything past len; used to back out a partially written record.
+   */
+  public void truncate(int len) {
+    count = len;
+  }
 }
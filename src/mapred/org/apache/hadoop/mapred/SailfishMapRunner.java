@@ -19,16 +19,14 @@
 
 package org.apache.hadoop.mapred;
 
+import static org.apache.hadoop.mapred.Task.Counter.COMBINE_INPUT_RECORDS;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.text.NumberFormat;
 
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpMethod;
-import org.apache.commons.httpclient.HttpURL;
-import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.mapred.JobConf;
@@ -38,7 +36,11 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.MapTask.MapOutputCollector;
 import org.apache.hadoop.mapred.MapTask.OldOutputCollector;
+import org.apache.hadoop.mapred.Task.CombinerRunner;
+import org.apache.hadoop.mapred.Task.OldCombinerRunner;
+import org.apache.hadoop.mapred.Task.TaskReporter;
 import org.apache.hadoop.util.ReflectionUtils;
 
 @SuppressWarnings("deprecation")
@@ -49,7 +51,7 @@ public class SailfishMapRunner<K1, V1, K2, V2> extends
   JobConf hadoopJob;
   int taskNumber;
   private Mapper<K1, V1, K2, V2> mapper;
-  // private Reducer<K1, V1, K2, V2> combiner;
+  private Class<? extends Reducer<K2, V2, K2, V2>> combinerClass;
   SetupHelper setupHelper;
   boolean mapIgnoresInput = false;
 
@@ -59,15 +61,27 @@ public class SailfishMapRunner<K1, V1, K2, V2> extends
     this.mapper = ReflectionUtils.newInstance(job.getMapperClass(), job);
     this.hadoopJob = job;
     this.taskNumber = str2taskNumber(this.hadoopJob.get("mapred.task.id"));
-    Class<? extends Reducer> combinerClaz = hadoopJob.getClass(
-        "sailfish.mapred.combiner.class", null, Reducer.class);
+    Class<? extends Reducer> combinerClaz =
+      SailfishCombiningCollector.getCombinerClass(hadoopJob);
+    if (combinerClaz == null) {
+      // the job's own combiner; this runner replaces the map side sort that
+      // would otherwise have run it
+      combinerClaz = job.getCombinerClass();
+    }
     this.mapIgnoresInput = job.getBoolean("sailfish.job.map_ignores_input", false);
     if (combinerClaz != null) {
-      // this.combiner = ReflectionUtils.newInstance(combinerClaz, job);
-      LOG.warn("Sailfish does not support combiners.  Combiner support is disabled");
+      this.combinerClass = (Class<? extends Reducer<K2, V2, K2, V2>>) combinerClaz;
+      LOG.info("Using combiner: " + combinerClaz.getName());
     }
   }
 
+  /**
+   * @return the combiner that the map output goes thru, or null for none
+   */
+  Class<? extends Reducer<K2, V2, K2, V2>> getCombinerClass() {
+    return combinerClass;
+  }
+
   @SuppressWarnings({ "rawtypes", "unchecked" })
   @Override
   public void run(RecordReader<K1, V1> input, OutputCollector<K2, V2> output,
@@ -81,18 +95,17 @@ public class SailfishMapRunner<K1, V1, K2, V2> extends
       // Create the output collector to trap the output and pass it to iappender
       //
       SailfishMapCollector smc = new SailfishMapCollector(hadoopJob, reporter);
-      smc.setOutputStream(setupHelper.iappender.getOutputStream());
-      OldOutputCollector theCollector = new OldOutputCollector(smc, hadoopJob);
-      
-      /* If we supported combiners, then enable this code
-              OldOutputCollector mc = new OldOutputCollector(smc, hadoopJob);
-      if (combiner != null) {
-        combineCollector = ...
-        theCollector = new OldOutputCollector(combineCollector, hadoopJob);
-      } else {
-        theCollector = mc;
+      setupHelper.connect(smc);
+      MapOutputCollector mc = smc;
+      if (combinerClass != null) {
+        // buffer and combine the map output before it goes to the I-files
+        CombinerRunner combinerRunner = new OldCombinerRunner(combinerClass,
+            hadoopJob, reporter.getCounter(COMBINE_INPUT_RECORDS),
+            (reporter instanceof TaskReporter) ? (TaskReporter) reporter : null);
+        mc = new SailfishCombiningCollector(hadoopJob, reporter,
+            combinerRunner, smc);
       }
-      */
+      OldOutputCollector theCollector = new OldOutputCollector(mc, hadoopJob);
 
       String debugJobId = hadoopJob.get("sailfish.mapred.debug_job.id", null);
       if (debugJobId == null) {
@@ -107,11 +120,16 @@ public class SailfishMapRunner<K1, V1, K2, V2> extends
           }
         }
       }
-      /*
-      if (combineCollector != null) {
-        combineCollector.flush();
+      if (mc != smc) {
+        // push out whatever the combiner is holding
+        try {
+          mc.flush();
+        } catch (ClassNotFoundException cnf) {
+          throw new IOException("can't find class ", cnf);
+        } catch (InterruptedException ie) {
+          throw new IOException("Interrupted while flushing the combiner", ie);
+        }
       }
-      */
       // Tell the map collector to send shutdown sequence to kappender
       smc.close();
       // get a full heartbeat cycle with Hadoop
@@ -125,19 +143,58 @@ public class SailfishMapRunner<K1, V1, K2, V2> extends
     }
   }
 
+  /**
+   * Tell the workbuilder that the maps of a job are about to start.  This is
+   * done once per job, by the job setup task; the maps aren't scheduled until
+   * the setup task is done.
+   */
+  static void notifyWorkbuilder(JobConf hadoopJob) throws IOException {
+    // job tracker-jobid
+    String debugJobid = hadoopJob.get("sailfish.mapred.debug_job.id", "");
+    String jobid = hadoopJob.get("mapred.job.id");
+    String jobname = hadoopJob.get("mapred.job.tracker.http.address") + "-" + jobid;
+
+    LOG.info("Actual jobid: " + jobid + " ; debug id = " + debugJobid);
+    SailfishWorkbuilderClient.get(hadoopJob).notifyMapperStart(jobname,
+        debugJobid, hadoopJob.getNumMapTasks(), hadoopJob.getNumReduceTasks());
+  }
+
   // Refactoring the helper code into a separate class so that we can re-use with mapreduce apis.
   static public class SetupHelper {
     JobConf hadoopJob;
     public Process iappender;
     public ChildOutputGrabber iappenderStdout;
+    // when set, the I-files are written from this JVM and there is no child
+    SailfishIFileAppender inProcessAppender;
 
     public void setup(JobConf jc) throws IOException {
       hadoopJob = jc;
-      notifyWorkbuilder();
-      startIAppender();
+      if (SailfishIFileAppender.isEnabled(hadoopJob)) {
+        inProcessAppender = new SailfishIFileAppender(hadoopJob,
+            str2taskNumber(hadoopJob.get("mapred.task.id")),
+            str2taskAttemptNumber(hadoopJob.get("mapred.task.id")));
+      } else {
+        startIAppender();
+      }
+    }
+
+    /**
+     * Hook up the collector to whichever appender we setup.
+     */
+    @SuppressWarnings("rawtypes")
+    public void connect(SailfishMapCollector smc) throws IOException {
+      if (inProcessAppender != null) {
+        smc.setAppender(inProcessAppender);
+      } else {
+        smc.setOutputStream(iappender.getOutputStream());
+      }
     }
 
     public void close() throws IOException {
+      if (inProcessAppender != null) {
+        inProcessAppender.close();
+        return;
+      }
       int childExitCode;
       // wait for child to exit...
       LOG.info("Waiting for iappender to exit...");
@@ -154,48 +211,6 @@ public class SailfishMapRunner<K1, V1, K2, V2> extends
       }
     }
    
-    @SuppressWarnings({ "static-access" })
-    private void notifyWorkbuilder() throws IOException {
-      // job tracker-jobid
-      String debugJobid = hadoopJob.get("sailfish.mapred.debug_job.id", "");
-      String jobid = hadoopJob.get("mapred.job.id");
-      String jobname = hadoopJob.get("mapred.job.tracker.http.address") + "-" + jobid;
-      String workbuilderHP = "http://"
-          + hadoopJob.get("sailfish.job.workbuilder.host") + ":"
-          + hadoopJob.get("sailfish.job.workbuilder.port");
-      HttpURL url = new HttpURL(workbuilderHP);
-
-      LOG.info("Actual jobid: " + jobid + " ; debug id = " + debugJobid);
-      url.setPath("/mapperstart/");
-      url.setQuery(new String[] { "jobid", "debugid", "m", "r" },
-          new String[] { jobname, debugJobid, Integer.toString(hadoopJob.getNumMapTasks()),
-          Integer.toString(hadoopJob.getNumReduceTasks())});
-
-      LOG.info("URL to wb = " + url.getQuery());
-      
-      int code = -1;
-      String errorStr = null;
-
-      for (int i = 0; i < 5; i++) {
-        try {
-          HttpClient c = new HttpClient();
-          HttpMethod method = new GetMethod(url.toString());
-          c.executeMethod(method);
-          code = method.getStatusCode();
-          errorStr = method.getResponseBodyAsString();
-          break;
-        } catch (Exception e) {
-          try {
-            // sleep and retry the connect
-            Thread.currentThread().sleep(30 * 1000);
-          } catch(InterruptedException ie){ }
-        }
-      }
-      if (code != 200) {
-        throw new IOException("unable to notify workbuilder: " + errorStr);
-      }
-    }
-
     private void startIAppender() throws IOException {
       String jobId = hadoopJob.get("mapred.job.id");
       StringBuilder basedir = new StringBuilder("/jobs/" + jobId);
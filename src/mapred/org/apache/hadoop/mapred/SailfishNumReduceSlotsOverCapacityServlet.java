@@ -57,17 +57,16 @@ public class SailfishNumReduceSlotsOverCapacityServlet extends HttpServlet {
 
     String status = null;
     String outString = null;
-    synchronized (tracker) {
-      JobID jobIdObj = JobID.forName(requestJobID);
-      JobInProgress job = tracker.getJob(jobIdObj);
-      if (job == null) {
-        response.sendError(HttpServletResponse.SC_NOT_FOUND,
-            "Couldn't find JIP: " + jobIdObj);
-        return;
-      }
-      int numSlotsOverCapacity = job.getReducePreemptionTarget();
-      outString = requestJobID + ":" + numSlotsOverCapacity;
+    JobID jobIdObj = JobID.forName(requestJobID);
+    JobInProgress job = tracker.getJob(jobIdObj);
+    if (job == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND,
+          "Couldn't find JIP: " + jobIdObj);
+      return;
     }
+    // the preemption target is volatile; no lock is needed to read it
+    int numSlotsOverCapacity = job.getReducePreemptionTarget();
+    outString = requestJobID + ":" + numSlotsOverCapacity;
     LOG.info("RESPONSE: " + outString);
 
     out.write(outString.getBytes());
@@ -55,14 +55,11 @@ class SailfishNumTasksPreemptServlet extends HttpServlet {
         return;
       }
 
-      JobInProgress job = null;
       StringBuilder buf = new StringBuilder();
       @SuppressWarnings("deprecation") // spurious
       JobID jobIdObj = JobID.forName(requestJobID);
-      synchronized (tracker) {
-        // all JIP transitions are irrelevant; just pull field
-        job = tracker.getJob(jobIdObj);
-      }
+      // all JIP transitions are irrelevant; just pull the (volatile) field
+      JobInProgress job = tracker.getJob(jobIdObj);
 
       if (job == null) {
         response.sendError(HttpServletResponse.SC_NOT_FOUND, "jobid not found");
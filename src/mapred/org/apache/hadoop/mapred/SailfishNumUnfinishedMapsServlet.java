@@ -46,21 +46,19 @@ public class SailfishNumUnfinishedMapsServlet extends HttpServlet {
 
     String status = null;
     String outString = null;
-    synchronized (tracker) {
-      JobID jobIdObj = JobID.forName(requestJobID);
-      JobInProgress job = tracker.getJob(jobIdObj);
-      if (job == null) {
-        outString = requestJobID + ":" + "-1";
-      } else {
-        int numUnfinishedMaps = -1;
-        try {
-          numUnfinishedMaps = job.runningMaps() + Math.abs(job.pendingMaps());
+    JobID jobIdObj = JobID.forName(requestJobID);
+    JobInProgress job = tracker.getJob(jobIdObj);
+    if (job == null) {
+      outString = requestJobID + ":" + "-1";
+    } else {
+      int numUnfinishedMaps = -1;
+      try {
+        numUnfinishedMaps = job.runningMaps() + Math.abs(job.pendingMaps());
 
-        } catch (Exception e) {
+      } catch (Exception e) {
 
-        }
-        outString = requestJobID + ":" + numUnfinishedMaps;
       }
+      outString = requestJobID + ":" + numUnfinishedMaps;
     }
 
     out.write(outString.getBytes());
@@ -18,22 +18,24 @@
  */
 package org.apache.hadoop.mapred;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.NoSuchElementException;
 
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpMethod;
-import org.apache.commons.httpclient.HttpURL;
-import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.Text;
@@ -43,6 +45,7 @@ import org.apache.hadoop.io.serializer.Serializer;
 import org.apache.hadoop.mapred.Task.TaskReporter;
 import org.apache.hadoop.util.Progress;
 import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.StringUtils;
 
 class SailfishReduceHelper {
   static final private Log LOG = LogFactory.getLog(SailfishReduceHelper.class);
@@ -119,6 +122,26 @@ class SailfishReduceHelper {
     DataInputStream imergerStdout;
     Process imerger;
     ChildOutputGrabber imergerStderr;
+    // when set, the I-file is merged within this JVM and there is no child
+    boolean inProcess;
+    // when a skewed partition has been split, the slice that we work on
+    SailfishReduceKeyRange keyRange;
+    RawComparator<?> keyComparator;
+    // set once we see a key past the end of keyRange
+    boolean pastKeyRange = false;
+    SailfishIFileMerger<?, ?> merger;
+    // imerger output is framed in place in this buffer; records are handed
+    // out as offsets into it rather than copied out
+    byte[] readBuffer;
+    int readPos = 0;
+    int readLimit = 0;
+    // the current key/value; valid until the next call to readNextKV()
+    byte[] keyBuffer;
+    int keyOffset;
+    int keyLength;
+    byte[] valueBuffer;
+    int valueOffset;
+    int valueLength;
 
     IMergerHelper(int partition, JobConf jc, String jobId, String debugJobId) {
       this.partition = partition;
@@ -127,76 +150,312 @@ class SailfishReduceHelper {
       this.debugJobId = debugJobId;
       if (this.debugJobId == null)
         this.debugJobId = jobId;
+      // imerger can't read the I-files that the in-process appender writes,
+      // and the in-process merger can't read the ones that kappender writes
+      this.inProcess = SailfishIFileAppender.isEnabled(jc);
+      if (!inProcess &&
+          jc.getBoolean("sailfish.mapred.job.inprocess_merger", false)) {
+        LOG.warn("The in-process merger only reads I-files written by the "
+            + "in-process appender; " + SailfishIFileAppender.INPROCESS_APPENDER
+            + " is not set, so using imerger");
+      }
     }
 
     void notifyWorkbuilder() throws IOException {
       if (partition != 0)
         return;
+      if ((keyRange != null) && (keyRange.getStartKey() != null)) {
+        // partition 0 has been split; the reduce with the first key range
+        // asks for the plan, the others leave it be
+        return;
+      }
       // reducer for partition 0 notifies the workbuilder to begin building the
       // plan
       // same as the mapside: jobtracker-jobid
       String jobname = hadoopJob.get("mapred.job.tracker.http.address") + "-"
           + jobId;
-      String workbuilderHP = "http://"
-          + hadoopJob.get("sailfish.job.workbuilder.host") + ":"
-          + hadoopJob.get("sailfish.job.workbuilder.port");
-      HttpURL url = new HttpURL(workbuilderHP);
+      SailfishWorkbuilderClient.get(hadoopJob).buildPlan(jobname, partition);
+    }
 
-      url.setPath("/buildplan/");
-      url.setQuery(new String[] { "jobid", "reducerid" }, new String[] {
-          jobname, Integer.toString(partition) });
+    DataInputStream startIMerger() throws IOException {
+      ProcessBuilder pb = new ProcessBuilder(getIMergerArgs("/jobs/"
+          + debugJobId));
 
-      int code = -1;
-      String errorStr = null;
+      imerger = pb.start();
 
-      for (int i = 0; i < 5; i++) {
-        try {
-          HttpClient c = new HttpClient();
-          HttpMethod method = new GetMethod(url.toString());
-          c.executeMethod(method);
-          code = method.getStatusCode();
-          errorStr = method.getResponseBodyAsString();
-          break;
-        } catch (Exception e) {
-          try {
-            // sleep and retry the connect
-            Thread.currentThread().sleep(30 * 1000);
-          } catch (InterruptedException ie) {
-          }
-        }
-      }
-      if (code != 200) {
-        throw new IOException("unable to notify workbuilder: " + errorStr);
-      }
+      imergerStderr = new ChildOutputGrabber(imerger.getErrorStream());
+      imergerStderr.start();
+      // readNextKV() does its own read-ahead; no need to buffer twice
+      imergerStdout = new DataInputStream(imerger.getInputStream());
+      readBuffer = new byte[hadoopJob.getInt("sailfish.imerger.readahead.size",
+          1024 * 1024)];
+      return imergerStdout;
     }
 
-    DataInputStream startIMerger() throws IOException {
-      StringBuilder basedir = new StringBuilder("/jobs/" + debugJobId);
-      ProcessBuilder pb = new ProcessBuilder(
+    int getMaxRecords() throws IOException {
+      int maxRecordCount = imergerStdout.readInt();
+      LOG.info("For partition: " + partition + " expect a maximum of "
+          + maxRecordCount);
+      return maxRecordCount;
+    }
+
+    /**
+     * The imerger command line.  When we work on a key range, readNextKV()
+     * drops the records outside of it; with sailfish.imerger.keyrange set,
+     * imerger is also given the range (-S <start key> -E <end key>, hex
+     * encoded) so that it leaves out the rest of the partition itself.
+     */
+    List<String> getIMergerArgs(String basedir) {
+      List<String> args = new ArrayList<String>(Arrays.asList(
           hadoopJob.get("sailfish.imerger.path"), "-M",
           hadoopJob.get("sailfish.kfs.metaserver.host"), "-P",
           hadoopJob.get("sailfish.kfs.metaserver.port"), "-J",
           hadoopJob.get("mapred.job.tracker.http.address") + "-" + jobId, "-w",
           hadoopJob.get("sailfish.job.workbuilder.host"), "-x",
           hadoopJob.get("sailfish.job.workbuilder.port"), "-B",
-          basedir.toString(), "-i", Integer.toString(partition));
-
-      imerger = pb.start();
+          basedir, "-i", Integer.toString(partition)));
+      if ((keyRange != null)
+          && hadoopJob.getBoolean("sailfish.imerger.keyrange", false)) {
+        if (keyRange.getStartKey() != null) {
+          args.add("-S");
+          args.add(StringUtils.byteToHexString(keyRange.getStartKey()));
+        }
+        if (keyRange.getEndKey() != null) {
+          args.add("-E");
+          args.add(StringUtils.byteToHexString(keyRange.getEndKey()));
+        }
+      }
+      return args;
+    }
 
-      imergerStderr = new ChildOutputGrabber(imerger.getErrorStream());
-      imergerStderr.start();
-      // give the input stream a bigger buffer...256K
-      imergerStdout = new DataInputStream(new BufferedInputStream(
-          imerger.getInputStream(), 262144));
-      return imergerStdout;
+    /**
+     * Only hand out the records whose keys are in the given range.
+     */
+    void setKeyRange(SailfishReduceKeyRange keyRange, Class<?> keyClass) {
+      this.keyRange = keyRange;
+      this.keyComparator = SailfishSerialization.getRawComparator(keyClass);
+      LOG.info("Reducing key range: " + keyRange);
     }
 
-    int getMaxRecords() throws IOException {
-      int maxRecordCount = imergerStdout.readInt();
+    /**
+     * Merge the I-files within this JVM; each map's I-file is read as soon
+     * as the map is done.
+     * @return the # of records to expect
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    int startInProcessMerger(Class keyClass, Class valClass,
+        TaskUmbilicalProtocol umbilical, TaskAttemptID reduceId,
+        Progressable reporter) throws IOException {
+      FileSystem kfs = SailfishIFileMerger.getKfs(hadoopJob);
+      Path ifileDir = SailfishIFileMerger.getIFileDir(debugJobId, partition);
+      // when debugging, the I-files are from some other job; take them all
+      SailfishIFileMerger.IFileSource source = debugJobId.equals(jobId)
+        ? new MapCompletionSource(hadoopJob.getNumMapTasks(), umbilical,
+            reduceId, reporter)
+        : null;
+      merger = new SailfishIFileMerger(hadoopJob, kfs, ifileDir, keyClass,
+          valClass, source, keyRange, reporter);
+      int maxRecordCount = merger.start();
       LOG.info("For partition: " + partition + " expect a maximum of "
           + maxRecordCount);
       return maxRecordCount;
     }
+
+    /**
+     * Advance to the next key/value; on return, keyBuffer/keyOffset/keyLength
+     * and valueBuffer/valueOffset/valueLength locate the record.  Nothing is
+     * copied: the bytes are in the read-ahead buffer (or the merger's buffer)
+     * and are only valid until the next call.
+     * @return false at the end of the stream (or the key range)
+     */
+    boolean readNextKV() throws IOException {
+      while (!pastKeyRange && readNextRecord()) {
+        if (keyRange == null) {
+          return true;
+        }
+        // the records are sorted; skip up to the start key and stop at the
+        // end key
+        int c = keyRange.compare(keyComparator, keyBuffer, keyOffset,
+            keyLength);
+        if (c == 0) {
+          return true;
+        }
+        if (c > 0) {
+          LOG.info("Reached the end of key range: " + keyRange);
+          pastKeyRange = true;
+        }
+      }
+      return false;
+    }
+
+    private boolean readNextRecord() throws IOException {
+      if (merger != null) {
+        if (!merger.next()) {
+          return false;
+        }
+        DataInputBuffer k = merger.getKey();
+        keyBuffer = k.getData();
+        keyOffset = k.getPosition();
+        keyLength = k.getLength() - k.getPosition();
+        DataInputBuffer v = merger.getValue();
+        valueBuffer = v.getData();
+        valueOffset = v.getPosition();
+        valueLength = v.getLength() - v.getPosition();
+        return true;
+      }
+      // format: <key len><key><data len><data>
+      fill(0, 4);
+      keyLength = getInt();
+      if (keyLength == 0) {
+        // we are all done; sanity check the close sequence
+        fill(0, 8);
+        int v = getInt();
+        if (v != 0xDEADDEAD) {
+          LOG.info("Unknown close signature: " + v + "; expecting: "
+              + 0xDEADDEAD);
+        }
+        v = getInt();
+        LOG.info("End of stream: # of records sent by imerger: " + v);
+        return false;
+      }
+      // pull in the key and the value length in one go
+      fill(0, keyLength + 4);
+      keyOffset = readPos;
+      readPos += keyLength;
+      valueLength = getInt();
+      fill(keyLength + 4, valueLength);
+      // fill() may have compacted the buffer; the key sits right before the
+      // value length
+      keyOffset = readPos - 4 - keyLength;
+      valueOffset = readPos;
+      readPos += valueLength;
+      keyBuffer = valueBuffer = readBuffer;
+      return true;
+    }
+
+    private int getInt() {
+      int v = ((readBuffer[readPos] & 0xff) << 24)
+        | ((readBuffer[readPos + 1] & 0xff) << 16)
+        | ((readBuffer[readPos + 2] & 0xff) << 8)
+        | (readBuffer[readPos + 3] & 0xff);
+      readPos += 4;
+      return v;
+    }
+
+    /**
+     * Make sure that there are at least len unread bytes in the read-ahead
+     * buffer.  The unread bytes along with the last keep bytes that were read
+     * are retained; the buffer is grown if they don't fit.
+     */
+    private void fill(int keep, int len) throws IOException {
+      if (readLimit - readPos >= len) {
+        return;
+      }
+      int start = readPos - keep;
+      int avail = readLimit - start;
+      if (keep + len > readBuffer.length) {
+        byte[] b = new byte[Math.max(2 * readBuffer.length, keep + len)];
+        System.arraycopy(readBuffer, start, b, 0, avail);
+        readBuffer = b;
+      } else {
+        System.arraycopy(readBuffer, start, readBuffer, 0, avail);
+      }
+      readPos = keep;
+      readLimit = avail;
+      while (readLimit - readPos < len) {
+        int n = imergerStdout.read(readBuffer, readLimit,
+            readBuffer.length - readLimit);
+        if (n < 0) {
+          throw new EOFException("imerger output ended in the middle of a "
+              + "record");
+        }
+        readLimit += n;
+      }
+    }
+
+    void close() throws IOException {
+      if (merger != null) {
+        merger.close();
+      }
+      if (pastKeyRange && (imerger != null)) {
+        // we stopped reading before imerger was done writing
+        imerger.destroy();
+      }
+    }
+  }
+
+  /**
+   * Hands the in-process merger the successful map attempts as the
+   * tasktracker hears about them.  The first successful attempt of a map is
+   * the one whose I-file gets read; the I-file is in KFS, so it stays good
+   * even if the attempt is declared obsolete later on.
+   */
+  static class MapCompletionSource
+      implements SailfishIFileMerger.IFileSource {
+    private final TaskUmbilicalProtocol umbilical;
+    private final TaskAttemptID reduceId;
+    private final Progressable reporter;
+    // maps whose attempt has been picked
+    private final boolean[] taken;
+    private int numTaken = 0;
+    private final LinkedList<int[]> ready = new LinkedList<int[]>();
+    private int fromEventId = 0;
+    private long pollInterval = 1000;
+
+    MapCompletionSource(int numMaps, TaskUmbilicalProtocol umbilical,
+        TaskAttemptID reduceId, Progressable reporter) {
+      this.umbilical = umbilical;
+      this.reduceId = reduceId;
+      this.reporter = reporter;
+      this.taken = new boolean[numMaps];
+    }
+
+    void setPollInterval(long pollInterval) {
+      this.pollInterval = pollInterval;
+    }
+
+    public int[] nextMapAttempt() throws IOException, InterruptedException {
+      while (ready.isEmpty() && (numTaken < taken.length)) {
+        if (!poll()) {
+          reporter.progress();
+          Thread.sleep(pollInterval);
+        }
+      }
+      return ready.poll();
+    }
+
+    /**
+     * @return false if there was nothing new
+     */
+    private boolean poll() throws IOException {
+      MapTaskCompletionEventsUpdate update =
+        umbilical.getMapCompletionEvents(reduceId.getJobID(), fromEventId,
+            10000, reduceId);
+      TaskCompletionEvent[] events = update.getMapTaskCompletionEvents();
+      if (update.shouldReset()) {
+        fromEventId = 0;
+      }
+      fromEventId += events.length;
+      for (TaskCompletionEvent event : events) {
+        int mapId = event.getTaskAttemptId().getTaskID().getId();
+        switch (event.getTaskStatus()) {
+        case SUCCEEDED:
+          if (!taken[mapId]) {
+            taken[mapId] = true;
+            numTaken++;
+            ready.add(new int[] { mapId, event.getTaskAttemptId().getId() });
+          }
+          break;
+        case TIPFAILED:
+          throw new IOException("Map " + event.getTaskAttemptId().getTaskID()
+              + " failed; its output is not in the I-files");
+        default:
+          // the other attempts' I-files are skipped
+          break;
+        }
+      }
+      return events.length > 0;
+    }
   }
 
   /**
@@ -218,9 +477,6 @@ class SailfishReduceHelper {
     private Progress reducePhase;
     private Deserializer<KEY> keyDeserializer;
     private Deserializer<VALUE> valDeserializer;
-    // buffers to read key/value from socket
-    private byte[] dataBuffer = new byte[4096];
-    private byte[] valueBuffer = new byte[4096];
     private DataInputBuffer keyIn = new DataInputBuffer();
     private DataInputBuffer valueIn = new DataInputBuffer();
     private DataInputBuffer keyInCopy = new DataInputBuffer();
@@ -230,21 +486,30 @@ class SailfishReduceHelper {
     private int totalRecordsRecd = 0;
     private int partition;
     private IMergerHelper imergerHelper;
-    DataInputStream imergerStdout;
     private Counters.Counter reduceInputValueCounter;
     private String jobId;
     private String debugJobId;
+    // In raw mode, keys are grouped by comparing their bytes and objects are
+    // only deserialized when the reducer asks for them.  The bytes of the
+    // current group's key are held in groupKey.
+    private boolean rawMode;
+    private RawComparator<KEY> rawComparator;
+    private byte[] groupKey = new byte[256];
+    private int groupKeyLength;
+    private boolean keyDeserialized;
 
     @SuppressWarnings("unchecked")
     public SailfishReduceValuesIterator(int partition,
         RawComparator<KEY> comparator, Class<KEY> keyClass,
         Class<VALUE> valClass, JobConf conf, TaskReporter reporter,
-        Progress reducePhase, Counters.Counter riv) throws IOException {
+        Progress reducePhase, Counters.Counter riv,
+        TaskUmbilicalProtocol umbilical, TaskAttemptID taskId,
+        SailfishReduceKeyRange keyRange) throws IOException {
       this.partition = partition;
       this.comparator = comparator;
       this.reporter = reporter;
       this.reducePhase = reducePhase;
-      SailfishSerialization sfs = new SailfishSerialization();
+      SailfishSerialization sfs = new SailfishSerialization(conf);
       this.keyDeserializer = (Deserializer<KEY>) sfs
           .getDeserializer(keyClass);
       SerializationFactory serializationFactory = new SerializationFactory(conf);
@@ -258,8 +523,13 @@ class SailfishReduceHelper {
       this.jobId = hadoopJob.get("mapred.job.id");
 
       this.imergerHelper = new IMergerHelper(partition, conf, jobId, debugJobId);
+      if (keyRange != null) {
+        imergerHelper.setKeyRange(keyRange, keyClass);
+      }
       imergerHelper.notifyWorkbuilder();
-      imergerStdout = imergerHelper.startIMerger();
+      if (!imergerHelper.inProcess) {
+        imergerHelper.startIMerger();
+      }
 
       reporter.setStatus("Waiting to get max. records...");
 
@@ -267,7 +537,12 @@ class SailfishReduceHelper {
       hb.start();
 
       try {
-        maxRecordCount = imergerHelper.getMaxRecords();
+        if (imergerHelper.inProcess) {
+          maxRecordCount = imergerHelper.startInProcessMerger(keyClass,
+              valClass, umbilical, taskId, reporter);
+        } else {
+          maxRecordCount = imergerHelper.getMaxRecords();
+        }
         hb.setDone();
       } catch (IOException e) {
         hb.setDone();
@@ -278,6 +553,17 @@ class SailfishReduceHelper {
 
       value = nextValue = null;
 
+      rawMode = conf.getBoolean("sailfish.mapred.reduce.raw_iteration", false);
+      if (rawMode) {
+        rawComparator = SailfishSerialization.getRawComparator(keyClass);
+        more = advance();
+        if (more) {
+          startGroup();
+        }
+        hasNext = more;
+        return;
+      }
+
       getNextKV();
 
       key = nextKey;
@@ -296,6 +582,19 @@ class SailfishReduceHelper {
       if (!hasNext) {
         throw new NoSuchElementException("iterate past last value");
       }
+      if (rawMode) {
+        try {
+          valueIn.reset(imergerHelper.valueBuffer, imergerHelper.valueOffset,
+              imergerHelper.valueLength);
+          value = valDeserializer.deserialize(value);
+          advanceInGroup();
+        } catch (IOException ie) {
+          throw new RuntimeException("problem advancing post rec#" + ctr, ie);
+        }
+        reduceInputValueCounter.increment(1);
+        reporter.progress();
+        return value;
+      }
       // Swap: getNextKV() will deserialize in-place in the object pointed to by
       // nextValue
       VALUE tmpValue = value;
@@ -319,6 +618,18 @@ class SailfishReduceHelper {
 
     /** Start processing next unique key. */
     void nextKey() throws IOException {
+      if (rawMode) {
+        // skip over the rest of the group without deserializing anything
+        while (hasNext) {
+          advanceInGroup();
+        }
+        ++ctr;
+        if (more) {
+          startGroup();
+        }
+        hasNext = more;
+        return;
+      }
       // read until we find a new key
       while (hasNext) {
         getNextKV();
@@ -332,8 +643,8 @@ class SailfishReduceHelper {
       hasNext = more;
     }
 
-    void close() {
-
+    void close() throws IOException {
+      imergerHelper.close();
     }
 
     /** True iff more keys remain. */
@@ -342,10 +653,61 @@ class SailfishReduceHelper {
     }
 
     /** The current key. */
-    KEY getKey() {
+    KEY getKey() throws IOException {
+      if (rawMode && !keyDeserialized) {
+        keyIn.reset(groupKey, 0, groupKeyLength);
+        key = keyDeserializer.deserialize(key);
+        keyDeserialized = true;
+      }
       return key;
     }
 
+    /**
+     * Raw mode: remember the bytes of the current record's key as the key for
+     * the group that starts with it.
+     */
+    private void startGroup() {
+      if (imergerHelper.keyLength > groupKey.length) {
+        groupKey = new byte[imergerHelper.keyLength + 256];
+      }
+      System.arraycopy(imergerHelper.keyBuffer, imergerHelper.keyOffset,
+          groupKey, 0, imergerHelper.keyLength);
+      groupKeyLength = imergerHelper.keyLength;
+      keyDeserialized = false;
+    }
+
+    /**
+     * Raw mode: move to the next record and check whether it belongs to the
+     * current group.
+     */
+    private void advanceInGroup() throws IOException {
+      more = advance();
+      hasNext = more
+          && rawComparator.compare(groupKey, 0, groupKeyLength,
+              imergerHelper.keyBuffer, imergerHelper.keyOffset,
+              imergerHelper.keyLength) == 0;
+    }
+
+    /**
+     * Raw mode: frame the next record in place.
+     * @return false at the end of the stream
+     */
+    private boolean advance() throws IOException {
+      if (!imergerHelper.readNextKV()) {
+        LOG.info("End of stream: # of records recd: " + totalRecordsRecd);
+        // so that when we report progress, it looks sensible
+        maxRecordCount = totalRecordsRecd;
+        return false;
+      }
+      totalRecordsRecd++;
+      if (totalRecordsRecd > maxRecordCount) {
+        LOG.warn("Got too many records?: got = " + totalRecordsRecd
+            + " ; expecting = " + maxRecordCount);
+        throw new IOException("Received too many records");
+      }
+      return true;
+    }
+
     DataInputBuffer getKeyInputBuffer() {
       /*
        * LOG.info("keyinput buffer copy position = " + keyInCopy.getPosition() +
@@ -366,20 +728,9 @@ class SailfishReduceHelper {
      * read the next key /value
      */
     private void getNextKV() throws IOException {
-      int dataLen;
       try {
-        // format: <key len><key><data len><data>
-        dataLen = imergerStdout.readInt();
-        if (dataLen == 0) {
-          // we are all done; sanity check the close sequence
-          int v = imergerStdout.readInt();
-          if (v != 0xDEADDEAD) {
-            LOG.info("Unknown close signature: " + v + "; expecting: "
-                + 0xDEADDEAD);
-          }
-          v = imergerStdout.readInt();
-          LOG.info("End of stream: # of records recd: " + totalRecordsRecd
-              + " ; # of records sent by imerger: " + v);
+        if (!imergerHelper.readNextKV()) {
+          LOG.info("End of stream: # of records recd: " + totalRecordsRecd);
           // so that when we report progress, it looks sensible
           maxRecordCount = totalRecordsRecd;
           hasNext = false;
@@ -388,25 +739,20 @@ class SailfishReduceHelper {
           nextValue = null;
           return;
         }
-        if (dataLen > dataBuffer.length) {
-          dataBuffer = new byte[dataLen + 256];
-        }
-        imergerStdout.readFully(dataBuffer, 0, dataLen);
-        keyInCopy.reset(dataBuffer, 0, dataLen);
-        keyIn.reset(dataBuffer, 0, dataLen);
+        keyInCopy.reset(imergerHelper.keyBuffer, imergerHelper.keyOffset,
+            imergerHelper.keyLength);
+        keyIn.reset(imergerHelper.keyBuffer, imergerHelper.keyOffset,
+            imergerHelper.keyLength);
         /*
          * LOG.info("keyinput buffer position = " + keyIn.getPosition() +
          * " ; length = " + keyIn.getLength());
          */
         nextKey = keyDeserializer.deserialize(nextKey);
         hasNext = key != null && (comparator.compare(key, nextKey) == 0);
-        dataLen = imergerStdout.readInt();
-        if (dataLen > valueBuffer.length) {
-          valueBuffer = new byte[dataLen + 256];
-        }
-        imergerStdout.readFully(valueBuffer, 0, dataLen);
-        valueInCopy.reset(valueBuffer, 0, dataLen);
-        valueIn.reset(valueBuffer, 0, dataLen);
+        valueInCopy.reset(imergerHelper.valueBuffer, imergerHelper.valueOffset,
+            imergerHelper.valueLength);
+        valueIn.reset(imergerHelper.valueBuffer,
+            imergerHelper.valueOffset, imergerHelper.valueLength);
         nextValue = valDeserializer.deserialize(nextValue);
         totalRecordsRecd++;
         if (totalRecordsRecd > maxRecordCount) {
@@ -438,8 +784,6 @@ class SailfishReduceHelper {
     private RawComparator<KEY> comparator;
     private TaskReporter reporter;
     private Progress reducePhase;
-    private byte[] dataBuffer = new byte[4096];
-    private byte[] valueBuffer = new byte[4096];
     private DataInputBuffer keyIn = new DataInputBuffer();
     private DataInputBuffer valueIn = new DataInputBuffer();
 
@@ -449,7 +793,6 @@ class SailfishReduceHelper {
     boolean hasMoreKeys = true;
     private int partition;
     private IMergerHelper imergerHelper;
-    DataInputStream imergerStdout;
     private Counters.Counter reduceInputValueCounter;
     private String jobId;
     private String debugJobId;
@@ -457,7 +800,9 @@ class SailfishReduceHelper {
     public SailfishNewReduceValuesIterator(int partition,
         RawComparator<KEY> comparator, Class<KEY> keyClass,
         Class<VALUE> valClass, JobConf conf, TaskReporter reporter,
-        Progress reducePhase, Counters.Counter riv) throws IOException {
+        Progress reducePhase, Counters.Counter riv,
+        TaskUmbilicalProtocol umbilical, TaskAttemptID taskId,
+        SailfishReduceKeyRange keyRange) throws IOException {
       this.partition = partition;
       this.comparator = comparator;
       this.reporter = reporter;
@@ -467,8 +812,13 @@ class SailfishReduceHelper {
       this.debugJobId = hadoopJob.get("sailfish.mapred.debug_job.id", null);
       this.jobId = hadoopJob.get("mapred.job.id");
       this.imergerHelper = new IMergerHelper(partition, conf, jobId, debugJobId);
+      if (keyRange != null) {
+        imergerHelper.setKeyRange(keyRange, keyClass);
+      }
       imergerHelper.notifyWorkbuilder();
-      imergerStdout = imergerHelper.startIMerger();
+      if (!imergerHelper.inProcess) {
+        imergerHelper.startIMerger();
+      }
 
       reporter.setStatus("Waiting to get max. records...");
 
@@ -476,7 +826,12 @@ class SailfishReduceHelper {
       hb.start();
 
       try {
-        maxRecordCount = imergerHelper.getMaxRecords();
+        if (imergerHelper.inProcess) {
+          maxRecordCount = imergerHelper.startInProcessMerger(keyClass,
+              valClass, umbilical, taskId, reporter);
+        } else {
+          maxRecordCount = imergerHelper.getMaxRecords();
+        }
         hb.setDone();
       } catch (IOException e) {
         hb.setDone();
@@ -507,36 +862,18 @@ class SailfishReduceHelper {
      * read the next key /value
      */
     public void getNextKV() throws IOException {
-      int dataLen;
       try {
-        // format: <key len><key><data len><data>
-        dataLen = imergerStdout.readInt();
-        if (dataLen == 0) {
-          // we are all done; sanity check the close sequence
-          int v = imergerStdout.readInt();
-          if (v != 0xDEADDEAD) {
-            LOG.info("Unknown close signature: " + v + "; expecting: "
-                + 0xDEADDEAD);
-          }
-          v = imergerStdout.readInt();
-          LOG.info("End of stream: # of records recd: " + totalRecordsRecd
-              + " ; # of records sent by imerger: " + v);
+        if (!imergerHelper.readNextKV()) {
+          LOG.info("End of stream: # of records recd: " + totalRecordsRecd);
           hasMoreKeys = false;
           // so that when we report progress, it looks sensible
           maxRecordCount = totalRecordsRecd;
           return;
         }
-        if (dataLen > dataBuffer.length) {
-          dataBuffer = new byte[dataLen + 256];
-        }
-        imergerStdout.readFully(dataBuffer, 0, dataLen);
-        keyIn.reset(dataBuffer, 0, dataLen);
-        dataLen = imergerStdout.readInt();
-        if (dataLen > valueBuffer.length) {
-          valueBuffer = new byte[dataLen + 256];
-        }
-        imergerStdout.readFully(valueBuffer, 0, dataLen);
-        valueIn.reset(valueBuffer, 0, dataLen);
+        keyIn.reset(imergerHelper.keyBuffer, imergerHelper.keyOffset,
+            imergerHelper.keyLength);
+        valueIn.reset(imergerHelper.valueBuffer,
+            imergerHelper.valueOffset, imergerHelper.valueLength);
         totalRecordsRecd++;
         if (totalRecordsRecd > maxRecordCount) {
           LOG.warn("Got too many records?: got = " + totalRecordsRecd
@@ -576,8 +913,8 @@ class SailfishReduceHelper {
 
     }
 
-    public void close() {
-
+    public void close() throws IOException {
+      imergerHelper.close();
     }
   }
 
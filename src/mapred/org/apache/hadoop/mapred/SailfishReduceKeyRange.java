@@ -0,0 +1,121 @@
+/**
+ * Copyright 2010 Yahoo Corporation.  All rights reserved.
+ * This file is part of the Sailfish project.
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ */
+
+package org.apache.hadoop.mapred;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * The slice of an I-file that a reduce task works on: the keys in
+ * [startKey, endKey) of the I-file for a partition.  A null start/end key
+ * means that the range is open on that side.  When a partition is skewed, it
+ * is split into several ranges, each of which is handled by its own reduce
+ * task.  Keys are in their sailfish serialized form and are compared with
+ * SailfishSerialization's raw comparator.
+ * @author sriramr
+ *
+ */
+class SailfishReduceKeyRange implements Writable {
+  private int partition;
+  private byte[] startKey;
+  private byte[] endKey;
+
+  SailfishReduceKeyRange() {
+  }
+
+  SailfishReduceKeyRange(int partition, byte[] startKey, byte[] endKey) {
+    this.partition = partition;
+    this.startKey = startKey;
+    this.endKey = endKey;
+  }
+
+  /** The I-file partition */
+  int getPartition() {
+    return partition;
+  }
+
+  byte[] getStartKey() {
+    return startKey;
+  }
+
+  byte[] getEndKey() {
+    return endKey;
+  }
+
+  /**
+   * Where does a key fall relative to this range?
+   * @return < 0 if it is before the start key, 0 if it is in the range and
+   *  > 0 if it is at or past the end key
+   */
+  int compare(RawComparator<?> comparator, byte[] b, int s, int l) {
+    if ((startKey != null)
+        && (comparator.compare(b, s, l, startKey, 0, startKey.length) < 0)) {
+      return -1;
+    }
+    if ((endKey != null)
+        && (comparator.compare(b, s, l, endKey, 0, endKey.length) >= 0)) {
+      return 1;
+    }
+    return 0;
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(partition);
+    writeKey(out, startKey);
+    writeKey(out, endKey);
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    partition = in.readInt();
+    startKey = readKey(in);
+    endKey = readKey(in);
+  }
+
+  private static void writeKey(DataOutput out, byte[] key) throws IOException {
+    if (key == null) {
+      WritableUtils.writeVInt(out, -1);
+      return;
+    }
+    WritableUtils.writeVInt(out, key.length);
+    out.write(key);
+  }
+
+  private static byte[] readKey(DataInput in) throws IOException {
+    int len = WritableUtils.readVInt(in);
+    if (len < 0) {
+      return null;
+    }
+    byte[] key = new byte[len];
+    in.readFully(key);
+    return key;
+  }
+
+  @Override
+  public String toString() {
+    return partition + ":["
+      + (startKey == null ? "" : StringUtils.byteToHexString(startKey)) + ","
+      + (endKey == null ? "" : StringUtils.byteToHexString(endKey)) + ")";
+  }
+}
@@ -22,13 +22,17 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.reflect.Field;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.io.BinaryComparable;
 import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.io.serializer.Deserializer;
 import org.apache.hadoop.io.serializer.Serialization;
 import org.apache.hadoop.io.serializer.Serializer;
@@ -83,30 +87,93 @@ public class SailfishSerialization<K extends BinaryComparable> extends Configure
     }
   }
 
+  /**
+   * Pig keys (PigNullableWritable) are written out as <null flag><value
+   * bytes><index>.  Pig isn't a compile time dependency, so we can't get at
+   * the fields of a key directly; rather than use reflection on every record,
+   * we go thru the key's own write()/readFields(), whose format is
+   * <null flag><value length><value bytes><index>, and add/drop the length.
+   * The value length is a vint for NullableText and an int for
+   * NullableBytesWritable.  NullableTuple keys aren't BinaryComparable and
+   * can't be used.
+   */
+  static class PigKeyFormat {
+    private final boolean vintLength;
+    private final DataOutputBuffer buffer = new DataOutputBuffer();
+    private final DataInputBuffer in = new DataInputBuffer();
+
+    PigKeyFormat(Class<?> c) {
+      if ((pigNullableTextClass != null)
+          && pigNullableTextClass.isAssignableFrom(c)) {
+        vintLength = true;
+      } else if ((pigNullableBytesWritableClass != null)
+          && pigNullableBytesWritableClass.isAssignableFrom(c)) {
+        vintLength = false;
+      } else {
+        throw new IllegalArgumentException("Unsupported pig key class: " + c);
+      }
+    }
+
+    PigKeyFormat(boolean vintLength) {
+      this.vintLength = vintLength;
+    }
+
+    /** Write out a key in the sailfish form. */
+    void write(Writable key, DataOutputStream out) throws IOException {
+      buffer.reset();
+      key.write(buffer);
+      byte[] b = buffer.getData();
+      int len = buffer.getLength();
+      // the null flag
+      out.write(b, 0, 1);
+      int pos = 1;
+      if (b[0] == 0) {
+        int valueLen;
+        if (vintLength) {
+          valueLen = WritableComparator.readVInt(b, pos);
+          pos += WritableUtils.decodeVIntSize(b[pos]);
+        } else {
+          valueLen = WritableComparator.readInt(b, pos);
+          pos += 4;
+        }
+        out.write(b, pos, valueLen);
+        pos += valueLen;
+      }
+      if (pos != len - 1) {
+        throw new IOException("Unexpected pig key format: " + len
+            + " bytes, expected " + (pos + 1));
+      }
+      // the index
+      out.write(b, pos, 1);
+    }
+
+    /** Read a key in the sailfish form into the given key. */
+    void readFields(Writable key, byte[] b, int offset, int length)
+        throws IOException {
+      buffer.reset();
+      buffer.write(b, offset, 1);
+      if (b[offset] == 0) {
+        int valueLen = length - 2;
+        if (vintLength) {
+          WritableUtils.writeVInt(buffer, valueLen);
+        } else {
+          buffer.writeInt(valueLen);
+        }
+        buffer.write(b, offset + 1, valueLen);
+      }
+      buffer.write(b, offset + length - 1, 1);
+      in.reset(buffer.getData(), buffer.getLength());
+      key.readFields(in);
+    }
+  }
+
   // XXX Grotesque hack
   static class PigSailfishSerializer<K> implements Serializer<K> {
-    private final Field mValue;
-    private final Field mIndex;
-    private final Field mNull;
-    private final Class<?> keyClass;
+    private final PigKeyFormat format;
     private DataOutputStream dataOut;
-    public PigSailfishSerializer() {
-      if (null == pigNullableBytesWritableClass) {
-        throw new RuntimeException("Pig classes not found on classpath");
-      }
 
-      try {
-        keyClass =
-          Class.forName("org.apache.pig.impl.io.PigNullableWritable");
-        mValue = keyClass.getDeclaredField("mValue");
-        mValue.setAccessible(true);
-        mIndex = keyClass.getDeclaredField("mIndex");
-        mIndex.setAccessible(true);
-        mNull = keyClass.getDeclaredField("mNull");
-        mNull.setAccessible(true);
-      } catch (Exception e) {
-        throw new RuntimeException("Internal error", e);
-      }
+    PigSailfishSerializer(PigKeyFormat format) {
+      this.format = format;
     }
 
     @Override
@@ -120,22 +187,7 @@ public class SailfishSerialization<K extends BinaryComparable> extends Configure
     
     @Override
     public void serialize(K w) throws IOException {
-      if (!keyClass.isAssignableFrom(w.getClass())) {
-        throw new IOException("Expected " + keyClass + " found " + w.getClass());
-      }
-      try {
-        // may throw ClassCastException if contract not satisfied
-        // extract wrapped BinaryComparable value from Pig key type
-        boolean bNull = (Boolean)mNull.get(w);
-        dataOut.writeBoolean(bNull);
-        if (!bNull) {
-          BinaryComparable bc = (BinaryComparable) mValue.get(w);
-          dataOut.write(bc.getBytes(), 0, bc.getLength());
-        }
-        dataOut.writeByte((Byte) mIndex.get(w));
-      } catch (IllegalAccessException e) {
-        throw new IOException("Internal error", e);
-      }
+      format.write((Writable) w, dataOut);
     }
     
     @Override
@@ -143,6 +195,61 @@ public class SailfishSerialization<K extends BinaryComparable> extends Configure
       dataOut.close();
     }
   }
+
+  /**
+   * Writes keys out in their normalized form.
+   */
+  static class NormalizedSerializer<T> implements Serializer<T> {
+    private final SailfishKeyNormalizer<T> normalizer;
+    private DataOutputStream dataOut;
+
+    NormalizedSerializer(SailfishKeyNormalizer<T> normalizer) {
+      this.normalizer = normalizer;
+    }
+
+    public void open(OutputStream out) {
+      if (out instanceof DataOutputStream) {
+        dataOut = (DataOutputStream) out;
+      } else {
+        dataOut = new DataOutputStream(out);
+      }
+    }
+
+    public void serialize(T w) throws IOException {
+      normalizer.normalize(w, dataOut);
+    }
+
+    public void close() throws IOException {
+      dataOut.close();
+    }
+  }
+
+  static class NormalizedDeserializer<T> implements Deserializer<T> {
+    private final SailfishKeyNormalizer<T> normalizer;
+    private DataInputBuffer dataIn;
+
+    NormalizedDeserializer(SailfishKeyNormalizer<T> normalizer) {
+      this.normalizer = normalizer;
+    }
+
+    public void open(InputStream in) {
+      if (in instanceof DataInputBuffer) {
+        dataIn = (DataInputBuffer) in;
+      }
+    }
+
+    public T deserialize(T w) throws IOException {
+      if (dataIn == null)
+        throw new IOException("dataIn is not initialized");
+      // the data is in the buffer, starting at the current position
+      return normalizer.denormalize(w, dataIn.getData(), dataIn.getPosition(),
+          dataIn.getLength() - dataIn.getPosition());
+    }
+
+    public void close() throws IOException {
+      dataIn.close();
+    }
+  }
   
   static class SailfishDeserializer<T extends BinaryComparable> extends Configured implements Deserializer<T> {
 
@@ -171,8 +278,9 @@ public class SailfishSerialization<K extends BinaryComparable> extends Configure
       } else {
         writable = w;
       }
-      // the data is in the buffer
-      writable.set(dataIn.getData(), 0, dataIn.getLength());
+      // the data is in the buffer, starting at the current position
+      writable.set(dataIn.getData(), dataIn.getPosition(),
+          dataIn.getLength() - dataIn.getPosition());
       return writable;
     }
 
@@ -183,34 +291,16 @@ public class SailfishSerialization<K extends BinaryComparable> extends Configure
   }
   
   static class PigSailfishDeserializer<T> extends Configured implements Deserializer<T> {
-    private final Field mValue;
-    private final Field mIndex;
-    private final Field mNull;
-
-    private final Class<T> keyClass;
+    private final PigKeyFormat format;
     private final Class<T> actualKeyClass;
     
     private DataInputBuffer dataIn;
     
-    @SuppressWarnings("unchecked")
-    public PigSailfishDeserializer(Configuration conf, Class<T> c) {
-      if (null == pigNullableBytesWritableClass) {
-        throw new RuntimeException("Pig classes not found on classpath");
-      }
-
-      try {
-        keyClass = (Class<T>)
-          Class.forName("org.apache.pig.impl.io.PigNullableWritable");
-        mValue = keyClass.getDeclaredField("mValue");
-        mValue.setAccessible(true);
-        mIndex = keyClass.getDeclaredField("mIndex");
-        mIndex.setAccessible(true);
-        mNull = keyClass.getDeclaredField("mNull");
-        mNull.setAccessible(true);
-        actualKeyClass = c;
-      } catch (Exception e) {
-        throw new RuntimeException("Internal error", e);
-      }
+    public PigSailfishDeserializer(Configuration conf, Class<T> c,
+        PigKeyFormat format) {
+      setConf(conf);
+      actualKeyClass = c;
+      this.format = format;
     }
     
     public void open(InputStream in) {
@@ -230,23 +320,9 @@ public class SailfishSerialization<K extends BinaryComparable> extends Configure
       } else {
         writable = w;
       }
-      if (!keyClass.isAssignableFrom(writable.getClass())) {
-        throw new IOException("Expected " + keyClass + " found " + writable.getClass());
-      }
- 
-      // TODO inner type
-      // the data is in the buffer
-      try {
-        boolean bNull = dataIn.readBoolean();
-        mNull.set(writable, bNull);
-        if (!bNull) {
-          BinaryComparable bc = (BinaryComparable) mValue.get(writable);
-          bc.set(dataIn.getData(), dataIn.getPosition(), dataIn.getLength() - 1);
-        }
-        mIndex.set(writable, dataIn.readByte());
-      } catch (IllegalAccessException e) {
-        throw new IOException("Internal error", e);
-      }
+      // the data is in the buffer, starting at the current position
+      format.readFields((Writable) writable, dataIn.getData(),
+          dataIn.getPosition(), dataIn.getLength() - dataIn.getPosition());
       return writable;
     }
 
@@ -257,10 +333,17 @@ public class SailfishSerialization<K extends BinaryComparable> extends Configure
 
 
   
+  public SailfishSerialization() {
+  }
+
+  public SailfishSerialization(Configuration conf) {
+    super(conf);
+  }
+
   @Override
   public boolean accept(Class<?> c) {
-    return c.isAssignableFrom(BinaryComparable.class) ||
-           isPigKeyClass(c);
+    return isPigKeyClass(c) || BinaryComparable.class.isAssignableFrom(c) ||
+           (SailfishKeyNormalizers.getNormalizer(getConf(), c) != null);
   }
 
   public static boolean isPigKeyClass(Class<?> c) {
@@ -269,18 +352,79 @@ public class SailfishSerialization<K extends BinaryComparable> extends Configure
             pigNullableTextClass.isAssignableFrom(c) ||
             pigNullableTupleClass.isAssignableFrom(c) ));
   }
+  /**
+   * Comparator that orders serialized keys the way the imerger does: memcmp
+   * on the bytes, except for pig keys, which carry a null flag and an index.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> RawComparator<T> getRawComparator(Class<?> c) {
+    return (RawComparator<T>) (isPigKeyClass(c)
+      ? new PigRawComparator()
+      : new MemcmpRawComparator());
+  }
+
+  static class MemcmpRawComparator implements RawComparator<Object> {
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      return WritableComparator.compareBytes(b1, s1, l1, b2, s2, l2);
+    }
+    @Override
+    public int compare(Object k1, Object k2) {
+      throw new UnsupportedOperationException("Internal error");
+    }
+  }
+
+  static class PigRawComparator implements RawComparator<Object> {
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      if (b1[s1] == 0 && b2[s2] == 0) {
+        // both non-null; ignore index byte
+        return WritableComparator.compareBytes(b1, s1, l1 - 1, b2, s2, l2 - 1);
+      }
+      if (b1[s1] != 0 && b2[s2] != 0) {
+        // both null; compare by index
+        final byte idxSpace = 0x7F;
+        if ((b1[s1 + 1] & idxSpace) < (b2[s2 + 1] & idxSpace)) return -1;
+        else if ((b1[s1 + 1] & idxSpace) > (b2[s2 + 1] & idxSpace)) return 1;
+        else return 0;
+      }
+      if (b1[s1] != 0) {
+        return -1;
+      }
+      return 1;
+    }
+    @Override
+    public int compare(Object k1, Object k2) {
+      throw new UnsupportedOperationException("Internal error");
+    }
+  }
+
   @Override
   public Serializer<K> getSerializer(Class<K> c) {
-    return isPigKeyClass(c)
-      ? new PigSailfishSerializer<K>()
-      : new SailfishSerializer<K>();
+    if (isPigKeyClass(c)) {
+      return new PigSailfishSerializer<K>(new PigKeyFormat(c));
+    }
+    SailfishKeyNormalizer<K> normalizer =
+      SailfishKeyNormalizers.getNormalizer(getConf(), c);
+    if (normalizer != null) {
+      return new NormalizedSerializer<K>(normalizer);
+    }
+    // the bytes of a BinaryComparable are written as is
+    return new SailfishSerializer<K>();
   }
 
   @Override
   public Deserializer<K> getDeserializer(Class<K> c) {
-    return isPigKeyClass(c)
-      ? new PigSailfishDeserializer<K>(getConf(), c)
-      : new SailfishDeserializer<K>(getConf(), c);
+    if (isPigKeyClass(c)) {
+      return new PigSailfishDeserializer<K>(getConf(), c,
+          new PigKeyFormat(c));
+    }
+    SailfishKeyNormalizer<K> normalizer =
+      SailfishKeyNormalizers.getNormalizer(getConf(), c);
+    if (normalizer != null) {
+      return new NormalizedDeserializer<K>(normalizer);
+    }
+    return new SailfishDeserializer<K>(getConf(), c);
   }
 
 }
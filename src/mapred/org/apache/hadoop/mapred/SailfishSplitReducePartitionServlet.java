@@ -0,0 +1,108 @@
+/**
+ * Copyright 2010 Yahoo Corporation.  All rights reserved.
+ * This file is part of the Sailfish project.
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ */
+
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * A servlet that the workbuilder uses to split a skewed partition of a
+ * sailfish job into key ranges, so that several reduce tasks share the work:
+ *   /splitreducepartition?jobid=<jobid>&partition=<p>&splits=<key>,<key>,...
+ * where the split keys are hex encoded and sorted.
+ * @author sriramr
+ *
+ */
+public class SailfishSplitReducePartitionServlet extends HttpServlet {
+  private static final long serialVersionUID = 237485736282794L;
+
+  @Override
+  // XXX: Should be a Post(); however, getting post with libcurl is a pain
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+  throws ServletException, IOException {
+    OutputStream out = response.getOutputStream();
+    ServletContext context = getServletContext();
+    JobTracker tracker = (JobTracker) context.getAttribute("job.tracker");
+
+    String requestJobID = request.getParameter("jobid");
+    String partitionParam = request.getParameter("partition");
+    String splitsParam = request.getParameter("splits");
+    if ((requestJobID == null) || (partitionParam == null) ||
+        (splitsParam == null)) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                           "Arguments jobid, partition and splits are required");
+        return;
+    }
+    int partition;
+    byte[][] splitKeys;
+    try {
+      partition = Integer.parseInt(partitionParam);
+      splitKeys = parseSplitKeys(splitsParam);
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "Bad argument: " + e.getMessage());
+      return;
+    }
+
+    // splitReducePartition() takes the job's lock; the tracker's isn't needed
+    String outString = null;
+    JobID jobIdObj = JobID.forName(requestJobID);
+    JobInProgress job = tracker.getJob(jobIdObj);
+    if (job == null) {
+      outString = requestJobID + ":" + "NOTFOUND";
+    } else {
+      boolean result = job.splitReducePartition(partition, splitKeys);
+      outString = requestJobID + ":" + (result ? "SUCCEEDED" : "FAILED");
+    }
+    out.write(outString.getBytes());
+
+    out.close();
+  }
+
+  /**
+   * Decode the comma separated, hex encoded split keys.
+   * @throws NumberFormatException if a key is empty, has an odd # of digits
+   * or has something other than hex digits in it
+   */
+  static byte[][] parseSplitKeys(String splits) {
+    String[] hexKeys = splits.split(",", -1);
+    byte[][] splitKeys = new byte[hexKeys.length][];
+    for (int i = 0; i < hexKeys.length; i++) {
+      String hex = hexKeys[i];
+      if ((hex.length() == 0) || (hex.length() % 2 != 0)) {
+        throw new NumberFormatException("Bad split key: \"" + hex + "\"");
+      }
+      for (int j = 0; j < hex.length(); j++) {
+        if ("0123456789abcdefABCDEF".indexOf(hex.charAt(j)) < 0) {
+          throw new NumberFormatException("Bad split key: \"" + hex + "\"");
+        }
+      }
+      splitKeys[i] = StringUtils.hexStringToByte(hex);
+    }
+    return splitKeys;
+  }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2010 Yahoo Corporation.  All rights reserved.
+ * This file is part of the Sailfish project.
+ *
+ * Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ */
+
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpURL;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Client for talking to the workbuilder.  There is one client per workbuilder
+ * per JVM; it holds a pool of connections that is shared by all the tasks
+ * that run in the JVM.
+ *
+ * Failed requests are retried with exponential backoff plus jitter, so that
+ * when the workbuilder hiccups, the tasks that are waiting on it don't all
+ * come back at the same time.
+ *
+ * The mapper start notification is the same for every map of a job, so it
+ * is sent once per job, by the job setup task.
+ * @author sriramr
+ *
+ */
+class SailfishWorkbuilderClient {
+
+  static final private Log LOG =
+    LogFactory.getLog(SailfishWorkbuilderClient.class);
+
+  private static final Map<String, SailfishWorkbuilderClient> clients =
+    new HashMap<String, SailfishWorkbuilderClient>();
+
+  private final String workbuilderHP;
+  private final HttpClient client;
+  private final int maxRetries;
+  private final long minBackoffMs;
+  private final long maxBackoffMs;
+  private final Random random = new Random();
+
+  /**
+   * Get the client for the job's workbuilder.
+   */
+  static synchronized SailfishWorkbuilderClient get(JobConf job) {
+    String workbuilderHP = "http://"
+      + job.get("sailfish.job.workbuilder.host") + ":"
+      + job.get("sailfish.job.workbuilder.port");
+    SailfishWorkbuilderClient c = clients.get(workbuilderHP);
+    if (c == null) {
+      c = new SailfishWorkbuilderClient(workbuilderHP, job);
+      clients.put(workbuilderHP, c);
+    }
+    return c;
+  }
+
+  SailfishWorkbuilderClient(String workbuilderHP, JobConf job) {
+    this.workbuilderHP = workbuilderHP;
+    int maxConnections = job.getInt("sailfish.workbuilder.max.connections", 4);
+    MultiThreadedHttpConnectionManager connectionManager =
+      new MultiThreadedHttpConnectionManager();
+    connectionManager.getParams().setDefaultMaxConnectionsPerHost(
+        maxConnections);
+    connectionManager.getParams().setMaxTotalConnections(maxConnections);
+    this.client = new HttpClient(connectionManager);
+    this.maxRetries = job.getInt("sailfish.workbuilder.max.retries", 8);
+    this.minBackoffMs = job.getLong("sailfish.workbuilder.backoff.min.ms", 500);
+    this.maxBackoffMs = job.getLong("sailfish.workbuilder.backoff.max.ms",
+        30 * 1000);
+  }
+
+  /**
+   * Tell the workbuilder that the maps of a job are starting; this is
+   * synchronous.
+   */
+  void notifyMapperStart(String jobname, String debugJobid, int numMaps,
+      int numReduces) throws IOException {
+    HttpURL url = new HttpURL(workbuilderHP);
+    url.setPath("/mapperstart/");
+    url.setQuery(new String[] { "jobid", "debugid", "m", "r" },
+        new String[] { jobname, debugJobid, Integer.toString(numMaps),
+        Integer.toString(numReduces) });
+    LOG.info("URL to wb = " + url.getQuery());
+    execute(url.toString());
+  }
+
+  /**
+   * Ask the workbuilder to build the plan for a job; this is synchronous.
+   */
+  void buildPlan(String jobname, int partition) throws IOException {
+    HttpURL url = new HttpURL(workbuilderHP);
+    url.setPath("/buildplan/");
+    url.setQuery(new String[] { "jobid", "reducerid" }, new String[] {
+        jobname, Integer.toString(partition) });
+    execute(url.toString());
+  }
+
+  /**
+   * Issue a GET to the workbuilder; connection failures and server errors are
+   * retried with backoff.
+   */
+  void execute(String request) throws IOException {
+    int code = -1;
+    String errorStr = null;
+
+    for (int i = 0; i < maxRetries; i++) {
+      HttpMethod method = new GetMethod(request);
+      try {
+        client.executeMethod(method);
+        code = method.getStatusCode();
+        errorStr = method.getResponseBodyAsString();
+        if (code < 500) {
+          break;
+        }
+      } catch (IOException e) {
+        errorStr = e.toString();
+      } finally {
+        method.releaseConnection();
+      }
+      if (i == maxRetries - 1) {
+        break;
+      }
+      long backoff = getBackoff(i);
+      LOG.info("Workbuilder request failed: " + errorStr + "; retrying in "
+          + backoff + " ms");
+      try {
+        Thread.sleep(backoff);
+      } catch (InterruptedException ie) {
+        throw new IOException("Interrupted while notifying workbuilder", ie);
+      }
+    }
+    if (code != 200) {
+      throw new IOException("unable to notify workbuilder: " + errorStr);
+    }
+  }
+
+  /**
+   * Exponential backoff with "equal jitter": half the delay is fixed and the
+   * other half is random.
+   */
+  private long getBackoff(int attempt) {
+    long backoff = Math.min(maxBackoffMs, minBackoffMs << Math.min(attempt, 20));
+    long half = backoff / 2;
+    synchronized (random) {
+      return half + (long) (random.nextDouble() * (backoff - half));
+    }
+  }
+}
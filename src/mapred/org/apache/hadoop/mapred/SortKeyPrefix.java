@@ -0,0 +1,34 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+/**
+ * Computes a fixed width prefix of a serialized map output key, which the
+ * map-side sort compares before it falls back to the key comparator.  For
+ * any two keys a and b, prefix(a) &lt; prefix(b) must imply that the
+ * comparator puts a before b; keys with equal prefixes are compared with
+ * the comparator.
+ * 
+ * @see SortKeyPrefixes
+ */
+public interface SortKeyPrefix {
+  /**
+   * Get the prefix of the serialized key in b[s, s + l).
+   */
+  int getPrefix(byte[] b, int s, int l);
+}
@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * The built-in {@link SortKeyPrefix}es.
+ */
+public class SortKeyPrefixes {
+
+  /**
+   * Get the key prefix for the sort and merges of a job: the one in
+   * "map.sort.key.prefix.class" if set, else a built-in one if the job
+   * sorts its keys with the default comparator of Text or BytesWritable.
+   * @return null if the keys don't have a prefix
+   */
+  public static SortKeyPrefix getSortKeyPrefix(Configuration job,
+                                               RawComparator<?> comparator) {
+    Class<? extends SortKeyPrefix> prefixClass =
+      job.getClass("map.sort.key.prefix.class", null, SortKeyPrefix.class);
+    if (prefixClass != null) {
+      return ReflectionUtils.newInstance(prefixClass, job);
+    }
+    if (comparator.getClass() == Text.Comparator.class) {
+      return new TextPrefix();
+    }
+    if (comparator.getClass() == BytesWritable.Comparator.class) {
+      return new BytesWritablePrefix();
+    }
+    return null;
+  }
+
+  /**
+   * Get the key prefix for a merge: only if the job asks for key prefixes
+   * ("map.sort.key.prefix") and the merge is by the job's output key
+   * comparator, which is the order that the job's prefix is meant for.
+   * @return null if the merge is to go without prefixes
+   */
+  public static SortKeyPrefix getMergeKeyPrefix(Configuration conf,
+                                                RawComparator<?> comparator) {
+    if (!conf.getBoolean("map.sort.key.prefix", false)) {
+      return null;
+    }
+    JobConf job = (conf instanceof JobConf) ? (JobConf) conf
+                                            : new JobConf(conf);
+    if (comparator.getClass() != job.getOutputKeyComparator().getClass()) {
+      return null;
+    }
+    return getSortKeyPrefix(job, comparator);
+  }
+
+  /**
+   * The first 4 bytes of b[s, s + l), zero padded, such that signed int
+   * order is the unsigned lexicographic order of the bytes.
+   */
+  public static int getBytesPrefix(byte[] b, int s, int l) {
+    int prefix = 0;
+    for (int i = 0; i < 4; i++) {
+      prefix <<= 8;
+      if (i < l) {
+        prefix |= b[s + i] & 0xff;
+      }
+    }
+    return prefix ^ 0x80000000;
+  }
+
+  /** Text: the bytes after the vint length */
+  public static class TextPrefix implements SortKeyPrefix {
+    public int getPrefix(byte[] b, int s, int l) {
+      int n = WritableUtils.decodeVIntSize(b[s]);
+      return getBytesPrefix(b, s + n, l - n);
+    }
+  }
+
+  /** BytesWritable: the bytes after the int length */
+  public static class BytesWritablePrefix implements SortKeyPrefix {
+    public int getPrefix(byte[] b, int s, int l) {
+      return getBytesPrefix(b, s + 4, l - 4);
+    }
+  }
+}
@@ -833,6 +833,10 @@ abstract public class Task implements Writable, Configurable { // !#! Sriram: ch
     // do the setup
     getProgress().setStatus("setup");
     committer.setupJob(jobContext);
+    if (conf.getBoolean("sailfish.mapred.job.use_ifile", false)) {
+      // one mapper start notification for the whole job
+      SailfishMapRunner.notifyWorkbuilder(conf);
+    }
     done(umbilical, reporter);
   }
   
@@ -0,0 +1,168 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The JobTracker's table of the task attempts that it knows of: which TIP
+ * each attempt belongs to, the tracker that it was assigned to and, per
+ * tracker, the attempts assigned to it.
+ *
+ * Attempts are grouped by job; within a job an attempt is keyed by a long
+ * made of the task type, the task number and the attempt number, so a
+ * lookup hashes the JobID once and then only compares longs.  Retiring a
+ * job drops its group in one go.  All the methods are safe to call
+ * without the JobTracker lock.
+ */
+class TaskAttemptTable {
+
+  private static class Attempt {
+    final TaskAttemptID id;
+    final TaskInProgress tip;
+    final String tracker;
+
+    Attempt(TaskAttemptID id, TaskInProgress tip, String tracker) {
+      this.id = id;
+      this.tip = tip;
+      this.tracker = tracker;
+    }
+  }
+
+  // (jobid --> (compact attempt id --> attempt))
+  private final ConcurrentMap<JobID, ConcurrentMap<Long, Attempt>> jobs =
+    new ConcurrentHashMap<JobID, ConcurrentMap<Long, Attempt>>();
+
+  // (trackerID --> attempts assigned to that tracker)
+  private final ConcurrentMap<String, Set<TaskAttemptID>> trackers =
+    new ConcurrentHashMap<String, Set<TaskAttemptID>>();
+
+  /**
+   * The compact form of an attempt id within its job: the map bit, then
+   * the task number, then the attempt number.
+   */
+  static long getCompactId(TaskAttemptID id) {
+    TaskID tipId = id.getTaskID();
+    return (tipId.isMap() ? Long.MIN_VALUE : 0L) |
+           ((long) (tipId.getId() & Integer.MAX_VALUE) << 32) |
+           (id.getId() & 0xffffffffL);
+  }
+
+  void add(TaskAttemptID id, String tracker, TaskInProgress tip) {
+    JobID jobId = id.getJobID();
+    ConcurrentMap<Long, Attempt> attempts = jobs.get(jobId);
+    if (attempts == null) {
+      attempts = new ConcurrentHashMap<Long, Attempt>();
+      ConcurrentMap<Long, Attempt> prev = jobs.putIfAbsent(jobId, attempts);
+      if (prev != null) {
+        attempts = prev;
+      }
+    }
+    Attempt prev =
+      attempts.put(getCompactId(id), new Attempt(id, tip, tracker));
+    if (prev != null && prev.tracker != null &&
+        !prev.tracker.equals(tracker)) {
+      removeFromTracker(prev.tracker, id);
+    }
+    if (tracker != null) {
+      Set<TaskAttemptID> set = trackers.get(tracker);
+      if (set == null) {
+        set = Collections.newSetFromMap(
+            new ConcurrentHashMap<TaskAttemptID, Boolean>());
+        Set<TaskAttemptID> prevSet = trackers.putIfAbsent(tracker, set);
+        if (prevSet != null) {
+          set = prevSet;
+        }
+      }
+      set.add(id);
+    }
+  }
+
+  private Attempt get(TaskAttemptID id) {
+    ConcurrentMap<Long, Attempt> attempts = jobs.get(id.getJobID());
+    if (attempts == null) {
+      return null;
+    }
+    return attempts.get(getCompactId(id));
+  }
+
+  /** @return the TIP of the attempt, or null if it isn't known */
+  TaskInProgress getTIP(TaskAttemptID id) {
+    Attempt attempt = get(id);
+    return (attempt == null) ? null : attempt.tip;
+  }
+
+  /** @return the tracker the attempt was assigned to, or null */
+  String getTracker(TaskAttemptID id) {
+    Attempt attempt = get(id);
+    return (attempt == null) ? null : attempt.tracker;
+  }
+
+  /**
+   * @return the attempts assigned to the tracker; the set is live, and
+   * safe to iterate while attempts are added or removed
+   */
+  Set<TaskAttemptID> getAttempts(String tracker) {
+    return trackers.get(tracker);
+  }
+
+  void remove(TaskAttemptID id) {
+    ConcurrentMap<Long, Attempt> attempts = jobs.get(id.getJobID());
+    if (attempts == null) {
+      return;
+    }
+    Attempt attempt = attempts.remove(getCompactId(id));
+    if (attempt != null && attempt.tracker != null) {
+      removeFromTracker(attempt.tracker, attempt.id);
+    }
+  }
+
+  /**
+   * Forget the tracker's list of attempts; the attempts themselves are
+   * still known until they, or their job, are removed.
+   * @return the attempts that were assigned to the tracker, or null
+   */
+  Set<TaskAttemptID> removeTracker(String tracker) {
+    return trackers.remove(tracker);
+  }
+
+  /**
+   * Remove all the attempts of a job.
+   */
+  void removeJob(JobID jobId) {
+    ConcurrentMap<Long, Attempt> attempts = jobs.remove(jobId);
+    if (attempts == null) {
+      return;
+    }
+    for (Attempt attempt : attempts.values()) {
+      if (attempt.tracker != null) {
+        removeFromTracker(attempt.tracker, attempt.id);
+      }
+    }
+  }
+
+  private void removeFromTracker(String tracker, TaskAttemptID id) {
+    Set<TaskAttemptID> set = trackers.get(tracker);
+    if (set != null) {
+      set.remove(id);
+    }
+  }
+}
@@ -24,6 +24,7 @@ import java.io.IOException;
 
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.net.NetworkTopology;
 
 /**
  * This is used to track task completion events on 
@@ -34,6 +35,8 @@ public class TaskCompletionEvent implements Writable{
     
   private int eventId; 
   private String taskTrackerHttp;
+  private String taskTrackerRack = NetworkTopology.DEFAULT_RACK;
+  private long mapOutputSize = -1;
   private int taskRunTime; // using int since runtime is the time difference
   private TaskAttemptID taskId;
   Status status; 
@@ -112,6 +115,23 @@ public class TaskCompletionEvent implements Writable{
     return taskTrackerHttp;
   }
 
+  /**
+   * The rack of the tasktracker where this task ran, as the jobtracker
+   * resolved it.
+   * @return the network location of the tasktracker
+   */
+  public String getTaskTrackerRack() {
+    return taskTrackerRack;
+  }
+
+  /**
+   * The size of a successful map's output, as the task reported it.
+   * @return the # of bytes of map output, or -1 if not known
+   */
+  public long getMapOutputSize() {
+    return mapOutputSize;
+  }
+
   /**
    * Returns time (in millisec) the task took to complete. 
    */
@@ -169,6 +189,22 @@ public class TaskCompletionEvent implements Writable{
                                  String taskTrackerHttp) {
     this.taskTrackerHttp = taskTrackerHttp;
   }
+
+  /**
+   * Set the rack of the task tracker.
+   * @param taskTrackerRack
+   */
+  public void setTaskTrackerRack(String taskTrackerRack) {
+    this.taskTrackerRack = taskTrackerRack;
+  }
+
+  /**
+   * Set the size of the map's output.
+   * @param mapOutputSize
+   */
+  public void setMapOutputSize(long mapOutputSize) {
+    this.mapOutputSize = mapOutputSize;
+  }
     
   @Override
   public String toString(){
@@ -192,7 +228,9 @@ public class TaskCompletionEvent implements Writable{
              && this.status.equals(event.getTaskStatus())
              && this.taskId.equals(event.getTaskAttemptId()) 
              && this.taskRunTime == event.getTaskRunTime()
-             && this.taskTrackerHttp.equals(event.getTaskTrackerHttp());
+             && this.taskTrackerHttp.equals(event.getTaskTrackerHttp())
+             && this.taskTrackerRack.equals(event.getTaskTrackerRack())
+             && this.mapOutputSize == event.getMapOutputSize();
     }
     return false;
   }
@@ -218,6 +256,8 @@ public class TaskCompletionEvent implements Writable{
     out.writeBoolean(isMap);
     WritableUtils.writeEnum(out, status); 
     WritableUtils.writeString(out, taskTrackerHttp);
+    WritableUtils.writeString(out, taskTrackerRack);
+    WritableUtils.writeVLong(out, mapOutputSize);
     WritableUtils.writeVInt(out, taskRunTime);
     WritableUtils.writeVInt(out, eventId);
   }
@@ -228,6 +268,8 @@ public class TaskCompletionEvent implements Writable{
     isMap = in.readBoolean();
     status = WritableUtils.readEnum(in, Status.class);
     taskTrackerHttp = WritableUtils.readString(in);
+    taskTrackerRack = WritableUtils.readString(in);
+    mapOutputSize = WritableUtils.readVLong(in);
     taskRunTime = WritableUtils.readVInt(in);
     eventId = WritableUtils.readVInt(in);
   }
@@ -88,6 +88,10 @@ class TaskInProgress {
    
   // The 'next' usable taskid of this tip
   int nextTaskId = 0;
+
+  // For a sailfish reduce, the slice of the I-file that it works on; null
+  // means the whole I-file for the partition with the same id as this tip
+  private SailfishReduceKeyRange keyRange = null;
     
   // The taskid that took this TIP to SUCCESS
   private TaskAttemptID successfulTaskId;
@@ -270,6 +274,22 @@ class TaskInProgress {
   public JobInProgress getJob() {
     return job;
   }
+  /**
+   * Set the slice of the I-file that this (reduce) tip works on.
+   * @return false if it is too late, i.e., the tip has already been run
+   */
+  synchronized boolean setKeyRange(SailfishReduceKeyRange keyRange) {
+    if (nextTaskId > 0) {
+      return false;
+    }
+    this.keyRange = keyRange;
+    return true;
+  }
+
+  SailfishReduceKeyRange getKeyRange() {
+    return keyRange;
+  }
+
   /**
    * Return an ID for this task, not its component taskid-threads
    */
@@ -931,6 +951,9 @@ class TaskInProgress {
       t = new MapTask(jobFile, taskid, partition, splitClass, split);
     } else {
       t = new ReduceTask(jobFile, taskid, partition, numMaps);
+      if (keyRange != null) {
+        ((ReduceTask) t).setKeyRange(keyRange);
+      }
     }
     if (jobCleanup) {
       t.setJobCleanupTask();
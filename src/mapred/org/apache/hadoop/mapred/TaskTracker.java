@@ -61,7 +61,10 @@ import org.apache.hadoop.fs.LocalDirAllocator;
 import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.http.HttpServer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.ipc.RPC;
 import org.apache.hadoop.ipc.RemoteException;
 import org.apache.hadoop.ipc.Server;
@@ -240,7 +243,7 @@ public class TaskTracker
    * the specific metrics for shuffle. The TaskTracker is actually a server for
    * the shuffle and hence the name ShuffleServerMetrics.
    */
-  private class ShuffleServerMetrics implements Updater {
+  class ShuffleServerMetrics implements Updater {
     private MetricsRecord shuffleMetricsRecord = null;
     private int serverHandlerBusy = 0;
     private long outputBytes = 0;
@@ -893,6 +896,15 @@ public class TaskTracker
     }
   }
 
+  /**
+   * A task tracker that isn't started, for testing the servlets.
+   */
+  TaskTracker(JobConf conf, IndexCache indexCache) {
+    this.fConf = conf;
+    this.indexCache = indexCache;
+    this.server = null;
+  }
+
   /**
    * Start with the local machine name, and the default JobTracker
    */
@@ -2845,11 +2857,29 @@ public class TaskTracker
   public static class MapOutputServlet extends HttpServlet {
     private static final long serialVersionUID = 1L;
     private static final int MAX_BYTES_TO_READ = 64 * 1024;
+    // the copy buffers of the (long lived) jetty threads
+    private static final ThreadLocal<byte[]> copyBuffer =
+      new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+          return new byte[MAX_BYTES_TO_READ];
+        }
+      };
+
+    /**
+     * Serve the outputs of one or more maps for a reduce.  With one map (the
+     * usual case), the lengths are in the http headers and the body is the
+     * map output.  With several maps ("map=<id>,<id>,..."), the body is a
+     * sequence of segments; each one is a header (map id, raw length, length
+     * and reduce) followed by the map output.  Map outputs that can't be
+     * found are left out; the Map-Output-Count header has the number of
+     * segments.
+     */
     @Override
     public void doGet(HttpServletRequest request, 
                       HttpServletResponse response
                       ) throws ServletException, IOException {
-      String mapId = request.getParameter("map");
+      String mapIds = request.getParameter("map");
       String reduceId = request.getParameter("reduce");
       String jobId = request.getParameter("job");
 
@@ -2857,12 +2887,15 @@ public class TaskTracker
         throw new IOException("job parameter is required");
       }
 
-      if (mapId == null || reduceId == null) {
+      if (mapIds == null || reduceId == null) {
         throw new IOException("map and reduce parameters are required");
       }
       ServletContext context = getServletContext();
       int reduce = Integer.parseInt(reduceId);
-      byte[] buffer = new byte[MAX_BYTES_TO_READ];
+      String[] requestedMaps = mapIds.split(",");
+      boolean batch = requestedMaps.length > 1;
+      // the map whose output is being accessed
+      String mapId = null;
       // true iff IOException was caused by attempt to access input
       boolean isInputException = true;
       OutputStream outStream = null;
@@ -2883,81 +2916,151 @@ public class TaskTracker
         FileSystem rfs = ((LocalFileSystem)
             context.getAttribute("local.file.system")).getRaw();
 
-        // Index file
-        Path indexFileName = lDirAlloc.getLocalPathToRead(
-            TaskTracker.getIntermediateOutputDir(jobId, mapId)
-            + "/file.out.index", conf);
-        
-        // Map-output file
-        Path mapOutputFileName = lDirAlloc.getLocalPathToRead(
-            TaskTracker.getIntermediateOutputDir(jobId, mapId)
-            + "/file.out", conf);
-
-        /**
-         * Read the index file to get the information about where
-         * the map-output for the given reducer is available. 
-         */
-        IndexRecord info = 
-          tracker.indexCache.getIndexInformation(mapId, reduce,indexFileName);
-          
-        //set the custom "from-map-task" http header to the map task from which
-        //the map output data is being transferred
-        response.setHeader(FROM_MAP_TASK, mapId);
-        
-        //set the custom "Raw-Map-Output-Length" http header to 
-        //the raw (decompressed) length
-        response.setHeader(RAW_MAP_OUTPUT_LENGTH,
-            Long.toString(info.rawLength));
+        List<String> maps = new ArrayList<String>(requestedMaps.length);
+        List<Path> mapOutputFileNames =
+          new ArrayList<Path>(requestedMaps.length);
+        List<IndexRecord> infos =
+          new ArrayList<IndexRecord>(requestedMaps.length);
+        for (String requestedMap : requestedMaps) {
+          mapId = requestedMap;
+          try {
+            // Index file
+            Path indexFileName = lDirAlloc.getLocalPathToRead(
+                TaskTracker.getIntermediateOutputDir(jobId, mapId)
+                + "/file.out.index", conf);
+
+            // Map-output file
+            Path mapOutputFileName = lDirAlloc.getLocalPathToRead(
+                TaskTracker.getIntermediateOutputDir(jobId, mapId)
+                + "/file.out", conf);
+
+            /**
+             * Read the index file to get the information about where
+             * the map-output for the given reducer is available. 
+             */
+            infos.add(tracker.indexCache.getIndexInformation(mapId, reduce,
+                indexFileName));
+            maps.add(mapId);
+            mapOutputFileNames.add(mapOutputFileName);
+          } catch (IOException ie) {
+            if (!batch) {
+              throw ie;
+            }
+            // leave it out; the reduce will notice that it is missing
+            String errorMsg = ("getMapOutput(" + mapId + "," + reduceId +
+                               ") failed :\n" +
+                               StringUtils.stringifyException(ie));
+            ((Log) context.getAttribute("log")).warn(errorMsg);
+            tracker.mapOutputLost(TaskAttemptID.forName(mapId), errorMsg);
+          }
+        }
+        mapId = null;
+
+        // the segment headers of a batch
+        DataOutputBuffer segmentHeaders = new DataOutputBuffer();
+        int[] segmentHeaderEnds = new int[maps.size()];
+        long contentLength = 0;
+        for (int i = 0; i < maps.size(); i++) {
+          IndexRecord info = infos.get(i);
+          if (batch) {
+            Text.writeString(segmentHeaders, maps.get(i));
+            WritableUtils.writeVLong(segmentHeaders, info.rawLength);
+            WritableUtils.writeVLong(segmentHeaders, info.partLength);
+            WritableUtils.writeVInt(segmentHeaders, reduce);
+            segmentHeaderEnds[i] = segmentHeaders.getLength();
+          }
+          contentLength += info.partLength;
+        }
+        contentLength += segmentHeaders.getLength();
 
-        //set the custom "Map-Output-Length" http header to 
-        //the actual number of bytes being transferred
-        response.setHeader(MAP_OUTPUT_LENGTH,
-            Long.toString(info.partLength));
+        if (batch) {
+          response.setHeader(MAP_OUTPUT_COUNT, Integer.toString(maps.size()));
+        } else {
+          IndexRecord info = infos.get(0);
+
+          //set the custom "from-map-task" http header to the map task from which
+          //the map output data is being transferred
+          response.setHeader(FROM_MAP_TASK, maps.get(0));
+        
+          //set the custom "Raw-Map-Output-Length" http header to 
+          //the raw (decompressed) length
+          response.setHeader(RAW_MAP_OUTPUT_LENGTH,
+              Long.toString(info.rawLength));
+
+          //set the custom "Map-Output-Length" http header to 
+          //the actual number of bytes being transferred
+          response.setHeader(MAP_OUTPUT_LENGTH,
+              Long.toString(info.partLength));
+        }
 
         //set the custom "for-reduce-task" http header to the reduce task number
         //for which this map output is being transferred
         response.setHeader(FOR_REDUCE_TASK, Integer.toString(reduce));
-        
+        response.setHeader("Content-Length", Long.toString(contentLength));
+
         //use the same buffersize as used for reading the data from disk
         response.setBufferSize(MAX_BYTES_TO_READ);
-        
-        /**
-         * Read the data from the sigle map-output file and
-         * send it to the reducer.
-         */
-        //open the map-output file
-        mapOutputIn = rfs.open(mapOutputFileName);
-
-        //seek to the correct offset for the reduce
-        mapOutputIn.seek(info.startOffset);
-        long rem = info.partLength;
-        int len =
-          mapOutputIn.read(buffer, 0, (int)Math.min(rem, MAX_BYTES_TO_READ));
-        while (rem > 0 && len >= 0) {
-          rem -= len;
-          try {
-            shuffleMetrics.outputBytes(len);
-            outStream.write(buffer, 0, len);
-            outStream.flush();
-          } catch (IOException ie) {
+        byte[] buffer = copyBuffer.get();
+
+        for (int i = 0; i < maps.size(); i++) {
+          mapId = maps.get(i);
+          IndexRecord info = infos.get(i);
+          Path mapOutputFileName = mapOutputFileNames.get(i);
+          isInputException = true;
+
+          if (batch) {
+            int headerStart = (i == 0) ? 0 : segmentHeaderEnds[i - 1];
+            int headerLength = segmentHeaderEnds[i] - headerStart;
             isInputException = false;
-            throw ie;
+            outStream.write(segmentHeaders.getData(), headerStart,
+                headerLength);
+            isInputException = true;
           }
-          totalRead += len;
-          len =
+
+          /**
+           * Read the data from the sigle map-output file and
+           * send it to the reducer.
+           */
+          //open the map-output file
+          mapOutputIn = rfs.open(mapOutputFileName);
+
+          //seek to the correct offset for the reduce
+          mapOutputIn.seek(info.startOffset);
+          long rem = info.partLength;
+          int len =
             mapOutputIn.read(buffer, 0, (int)Math.min(rem, MAX_BYTES_TO_READ));
-        }
+          while (rem > 0 && len >= 0) {
+            rem -= len;
+            try {
+              shuffleMetrics.outputBytes(len);
+              outStream.write(buffer, 0, len);
+              outStream.flush();
+            } catch (IOException ie) {
+              isInputException = false;
+              throw ie;
+            }
+            totalRead += len;
+            len =
+              mapOutputIn.read(buffer, 0, (int)Math.min(rem, MAX_BYTES_TO_READ));
+          }
+          mapOutputIn.close();
+          mapOutputIn = null;
 
-        LOG.info("Sent out " + totalRead + " bytes for reduce: " + reduce + 
-                 " from map: " + mapId + " given " + info.partLength + "/" + 
-                 info.rawLength);
+          LOG.info("Sent out " + info.partLength + " bytes for reduce: " +
+                   reduce + " from map: " + mapId + " given " +
+                   info.partLength + "/" + info.rawLength);
+        }
+        if (batch) {
+          LOG.info("Sent out " + totalRead + " bytes of " + maps.size() +
+                   " map outputs for reduce: " + reduce);
+        }
       } catch (IOException ie) {
         Log log = (Log) context.getAttribute("log");
-        String errorMsg = ("getMapOutput(" + mapId + "," + reduceId + 
+        String errorMsg = ("getMapOutput(" + mapIds + "," + reduceId + 
                            ") failed :\n"+
                            StringUtils.stringifyException(ie));
         log.warn(errorMsg);
-        if (isInputException) {
+        if (isInputException && mapId != null) {
           tracker.mapOutputLost(TaskAttemptID.forName(mapId), errorMsg);
         }
         response.sendError(HttpServletResponse.SC_GONE, errorMsg);
@@ -2972,7 +3075,7 @@ public class TaskTracker
           ClientTraceLog.info(String.format(MR_CLIENTTRACE_FORMAT,
                 request.getLocalAddr() + ":" + request.getLocalPort(),
                 request.getRemoteAddr() + ":" + request.getRemotePort(),
-                totalRead, "MAPRED_SHUFFLE", mapId));
+                totalRead, "MAPRED_SHUFFLE", mapIds));
         }
       }
       outStream.close();
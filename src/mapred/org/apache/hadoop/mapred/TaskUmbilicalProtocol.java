@@ -54,9 +54,13 @@ interface TaskUmbilicalProtocol extends VersionedProtocol {
    * Version 14 changed the getTask method signature for HADOOP-4232
    * Version 15 Adds FAILED_UNCLEAN and KILLED_UNCLEAN states for HADOOP-4759
    * Version 16 Added fatalError for child to communicate fatal errors to TT
+   * Version 17 ReduceTask, as returned by getTask, carries the sailfish key
+   *            range that the reduce works on
+   * Version 18 TaskCompletionEvent carries the rack of the tasktracker
+   *            and the size of the map output
    * */
 
-  public static final long versionID = 16L;
+  public static final long versionID = 18L;
   
   /**
    * Called when a child task process starts, to get its task.
@@ -144,8 +144,8 @@ public class Mapper<KEYIN, VALUEIN, KEYOUT, VALUEOUT> {
     sailfishSetupHelper = new org.apache.hadoop.mapred.SailfishMapRunner.SetupHelper();
     sailfishSetupHelper.setup(context.conf);
     
-    ((org.apache.hadoop.mapred.SailfishMapCollector<KEYOUT, VALUEOUT>) collector)
-        .setOutputStream(sailfishSetupHelper.iappender.getOutputStream());
+    sailfishSetupHelper.connect(
+        (org.apache.hadoop.mapred.SailfishMapCollector<KEYOUT, VALUEOUT>) collector);
     
   }
   public void sailfishClose() throws IOException {
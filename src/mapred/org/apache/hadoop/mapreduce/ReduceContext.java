@@ -26,7 +26,6 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.RawComparator;
-import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.io.serializer.Deserializer;
 import org.apache.hadoop.io.serializer.SerializationFactory;
 import org.apache.hadoop.mapred.RawKeyValueIterator;
@@ -57,6 +56,11 @@ public class ReduceContext<KEYIN,VALUEIN,KEYOUT,VALUEOUT>
   private DataInputBuffer buffer = new DataInputBuffer();
   private BytesWritable currentRawKey = new BytesWritable();
   private ValueIterable iterable = new ValueIterable();
+  // In raw mode, keys are grouped by comparing their bytes; a key is only
+  // deserialized when the reducer asks for it, and values that the reducer
+  // skips over are never deserialized.
+  private boolean rawMode;
+  private boolean keyPending;                         // key not deserialized
 
   @SuppressWarnings("unchecked")
   public ReduceContext(Configuration conf, TaskAttemptID taskid,
@@ -79,11 +83,9 @@ public class ReduceContext<KEYIN,VALUEIN,KEYOUT,VALUEOUT>
     
     if (conf.getBoolean("sailfish.mapred.job.use_ifile", false)) {
       @SuppressWarnings("rawtypes")
-      SailfishSerialization sfs = new SailfishSerialization();
+      SailfishSerialization sfs = new SailfishSerialization(conf);
       this.keyDeserializer = (Deserializer<KEYIN>) sfs.getDeserializer(keyClass);
-      this.comparator = SailfishSerialization.isPigKeyClass(keyClass)
-        ? new Pigcmp()
-        : new Memcmp();
+      this.comparator = SailfishSerialization.getRawComparator(keyClass);
     } else {
       this.keyDeserializer = serializationFactory.getDeserializer(keyClass);
       this.comparator = comparator;
@@ -91,57 +93,14 @@ public class ReduceContext<KEYIN,VALUEIN,KEYOUT,VALUEOUT>
     this.keyDeserializer.open(buffer);
     this.valueDeserializer = serializationFactory.getDeserializer(valueClass);
     this.valueDeserializer.open(buffer);
+    rawMode = conf.getBoolean("sailfish.mapred.reduce.raw_iteration", false);
     hasMore = input.next();
   }
 
-  private class Pigcmp implements RawComparator<KEYIN> {
-    @Override
-    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
-      if (b1[0] == 0 && b2[0] == 0) {
-        // both non-null; ignore index byte
-        return WritableComparator.compareBytes(b1, s1, l1 - 1, b2, s2, l2 - 1);
-      }
-      if (b1[0] != 0 && b2[0] != 0) {
-        // both null; compare by index
-        final byte idxSpace = 0x7F;
-        if ((b1[1] & idxSpace) < (b2[1] & idxSpace)) return -1;
-        else if ((b1[1] & idxSpace) > (b2[1] & idxSpace)) return 1;
-        else return 0;
-      }
-      if (b1[0] != 0) {
-        return -1;
-      }
-      return 1;
-    }
-    @Override
-    public int compare(KEYIN k1, KEYIN k2) {
-      throw new UnsupportedOperationException("Internal error");
-    }
-    @Override
-    public boolean equals(Object o) {
-      throw new UnsupportedOperationException("Internal error");
-    }
-  }
-  
-  private class Memcmp implements RawComparator<KEYIN> {
-    @Override
-    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
-      return WritableComparator.compareBytes(b1, s1, l1, b2, s2, l2);
-    }
-    @Override
-    public int compare(KEYIN k1, KEYIN k2) {
-      throw new UnsupportedOperationException("Internal error");
-    }
-    @Override
-    public boolean equals(Object o) {
-      throw new UnsupportedOperationException("Internal error");
-    }
-  }
-
   /** Start processing next unique key. */
   public boolean nextKey() throws IOException,InterruptedException {
     while (hasMore && nextKeyIsSame) {
-      nextKeyValue();
+      advance(!rawMode);
     }
     if (hasMore) {
       if (inputKeyCounter != null) {
@@ -158,20 +117,36 @@ public class ReduceContext<KEYIN,VALUEIN,KEYOUT,VALUEOUT>
    */
   @Override
   public boolean nextKeyValue() throws IOException, InterruptedException {
+    return advance(true);
+  }
+
+  /**
+   * Advance to the next key/value pair.
+   * @param deserialize whether the record is needed as objects; in raw mode
+   *        the key is deserialized lazily regardless
+   */
+  private boolean advance(boolean deserialize) throws IOException {
     if (!hasMore) {
       key = null;
       value = null;
+      keyPending = false;
       return false;
     }
     firstValue = !nextKeyIsSame;
     DataInputBuffer next = input.getKey();
     currentRawKey.set(next.getData(), next.getPosition(), 
                       next.getLength() - next.getPosition());
-    buffer.reset(currentRawKey.getBytes(), 0, currentRawKey.getLength());
-    key = keyDeserializer.deserialize(key);
-    next = input.getValue();
-    buffer.reset(next.getData(), next.getPosition(), next.getLength());
-    value = valueDeserializer.deserialize(value);
+    if (rawMode) {
+      keyPending = true;
+    } else if (deserialize) {
+      deserializeKey();
+    }
+    if (deserialize) {
+      next = input.getValue();
+      buffer.reset(next.getData(), next.getPosition(),
+                   next.getLength() - next.getPosition());
+      value = valueDeserializer.deserialize(value);
+    }
     hasMore = input.next();
     if (hasMore) {
       next = input.getKey();
@@ -188,7 +163,21 @@ public class ReduceContext<KEYIN,VALUEIN,KEYOUT,VALUEOUT>
     return true;
   }
 
-  public KEYIN getCurrentKey() {
+  private void deserializeKey() throws IOException {
+    buffer.reset(currentRawKey.getBytes(), 0, currentRawKey.getLength());
+    key = keyDeserializer.deserialize(key);
+    keyPending = false;
+  }
+
+  /**
+   * The key of the current record.  In raw mode
+   * (sailfish.mapred.reduce.raw_iteration), the key is deserialized here,
+   * from the bytes of the current record, rather than as each record is read.
+   */
+  public KEYIN getCurrentKey() throws IOException {
+    if (keyPending) {
+      deserializeKey();
+    }
     return key;
   }
 
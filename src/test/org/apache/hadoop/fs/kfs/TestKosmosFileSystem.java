@@ -175,5 +175,26 @@ public class TestKosmosFileSystem extends TestCase {
         kosmosFileSystem.delete(baseDir, true);
         assertFalse(kosmosFileSystem.exists(baseDir));        
     }
+
+    // @Test
+    // Check that opening a missing file fails with FileNotFoundException
+    public void testOpenNonExistent() throws Exception {
+        Path subDir1 = new Path("dir.1");
+        Path file1 = new Path("dir.1/foo.1");
+
+        kosmosFileSystem.mkdirs(baseDir);
+        kosmosFileSystem.setWorkingDirectory(baseDir);
+        kosmosFileSystem.mkdirs(subDir1);
+
+        try {
+            kosmosFileSystem.open(file1, 4096);
+            fail("open of a non-existent file should fail");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+
+        kosmosFileSystem.delete(baseDir, true);
+        assertFalse(kosmosFileSystem.exists(baseDir));
+    }
     
 }
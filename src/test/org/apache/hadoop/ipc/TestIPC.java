@@ -29,6 +29,10 @@ import java.util.Random;
 import java.io.DataInput;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
@@ -55,6 +59,11 @@ public class TestIPC extends TestCase {
     private boolean sleep;
 
     public TestServer(int handlerCount, boolean sleep) 
+      throws IOException {
+      this(handlerCount, sleep, conf);
+    }
+
+    public TestServer(int handlerCount, boolean sleep, Configuration conf) 
       throws IOException {
       super(ADDRESS, 0, LongWritable.class, handlerCount, conf);
       this.sleep = sleep;
@@ -268,6 +277,143 @@ public class TestIPC extends TestCase {
     }
   }
 
+  public void testAsyncCalls() throws Exception {
+    Server server = new TestServer(3, false);
+    InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+
+    // keep many calls outstanding on one connection from one thread
+    Client client = new Client(LongWritable.class, conf);
+    int count = 200;
+    LongWritable[] params = new LongWritable[count];
+    Future<?>[] values = new Future<?>[count];
+    for (int i = 0; i < count; i++) {
+      params[i] = new LongWritable(RANDOM.nextLong());
+      values[i] = client.callAsync(params[i], addr, null, null);
+    }
+    for (int i = count - 1; i >= 0; i--) {
+      assertEquals(params[i], values[i].get(10, TimeUnit.SECONDS));
+      assertTrue(values[i].isDone());
+    }
+    client.stop();
+
+    // errors come out of the future
+    Client errorClient = new Client(LongErrorWritable.class, conf);
+    Future<Writable> value =
+      errorClient.callAsync(new LongErrorWritable(RANDOM.nextLong()),
+                            addr, null, null);
+    try {
+      value.get();
+      fail("Expected an exception to have been thrown");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause().getCause();
+      assertTrue(cause instanceof IOException);
+      assertEquals(LongErrorWritable.ERR_MSG, cause.getMessage());
+    }
+    errorClient.stop();
+    server.stop();
+  }
+
+  public void testMultipleReaders() throws Exception {
+    Configuration readerConf = new Configuration(conf);
+    readerConf.setInt("ipc.server.read.threadpool.size", 3);
+    Server server = new TestServer(3, false, readerConf);
+    InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+
+    // a client per caller, so that the calls come over several connections
+    int callerCount = 5;
+    Client[] clients = new Client[callerCount];
+    SerialCaller[] callers = new SerialCaller[callerCount];
+    for (int i = 0; i < callerCount; i++) {
+      clients[i] = new Client(LongWritable.class, conf);
+      callers[i] = new SerialCaller(clients[i], addr, 100);
+      callers[i].start();
+    }
+    for (int i = 0; i < callerCount; i++) {
+      callers[i].join();
+      assertFalse(callers[i].failed);
+      clients[i].stop();
+    }
+    server.stop();
+  }
+
+  /** A server with no reader threads configured still reads with one. */
+  public void testNoReaders() throws Exception {
+    Configuration readerConf = new Configuration(conf);
+    readerConf.setInt("ipc.server.read.threadpool.size", 0);
+    Server server = new TestServer(1, false, readerConf);
+    InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+    Client client = new Client(LongWritable.class, conf);
+    SerialCaller caller = new SerialCaller(client, addr, 10);
+    caller.start();
+    caller.join();
+    assertFalse(caller.failed);
+    client.stop();
+    server.stop();
+  }
+
+  /** A protocol whose calls are queued apart in testProtocolCallQueue. */
+  public interface QueuedProtocol {}
+
+  /** Holds up calls that are not on QueuedProtocol until released. */
+  private static class BlockingServer extends Server {
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    public BlockingServer(Configuration conf) throws IOException {
+      super(ADDRESS, 0, LongWritable.class, 1, conf);
+    }
+
+    @Override
+    public Writable call(Class<?> protocol, Writable param, long receiveTime)
+        throws IOException {
+      if (protocol == null) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {}
+      }
+      return param;
+    }
+  }
+
+  public void testProtocolCallQueue() throws Exception {
+    Configuration queueConf = new Configuration(conf);
+    queueConf.set("ipc.server.protocol.queues", QueuedProtocol.class.getName());
+    queueConf.setInt("ipc.server.protocol.queue.handlers", 1);
+    BlockingServer server = new BlockingServer(queueConf);
+    final InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+
+    final Client client = new Client(LongWritable.class, conf);
+    // tie up the only handler of the shared queue
+    SerialCaller blocked = new SerialCaller(client, addr, 1);
+    blocked.start();
+
+    final LongWritable param = new LongWritable(RANDOM.nextLong());
+    final LongWritable[] value = new LongWritable[1];
+    Thread queued = new Thread() {
+      public void run() {
+        try {
+          value[0] = (LongWritable)
+            client.call(param, addr, QueuedProtocol.class, null);
+        } catch (Exception e) {
+          LOG.fatal("Caught: " + StringUtils.stringifyException(e));
+        }
+      }
+    };
+    queued.start();
+    queued.join(10000);
+    assertEquals(param, value[0]);
+    assertTrue(blocked.isAlive());
+
+    server.release.countDown();
+    blocked.join();
+    assertFalse(blocked.failed);
+    client.stop();
+    server.stop();
+  }
+
   public static void main(String[] args) throws Exception {
 
     //new TestIPC("test").testSerial(5, false, 2, 10, 1000);
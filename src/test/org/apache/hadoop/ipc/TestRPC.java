@@ -21,11 +21,15 @@ package org.apache.hadoop.ipc;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 
 import junit.framework.TestCase;
 
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.*;
 
@@ -232,6 +236,21 @@ public class TestRPC extends TestCase {
 
 
   public void testCalls() throws Exception {
+    testCalls(conf);
+  }
+
+  public void testCallsWithCompactEncoding() throws Exception {
+    Configuration compactConf = new Configuration(conf);
+    compactConf.setBoolean("ipc.client.compact.encoding", true);
+    testCalls(compactConf);
+  }
+
+  public void testCompactEncodingOffByDefault() {
+    assertFalse(new Configuration().getBoolean(
+        "ipc.client.compact.encoding", true));
+  }
+
+  private void testCalls(Configuration conf) throws Exception {
     Server server = RPC.getServer(new TestImpl(), ADDRESS, 0, conf);
     TestProtocol proxy = null;
     try {
@@ -309,12 +328,56 @@ public class TestRPC extends TestCase {
     Object[] voids = (Object[])RPC.call(ping, new Object[][]{{},{}},
                                         new InetSocketAddress[] {addr, addr}, conf);
     assertEquals(voids, null);
+
+    // try some asynchronous calls
+    Future<?>[] echoes = new Future<?>[10];
+    for (int i = 0; i < echoes.length; i++) {
+      echoes[i] = RPC.callAsync(proxy, echo, "async" + i);
+    }
+    Method add = TestProtocol.class.getMethod("add",
+                                              new Class[] { int.class, int.class });
+    assertEquals(3, RPC.callAsync(proxy, add, 1, 2).get());
+    for (int i = 0; i < echoes.length; i++) {
+      assertEquals("async" + i, echoes[i].get());
+    }
+    assertNull(RPC.callAsync(proxy, ping).get());
+
+    Method error = TestProtocol.class.getMethod("error", new Class[] {});
+    caught = false;
+    try {
+      RPC.callAsync(proxy, error).get();
+    } catch (ExecutionException e) {
+      LOG.debug("Caught " + e);
+      caught = e.getCause() instanceof RemoteException;
+    }
+    assertTrue(caught);
     } finally {
       server.stop();
       if(proxy!=null) RPC.stopProxy(proxy);
     }
   }
   
+  public void testCallAsyncNotRpcProxy() throws Exception {
+    Method ping = TestProtocol.class.getMethod("ping", new Class[] {});
+    TestProtocol notProxy = new TestImpl();
+    TestProtocol otherProxy = (TestProtocol)Proxy.newProxyInstance(
+        TestProtocol.class.getClassLoader(),
+        new Class[] { TestProtocol.class },
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            return null;
+          }
+        });
+    for (TestProtocol p : new TestProtocol[] { notProxy, otherProxy }) {
+      try {
+        RPC.callAsync(p, ping);
+        fail("callAsync took " + p);
+      } catch (IllegalArgumentException e) {
+        LOG.debug("Caught " + e);
+      }
+    }
+  }
+
   public void testStandaloneClient() throws IOException {
     try {
       RPC.waitForProxy(TestProtocol.class,
@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.Progress;
+
+/**
+ * This test reads map outputs stored in the slabs of a DirectBufferArena.
+ */
+public class TestDirectInMemoryReader extends TestCase {
+
+  static class CountingRamManager implements RamManager {
+    int reserved = 0;
+    public boolean reserve(int requestedSize, InputStream in) {
+      reserved += requestedSize;
+      return true;
+    }
+    public void unreserve(int requestedSize) {
+      reserved -= requestedSize;
+    }
+  }
+
+  private static String key(int i) {
+    return "key" + i;
+  }
+
+  private static String value(int i) {
+    StringBuilder sb = new StringBuilder();
+    for (int j = 0; j < i % 40; j++) {
+      sb.append((char)('a' + j % 26));
+    }
+    return sb.toString();
+  }
+
+  private void runReader(int slabSize, int numRecords) throws Exception {
+    // the in-memory format of a map output: the records and the EOF marker
+    DataOutputBuffer out = new DataOutputBuffer();
+    DataOutputBuffer record = new DataOutputBuffer();
+    for (int i = 0; i < numRecords; i++) {
+      record.reset();
+      new Text(key(i)).write(record);
+      int keyLength = record.getLength();
+      new Text(value(i)).write(record);
+      WritableUtils.writeVInt(out, keyLength);
+      WritableUtils.writeVInt(out, record.getLength() - keyLength);
+      out.write(record.getData(), 0, record.getLength());
+    }
+    WritableUtils.writeVInt(out, -1);
+    WritableUtils.writeVInt(out, -1);
+    int length = out.getLength();
+
+    DirectBufferArena arena = new DirectBufferArena(slabSize, Long.MAX_VALUE);
+    CountingRamManager ramManager = new CountingRamManager();
+    ramManager.reserve(length, null);
+    ByteBuffer[] slabs = arena.allocate(length);
+    int off = 0;
+    for (ByteBuffer slab : slabs) {
+      int n = Math.min(slab.remaining(), length - off);
+      slab.put(out.getData(), off, n);
+      off += n;
+    }
+
+    IFile.DirectInMemoryReader<Text, Text> reader =
+      new IFile.DirectInMemoryReader<Text, Text>(ramManager, arena, null,
+                                                 slabs, length);
+    DataInputBuffer key = new DataInputBuffer();
+    DataInputBuffer value = new DataInputBuffer();
+    Text text = new Text();
+    int i = 0;
+    while (reader.next(key, value)) {
+      text.readFields(key);
+      assertEquals(key(i), text.toString());
+      text.readFields(value);
+      assertEquals(value(i), text.toString());
+      i++;
+    }
+    assertEquals(numRecords, i);
+    assertEquals(length, reader.getPosition());
+    reader.close();
+    assertEquals(0, ramManager.reserved);
+
+    // the slabs are reused
+    long allocated = arena.getAllocatedBytes();
+    arena.allocate(length);
+    assertEquals(allocated, arena.getAllocatedBytes());
+  }
+
+  public void testReader() throws Exception {
+    runReader(64 * 1024, 1000);
+    // records and vints split across slabs
+    runReader(1, 100);
+    runReader(7, 100);
+    runReader(100, 100);
+    runReader(16, 0);
+  }
+
+  /** Slabs released past the limit, or after close, aren't kept. */
+  public void testArenaLimit() {
+    DirectBufferArena arena = new DirectBufferArena(10, 30);
+    ByteBuffer[] first = arena.allocate(25);
+    ByteBuffer[] second = arena.allocate(15);
+    assertEquals(50, arena.getAllocatedBytes());
+    arena.release(second);
+    assertEquals(30, arena.getAllocatedBytes());
+    arena.release(first);
+    assertEquals(30, arena.getAllocatedBytes());
+    // the kept slabs are reused
+    first = arena.allocate(30);
+    assertEquals(30, arena.getAllocatedBytes());
+    second = arena.allocate(10);
+    arena.release(first);
+    arena.close();
+    assertEquals(10, arena.getAllocatedBytes());
+    arena.release(second);
+    assertEquals(0, arena.getAllocatedBytes());
+  }
+
+  /** Off-heap map outputs take up a whole number of slabs of memory. */
+  public void testRamManagerChargesSlabs() throws Exception {
+    File testDir = new File(System.getProperty("test.build.data", "/tmp"),
+        "TestDirectInMemoryReader");
+    JobConf conf = new JobConf();
+    conf.set("mapred.local.dir", new File(testDir, "local").toString());
+    conf.setBoolean("mapred.job.shuffle.offheap", true);
+    conf.setInt("mapred.job.shuffle.offheap.slab.size", 64 * 1024);
+    conf.setLong("mapred.job.shuffle.offheap.buffer.bytes", 1024 * 1024);
+    TaskAttemptID reduceId =
+      TaskAttemptID.forName("attempt_200707121733_0003_r_000000_0");
+    ReduceTask task = new ReduceTask(
+        new File(testDir, "job.xml").toString(), reduceId, 0, 1);
+    Task.TaskReporter reporter = task.new TaskReporter(new Progress(), null);
+    ReduceTask.ReduceCopier<Text, Text>.ShuffleRamManager ramManager =
+      task.new ReduceCopier<Text, Text>(null, conf, reporter).ramManager;
+
+    // sixteen one byte map outputs fill the sixteen slabs
+    for (int i = 0; i < 16; i++) {
+      assertTrue(ramManager.tryReserve(1));
+    }
+    assertFalse(ramManager.tryReserve(1));
+    ramManager.closeInMemoryFile(1);
+    ramManager.unreserve(1);
+    assertTrue(ramManager.tryReserve(1));
+
+    // no single map output may take up a quarter of the memory
+    assertTrue(ramManager.canFitInMemory(190 * 1024));
+    assertFalse(ramManager.canFitInMemory(250 * 1024));
+  }
+}
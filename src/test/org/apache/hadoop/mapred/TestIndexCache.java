@@ -104,6 +104,69 @@ public class TestIndexCache extends TestCase {
     checkRecord(rec, totalsize);
   }
 
+  public void testPerJobEviction() throws Exception {
+    JobConf conf = new JobConf();
+    FileSystem fs = FileSystem.getLocal(conf).getRaw();
+    Path p = new Path(System.getProperty("test.build.data", "/tmp"),
+        "cache").makeQualified(fs);
+    fs.delete(p, true);
+    conf.setInt("mapred.tasktracker.indexcache.mb", 1);
+    final int partsPerMap = 1000;
+    IndexCache cache = new IndexCache(conf);
+
+    // the oldest maps belong to a small job, then a large job fills the cache
+    String[] small = new String[3];
+    for (int i = 0; i < small.length; i++) {
+      small[i] = "attempt_200707121733_0002_m_00000" + i + "_0";
+    }
+    String[] large = new String[41];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = "attempt_200707121733_0001_m_0000" + (10 + i) + "_0";
+    }
+    for (String mapId : small) {
+      Path f = new Path(p, mapId);
+      writeFile(fs, f, 1, partsPerMap);
+      checkRecord(cache.getIndexInformation(mapId, 0, f), 1);
+    }
+    for (String mapId : large) {
+      Path f = new Path(p, mapId);
+      writeFile(fs, f, 2, partsPerMap);
+      checkRecord(cache.getIndexInformation(mapId, 0, f), 2);
+    }
+    for (FileStatus stat : fs.listStatus(p)) {
+      fs.delete(stat.getPath(),true);
+    }
+
+    // the large job lost its oldest map, the small job kept all of its maps
+    for (String mapId : small) {
+      checkRecord(cache.getIndexInformation(mapId, partsPerMap - 1,
+          new Path(p, mapId)), 1);
+    }
+    try {
+      cache.getIndexInformation(large[0], 0, new Path(p, large[0]));
+      fail("Oldest map of the large job was not evicted");
+    } catch (IOException e) {
+      if (!(e.getCause() instanceof FileNotFoundException)) {
+        throw e;
+      }
+    }
+    for (int i = 1; i < large.length; i++) {
+      checkRecord(cache.getIndexInformation(large[i], 0,
+          new Path(p, large[i])), 2);
+    }
+
+    // removed maps are read again
+    cache.removeMap(small[0]);
+    try {
+      cache.getIndexInformation(small[0], 0, new Path(p, small[0]));
+      fail("Removed map was still cached");
+    } catch (IOException e) {
+      if (!(e.getCause() instanceof FileNotFoundException)) {
+        throw e;
+      }
+    }
+  }
+
   public void testBadIndex() throws Exception {
     final int parts = 30;
     JobConf conf = new JobConf();
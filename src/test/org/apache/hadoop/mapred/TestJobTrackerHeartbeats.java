@@ -0,0 +1,282 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Test that the {@link JobTracker} processes heartbeats from different
+ * trackers at the same time, and that a heartbeat holds up against the
+ * tracker expiring and the jobs completing underneath it.
+ */
+public class TestJobTrackerHeartbeats extends TestCase {
+
+  private static String TEST_ROOT_DIR = new File(System.getProperty(
+      "test.build.data", "/tmp")).toURI().toString().replace(' ', '+');
+
+  /**
+   * A tracker status that, when asked to, holds up the heartbeat at the
+   * point the JobTracker reads the task reports, i.e. with the tracker
+   * recorded and no job or JobTracker lock held.
+   */
+  private static class BlockingTrackerStatus extends TaskTrackerStatus {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    private volatile boolean block = true;
+
+    BlockingTrackerStatus(String trackerName) {
+      super(trackerName, "localhost", 0, new ArrayList<TaskStatus>(), 0, 2, 2);
+    }
+
+    @Override
+    public List<TaskStatus> getTaskReports() {
+      if (block) {
+        block = false;
+        blocked.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return super.getTaskReports();
+    }
+  }
+
+  /** Send a heartbeat in the background. */
+  private static class Heartbeat extends Thread {
+    private final JobTracker jt;
+    private final TaskTrackerStatus status;
+    private final boolean initialContact;
+    private final short responseId;
+    volatile HeartbeatResponse response;
+    volatile IOException error;
+
+    Heartbeat(JobTracker jt, TaskTrackerStatus status,
+              boolean initialContact, short responseId) {
+      this.jt = jt;
+      this.status = status;
+      this.initialContact = initialContact;
+      this.responseId = responseId;
+      setDaemon(true);
+    }
+
+    public void run() {
+      try {
+        response = heartbeat(jt, status, initialContact, responseId);
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+  }
+
+  private static TaskTrackerStatus newStatus(String trackerName) {
+    return new TaskTrackerStatus(trackerName, "localhost", 0,
+                                 new ArrayList<TaskStatus>(), 0, 2, 2);
+  }
+
+  private static HeartbeatResponse heartbeat(JobTracker jt,
+      TaskTrackerStatus status, boolean initialContact, short responseId)
+      throws IOException {
+    // no new tasks; there are no jobs and the scheduler isn't started
+    return jt.heartbeat(status, false, initialContact, false, responseId);
+  }
+
+  private static boolean hasReinit(HeartbeatResponse response) {
+    for (TaskTrackerAction action : response.getActions()) {
+      if (action instanceof ReinitTrackerAction) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static JobTracker startTracker(JobConf conf) throws Exception {
+    conf = MiniMRCluster.configureJobConf(conf, "file:///", 0, 0, null);
+    return JobTracker.startTracker(conf);
+  }
+
+  /**
+   * Heartbeats from many trackers at once all go thru, and one tracker's
+   * heartbeat doesn't hold up the others.
+   */
+  public void testConcurrentHeartbeats() throws Exception {
+    JobTracker jt = startTracker(new JobConf());
+    try {
+      String stuckName = "tracker_stuck:localhost/127.0.0.1:1";
+      BlockingTrackerStatus stuck = new BlockingTrackerStatus(stuckName);
+      Heartbeat stuckHeartbeat = new Heartbeat(jt, stuck, true, (short) -1);
+      stuckHeartbeat.start();
+      assertTrue(stuck.blocked.await(30, TimeUnit.SECONDS));
+
+      // trackers that don't share the stuck tracker's lock
+      final int numTrackers = 8;
+      final int numHeartbeats = 50;
+      List<String> names = new ArrayList<String>();
+      for (int i = 0; names.size() < numTrackers; i++) {
+        String name = "tracker_host" + i + ":localhost/127.0.0.1:" + (i + 2);
+        if (jt.getTrackerLock(name) != jt.getTrackerLock(stuckName)) {
+          names.add(name);
+        }
+      }
+
+      final JobTracker tracker = jt;
+      final List<Throwable> errors = new ArrayList<Throwable>();
+      List<Thread> threads = new ArrayList<Thread>();
+      for (final String name : names) {
+        Thread t = new Thread() {
+          public void run() {
+            try {
+              HeartbeatResponse response =
+                heartbeat(tracker, newStatus(name), true, (short) -1);
+              for (int i = 0; i < numHeartbeats; i++) {
+                assertFalse(hasReinit(response));
+                response = heartbeat(tracker, newStatus(name), false,
+                                     response.getResponseId());
+              }
+              assertFalse(hasReinit(response));
+            } catch (Throwable e) {
+              synchronized (errors) {
+                errors.add(e);
+              }
+            }
+          }
+        };
+        t.setDaemon(true);
+        threads.add(t);
+        t.start();
+      }
+      for (Thread t : threads) {
+        t.join(60 * 1000);
+        assertFalse("heartbeat held up by another tracker", t.isAlive());
+      }
+      assertTrue(errors.toString(), errors.isEmpty());
+      assertTrue(stuckHeartbeat.isAlive());
+      assertEquals(numTrackers + 1, jt.getClusterStatus().getTaskTrackers());
+
+      stuck.release.countDown();
+      stuckHeartbeat.join(30 * 1000);
+      assertNull(stuckHeartbeat.error);
+      assertFalse(hasReinit(stuckHeartbeat.response));
+    } finally {
+      jt.stopTracker();
+    }
+  }
+
+  /**
+   * A tracker that expires while its heartbeat is being processed is
+   * asked to re-initialize on its next heartbeat.
+   */
+  public void testTrackerExpiresDuringHeartbeat() throws Exception {
+    JobConf conf = new JobConf();
+    conf.setLong("mapred.tasktracker.expiry.interval", 1000);
+    JobTracker jt = startTracker(conf);
+    Thread expireTrackers = null;
+    try {
+      String name = "tracker_host:localhost/127.0.0.1:1";
+      HeartbeatResponse response =
+        heartbeat(jt, newStatus(name), true, (short) -1);
+
+      BlockingTrackerStatus status = new BlockingTrackerStatus(name);
+      Heartbeat beat = new Heartbeat(jt, status, false,
+                                     response.getResponseId());
+      beat.start();
+      assertTrue(status.blocked.await(30, TimeUnit.SECONDS));
+
+      expireTrackers = new Thread(jt.new ExpireTrackers());
+      expireTrackers.setDaemon(true);
+      expireTrackers.start();
+      long deadline = System.currentTimeMillis() + 30 * 1000;
+      while (jt.getTaskTracker(name) != null) {
+        assertTrue("tracker didn't expire",
+                   System.currentTimeMillis() < deadline);
+        Thread.sleep(100);
+      }
+
+      status.release.countDown();
+      beat.join(30 * 1000);
+      assertFalse(beat.isAlive());
+      assertNull(beat.error);
+      assertFalse(hasReinit(beat.response));
+      assertEquals(0, jt.getClusterStatus().getTaskTrackers());
+
+      // the tracker is gone, so its next heartbeat reinits it
+      response = heartbeat(jt, newStatus(name), false,
+                           beat.response.getResponseId());
+      assertTrue(hasReinit(response));
+      assertNull(jt.getTaskTracker(name));
+    } finally {
+      if (expireTrackers != null) {
+        expireTrackers.interrupt();
+        expireTrackers.join();
+      }
+      jt.stopTracker();
+    }
+  }
+
+  /**
+   * A job that completes while a heartbeat updates its tasks is cleaned
+   * up by purgeFinalizedJobs() once the heartbeat lets go of the job.
+   */
+  public void testJobCompletesInHeartbeat() throws Exception {
+    MiniMRCluster mr = null;
+    try {
+      JobConf jtConf = new JobConf();
+      // leave the finalized jobs to the heartbeats
+      jtConf.setLong("mapred.jobtracker.retirejob.check", 60 * 60 * 1000);
+      mr = new MiniMRCluster(2, "file:///", 1, null, null, jtConf);
+      JobTracker jt = mr.getJobTrackerRunner().getJobTracker();
+
+      Path inDir = new Path(TEST_ROOT_DIR + "/heartbeats/input");
+      Path outDir = new Path(TEST_ROOT_DIR + "/heartbeats/output");
+      RunningJob rJob =
+        UtilsForTests.runJobSucceed(mr.createJobConf(), inDir, outDir);
+      assertEquals(JobStatus.SUCCEEDED, rJob.getJobState());
+
+      // only purgeFinalizedJobs() files the job under its user
+      JobInProgress job = jt.getJob(rJob.getID());
+      String user = job.getProfile().getUser();
+      long deadline = System.currentTimeMillis() + 30 * 1000;
+      while (true) {
+        synchronized (jt.userToJobsMap) {
+          List<JobInProgress> userJobs = jt.userToJobsMap.get(user);
+          if (userJobs != null && userJobs.contains(job)) {
+            break;
+          }
+        }
+        assertTrue("job wasn't purged",
+                   System.currentTimeMillis() < deadline);
+        Thread.sleep(100);
+      }
+      assertEquals(2, jt.getClusterStatus().getTaskTrackers());
+    } finally {
+      if (mr != null) {
+        mr.shutdown();
+      }
+    }
+  }
+}
@@ -0,0 +1,358 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.IndexedSorter;
+import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.QuickSort;
+
+/**
+ * Collects the same records with different buffer settings and checks that
+ * the map output comes out the same.
+ */
+public class TestMapOutputBuffer extends TestCase {
+
+  private static final int PARTITIONS = 8;
+  private static final String MAP = "attempt_200707121733_0003_m_000000_0";
+
+  private final File testDir = new File(
+      System.getProperty("test.build.data", "/tmp"), "TestMapOutputBuffer");
+
+  /** A record and the partition that it goes to. */
+  private static class Record {
+    final Text key;
+    final Text value;
+    final int partition;
+
+    Record(String key, String value, int partition) {
+      this.key = new Text(key);
+      this.value = new Text(value);
+      this.partition = partition;
+    }
+  }
+
+  /** The map output file and index of one run. */
+  private static class Output {
+    Path file;
+    byte[] data;
+    SpillRecord index;
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    FileUtil.fullyDelete(testDir);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.fullyDelete(testDir);
+  }
+
+  private JobConf getConf() {
+    JobConf conf = new JobConf();
+    conf.set("mapred.local.dir", new File(testDir, "local").toString());
+    conf.setNumReduceTasks(PARTITIONS);
+    conf.setMapOutputKeyClass(Text.class);
+    conf.setMapOutputValueClass(Text.class);
+    conf.setInt("io.sort.mb", 1);
+    return conf;
+  }
+
+  private static String value(Random r, int length) {
+    char[] c = new char[length];
+    for (int i = 0; i < length; i++) {
+      c[i] = (char) ('a' + r.nextInt(26));
+    }
+    return new String(c);
+  }
+
+  /** Records of about the same size, spread over all of the partitions. */
+  private static List<Record> uniformRecords(int n) {
+    Random r = new Random(1);
+    List<Record> records = new ArrayList<Record>(n);
+    for (int i = 0; i < n; i++) {
+      records.add(new Record(String.format("k%07d", i), value(r, 40),
+          r.nextInt(PARTITIONS)));
+    }
+    Collections.shuffle(records, r);
+    return records;
+  }
+
+  /**
+   * Partition 0 has a few large records, partition 1 most of the small
+   * ones, and partition 2 none at all.
+   */
+  private static List<Record> skewedRecords(int n) {
+    Random r = new Random(2);
+    List<Record> records = new ArrayList<Record>(n);
+    for (int i = 0; i < n; i++) {
+      int partition;
+      String value;
+      if (i % 50 == 0) {
+        partition = 0;
+        value = value(r, 8 * 1024 + r.nextInt(1024));
+      } else if (i % 4 != 0) {
+        partition = 1;
+        value = value(r, r.nextInt(8));
+      } else {
+        partition = 3 + r.nextInt(PARTITIONS - 3);
+        value = value(r, r.nextInt(200));
+      }
+      records.add(new Record(String.format("k%07d", i), value, partition));
+    }
+    Collections.shuffle(records, r);
+    return records;
+  }
+
+  private Output collect(JobConf conf, List<Record> records)
+      throws Exception {
+    FileUtil.fullyDelete(testDir);
+    TaskAttemptID mapId = TaskAttemptID.forName(MAP);
+    MapTask task = new MapTask(new File(testDir, "job.xml").toString(),
+        mapId, 0, null, null);
+    task.setConf(conf);
+    Task.TaskReporter reporter = task.new TaskReporter(new Progress(), null);
+    MapTask.MapOutputBuffer<Text, Text> buffer =
+      task.new MapOutputBuffer<Text, Text>(null, conf, reporter);
+    for (Record rec : records) {
+      buffer.collect(rec.key, rec.value, rec.partition);
+    }
+    buffer.flush();
+    buffer.close();
+
+    MapOutputFile mapOutputFile = new MapOutputFile(mapId.getJobID());
+    mapOutputFile.setConf(conf);
+    FileSystem rfs = FileSystem.getLocal(conf).getRaw();
+    Path file = mapOutputFile.getOutputFile(mapId);
+    Output output = new Output();
+    output.file = file;
+    output.data = new byte[(int) rfs.getFileStatus(file).getLen()];
+    FSDataInputStream in = rfs.open(file);
+    try {
+      in.readFully(output.data);
+    } finally {
+      in.close();
+    }
+    output.index =
+      new SpillRecord(mapOutputFile.getOutputIndexFile(mapId), conf);
+    return output;
+  }
+
+  /** Each partition has its records, in order. */
+  private static void checkOutput(JobConf conf, Output output,
+      List<Record> records) throws IOException {
+    List<List<String>> expected = new ArrayList<List<String>>();
+    for (int p = 0; p < PARTITIONS; p++) {
+      expected.add(new ArrayList<String>());
+    }
+    for (Record rec : records) {
+      expected.get(rec.partition).add(rec.key + "=" + rec.value);
+    }
+    for (int p = 0; p < PARTITIONS; p++) {
+      Collections.sort(expected.get(p));
+      IndexRecord rec = output.index.getIndex(p);
+      FSDataInputStream in =
+        FileSystem.getLocal(conf).getRaw().open(output.file);
+      in.seek(rec.startOffset);
+      IFile.Reader<Text, Text> reader = new IFile.Reader<Text, Text>(
+          conf, in, rec.partLength, null, null);
+      DataInputBuffer key = new DataInputBuffer();
+      DataInputBuffer value = new DataInputBuffer();
+      List<String> actual = new ArrayList<String>();
+      Text k = new Text();
+      Text v = new Text();
+      while (reader.next(key, value)) {
+        k.readFields(key);
+        v.readFields(value);
+        actual.add(k + "=" + v);
+      }
+      reader.close();
+      assertEquals("partition " + p, expected.get(p), actual);
+    }
+  }
+
+  private static void assertSameOutput(Output expected, Output actual) {
+    assertEquals(expected.index.size(), actual.index.size());
+    for (int p = 0; p < expected.index.size(); p++) {
+      IndexRecord e = expected.index.getIndex(p);
+      IndexRecord a = actual.index.getIndex(p);
+      assertEquals("partition " + p, e.startOffset, a.startOffset);
+      assertEquals("partition " + p, e.rawLength, a.rawLength);
+      assertEquals("partition " + p, e.partLength, a.partLength);
+    }
+    assertTrue(Arrays.equals(expected.data, actual.data));
+  }
+
+  private void checkSpillThreads(List<Record> records) throws Exception {
+    JobConf conf = getConf();
+    Output single = collect(conf, records);
+    checkOutput(conf, single, records);
+    for (int threads : new int[] { 2, 4 }) {
+      conf = getConf();
+      conf.setInt("io.sort.spill.threads", threads);
+      Output parallel = collect(conf, records);
+      assertSameOutput(single, parallel);
+    }
+  }
+
+  public void testSpillThreads() throws Exception {
+    checkSpillThreads(uniformRecords(40000));
+  }
+
+  /**
+   * Partitions whose records are much larger (or smaller) than the
+   * average.
+   */
+  public void testSpillThreadsSkewed() throws Exception {
+    checkSpillThreads(skewedRecords(20000));
+  }
+
+  /**
+   * A map.sort.class that fails if two threads sort with it at once.
+   */
+  public static class SingleThreadedSorter implements IndexedSorter {
+    private final QuickSort sorter = new QuickSort();
+    private boolean sorting = false;
+
+    public void sort(IndexedSortable s, int l, int r) {
+      sort(s, l, r, null);
+    }
+
+    public void sort(IndexedSortable s, int l, int r, Progressable rep) {
+      synchronized (this) {
+        if (sorting) {
+          throw new IllegalStateException("sorter shared by spill threads");
+        }
+        sorting = true;
+      }
+      try {
+        sorter.sort(s, l, r, rep);
+      } finally {
+        synchronized (this) {
+          sorting = false;
+        }
+      }
+    }
+  }
+
+  /** Each spill thread sorts with its own instance of map.sort.class. */
+  public void testSpillThreadsSorter() throws Exception {
+    List<Record> records = uniformRecords(40000);
+    JobConf conf = getConf();
+    Output single = collect(conf, records);
+    conf = getConf();
+    conf.setInt("io.sort.spill.threads", 4);
+    conf.setClass("map.sort.class", SingleThreadedSorter.class,
+        IndexedSorter.class);
+    assertSameOutput(single, collect(conf, records));
+  }
+
+  /**
+   * Keys and values of up to a few KB, so that many of them wrap around
+   * the end of the buffer.
+   */
+  private static List<Record> largeRecords(int n) {
+    Random r = new Random(3);
+    List<Record> records = new ArrayList<Record>(n);
+    for (int i = 0; i < n; i++) {
+      records.add(new Record(String.format("k%07d", i) +
+          value(r, r.nextInt(3000)), value(r, r.nextInt(3000)),
+          r.nextInt(PARTITIONS)));
+    }
+    return records;
+  }
+
+  /** The records come out the same with kvbuffer on and off the heap. */
+  private void checkOffHeap(List<Record> records, int threads,
+      boolean keyPrefix) throws Exception {
+    JobConf conf = getConf();
+    Output heap = collect(conf, records);
+    checkOutput(conf, heap, records);
+    conf = getConf();
+    conf.setBoolean("io.sort.offheap", true);
+    conf.setInt("io.sort.spill.threads", threads);
+    conf.setBoolean("map.sort.key.prefix", keyPrefix);
+    assertSameOutput(heap, collect(conf, records));
+  }
+
+  public void testOffHeap() throws Exception {
+    checkOffHeap(uniformRecords(40000), 1, false);
+  }
+
+  /**
+   * Keys that wrap around the end of the buffer are moved to its start,
+   * and values that wrap are copied in two pieces.
+   */
+  public void testOffHeapWrapping() throws Exception {
+    List<Record> records = largeRecords(3000);
+    checkOffHeap(records, 1, false);
+    checkOffHeap(records, 1, true);
+  }
+
+  /**
+   * Records sized so that both ways of moving a wrapped key to the start
+   * of the buffer are taken, and a value wraps.  The sizes are fractions
+   * of the data buffer of a 1 MB io.sort.mb; the spills start when a
+   * record doesn't fit, or at 80% of the buffer.
+   */
+  public void testOffHeapWrappingBranches() throws Exception {
+    int recordCapacity = (int) ((1 << 20) * 0.05f);
+    recordCapacity -= recordCapacity % 16;
+    final int c = (1 << 20) - recordCapacity;
+    Random r = new Random(5);
+    List<Record> records = new ArrayList<Record>();
+    // over 80%; the next record spills it
+    records.add(new Record("a" + value(r, c * 85 / 100), "v", 1));
+    records.add(new Record("b" + value(r, 10), "v", 2));
+    // doesn't fit in front of the first spill, so waits for it to finish;
+    // then wraps, and is moved to the start in place
+    records.add(new Record("c" + value(r, c * 20 / 100), "v", 3));
+    // doesn't fit in front of the first spill's end, so spills the two
+    // before it; the buffer now starts at the end of the last one
+    records.add(new Record("d" + value(r, c * 70 / 100), "v", 4));
+    // wraps, but doesn't fit in front of where the buffer starts, so is
+    // written out again from the start
+    records.add(new Record("e" + value(r, c * 25 / 100), "v", 5));
+    // a value that wraps
+    records.add(new Record("f", value(r, c * 80 / 100), 6));
+    checkOffHeap(records, 1, false);
+  }
+
+  public void testOffHeapSpillThreads() throws Exception {
+    checkOffHeap(skewedRecords(20000), 4, false);
+    checkOffHeap(largeRecords(3000), 4, true);
+  }
+}
@@ -0,0 +1,246 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+public class TestMapOutputServlet extends TestCase {
+
+  private static final String JOB = "job_200707121733_0003";
+  private static final String[] MAPS = {
+    "attempt_200707121733_0003_m_000000_0",
+    "attempt_200707121733_0003_m_000001_0" };
+  private static final int PARTITIONS = 3;
+
+  private final File testDir = new File(
+      System.getProperty("test.build.data", "/tmp"), "TestMapOutputServlet");
+  private JobConf conf;
+  private LocalFileSystem localFs;
+  private Map<String, Object> attributes;
+
+  /** The response of a request: its status, headers and body. */
+  private static class Response implements InvocationHandler {
+    final Map<String, String> headers = new HashMap<String, String>();
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    int status = HttpServletResponse.SC_OK;
+
+    public Object invoke(Object proxy, Method m, Object[] args)
+        throws Throwable {
+      String name = m.getName();
+      if (name.equals("setHeader")) {
+        headers.put((String) args[0], (String) args[1]);
+      } else if (name.equals("sendError")) {
+        status = (Integer) args[0];
+      } else if (name.equals("getOutputStream")) {
+        return new ServletOutputStream() {
+          public void write(int b) {
+            body.write(b);
+          }
+          public void write(byte[] b, int off, int len) {
+            body.write(b, off, len);
+          }
+        };
+      }
+      return null;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> c, InvocationHandler handler) {
+    return (T) Proxy.newProxyInstance(c.getClassLoader(), new Class[] { c },
+        handler);
+  }
+
+  /** The contents of partition p of map m. */
+  private static byte[] partition(int m, int p) {
+    byte[] b = new byte[1000 * (m + 1) + 37 * p];
+    for (int i = 0; i < b.length; i++) {
+      b[i] = (byte) (i * 31 + m * 7 + p);
+    }
+    return b;
+  }
+
+  private void writeMapOutput(int m) throws IOException {
+    LocalDirAllocator lDirAlloc = new LocalDirAllocator("mapred.local.dir");
+    String dir = TaskTracker.getIntermediateOutputDir(JOB, MAPS[m]);
+    Path out = lDirAlloc.getLocalPathForWrite(dir + "/file.out", conf);
+    Path index = lDirAlloc.getLocalPathForWrite(dir + "/file.out.index",
+        conf);
+    FileSystem rfs = localFs.getRaw();
+    FSDataOutputStream dataOut = rfs.create(out);
+    SpillRecord spillRec = new SpillRecord(PARTITIONS);
+    // some bytes ahead of the first partition
+    dataOut.write(new byte[] { 1, 2, 3 });
+    for (int p = 0; p < PARTITIONS; p++) {
+      byte[] b = partition(m, p);
+      long start = dataOut.getPos();
+      dataOut.write(b);
+      spillRec.putIndex(new IndexRecord(start, 2L * b.length, b.length), p);
+    }
+    dataOut.close();
+    spillRec.writeToFile(index, conf);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    FileUtil.fullyDelete(testDir);
+    conf = new JobConf();
+    conf.set("mapred.local.dir", new File(testDir, "local").toString());
+    localFs = FileSystem.getLocal(conf);
+    writeMapOutput(0);
+    writeMapOutput(1);
+    TaskTracker tracker = new TaskTracker(conf, new IndexCache(conf));
+    attributes = new HashMap<String, Object>();
+    attributes.put("task.tracker", tracker);
+    attributes.put("local.file.system", localFs);
+    attributes.put("conf", conf);
+    attributes.put("log", LogFactory.getLog(TestMapOutputServlet.class));
+    attributes.put("localDirAllocator",
+        new LocalDirAllocator("mapred.local.dir"));
+    attributes.put("shuffleServerMetrics",
+        tracker.new ShuffleServerMetrics(conf));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.fullyDelete(testDir);
+  }
+
+  private Response get(String maps, int reduce) throws Exception {
+    final Map<String, String> params = new HashMap<String, String>();
+    params.put("job", JOB);
+    params.put("map", maps);
+    params.put("reduce", Integer.toString(reduce));
+    HttpServletRequest request = proxy(HttpServletRequest.class,
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            if (m.getName().equals("getParameter")) {
+              return params.get(args[0]);
+            } else if (m.getReturnType() == int.class) {
+              // the ports, for the client trace log
+              return 0;
+            } else if (m.getName().endsWith("Addr")) {
+              return "";
+            }
+            return null;
+          }
+        });
+    final ServletContext context = proxy(ServletContext.class,
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            if (m.getName().equals("getAttribute")) {
+              return attributes.get(args[0]);
+            }
+            return null;
+          }
+        });
+    ServletConfig config = proxy(ServletConfig.class,
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            if (m.getName().equals("getServletContext")) {
+              return context;
+            }
+            return null;
+          }
+        });
+    TaskTracker.MapOutputServlet servlet = new TaskTracker.MapOutputServlet();
+    servlet.init(config);
+    Response response = new Response();
+    try {
+      servlet.doGet(request, proxy(HttpServletResponse.class, response));
+    } catch (IOException e) {
+      // the status says what happened
+    }
+    return response;
+  }
+
+  public void testSingleMap() throws Exception {
+    Response response = get(MAPS[1], 2);
+    byte[] expected = partition(1, 2);
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    assertEquals(MAPS[1], response.headers.get(MRConstants.FROM_MAP_TASK));
+    assertEquals("2", response.headers.get(MRConstants.FOR_REDUCE_TASK));
+    assertEquals(Integer.toString(expected.length),
+        response.headers.get(MRConstants.MAP_OUTPUT_LENGTH));
+    assertEquals(Integer.toString(2 * expected.length),
+        response.headers.get(MRConstants.RAW_MAP_OUTPUT_LENGTH));
+    assertEquals(Integer.toString(expected.length),
+        response.headers.get("Content-Length"));
+    assertNull(response.headers.get(MRConstants.MAP_OUTPUT_COUNT));
+    assertTrue(Arrays.equals(expected, response.body.toByteArray()));
+  }
+
+  /** A batch has the segments of the maps that were found, in order. */
+  public void testBatch() throws Exception {
+    String missing = "attempt_200707121733_0003_m_000009_0";
+    Response response = get(MAPS[1] + "," + missing + "," + MAPS[0], 1);
+    assertEquals(HttpServletResponse.SC_OK, response.status);
+    assertEquals("2", response.headers.get(MRConstants.MAP_OUTPUT_COUNT));
+    assertEquals("1", response.headers.get(MRConstants.FOR_REDUCE_TASK));
+    byte[] body = response.body.toByteArray();
+    assertEquals(Integer.toString(body.length),
+        response.headers.get("Content-Length"));
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(body, body.length);
+    int[] maps = { 1, 0 };
+    for (int m : maps) {
+      byte[] expected = partition(m, 1);
+      assertEquals(MAPS[m], Text.readString(in));
+      assertEquals(2L * expected.length, WritableUtils.readVLong(in));
+      assertEquals(expected.length, WritableUtils.readVLong(in));
+      assertEquals(1, WritableUtils.readVInt(in));
+      byte[] data = new byte[expected.length];
+      in.readFully(data);
+      assertTrue(Arrays.equals(expected, data));
+    }
+    assertEquals(body.length, in.getPosition());
+  }
+
+  public void testMissingMap() throws Exception {
+    Response response = get("attempt_200707121733_0003_m_000009_0", 0);
+    assertEquals(HttpServletResponse.SC_GONE, response.status);
+    assertEquals(0, response.body.size());
+  }
+}
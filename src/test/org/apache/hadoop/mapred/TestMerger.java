@@ -0,0 +1,226 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * This test checks the order of the records out of Merger.merge.
+ */
+public class TestMerger extends TestCase {
+
+  static class NullProgress implements Progressable {
+    public void progress() { }
+  }
+
+  private void runMerge(Path tmpDir, int numSegments, int factor)
+  throws IOException {
+    runMerge(tmpDir, numSegments, factor, new Configuration(), 8);
+  }
+
+  /** The value of a key: the key repeated up to the given length. */
+  private static String value(String key, int length) {
+    StringBuilder b = new StringBuilder(length);
+    while (b.length() < length) {
+      b.append(key);
+    }
+    b.setLength(length);
+    return b.toString();
+  }
+
+  private void runMerge(Path tmpDir, int numSegments, int factor,
+                        Configuration conf, int valueSize)
+  throws IOException {
+    // for the intermediate merges
+    conf.set("mapred.local.dir", new Path(tmpDir, "local").toString());
+    FileSystem rfs = ((LocalFileSystem)FileSystem.getLocal(conf)).getRaw();
+    Random r = new Random(numSegments * 31 + factor);
+    List<String> expected = new ArrayList<String>();
+    Path[] inputs = new Path[numSegments];
+    for (int i = 0; i < numSegments; i++) {
+      // some segments are empty; keys share long prefixes
+      List<String> keys = new ArrayList<String>();
+      int numKeys = (i % 5 == 0) ? 0 : r.nextInt(200);
+      for (int j = 0; j < numKeys; j++) {
+        keys.add("key" + r.nextInt(50) + (r.nextBoolean() ? "" : "x"));
+      }
+      Collections.sort(keys);
+      expected.addAll(keys);
+      inputs[i] = new Path(tmpDir, "segment." + i);
+      IFile.Writer<Text, Text> writer =
+        new IFile.Writer<Text, Text>(conf, rfs, inputs[i], Text.class,
+                                     Text.class, null, null);
+      for (String key : keys) {
+        writer.append(new Text(key), new Text(value(key, valueSize)));
+      }
+      writer.close();
+    }
+    Collections.sort(expected);
+
+    @SuppressWarnings("unchecked")
+    RawKeyValueIterator rawItr =
+      Merger.merge(conf, rfs, Text.class, Text.class, null, inputs,
+                   true, factor, tmpDir, new Text.Comparator(),
+                   new NullProgress(), null, null);
+    Text key = new Text();
+    Text value = new Text();
+    int i = 0;
+    while (rawItr.next()) {
+      DataInputBuffer k = rawItr.getKey();
+      key.readFields(k);
+      assertEquals(expected.get(i), key.toString());
+      value.readFields(rawItr.getValue());
+      assertEquals(value(key.toString(), valueSize), value.toString());
+      i++;
+    }
+    assertEquals(expected.size(), i);
+    rawItr.close();
+  }
+
+  public void testMerge() throws Exception {
+    Path tmpDir = new Path("build/test/test.merger");
+    runMerge(tmpDir, 1, 10);
+    runMerge(tmpDir, 2, 10);
+    runMerge(tmpDir, 7, 10);
+    runMerge(tmpDir, 17, 100);
+  }
+
+  public void testMultiPassMerge() throws Exception {
+    Path tmpDir = new Path("build/test/test.merger.multipass");
+    runMerge(tmpDir, 23, 4);
+    runMerge(tmpDir, 40, 3);
+  }
+
+  public void testMergeWithReadAhead() throws Exception {
+    Path tmpDir = new Path("build/test/test.merger.readahead");
+    Configuration conf = new Configuration();
+    conf.setBoolean("io.sort.merge.readahead", true);
+    conf.setLong("io.sort.merge.readahead.memory", 512 * 1024);
+    runMerge(tmpDir, 7, 10, conf, 8);
+    runMerge(tmpDir, 23, 4, conf, 8);
+    // the chunks are at least 64KB, so it takes values of a few KB for
+    // the segments to span several chunks, and for the merge to read past
+    // the first two of each
+    runMerge(tmpDir, 7, 10, conf, 4 * 1024);
+    runMerge(tmpDir, 23, 4, conf, 2 * 1024);
+  }
+
+  /**
+   * Closing a read-ahead stream while the I/O thread is reading its next
+   * chunk waits for the read before closing the file under it.
+   */
+  public void testReadAheadCloseDuringRead() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean("io.sort.merge.readahead", true);
+    final CountDownLatch reading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicBoolean closedDuringRead = new AtomicBoolean(false);
+    FileSystem fs = new FilterFileSystem(FileSystem.getLocal(conf)) {
+      @Override
+      public FSDataInputStream open(Path f, int bufferSize)
+          throws IOException {
+        return new FSDataInputStream(new FSInputStream() {
+          private volatile boolean inRead = false;
+          private long pos = 0;
+
+          public int read() throws IOException {
+            throw new IOException("unexpected single byte read");
+          }
+
+          public int read(byte[] b, int off, int len) throws IOException {
+            inRead = true;
+            reading.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              throw new IOException("interrupted");
+            }
+            inRead = false;
+            pos += len;
+            return len;
+          }
+
+          public void close() {
+            if (inRead) {
+              closedDuringRead.set(true);
+            }
+          }
+
+          public void seek(long target) {
+            pos = target;
+          }
+
+          public long getPos() {
+            return pos;
+          }
+
+          public boolean seekToNewSource(long target) {
+            return false;
+          }
+        });
+      }
+    };
+    final FSDataInputStream in = MergeReadAhead.get(conf).open(fs,
+        new Path("segment"), 0, 1024 * 1024, 64 * 1024);
+    reading.await();
+    Thread closer = new Thread() {
+      public void run() {
+        try {
+          in.close();
+        } catch (IOException e) {
+          // the flag tells
+        }
+      }
+    };
+    closer.start();
+    // give the close a chance to get in under the read
+    closer.join(200);
+    assertTrue("close didn't wait for the read", closer.isAlive());
+    release.countDown();
+    closer.join();
+    assertFalse(closedDuringRead.get());
+  }
+
+  public void testMergeWithKeyPrefix() throws Exception {
+    Path tmpDir = new Path("build/test/test.merger.prefix");
+    JobConf conf = new JobConf();
+    conf.setBoolean("map.sort.key.prefix", true);
+    conf.setMapOutputKeyClass(Text.class);
+    runMerge(tmpDir, 7, 10, conf, 8);
+    runMerge(tmpDir, 23, 4, conf, 8);
+  }
+}
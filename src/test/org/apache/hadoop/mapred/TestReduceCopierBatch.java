@@ -0,0 +1,250 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.Progress;
+
+/**
+ * Fetches batches of map outputs from a fake tasktracker.
+ */
+public class TestReduceCopierBatch extends TestCase {
+
+  private static final String[] MAPS = {
+    "attempt_200707121733_0003_m_000000_0",
+    "attempt_200707121733_0003_m_000001_0",
+    "attempt_200707121733_0003_m_000002_0" };
+
+  private final File testDir = new File(
+      System.getProperty("test.build.data", "/tmp"), "TestReduceCopierBatch");
+  private ReduceTask.ReduceCopier<Text, Text> copier;
+  private ReduceTask.ReduceCopier<Text, Text>.MapOutputCopier mapCopier;
+  private Server server;
+
+  /** Answers each request with the reply that it is given. */
+  private static class Server extends Thread {
+    private final ServerSocket socket;
+    private final byte[] reply;
+    private volatile String request = null;
+
+    Server(byte[] reply) throws IOException {
+      this.socket = new ServerSocket(0);
+      this.reply = reply;
+      setDaemon(true);
+    }
+
+    int getPort() {
+      return socket.getLocalPort();
+    }
+
+    String getRequest() {
+      return request;
+    }
+
+    public void run() {
+      try {
+        while (true) {
+          Socket s = socket.accept();
+          try {
+            BufferedReader in = new BufferedReader(
+                new InputStreamReader(s.getInputStream()));
+            request = in.readLine();
+            String line;
+            while ((line = in.readLine()) != null && line.length() > 0) {
+              // skip the request headers
+            }
+            OutputStream out = s.getOutputStream();
+            out.write(reply);
+            out.flush();
+          } finally {
+            s.close();
+          }
+        }
+      } catch (IOException e) {
+        // the socket was closed
+      }
+    }
+
+    void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  /** The output of map m for the reduce: some bytes and their checksum. */
+  private static byte[] mapOutput(int m) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    IFileOutputStream checksumOut = new IFileOutputStream(out);
+    for (int i = 0; i < 100 * (m + 1); i++) {
+      checksumOut.write(i + m);
+    }
+    checksumOut.finish();
+    byte[] b = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, b, 0, b.length);
+    return b;
+  }
+
+  private static void writeSegment(DataOutputBuffer out, int m)
+      throws IOException {
+    byte[] data = mapOutput(m);
+    Text.writeString(out, MAPS[m]);
+    WritableUtils.writeVLong(out, data.length - 4);
+    WritableUtils.writeVLong(out, data.length);
+    WritableUtils.writeVInt(out, 0);
+    out.write(data);
+  }
+
+  /**
+   * An http reply with the given headers, followed by the first length
+   * bytes of the body.
+   */
+  private static byte[] reply(String headers, DataOutputBuffer body,
+      int length) {
+    byte[] head = ("HTTP/1.0 200 OK\r\n" + headers + "\r\n").getBytes();
+    byte[] b = new byte[head.length + length];
+    System.arraycopy(head, 0, b, 0, head.length);
+    System.arraycopy(body.getData(), 0, b, head.length, length);
+    return b;
+  }
+
+  private static byte[] reply(String headers, DataOutputBuffer body) {
+    return reply(headers, body, body.getLength());
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    FileUtil.fullyDelete(testDir);
+    testDir.mkdirs();
+    JobConf conf = new JobConf();
+    conf.set("mapred.local.dir", new File(testDir, "local").toString());
+    TaskAttemptID reduceId =
+      TaskAttemptID.forName("attempt_200707121733_0003_r_000000_0");
+    ReduceTask task = new ReduceTask(
+        new File(testDir, "job.xml").toString(), reduceId, 0, MAPS.length);
+    Task.TaskReporter reporter = task.new TaskReporter(new Progress(), null);
+    copier = task.new ReduceCopier<Text, Text>(null, conf, reporter);
+    mapCopier = copier.new MapOutputCopier(conf, reporter);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (server != null) {
+      server.close();
+    }
+    FileUtil.fullyDelete(testDir);
+  }
+
+  private List<ReduceTask.ReduceCopier<Text, Text>.MapOutputLocation>
+      getLocations(int port) throws IOException {
+    List<ReduceTask.ReduceCopier<Text, Text>.MapOutputLocation> locs =
+      new ArrayList<ReduceTask.ReduceCopier<Text, Text>.MapOutputLocation>();
+    for (String map : MAPS) {
+      URL url = new URL("http://localhost:" + port + "/mapOutput?job=" +
+          "job_200707121733_0003&map=" + map + "&reduce=0");
+      locs.add(copier.new MapOutputLocation(TaskAttemptID.forName(map),
+          "localhost", url));
+    }
+    return locs;
+  }
+
+  /** Fetches all of the maps in one batch from a server with the reply. */
+  private String fetch(byte[] reply) throws Exception {
+    server = new Server(reply);
+    server.start();
+    mapCopier.copyBatch(getLocations(server.getPort()));
+    assertEquals(MAPS.length, copier.copyResults.size());
+    StringBuilder results = new StringBuilder();
+    for (int i = 0; i < MAPS.length; i++) {
+      ReduceTask.ReduceCopier<Text, Text>.CopyResult cr =
+        copier.copyResults.get(i);
+      assertEquals(i == MAPS.length - 1, cr.isLastOfBatch());
+      results.append(cr.getLocation().getTaskAttemptId().getTaskID().getId());
+      results.append(cr.getSuccess() ? "+"
+          : (cr.isUntried() ? "?" : "-"));
+    }
+    return results.toString();
+  }
+
+  public void testBatch() throws Exception {
+    DataOutputBuffer body = new DataOutputBuffer();
+    for (int m = 0; m < MAPS.length; m++) {
+      writeSegment(body, m);
+    }
+    assertEquals("0+1+2+", fetch(reply(MRConstants.MAP_OUTPUT_COUNT +
+        ": 3\r\n", body)));
+    assertTrue(server.getRequest().contains(
+        "map=" + MAPS[0] + "," + MAPS[1] + "," + MAPS[2] + "&reduce=0"));
+    for (int m = 0; m < MAPS.length; m++) {
+      assertEquals(mapOutput(m).length,
+          copier.copyResults.get(m).getSize());
+    }
+  }
+
+  /** The maps that the tasktracker doesn't have are failed. */
+  public void testMissingMaps() throws Exception {
+    DataOutputBuffer body = new DataOutputBuffer();
+    writeSegment(body, 1);
+    assertEquals("1+0-2-", fetch(reply(MRConstants.MAP_OUTPUT_COUNT +
+        ": 1\r\n", body)));
+  }
+
+  /**
+   * A reply without the count is a failed fetch of the first map; the rest
+   * are scheduled again.
+   */
+  public void testNoCount() throws Exception {
+    DataOutputBuffer body = new DataOutputBuffer();
+    writeSegment(body, 0);
+    assertEquals("0-1?2?", fetch(reply("", body)));
+  }
+
+  public void testBadCount() throws Exception {
+    DataOutputBuffer body = new DataOutputBuffer();
+    writeSegment(body, 0);
+    assertEquals("0-1?2?", fetch(reply(MRConstants.MAP_OUTPUT_COUNT +
+        ": three\r\n", body)));
+  }
+
+  /**
+   * Only the map output that was being copied when the connection went
+   * away is failed.
+   */
+  public void testConnectionLost() throws Exception {
+    DataOutputBuffer body = new DataOutputBuffer();
+    writeSegment(body, 0);
+    writeSegment(body, 1);
+    // cut off in the middle of the second map output
+    assertEquals("0+1-2?", fetch(reply(MRConstants.MAP_OUTPUT_COUNT +
+        ": 3\r\n", body, body.getLength() - 50)));
+  }
+}
@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.net.NetworkTopology;
+import org.apache.hadoop.util.Progress;
+
+/**
+ * The reduce spreads its copies over the racks that the jobtracker gave
+ * for the maps in the task completion events, and copies the biggest
+ * outputs first.
+ */
+public class TestReduceCopierRacks extends TestCase {
+
+  private final File testDir = new File(
+      System.getProperty("test.build.data", "/tmp"), "TestReduceCopierRacks");
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.fullyDelete(testDir);
+  }
+
+  private static TaskCompletionEvent event(int map, String host,
+      String rack) {
+    return event(map, host, rack, -1);
+  }
+
+  private static TaskCompletionEvent event(int map, String host,
+      String rack, long size) {
+    TaskAttemptID id = TaskAttemptID.forName(
+        "attempt_200707121733_0003_m_00000" + map + "_0");
+    TaskCompletionEvent event = new TaskCompletionEvent(map, id, map, true,
+        TaskCompletionEvent.Status.SUCCEEDED, "http://" + host + ":50060");
+    if (rack != null) {
+      event.setTaskTrackerRack(rack);
+    }
+    event.setMapOutputSize(size);
+    return event;
+  }
+
+  /** A reduce copier that is told of the given events. */
+  private ReduceTask.ReduceCopier<Text, Text> getCopier(
+      final TaskCompletionEvent[] events) throws Exception {
+    JobConf conf = new JobConf();
+    conf.set("mapred.local.dir", new File(testDir, "local").toString());
+    conf.setInt("mapred.reduce.parallel.copies", 5);
+    TaskUmbilicalProtocol umbilical = (TaskUmbilicalProtocol)
+      Proxy.newProxyInstance(TaskUmbilicalProtocol.class.getClassLoader(),
+          new Class[] { TaskUmbilicalProtocol.class },
+          new InvocationHandler() {
+            public Object invoke(Object proxy, Method m, Object[] args) {
+              if (m.getName().equals("getMapCompletionEvents")) {
+                return new MapTaskCompletionEventsUpdate(events, false);
+              }
+              return null;
+            }
+          });
+    TaskAttemptID reduceId =
+      TaskAttemptID.forName("attempt_200707121733_0003_r_000000_0");
+    ReduceTask task = new ReduceTask(
+        new File(testDir, "job.xml").toString(), reduceId, 0, events.length);
+    Task.TaskReporter reporter = task.new TaskReporter(new Progress(), null);
+    ReduceTask.ReduceCopier<Text, Text> copier =
+      task.new ReduceCopier<Text, Text>(umbilical, conf, reporter);
+    assertEquals(events.length,
+        copier.new GetMapEventsThread().getMapCompletionEvents());
+    return copier;
+  }
+
+  private static Map<String, Long> pending(List<String> hosts) {
+    Map<String, Long> bytesPending = new HashMap<String, Long>();
+    for (String host : hosts) {
+      bytesPending.put(host, 1L);
+    }
+    return bytesPending;
+  }
+
+  public void testEventRack() throws Exception {
+    TaskCompletionEvent event = event(1, "host1", "/rack1", 12345);
+    DataOutputBuffer out = new DataOutputBuffer();
+    event.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    TaskCompletionEvent copy = new TaskCompletionEvent();
+    copy.readFields(in);
+    assertEquals("/rack1", copy.getTaskTrackerRack());
+    assertEquals(12345, copy.getMapOutputSize());
+    assertEquals(event, copy);
+    assertEquals(NetworkTopology.DEFAULT_RACK,
+        new TaskCompletionEvent().getTaskTrackerRack());
+    assertEquals(-1, new TaskCompletionEvent().getMapOutputSize());
+  }
+
+  public void testRacksFromEvents() throws Exception {
+    ReduceTask.ReduceCopier<Text, Text> copier =
+      getCopier(new TaskCompletionEvent[] {
+          event(0, "host1", "/rack1"),
+          event(1, "host2", "/rack1"),
+          event(2, "host3", "/rack2") });
+    assertEquals("/rack1", copier.getRack("host1"));
+    assertEquals("/rack1", copier.getRack("host2"));
+    assertEquals("/rack2", copier.getRack("host3"));
+    assertEquals(NetworkTopology.DEFAULT_RACK, copier.getRack("host4"));
+
+    List<String> hosts = new ArrayList<String>();
+    hosts.add("host1");
+    hosts.add("host2");
+    hosts.add("host3");
+    Map<String, Long> bytesPending = pending(hosts);
+    // five copiers over two racks
+    assertEquals(3, copier.getMaxRackCopies(hosts, bytesPending));
+    // the racks without outputs left don't count
+    bytesPending.put("host3", 0L);
+    assertEquals(5, copier.getMaxRackCopies(hosts, bytesPending));
+  }
+
+  /** Without racks from the jobtracker, all hosts are on one rack. */
+  public void testNoRacks() throws Exception {
+    ReduceTask.ReduceCopier<Text, Text> copier =
+      getCopier(new TaskCompletionEvent[] {
+          event(0, "host1", null),
+          event(1, "host2", null) });
+    List<String> hosts = new ArrayList<String>();
+    hosts.add("host1");
+    hosts.add("host2");
+    assertEquals(NetworkTopology.DEFAULT_RACK, copier.getRack("host1"));
+    assertEquals(5, copier.getMaxRackCopies(hosts, pending(hosts)));
+  }
+
+  /** A host's outputs are in order of size, and the hosts by bytes left. */
+  public void testBiggestFirst() throws Exception {
+    ReduceTask.ReduceCopier<Text, Text> copier =
+      getCopier(new TaskCompletionEvent[] {
+          event(0, "host1", null, 100),
+          event(1, "host1", null, 300),
+          event(2, "host1", null, 200),
+          event(3, "host2", null, 1000),
+          event(4, "host3", null, -1),
+          event(5, "host3", null, -1) });
+    List<ReduceTask.ReduceCopier<Text, Text>.MapOutputLocation> locs =
+      copier.mapLocations.get("host1");
+    assertEquals(3, locs.size());
+    assertEquals(300, locs.get(0).getSize());
+    assertEquals(200, locs.get(1).getSize());
+    assertEquals(100, locs.get(2).getSize());
+    assertEquals(600, copier.getBytesPending(locs));
+    assertEquals(1000,
+        copier.getBytesPending(copier.mapLocations.get("host2")));
+    // without sizes, the # of outputs
+    assertEquals(2, copier.getBytesPending(copier.mapLocations.get("host3")));
+    assertEquals(0, copier.getBytesPending(null));
+  }
+}
@@ -0,0 +1,233 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.MapTask.MapOutputCollector;
+import org.apache.hadoop.mapred.Task.OldCombinerRunner;
+import org.apache.hadoop.mapred.lib.IdentityReducer;
+import org.apache.hadoop.mapred.lib.LongSumReducer;
+
+public class TestSailfishCombiningCollector extends TestCase {
+
+  private static final int PARTITIONS = 3;
+
+  /** Remembers what the combiner sent down, per partition. */
+  static class CapturingCollector
+      implements MapOutputCollector<Text, LongWritable> {
+    final List<List<String>> records = new ArrayList<List<String>>();
+    boolean flushed = false;
+    boolean closed = false;
+
+    CapturingCollector() {
+      for (int p = 0; p < PARTITIONS; p++) {
+        records.add(new ArrayList<String>());
+      }
+    }
+
+    public void collect(Text key, LongWritable value, int partition) {
+      records.get(partition).add(key + "=" + value);
+    }
+
+    public void flush() {
+      flushed = true;
+    }
+
+    public void close() {
+      closed = true;
+    }
+  }
+
+  private JobConf getConf() {
+    JobConf job = new JobConf();
+    job.setNumReduceTasks(PARTITIONS);
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(LongWritable.class);
+    return job;
+  }
+
+  @SuppressWarnings("unchecked")
+  private SailfishCombiningCollector<Text, LongWritable> getCollector(
+      JobConf job, TestSailfishMapCollector.CountingReporter reporter,
+      CapturingCollector out) {
+    OldCombinerRunner<Text, LongWritable> combinerRunner =
+      new OldCombinerRunner<Text, LongWritable>((Class) LongSumReducer.class,
+          job, reporter.getCounter(Task.Counter.COMBINE_INPUT_RECORDS), null);
+    return new SailfishCombiningCollector<Text, LongWritable>(job, reporter,
+        combinerRunner, out);
+  }
+
+  public void testCombine() throws Exception {
+    JobConf job = getConf();
+    TestSailfishMapCollector.CountingReporter reporter =
+      new TestSailfishMapCollector.CountingReporter();
+    CapturingCollector out = new CapturingCollector();
+    SailfishCombiningCollector<Text, LongWritable> collector =
+      getCollector(job, reporter, out);
+    int numRecords = 3000;
+    for (int i = 0; i < numRecords; i++) {
+      // 10 distinct keys, spread over the partitions
+      int k = (i * 7) % 10;
+      collector.collect(new Text("key" + k), new LongWritable(i),
+          k % PARTITIONS);
+    }
+    collector.flush();
+    collector.close();
+    assertTrue(out.flushed);
+    assertTrue(out.closed);
+
+    // all of it fit in the buffer; one record per key, sorted by key
+    long[] sums = new long[10];
+    for (int i = 0; i < numRecords; i++) {
+      sums[(i * 7) % 10] += i;
+    }
+    int numOut = 0;
+    for (int p = 0; p < PARTITIONS; p++) {
+      List<String> expected = new ArrayList<String>();
+      for (int k = p; k < 10; k += PARTITIONS) {
+        expected.add("key" + k + "=" + sums[k]);
+      }
+      assertEquals(expected, out.records.get(p));
+      numOut += expected.size();
+    }
+    assertEquals(numRecords,
+        reporter.getCounter(Task.Counter.COMBINE_INPUT_RECORDS).getCounter());
+    assertEquals(numOut,
+        reporter.getCounter(Task.Counter.COMBINE_OUTPUT_RECORDS).getCounter());
+  }
+
+  /**
+   * When the buffer fills up, what is in it is combined and sent down; the
+   * totals come out the same.
+   */
+  public void testCombineWhenFull() throws Exception {
+    JobConf job = getConf();
+    job.setInt("sailfish.mapred.combiner.buffer.records", 64);
+    TestSailfishMapCollector.CountingReporter reporter =
+      new TestSailfishMapCollector.CountingReporter();
+    CapturingCollector out = new CapturingCollector();
+    SailfishCombiningCollector<Text, LongWritable> collector =
+      getCollector(job, reporter, out);
+    int numRecords = 1000;
+    for (int i = 0; i < numRecords; i++) {
+      collector.collect(new Text("key" + (i % 5)), new LongWritable(1),
+          i % PARTITIONS);
+    }
+    collector.close();
+
+    Map<String, Long> totals = new HashMap<String, Long>();
+    int numOut = 0;
+    for (int p = 0; p < PARTITIONS; p++) {
+      for (String rec : out.records.get(p)) {
+        String key = p + "/" + rec.substring(0, rec.indexOf('='));
+        long count = Long.parseLong(rec.substring(rec.indexOf('=') + 1));
+        Long total = totals.get(key);
+        totals.put(key, (total == null) ? count : total + count);
+        numOut++;
+      }
+    }
+    for (int i = 0; i < numRecords; i++) {
+      String key = (i % PARTITIONS) + "/key" + (i % 5);
+      long left = totals.get(key) - 1;
+      if (left == 0) {
+        totals.remove(key);
+      } else {
+        totals.put(key, left);
+      }
+    }
+    assertTrue(totals.toString(), totals.isEmpty());
+    // combined more than once, but still fewer records than went in
+    assertTrue(numOut > PARTITIONS * 5);
+    assertTrue(numOut < numRecords);
+  }
+
+  /**
+   * The old API runner picks up the job's combiner when there isn't a
+   * sailfish specific one.
+   */
+  public void testMapRunnerCombinerClass() throws Exception {
+    JobConf job = getConf();
+    SailfishMapRunner<Text, Text, Text, LongWritable> runner =
+      new SailfishMapRunner<Text, Text, Text, LongWritable>();
+    runner.configure(job);
+    assertNull(runner.getCombinerClass());
+
+    job.setCombinerClass(LongSumReducer.class);
+    runner = new SailfishMapRunner<Text, Text, Text, LongWritable>();
+    runner.configure(job);
+    assertEquals(LongSumReducer.class, runner.getCombinerClass());
+
+    job.setClass("sailfish.mapred.combiner.class", IdentityReducer.class,
+        Reducer.class);
+    runner = new SailfishMapRunner<Text, Text, Text, LongWritable>();
+    runner.configure(job);
+    assertEquals(IdentityReducer.class, runner.getCombinerClass());
+  }
+
+  /**
+   * A new API map uses the sailfish combiner too, in place of the job's own
+   * new API combiner.
+   */
+  @SuppressWarnings("unchecked")
+  public void testNewApiCombinerClass() throws Exception {
+    JobConf job = getConf();
+    TaskAttemptID taskId =
+      TaskAttemptID.forName("attempt_200707121733_0003_m_000000_0");
+    Counters.Counter counter =
+      new TestSailfishMapCollector.CountingReporter().getCounter(
+          Task.Counter.COMBINE_INPUT_RECORDS);
+    assertNull(SailfishCombiningCollector.createCombinerRunner(job, taskId,
+        counter, null, null));
+
+    job.setClass("mapreduce.combine.class",
+        org.apache.hadoop.mapreduce.Reducer.class,
+        org.apache.hadoop.mapreduce.Reducer.class);
+    assertTrue(SailfishCombiningCollector.createCombinerRunner(job, taskId,
+        counter, null, null) instanceof Task.NewCombinerRunner);
+
+    job.setClass("sailfish.mapred.combiner.class", LongSumReducer.class,
+        Reducer.class);
+    TestSailfishMapCollector.CountingReporter reporter =
+      new TestSailfishMapCollector.CountingReporter();
+    Task.CombinerRunner<Text, LongWritable> combinerRunner =
+      SailfishCombiningCollector.createCombinerRunner(job, taskId,
+          reporter.getCounter(Task.Counter.COMBINE_INPUT_RECORDS), null, null);
+    assertTrue(combinerRunner instanceof OldCombinerRunner);
+    CapturingCollector out = new CapturingCollector();
+    SailfishCombiningCollector<Text, LongWritable> collector =
+      new SailfishCombiningCollector<Text, LongWritable>(job, reporter,
+          combinerRunner, out);
+    for (int i = 0; i < 10; i++) {
+      collector.collect(new Text("key"), new LongWritable(i), 1);
+    }
+    collector.close();
+    // summed, which the identity new API combiner would not have done
+    List<String> expected = new ArrayList<String>();
+    expected.add("key=45");
+    assertEquals(expected, out.records.get(1));
+    assertTrue(out.records.get(0).isEmpty());
+  }
+}
@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+public class TestSailfishIFileAppender extends TestCase {
+
+  private static final int PARTITIONS = 3;
+
+  private JobConf conf;
+  private FileSystem fs;
+  private Path basedir;
+
+  protected void setUp() throws IOException {
+    conf = new JobConf();
+    conf.setNumReduceTasks(PARTITIONS);
+    // small buffers, so that each partition gets several blocks
+    conf.setLong("sailfish.iappender.memory.limit", 8 * 1024);
+    fs = FileSystem.getLocal(conf);
+    basedir = new Path(System.getProperty("test.build.data", "/tmp"),
+        "TestSailfishIFileAppender");
+    fs.delete(basedir, true);
+  }
+
+  protected void tearDown() throws IOException {
+    fs.delete(basedir, true);
+  }
+
+  private static byte[] key(int mapper, int i) {
+    return ("key-" + mapper + "-" + i).getBytes();
+  }
+
+  private static byte[] value(int i) {
+    byte[] val = new byte[i % 100];
+    for (int j = 0; j < val.length; j++) {
+      val[j] = (byte) (i + j);
+    }
+    return val;
+  }
+
+  /**
+   * Read back the records of an I-file, checking the block headers.
+   * @return the keys, in the order they were written
+   */
+  private List<String> readIFile(Path ifile, int mapper, int attempt)
+      throws IOException {
+    List<String> keys = new ArrayList<String>();
+    DataInputStream in = fs.open(ifile);
+    try {
+      while (true) {
+        int magic;
+        try {
+          magic = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        assertEquals(SailfishIFileAppender.BLOCK_MAGIC, magic);
+        assertEquals(mapper, in.readInt());
+        assertEquals(attempt, in.readInt());
+        int numRecords = in.readInt();
+        int payloadLen = in.readInt();
+        int read = 0;
+        for (int r = 0; r < numRecords; r++) {
+          int pktSize = in.readInt();
+          byte[] k = new byte[in.readInt()];
+          in.readFully(k);
+          byte[] v = new byte[in.readInt()];
+          in.readFully(v);
+          assertEquals(pktSize, k.length + v.length + 8);
+          String key = new String(k);
+          assertTrue(key, key.startsWith("key-" + mapper + "-"));
+          int i = Integer.parseInt(key.substring(key.lastIndexOf('-') + 1));
+          assertEquals(new String(value(i)), new String(v));
+          keys.add(key);
+          read += pktSize + 4;
+        }
+        assertEquals(payloadLen, read);
+      }
+    } finally {
+      in.close();
+    }
+    return keys;
+  }
+
+  /**
+   * Each map attempt writes its own I-file per partition, even when the
+   * attempts write to the same partitions at the same time.
+   */
+  public void testIFilePerAttempt() throws Exception {
+    final int numRecords = 1000;
+    // two maps write at the same time; one of them is on its second attempt
+    final SailfishIFileAppender a0 =
+      new SailfishIFileAppender(conf, fs, basedir, 0, 0);
+    final SailfishIFileAppender a1 =
+      new SailfishIFileAppender(conf, fs, basedir, 1, 1);
+    final List<Exception> errors = new ArrayList<Exception>();
+    Thread t0 = new Thread() {
+      public void run() {
+        try {
+          for (int i = 0; i < numRecords; i++) {
+            byte[] v = value(i);
+            byte[] k = key(0, i);
+            a0.append(i % PARTITIONS, k, k.length, v, v.length);
+          }
+          a0.close();
+        } catch (Exception e) {
+          errors.add(e);
+        }
+      }
+    };
+    t0.start();
+    for (int i = 0; i < numRecords; i++) {
+      // map 1 has no output for the last partition
+      byte[] v = value(i);
+      byte[] k = key(1, i);
+      a1.append(i % (PARTITIONS - 1), k, k.length, v, v.length);
+    }
+    a1.close();
+    t0.join();
+    assertTrue(errors.toString(), errors.isEmpty());
+
+    for (int p = 0; p < PARTITIONS; p++) {
+      List<String> keys = readIFile(
+          SailfishIFileAppender.getIFile(basedir, p, 0, 0), 0, 0);
+      int i = p;
+      for (String key : keys) {
+        assertEquals(new String(key(0, i)), key);
+        i += PARTITIONS;
+      }
+      assertTrue(i >= numRecords);
+    }
+    for (int p = 0; p < PARTITIONS - 1; p++) {
+      assertEquals(numRecords / (PARTITIONS - 1), readIFile(
+          SailfishIFileAppender.getIFile(basedir, p, 1, 1), 1, 1).size());
+    }
+    assertFalse(fs.exists(
+        SailfishIFileAppender.getIFile(basedir, PARTITIONS - 1, 1, 1)));
+  }
+
+  public void testIFileNames() {
+    Path ifile = SailfishIFileAppender.getIFile(basedir, 7, 12, 3);
+    assertEquals(SailfishIFileAppender.getIFileDir(basedir, 7),
+        ifile.getParent());
+    int[] id = SailfishIFileAppender.parseIFileName(ifile.getName());
+    assertEquals(12, id[0]);
+    assertEquals(3, id[1]);
+    assertNull(SailfishIFileAppender.parseIFileName("_logs"));
+    assertNull(SailfishIFileAppender.parseIFileName("12_x"));
+  }
+}
@@ -0,0 +1,405 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.Progressable;
+
+public class TestSailfishIFileMerger extends TestCase {
+
+  private static final int PARTITIONS = 2;
+  private static final int PARTITION = 1;
+  private static final Progressable NO_PROGRESS = new Progressable() {
+    public void progress() { }
+  };
+
+  private JobConf conf;
+  private FileSystem fs;
+  private Path basedir;
+
+  protected void setUp() throws IOException {
+    conf = new JobConf();
+    conf.setNumReduceTasks(PARTITIONS);
+    conf.setLong("sailfish.iappender.memory.limit", 8 * 1024);
+    fs = FileSystem.getLocal(conf);
+    Path testdir = new Path(System.getProperty("test.build.data", "/tmp"),
+        "TestSailfishIFileMerger");
+    fs.delete(testdir, true);
+    basedir = new Path(testdir, "jobs");
+    conf.set("mapred.local.dir", new Path(testdir, "local").toString());
+    conf.set("mapred.task.id", "attempt_200707121733_0003_r_000001_0");
+  }
+
+  protected void tearDown() throws IOException {
+    fs.delete(basedir.getParent(), true);
+  }
+
+  private static String key(int mapper, int i) {
+    return String.format("key-%05d-%d", i, mapper);
+  }
+
+  /**
+   * Write a map attempt's I-files.
+   * @return the records that went to PARTITION, as "key=value"
+   */
+  private List<String> writeMap(int mapper, int attempt, int numRecords)
+      throws IOException {
+    List<String> records = new ArrayList<String>();
+    SailfishIFileAppender appender =
+      new SailfishIFileAppender(conf, fs, basedir, mapper, attempt);
+    DataOutputBuffer val = new DataOutputBuffer();
+    // written out of order; the merger sorts them
+    for (int i = numRecords - 1; i >= 0; i--) {
+      byte[] k = key(mapper, i).getBytes();
+      Text v = new Text("value-" + i + "-" + attempt);
+      val.reset();
+      v.write(val);
+      appender.append(i % PARTITIONS, k, k.length, val.getData(),
+          val.getLength());
+      if (i % PARTITIONS == PARTITION) {
+        records.add(key(mapper, i) + "=" + v);
+      }
+    }
+    appender.close();
+    return records;
+  }
+
+  /** Hands out a fixed list of map attempts. */
+  private static class ListSource implements SailfishIFileMerger.IFileSource {
+    private final LinkedList<int[]> attempts = new LinkedList<int[]>();
+
+    ListSource(int[]... attempts) {
+      Collections.addAll(this.attempts, attempts);
+    }
+
+    public int[] nextMapAttempt() throws InterruptedException {
+      // the maps finish one after the other
+      Thread.sleep(10);
+      return attempts.poll();
+    }
+  }
+
+  private SailfishIFileMerger<Text, Text> getMerger(
+      SailfishIFileMerger.IFileSource source) {
+    return getMerger(source, null);
+  }
+
+  private SailfishIFileMerger<Text, Text> getMerger(
+      SailfishIFileMerger.IFileSource source, SailfishReduceKeyRange range) {
+    return new SailfishIFileMerger<Text, Text>(conf, fs,
+        SailfishIFileAppender.getIFileDir(basedir, PARTITION), Text.class,
+        Text.class,
+        source, range, NO_PROGRESS);
+  }
+
+  private static List<String> readAll(SailfishIFileMerger<Text, Text> merger)
+      throws IOException {
+    List<String> records = new ArrayList<String>();
+    Text v = new Text();
+    while (merger.next()) {
+      DataInputBuffer key = merger.getKey();
+      DataInputBuffer val = merger.getValue();
+      String k = new String(key.getData(), key.getPosition(),
+          key.getLength() - key.getPosition());
+      v.readFields(val);
+      records.add(k + "=" + v);
+    }
+    merger.close();
+    return records;
+  }
+
+  private void checkMerge(long memoryLimit) throws IOException {
+    conf.setLong("sailfish.imerger.memory.limit", memoryLimit);
+    List<String> expected = new ArrayList<String>();
+    expected.addAll(writeMap(0, 0, 1000));
+    // map 1's first attempt failed part way; its I-file is to be skipped
+    writeMap(1, 0, 300);
+    expected.addAll(writeMap(1, 1, 1000));
+    // map 2 has no output for PARTITION
+    writeMap(2, 0, 1);
+    expected.addAll(writeMap(3, 2, 500));
+    Collections.sort(expected);
+
+    SailfishIFileMerger<Text, Text> merger = getMerger(new ListSource(
+        new int[] { 0, 0 }, new int[] { 2, 0 }, new int[] { 1, 1 },
+        new int[] { 3, 2 }));
+    assertEquals(expected.size(), merger.start());
+    assertEquals(expected, readAll(merger));
+  }
+
+  public void testMergeInMemory() throws IOException {
+    checkMerge(64 * 1024 * 1024);
+  }
+
+  public void testMergeWithSpills() throws IOException {
+    // several runs get spilled to local disk
+    checkMerge(16 * 1024);
+  }
+
+  /** Only the records in the key range come out. */
+  public void testKeyRange() throws IOException {
+    // the records in the range take up several runs
+    conf.setLong("sailfish.imerger.memory.limit", 4 * 1024);
+    List<String> all = new ArrayList<String>();
+    all.addAll(writeMap(0, 0, 1000));
+    all.addAll(writeMap(1, 0, 1000));
+    String start = key(0, 300);
+    String end = key(0, 700);
+    List<String> expected = new ArrayList<String>();
+    for (String rec : all) {
+      String k = rec.substring(0, rec.indexOf('='));
+      if ((k.compareTo(start) >= 0) && (k.compareTo(end) < 0)) {
+        expected.add(rec);
+      }
+    }
+    Collections.sort(expected);
+    // key-00300-1 is in, key-00700-0 is out
+    assertEquals(2 * 200, expected.size());
+    SailfishIFileMerger<Text, Text> merger = getMerger(
+        new ListSource(new int[] { 0, 0 }, new int[] { 1, 0 }),
+        new SailfishReduceKeyRange(PARTITION, start.getBytes(),
+            end.getBytes()));
+    assertEquals(expected.size(), merger.start());
+    assertEquals(expected, readAll(merger));
+
+    // and open ended ranges
+    merger = getMerger(new ListSource(new int[] { 0, 0 }, new int[] { 1, 0 }),
+        new SailfishReduceKeyRange(PARTITION, null, start.getBytes()));
+    assertEquals(2 * 150, merger.start());
+    merger.close();
+    merger = getMerger(new ListSource(new int[] { 0, 0 }, new int[] { 1, 0 }),
+        new SailfishReduceKeyRange(PARTITION, end.getBytes(), null));
+    assertEquals(2 * 150, merger.start());
+    merger.close();
+  }
+
+  /**
+   * The I-files are read as the maps finish; the I-files of the maps that
+   * are still running are read once the map is done, or are skipped if their
+   * attempt fails.
+   */
+  public void testMapsFinishDuringMerge() throws IOException {
+    final List<String> expected = new ArrayList<String>();
+    expected.addAll(writeMap(0, 0, 500));
+    SailfishIFileMerger<Text, Text> merger = getMerger(
+        new SailfishIFileMerger.IFileSource() {
+          private int next = 0;
+
+          public int[] nextMapAttempt() throws IOException {
+            switch (next++) {
+            case 0:
+              return new int[] { 0, 0 };
+            case 1:
+              // map 1 writes its I-file while the merger is reading
+              writeMap(1, 0, 200);
+              expected.addAll(writeMap(2, 0, 300));
+              return new int[] { 2, 0 };
+            case 2:
+              // map 1's first attempt failed
+              expected.addAll(writeMap(1, 1, 400));
+              return new int[] { 1, 1 };
+            default:
+              return null;
+            }
+          }
+        });
+    int numRecords = merger.start();
+    Collections.sort(expected);
+    assertEquals(expected.size(), numRecords);
+    assertEquals(expected, readAll(merger));
+  }
+
+  /** Without a source, every I-file in the directory is taken. */
+  public void testNoSource() throws IOException {
+    List<String> expected = new ArrayList<String>();
+    expected.addAll(writeMap(4, 0, 100));
+    expected.addAll(writeMap(5, 3, 100));
+    Collections.sort(expected);
+    SailfishIFileMerger<Text, Text> merger = getMerger(null);
+    assertEquals(expected.size(), merger.start());
+    assertEquals(expected, readAll(merger));
+  }
+
+  /** No map had output for the partition. */
+  public void testNoIFile() throws IOException {
+    SailfishIFileMerger<Text, Text> merger = getMerger(
+        new ListSource(new int[] { 0, 0 }));
+    assertEquals(0, merger.start());
+    assertTrue(readAll(merger).isEmpty());
+  }
+
+  public void testKAppenderIFile() throws IOException {
+    // kappender's records have no block headers
+    DataOutputStream out = fs.create(SailfishIFileAppender.getIFile(basedir,
+        PARTITION, 0, 0));
+    out.writeInt(12);
+    out.writeInt(4);
+    out.writeBytes("key0");
+    out.writeInt(0);
+    out.close();
+    try {
+      getMerger(new ListSource(new int[] { 0, 0 })).start();
+      fail("read a kappender I-file");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("in-process"));
+    }
+  }
+
+  public void testBadBlock() throws IOException {
+    DataOutputStream out = fs.create(SailfishIFileAppender.getIFile(basedir,
+        PARTITION, 0, 0));
+    out.writeInt(0xDEADBEEF);
+    out.writeInt(0);
+    out.close();
+    try {
+      getMerger(new ListSource(new int[] { 0, 0 })).start();
+      fail("read a corrupt I-file");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("bad block magic"));
+    }
+  }
+
+  /**
+   * A block length that can't be allocated fails the merge instead of
+   * leaving it waiting for the prefetcher.
+   */
+  public void testBadBlockLength() throws IOException {
+    DataOutputStream out = fs.create(SailfishIFileAppender.getIFile(basedir,
+        PARTITION, 0, 0));
+    out.writeInt(SailfishIFileAppender.BLOCK_MAGIC);
+    out.writeInt(0);
+    out.writeInt(0);
+    out.writeInt(1);
+    out.writeInt(Integer.MAX_VALUE);
+    out.close();
+    try {
+      getMerger(new ListSource(new int[] { 0, 0 })).start();
+      fail("read a block that can't fit in memory");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof OutOfMemoryError);
+    }
+  }
+
+  public void testBlockOfOtherAttempt() throws IOException {
+    writeMap(0, 1, 10);
+    // the I-file of attempt 0 holds a block of attempt 1
+    fs.rename(SailfishIFileAppender.getIFile(basedir, PARTITION, 0, 1),
+        SailfishIFileAppender.getIFile(basedir, PARTITION, 0, 0));
+    try {
+      getMerger(new ListSource(new int[] { 0, 0 })).start();
+      fail("read the block of another attempt");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("attempt 1"));
+    }
+  }
+
+  private static TaskCompletionEvent event(int map, int attempt,
+      TaskCompletionEvent.Status status) {
+    TaskAttemptID id = new TaskAttemptID("200707121733", 3, true, map, attempt);
+    return new TaskCompletionEvent(0, id, map, true, status, "");
+  }
+
+  /**
+   * The map attempts are handed out as they succeed; the first successful
+   * attempt of a map wins.
+   */
+  public void testMapCompletionSource() throws Exception {
+    final LinkedList<MapTaskCompletionEventsUpdate> updates =
+      new LinkedList<MapTaskCompletionEventsUpdate>();
+    updates.add(new MapTaskCompletionEventsUpdate(new TaskCompletionEvent[] {
+        event(1, 0, TaskCompletionEvent.Status.FAILED),
+        event(0, 0, TaskCompletionEvent.Status.SUCCEEDED) }, false));
+    updates.add(new MapTaskCompletionEventsUpdate(
+        new TaskCompletionEvent[0], false));
+    updates.add(new MapTaskCompletionEventsUpdate(new TaskCompletionEvent[] {
+        event(0, 0, TaskCompletionEvent.Status.OBSOLETE),
+        event(0, 1, TaskCompletionEvent.Status.SUCCEEDED),
+        event(1, 1, TaskCompletionEvent.Status.SUCCEEDED),
+        event(2, 0, TaskCompletionEvent.Status.SUCCEEDED) }, false));
+    final List<Integer> fromIndexes = new ArrayList<Integer>();
+    TaskUmbilicalProtocol umbilical = (TaskUmbilicalProtocol)
+      Proxy.newProxyInstance(getClass().getClassLoader(),
+          new Class<?>[] { TaskUmbilicalProtocol.class },
+          new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+              assertEquals("getMapCompletionEvents", method.getName());
+              fromIndexes.add((Integer) args[1]);
+              return updates.poll();
+            }
+          });
+    SailfishReduceHelper.MapCompletionSource source =
+      new SailfishReduceHelper.MapCompletionSource(3, umbilical,
+          TaskAttemptID.forName("attempt_200707121733_0003_r_000001_0"),
+          NO_PROGRESS);
+    source.setPollInterval(1);
+    int[] id = source.nextMapAttempt();
+    assertEquals(0, id[0]);
+    assertEquals(0, id[1]);
+    id = source.nextMapAttempt();
+    assertEquals(1, id[0]);
+    assertEquals(1, id[1]);
+    id = source.nextMapAttempt();
+    assertEquals(2, id[0]);
+    assertEquals(0, id[1]);
+    assertNull(source.nextMapAttempt());
+    // one poll while waiting for map 1, and no polls once all maps are in
+    assertEquals(3, fromIndexes.size());
+    assertEquals(2, fromIndexes.get(1).intValue());
+    assertEquals(2, fromIndexes.get(2).intValue());
+  }
+
+  public void testMapFailed() throws Exception {
+    TaskUmbilicalProtocol umbilical = (TaskUmbilicalProtocol)
+      Proxy.newProxyInstance(getClass().getClassLoader(),
+          new Class<?>[] { TaskUmbilicalProtocol.class },
+          new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+              return new MapTaskCompletionEventsUpdate(
+                  new TaskCompletionEvent[] {
+                      event(0, 3, TaskCompletionEvent.Status.TIPFAILED) },
+                  false);
+            }
+          });
+    SailfishReduceHelper.MapCompletionSource source =
+      new SailfishReduceHelper.MapCompletionSource(1, umbilical,
+          TaskAttemptID.forName("attempt_200707121733_0003_r_000001_0"),
+          NO_PROGRESS);
+    try {
+      source.nextMapAttempt();
+      fail("no error for a failed map");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class TestSailfishJobEventsServlet extends TestCase {
+
+  private static final String JOB = "job_200707121733_0003";
+
+  public void testCurrentState() throws Exception {
+    SailfishJobEvents events = new SailfishJobEvents(JOB);
+    events.update(10, 0, 0);
+    // no version: the current state, right away
+    assertEquals("1\n" + JOB + ":10:0:0\n",
+        SailfishJobEventsServlet.getEvents(events, -1, 60 * 1000));
+    // an old version: no waiting either
+    events.update(9, 1, 2);
+    assertEquals("2\n" + JOB + ":9:1:2\n",
+        SailfishJobEventsServlet.getEvents(events, 1, 60 * 1000));
+  }
+
+  /** The request is held until the state changes. */
+  public void testWaitForChange() throws Exception {
+    final SailfishJobEvents events = new SailfishJobEvents(JOB);
+    events.update(10, 0, 0);
+    final List<String> replies = new ArrayList<String>();
+    final CountDownLatch replied = new CountDownLatch(1);
+    Thread poller = new Thread() {
+      public void run() {
+        try {
+          replies.add(SailfishJobEventsServlet.getEvents(events, 1,
+              60 * 1000));
+          replied.countDown();
+        } catch (InterruptedException e) {
+          // the latch is not counted down
+        }
+      }
+    };
+    poller.start();
+    assertFalse(replied.await(200, TimeUnit.MILLISECONDS));
+    events.jobDone();
+    assertTrue(replied.await(10, TimeUnit.SECONDS));
+    assertEquals("2\n" + JOB + ":DONE\n", replies.get(0));
+    poller.join();
+  }
+
+  /** With no change, the current state comes back once the time is up. */
+  public void testTimeout() throws Exception {
+    SailfishJobEvents events = new SailfishJobEvents(JOB);
+    events.update(10, 0, 0);
+    long start = System.currentTimeMillis();
+    assertEquals("1\n" + JOB + ":10:0:0\n",
+        SailfishJobEventsServlet.getEvents(events, 1, 300));
+    assertTrue(System.currentTimeMillis() - start >= 300);
+  }
+
+  /**
+   * Once MAX_WAITERS requests are held, the next ones are answered right
+   * away.
+   */
+  public void testBoundedWaiters() throws Exception {
+    final SailfishJobEvents events = new SailfishJobEvents(JOB);
+    events.update(10, 0, 0);
+    final CountDownLatch replied =
+      new CountDownLatch(SailfishJobEventsServlet.MAX_WAITERS);
+    List<Thread> pollers = new ArrayList<Thread>();
+    for (int i = 0; i < SailfishJobEventsServlet.MAX_WAITERS; i++) {
+      Thread poller = new Thread() {
+        public void run() {
+          try {
+            SailfishJobEventsServlet.getEvents(events, 1, 60 * 1000);
+            replied.countDown();
+          } catch (InterruptedException e) {
+            // the latch is not counted down
+          }
+        }
+      };
+      poller.start();
+      pollers.add(poller);
+    }
+    // wait for all of them to be parked
+    while (!allWaiting(pollers)) {
+      Thread.sleep(10);
+    }
+    long start = System.currentTimeMillis();
+    assertEquals("1\n" + JOB + ":10:0:0\n",
+        SailfishJobEventsServlet.getEvents(events, 1, 60 * 1000));
+    assertTrue(System.currentTimeMillis() - start < 30 * 1000);
+    assertEquals(SailfishJobEventsServlet.MAX_WAITERS, replied.getCount());
+
+    events.update(9, 0, 0);
+    assertTrue(replied.await(10, TimeUnit.SECONDS));
+    for (Thread poller : pollers) {
+      poller.join();
+    }
+    // and the slots are free again
+    start = System.currentTimeMillis();
+    SailfishJobEventsServlet.getEvents(events, 2, 300);
+    assertTrue(System.currentTimeMillis() - start >= 300);
+  }
+
+  private static boolean allWaiting(List<Thread> threads) {
+    for (Thread t : threads) {
+      if (t.getState() != Thread.State.TIMED_WAITING) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,247 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+public class TestSailfishMapCollector extends TestCase {
+
+  private static final int PARTITIONS = 4;
+
+  /** A reporter whose counters work. */
+  static class CountingReporter implements Reporter {
+    final Counters counters = new Counters();
+    public void setStatus(String status) { }
+    public void progress() { }
+    public Counters.Counter getCounter(Enum<?> name) {
+      return counters.findCounter(name);
+    }
+    public Counters.Counter getCounter(String group, String name) {
+      return counters.findCounter(group, name);
+    }
+    public void incrCounter(Enum<?> key, long amount) {
+      counters.incrCounter(key, amount);
+    }
+    public void incrCounter(String group, String counter, long amount) {
+      counters.incrCounter(group, counter, amount);
+    }
+    public InputSplit getInputSplit() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static JobConf getConf(boolean inPlace, Class<?> valClass) {
+    JobConf conf = new JobConf();
+    conf.setNumReduceTasks(PARTITIONS);
+    conf.setMapOutputKeyClass(Text.class);
+    conf.setMapOutputValueClass(valClass);
+    conf.setBoolean("sailfish.mapred.job.inplace_framing", inPlace);
+    // several frames' worth of records
+    conf.setInt("sailfish.mapred.job.frame_size", 1024);
+    conf.setStrings("io.serializations",
+        "org.apache.hadoop.io.serializer.WritableSerialization",
+        "org.apache.hadoop.io.serializer.JavaSerialization");
+    conf.setInt("sailfish.iappender.buffer.size", 4096);
+    return conf;
+  }
+
+  private static Text key(int i) {
+    return new Text("key-" + i);
+  }
+
+  private static Text value(int i) {
+    // now and then, a value that is bigger than an appender buffer
+    char[] val = new char[(i % 50 == 0) ? 10000 + i : i % 100];
+    Arrays.fill(val, (char) ('a' + i % 26));
+    return new Text(new String(val));
+  }
+
+  /**
+   * Collect the records and return what the collector sent down the pipe
+   * to kappender.
+   */
+  @SuppressWarnings("unchecked")
+  private static <V> byte[] collectToPipe(JobConf conf, Object[] values)
+      throws Exception {
+    CountingReporter reporter = new CountingReporter();
+    SailfishMapCollector<Text, V> collector =
+      new SailfishMapCollector<Text, V>(conf, reporter);
+    ByteArrayOutputStream pipe = new ByteArrayOutputStream();
+    collector.setOutputStream(pipe);
+    for (int i = 0; i < values.length; i++) {
+      collector.collect(key(i), (V) values[i], i % PARTITIONS);
+    }
+    collector.flush();
+    collector.close();
+    assertEquals(values.length,
+        reporter.getCounter(Task.Counter.MAP_OUTPUT_RECORDS).getCounter());
+    return pipe.toByteArray();
+  }
+
+  public void testInPlaceFramingToPipe() throws Exception {
+    Object[] values = new Object[500];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = value(i);
+    }
+    byte[] staged = collectToPipe(getConf(false, Text.class), values);
+    byte[] inPlace = collectToPipe(getConf(true, Text.class), values);
+    assertTrue(Arrays.equals(staged, inPlace));
+
+    // walk the frames: <partition><0><pktSize><key len><key><data len><data>
+    DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(inPlace));
+    for (int i = 0; i < values.length; i++) {
+      assertEquals(i % PARTITIONS, in.readInt());
+      assertEquals(0, in.readInt());
+      int pktSize = in.readInt();
+      byte[] k = new byte[in.readInt()];
+      in.readFully(k);
+      assertEquals(key(i).toString(), new String(k, "UTF-8"));
+      int valLen = in.readInt();
+      Text v = new Text();
+      v.readFields(in);
+      assertEquals(values[i], v);
+      assertEquals(valLen,
+          v.getLength() + WritableUtils.getVIntSize(v.getLength()));
+      assertEquals(pktSize, k.length + valLen + 8);
+    }
+    // the shutdown sequence
+    assertEquals(-1, in.readInt());
+    assertEquals(0, in.readInt());
+    assertEquals(4, in.readInt());
+    assertEquals(0xDEADDEAD, in.readInt());
+    assertEquals(0, in.available());
+  }
+
+  /**
+   * JavaSerialization holds bytes back in its ObjectOutputStream; in-place
+   * framing must not be used for it.
+   */
+  public void testBufferingSerializer() throws Exception {
+    Object[] values = new Object[200];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = "value-" + i;
+    }
+    byte[] staged = collectToPipe(getConf(false, String.class), values);
+    byte[] inPlace = collectToPipe(getConf(true, String.class), values);
+    assertTrue(Arrays.equals(staged, inPlace));
+  }
+
+  private List<List<String>> collectToIFiles(JobConf conf, FileSystem fs,
+      Path dir, int numRecords) throws Exception {
+    CountingReporter reporter = new CountingReporter();
+    SailfishMapCollector<Text, Text> collector =
+      new SailfishMapCollector<Text, Text>(conf, reporter);
+    SailfishIFileAppender appender =
+      new SailfishIFileAppender(conf, fs, dir, 0, 0);
+    collector.setAppender(appender);
+    long bytes = 0;
+    for (int i = 0; i < numRecords; i++) {
+      Text k = key(i);
+      Text v = value(i);
+      collector.collect(k, v, i % PARTITIONS);
+      bytes += k.getLength() + v.getLength()
+        + WritableUtils.getVIntSize(v.getLength());
+    }
+    collector.close();
+    appender.close();
+    assertEquals(numRecords,
+        reporter.getCounter(Task.Counter.MAP_OUTPUT_RECORDS).getCounter());
+    assertEquals(bytes,
+        reporter.getCounter(Task.Counter.MAP_OUTPUT_BYTES).getCounter());
+    List<List<String>> records = new ArrayList<List<String>>();
+    for (int p = 0; p < PARTITIONS; p++) {
+      records.add(
+          readIFile(fs, SailfishIFileAppender.getIFile(dir, p, 0, 0)));
+    }
+    return records;
+  }
+
+  /**
+   * @return the records of the I-file, as "key/value length"
+   */
+  private static List<String> readIFile(FileSystem fs, Path ifile)
+      throws IOException {
+    List<String> records = new ArrayList<String>();
+    DataInputStream in = fs.open(ifile);
+    try {
+      while (in.available() > 0) {
+        assertEquals(SailfishIFileAppender.BLOCK_MAGIC, in.readInt());
+        in.readInt();
+        in.readInt();
+        int numRecords = in.readInt();
+        in.readInt();
+        for (int r = 0; r < numRecords; r++) {
+          int pktSize = in.readInt();
+          byte[] k = new byte[in.readInt()];
+          in.readFully(k);
+          Text v = new Text();
+          int valLen = in.readInt();
+          v.readFields(in);
+          assertEquals(valLen, v.getLength()
+              + WritableUtils.getVIntSize(v.getLength()));
+          assertEquals(pktSize, k.length + valLen + 8);
+          String key = new String(k, "UTF-8");
+          assertEquals(value(Integer.parseInt(key.substring(4))), v);
+          records.add(key + "/" + v.getLength());
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return records;
+  }
+
+  /**
+   * Records serialized straight into the appender's buffers, including ones
+   * that straddle or outgrow a buffer, end up in the I-files just like
+   * records staged on the heap.
+   */
+  public void testInPlaceFramingToAppender() throws Exception {
+    JobConf conf = getConf(false, Text.class);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(System.getProperty("test.build.data", "/tmp"),
+        "TestSailfishMapCollector");
+    fs.delete(dir, true);
+    try {
+      List<List<String>> staged =
+        collectToIFiles(conf, fs, new Path(dir, "staged"), 500);
+      List<List<String>> inPlace = collectToIFiles(getConf(true, Text.class),
+          fs, new Path(dir, "inplace"), 500);
+      assertEquals(staged, inPlace);
+      for (int p = 0; p < PARTITIONS; p++) {
+        assertEquals(500 / PARTITIONS, inPlace.get(p).size());
+      }
+    } finally {
+      fs.delete(dir, true);
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+
+public class TestSailfishReduceKeyRange extends TestCase {
+
+  private static final RawComparator<Object> CMP =
+    SailfishSerialization.getRawComparator(Text.class);
+
+  private static int compare(SailfishReduceKeyRange range, String key) {
+    // put the key at an offset, as it would be in a buffer of records
+    byte[] b = ("xx" + key).getBytes();
+    return range.compare(CMP, b, 2, b.length - 2);
+  }
+
+  public void testCompare() {
+    SailfishReduceKeyRange range =
+      new SailfishReduceKeyRange(3, "c".getBytes(), "f".getBytes());
+    assertEquals(3, range.getPartition());
+    assertTrue(compare(range, "a") < 0);
+    assertTrue(compare(range, "bzzz") < 0);
+    // the start key is in, the end key is out
+    assertEquals(0, compare(range, "c"));
+    assertEquals(0, compare(range, "c0"));
+    assertEquals(0, compare(range, "ezzz"));
+    assertTrue(compare(range, "f") > 0);
+    assertTrue(compare(range, "g") > 0);
+  }
+
+  public void testOpenEnded() {
+    SailfishReduceKeyRange first =
+      new SailfishReduceKeyRange(0, null, "m".getBytes());
+    assertEquals(0, compare(first, ""));
+    assertEquals(0, compare(first, "lzzz"));
+    assertTrue(compare(first, "m") > 0);
+    SailfishReduceKeyRange last =
+      new SailfishReduceKeyRange(0, "m".getBytes(), null);
+    assertTrue(compare(last, "lzzz") < 0);
+    assertEquals(0, compare(last, "m"));
+    assertEquals(0, compare(last, "zzzz"));
+  }
+
+  private static SailfishReduceKeyRange roundTrip(SailfishReduceKeyRange r)
+      throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    r.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    SailfishReduceKeyRange copy = new SailfishReduceKeyRange();
+    copy.readFields(in);
+    assertEquals(out.getLength(), in.getPosition());
+    return copy;
+  }
+
+  public void testWritable() throws IOException {
+    SailfishReduceKeyRange[] ranges = {
+        new SailfishReduceKeyRange(7, "abc".getBytes(), "abd".getBytes()),
+        new SailfishReduceKeyRange(0, null, "abc".getBytes()),
+        new SailfishReduceKeyRange(1, "abc".getBytes(), null),
+        // an empty key is not the same as no key
+        new SailfishReduceKeyRange(2, new byte[0], null) };
+    for (SailfishReduceKeyRange r : ranges) {
+      SailfishReduceKeyRange copy = roundTrip(r);
+      assertEquals(r.toString(), copy.toString());
+      assertEquals(r.getStartKey() == null, copy.getStartKey() == null);
+      assertEquals(r.getEndKey() == null, copy.getEndKey() == null);
+    }
+    assertEquals("7:[616263,616264)", ranges[0].toString());
+  }
+
+  /** The range goes down to the child along with the reduce task. */
+  public void testReduceTask() throws IOException {
+    TaskAttemptID id =
+      TaskAttemptID.forName("attempt_200707121733_0003_r_000005_0");
+    ReduceTask t = new ReduceTask("job.xml", id, 5, 10);
+    t.setKeyRange(new SailfishReduceKeyRange(2, "k".getBytes(), null));
+    DataOutputBuffer out = new DataOutputBuffer();
+    t.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    ReduceTask copy = new ReduceTask();
+    copy.readFields(in);
+    assertEquals(5, copy.getPartition());
+    assertEquals("2:[6b,)", copy.getKeyRange().toString());
+
+    // and a task without one
+    out.reset();
+    new ReduceTask("job.xml", id, 5, 10).write(out);
+    in.reset(out.getData(), out.getLength());
+    copy.readFields(in);
+    assertNull(copy.getKeyRange());
+  }
+
+  /**
+   * imerger is told to skip the records outside of the range, when it is
+   * known to take the range.
+   */
+  public void testIMergerArgs() {
+    JobConf conf = new JobConf();
+    SailfishReduceHelper.IMergerHelper helper =
+      new SailfishReduceHelper.IMergerHelper(4, conf, "job_1", null);
+    List<String> args = helper.getIMergerArgs("/jobs/job_1");
+    assertFalse(args.contains("-S"));
+    assertFalse(args.contains("-E"));
+    assertEquals("4", args.get(args.indexOf("-i") + 1));
+
+    // by default, the range is left to readNextKV()
+    helper.setKeyRange(new SailfishReduceKeyRange(4, "a".getBytes(),
+        "k".getBytes()), Text.class);
+    args = helper.getIMergerArgs("/jobs/job_1");
+    assertFalse(args.contains("-S"));
+    assertFalse(args.contains("-E"));
+
+    conf.setBoolean("sailfish.imerger.keyrange", true);
+    args = helper.getIMergerArgs("/jobs/job_1");
+    assertEquals("61", args.get(args.indexOf("-S") + 1));
+    assertEquals("6b", args.get(args.indexOf("-E") + 1));
+
+    helper.setKeyRange(new SailfishReduceKeyRange(4, null, "k".getBytes()),
+        Text.class);
+    args = helper.getIMergerArgs("/jobs/job_1");
+    assertFalse(args.contains("-S"));
+    assertEquals("6b", args.get(args.indexOf("-E") + 1));
+  }
+}
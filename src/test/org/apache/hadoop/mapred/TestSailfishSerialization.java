@@ -0,0 +1,394 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.Serializer;
+
+public class TestSailfishSerialization extends TestCase {
+
+  /**
+   * Pig keys are laid out as <null flag><value bytes><index>; the comparator
+   * must look at the flag of the key at hand, not at the start of the buffer
+   * that the key sits in.
+   */
+  public void testPigRawComparatorOffsets() {
+    RawComparator<Object> cmp = new SailfishSerialization.PigRawComparator();
+    // three keys back to back: "b" (non-null), null with index 2, "a"
+    byte[] buf = { 0, 'b', 0, 1, 2, 0, 'a', 0 };
+    int b = 0;
+    int nullKey = 3;
+    int a = 5;
+    assertTrue(cmp.compare(buf, a, 3, buf, b, 3) < 0);
+    assertTrue(cmp.compare(buf, b, 3, buf, a, 3) > 0);
+    assertEquals(0, cmp.compare(buf, a, 3, buf, a, 3));
+    // nulls sort first
+    assertTrue(cmp.compare(buf, nullKey, 2, buf, a, 3) < 0);
+    assertTrue(cmp.compare(buf, a, 3, buf, nullKey, 2) > 0);
+    // nulls are ordered by their index
+    byte[] other = { 1, 1 };
+    assertTrue(cmp.compare(other, 0, 2, buf, nullKey, 2) < 0);
+    assertEquals(0, cmp.compare(buf, nullKey, 2, buf, nullKey, 2));
+  }
+
+  private static <T> byte[] serialize(SailfishSerialization<?> sfs,
+      Class<T> c, T key) throws IOException {
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    Serializer<T> serializer = ((SailfishSerialization) sfs).getSerializer(c);
+    DataOutputBuffer out = new DataOutputBuffer();
+    serializer.open(out);
+    serializer.serialize(key);
+    return Arrays.copyOf(out.getData(), out.getLength());
+  }
+
+  private static <T> T deserialize(SailfishSerialization<?> sfs, Class<T> c,
+      byte[] b) throws IOException {
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    Deserializer<T> deserializer =
+      ((SailfishSerialization) sfs).getDeserializer(c);
+    // at an offset, with some trailing bytes that aren't part of the key
+    byte[] buf = new byte[b.length + 5];
+    System.arraycopy(b, 0, buf, 3, b.length);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(buf, 3, b.length);
+    deserializer.open(in);
+    return deserializer.deserialize(null);
+  }
+
+  private static int memcmp(byte[] a, byte[] b) {
+    return Integer.signum(WritableComparator.compareBytes(a, 0, a.length, b, 0,
+        b.length));
+  }
+
+  public void testIntKeys() throws IOException {
+    SailfishSerialization<?> sfs = new SailfishSerialization(
+        new Configuration());
+    assertTrue(sfs.accept(IntWritable.class));
+    Random r = new Random(1);
+    int[] values = new int[200];
+    int[] special = { Integer.MIN_VALUE, Integer.MIN_VALUE + 1, -256, -1, 0,
+        1, 255, 256, Integer.MAX_VALUE - 1, Integer.MAX_VALUE };
+    System.arraycopy(special, 0, values, 0, special.length);
+    for (int i = special.length; i < values.length; i++) {
+      values[i] = r.nextInt();
+    }
+    byte[][] normalized = new byte[values.length][];
+    for (int i = 0; i < values.length; i++) {
+      normalized[i] = serialize(sfs, IntWritable.class,
+          new IntWritable(values[i]));
+      assertEquals(4, normalized[i].length);
+      assertEquals(values[i],
+          deserialize(sfs, IntWritable.class, normalized[i]).get());
+    }
+    for (int i = 0; i < values.length; i++) {
+      for (int j = 0; j < values.length; j++) {
+        int expected = (values[i] < values[j]) ? -1
+          : ((values[i] == values[j]) ? 0 : 1);
+        assertEquals(values[i] + " vs " + values[j], expected,
+            memcmp(normalized[i], normalized[j]));
+      }
+    }
+  }
+
+  public void testLongKeys() throws IOException {
+    SailfishSerialization<?> sfs = new SailfishSerialization(
+        new Configuration());
+    assertTrue(sfs.accept(LongWritable.class));
+    Random r = new Random(2);
+    long[] values = new long[200];
+    long[] special = { Long.MIN_VALUE, Long.MIN_VALUE + 1,
+        Integer.MIN_VALUE - 1L, -1, 0, 1, Integer.MAX_VALUE + 1L,
+        Long.MAX_VALUE - 1, Long.MAX_VALUE };
+    System.arraycopy(special, 0, values, 0, special.length);
+    for (int i = special.length; i < values.length; i++) {
+      values[i] = r.nextLong();
+    }
+    byte[][] normalized = new byte[values.length][];
+    for (int i = 0; i < values.length; i++) {
+      normalized[i] = serialize(sfs, LongWritable.class,
+          new LongWritable(values[i]));
+      assertEquals(8, normalized[i].length);
+      assertEquals(values[i],
+          deserialize(sfs, LongWritable.class, normalized[i]).get());
+    }
+    for (int i = 0; i < values.length; i++) {
+      for (int j = 0; j < values.length; j++) {
+        int expected = (values[i] < values[j]) ? -1
+          : ((values[i] == values[j]) ? 0 : 1);
+        assertEquals(values[i] + " vs " + values[j], expected,
+            memcmp(normalized[i], normalized[j]));
+      }
+    }
+  }
+
+  /** A composite key: a string, then an int. */
+  public static class PairKey implements Writable {
+    byte[] first;
+    int second;
+
+    PairKey() { }
+
+    PairKey(byte[] first, int second) {
+      this.first = first;
+      this.second = second;
+    }
+
+    public void write(DataOutput out) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    public void readFields(DataInput in) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    int compareTo(PairKey o) {
+      int c = WritableComparator.compareBytes(first, 0, first.length,
+          o.first, 0, o.first.length);
+      if (c != 0) {
+        return Integer.signum(c);
+      }
+      return (second < o.second) ? -1 : ((second == o.second) ? 0 : 1);
+    }
+  }
+
+  public static class PairKeyNormalizer
+      implements SailfishKeyNormalizer<PairKey> {
+    public void normalize(PairKey key, DataOutput out) throws IOException {
+      SailfishKeyNormalizers.writeBytes(key.first, 0, key.first.length, out);
+      SailfishKeyNormalizers.writeInt(key.second, out);
+    }
+
+    public PairKey denormalize(PairKey reuse, byte[] b, int offset,
+        int length) throws IOException {
+      PairKey key = (reuse == null) ? new PairKey() : reuse;
+      DataOutputBuffer first = new DataOutputBuffer();
+      int pos = SailfishKeyNormalizers.readBytes(b, offset, offset + length,
+          first);
+      key.first = Arrays.copyOf(first.getData(), first.getLength());
+      key.second = SailfishKeyNormalizers.readInt(b, pos);
+      return key;
+    }
+  }
+
+  private static Configuration getPairConf() {
+    Configuration conf = new Configuration();
+    conf.setClass("mapred.mapoutput.key.class", PairKey.class, Object.class);
+    conf.setClass("sailfish.mapred.key.normalizer.class",
+        PairKeyNormalizer.class, SailfishKeyNormalizer.class);
+    return conf;
+  }
+
+  /**
+   * Escaped fields round trip, and composite keys sort field by field: a
+   * field sorts before the fields that it is a prefix of, whatever follows.
+   */
+  public void testCompositeKeys() throws IOException {
+    SailfishSerialization<?> sfs = new SailfishSerialization(getPairConf());
+    assertTrue(sfs.accept(PairKey.class));
+    byte[][] firsts = { {}, { 0 }, { 0, 0 }, { 0, 1 }, { 0, (byte) 0xff },
+        { 1 }, { 1, 0 }, { 1, 0, 1 }, { 1, 1 }, { (byte) 0xff },
+        { (byte) 0xff, 0 }, { 'a', 'b', 0, 'c' } };
+    int[] seconds = { Integer.MIN_VALUE, -1, 0, 1, Integer.MAX_VALUE };
+    PairKey[] keys = new PairKey[firsts.length * seconds.length];
+    byte[][] normalized = new byte[keys.length][];
+    for (int i = 0; i < firsts.length; i++) {
+      for (int j = 0; j < seconds.length; j++) {
+        int k = i * seconds.length + j;
+        keys[k] = new PairKey(firsts[i], seconds[j]);
+        normalized[k] = serialize(sfs, PairKey.class, keys[k]);
+        PairKey copy = deserialize(sfs, PairKey.class, normalized[k]);
+        assertTrue(Arrays.equals(firsts[i], copy.first));
+        assertEquals(seconds[j], copy.second);
+      }
+    }
+    for (int i = 0; i < keys.length; i++) {
+      for (int j = 0; j < keys.length; j++) {
+        assertEquals(i + " vs " + j, keys[i].compareTo(keys[j]),
+            memcmp(normalized[i], normalized[j]));
+      }
+    }
+  }
+
+  /** A field isn't read past the end of the key that it is in. */
+  public void testReadBytesBounds() throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    SailfishKeyNormalizers.writeBytes(new byte[] { 'a', 0, 'b' }, 0, 3, out);
+    int keyLen = out.getLength();
+    // another key's field right after this one in the buffer
+    SailfishKeyNormalizers.writeBytes(new byte[] { 'c' }, 0, 1, out);
+    byte[] b = out.getData();
+    DataOutputBuffer field = new DataOutputBuffer();
+    assertEquals(keyLen, SailfishKeyNormalizers.readBytes(b, 0, keyLen,
+        field));
+    assertTrue(Arrays.equals(new byte[] { 'a', 0, 'b' },
+        Arrays.copyOf(field.getData(), field.getLength())));
+    // a key cut short, followed by more data, isn't read as a field
+    field.reset();
+    try {
+      SailfishKeyNormalizers.readBytes(b, 0, keyLen - 1, field);
+      fail("read past the end of the key");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  /**
+   * The configured normalizer is for the map output key class only; other
+   * BinaryComparable keys are written as is.
+   */
+  public void testNormalizerForKeyClassOnly() throws IOException {
+    Configuration conf = getPairConf();
+    assertNotNull(SailfishKeyNormalizers.getNormalizer(conf, PairKey.class));
+    assertNull(SailfishKeyNormalizers.getNormalizer(conf, Text.class));
+    SailfishSerialization<?> sfs = new SailfishSerialization(conf);
+    assertTrue(sfs.accept(Text.class));
+    byte[] b = serialize(sfs, Text.class, new Text("key"));
+    assertEquals("key", new String(b, "UTF-8"));
+    assertEquals(new Text("key"), deserialize(sfs, Text.class, b));
+    // ints keep their normalizer
+    assertEquals(4, serialize(sfs, IntWritable.class,
+        new IntWritable(5)).length);
+  }
+
+  /** Writes the way PigNullableWritable does, with a Text value. */
+  private static class FakeNullableText implements Writable {
+    boolean isNull;
+    Text value = new Text();
+    byte index;
+
+    public void write(DataOutput out) throws IOException {
+      out.writeBoolean(isNull);
+      if (!isNull) {
+        value.write(out);
+      }
+      out.writeByte(index);
+    }
+
+    public void readFields(DataInput in) throws IOException {
+      isNull = in.readBoolean();
+      if (!isNull) {
+        value.readFields(in);
+      }
+      index = in.readByte();
+    }
+  }
+
+  /** The same with a BytesWritable-like value: an int length. */
+  private static class FakeNullableBytes implements Writable {
+    boolean isNull;
+    byte[] value = new byte[0];
+    byte index;
+
+    public void write(DataOutput out) throws IOException {
+      out.writeBoolean(isNull);
+      if (!isNull) {
+        out.writeInt(value.length);
+        out.write(value);
+      }
+      out.writeByte(index);
+    }
+
+    public void readFields(DataInput in) throws IOException {
+      isNull = in.readBoolean();
+      if (!isNull) {
+        value = new byte[in.readInt()];
+        in.readFully(value);
+      }
+      index = in.readByte();
+    }
+  }
+
+  private static byte[] pigWrite(SailfishSerialization.PigKeyFormat format,
+      Writable key) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    format.write(key, out);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  public void testPigKeyFormat() throws IOException {
+    SailfishSerialization.PigKeyFormat textFormat =
+      new SailfishSerialization.PigKeyFormat(true);
+    FakeNullableText text = new FakeNullableText();
+    // long enough for a multi-byte vint
+    char[] chars = new char[300];
+    Arrays.fill(chars, 'x');
+    text.value.set(new String(chars));
+    text.index = 3;
+    byte[] b = pigWrite(textFormat, text);
+    assertEquals(1 + 300 + 1, b.length);
+    assertEquals(0, b[0]);
+    assertEquals(3, b[b.length - 1]);
+    // read back from the middle of a buffer
+    byte[] buf = new byte[b.length + 4];
+    System.arraycopy(b, 0, buf, 2, b.length);
+    FakeNullableText copy = new FakeNullableText();
+    textFormat.readFields(copy, buf, 2, b.length);
+    assertFalse(copy.isNull);
+    assertEquals(text.value, copy.value);
+    assertEquals(3, copy.index);
+
+    text.isNull = true;
+    text.index = 5;
+    b = pigWrite(textFormat, text);
+    assertTrue(Arrays.equals(new byte[] { 1, 5 }, b));
+    textFormat.readFields(copy, b, 0, b.length);
+    assertTrue(copy.isNull);
+    assertEquals(5, copy.index);
+
+    SailfishSerialization.PigKeyFormat bytesFormat =
+      new SailfishSerialization.PigKeyFormat(false);
+    FakeNullableBytes bytes = new FakeNullableBytes();
+    bytes.value = new byte[] { 'a', 0, 'b' };
+    bytes.index = 1;
+    b = pigWrite(bytesFormat, bytes);
+    assertTrue(Arrays.equals(new byte[] { 0, 'a', 0, 'b', 1 }, b));
+    FakeNullableBytes bytesCopy = new FakeNullableBytes();
+    bytesFormat.readFields(bytesCopy, b, 0, b.length);
+    assertTrue(Arrays.equals(bytes.value, bytesCopy.value));
+    assertEquals(1, bytesCopy.index);
+
+    // and the sailfish form sorts the way the pig comparator expects
+    RawComparator<Object> cmp = new SailfishSerialization.PigRawComparator();
+    bytes.value = new byte[] { 'a' };
+    byte[] a = pigWrite(bytesFormat, bytes);
+    bytes.value = new byte[] { 'b' };
+    byte[] bb = pigWrite(bytesFormat, bytes);
+    assertTrue(cmp.compare(a, 0, a.length, bb, 0, bb.length) < 0);
+  }
+}
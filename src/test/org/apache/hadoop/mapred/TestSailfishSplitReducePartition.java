@@ -0,0 +1,315 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.Text;
+
+public class TestSailfishSplitReducePartition extends TestCase {
+
+  private static final int PARTITIONS = 4;
+
+  private static class FakeJobInProgress extends JobInProgress {
+    FakeJobInProgress(JobConf conf) {
+      super(new JobID("test", 1), conf);
+      profile = new JobProfile("user", getJobID(), "job.xml", null, "test");
+      nonRunningReduces = new LinkedList<TaskInProgress>();
+      reduces = new TaskInProgress[PARTITIONS];
+      for (int i = 0; i < PARTITIONS; i++) {
+        reduces[i] = new TaskInProgress(getJobID(), "job.xml", 10, i, null,
+            conf, this);
+        nonRunningReduces.add(reduces[i]);
+      }
+      createSetupAndCleanupTIPs("job.xml");
+    }
+  }
+
+  private static JobConf getConf(boolean sailfish) {
+    JobConf conf = new JobConf();
+    conf.setNumMapTasks(10);
+    conf.setNumReduceTasks(PARTITIONS);
+    conf.setMapOutputKeyClass(Text.class);
+    conf.setBoolean("sailfish.mapred.job.use_ifile", sailfish);
+    return conf;
+  }
+
+  private static byte[][] keys(String... keys) {
+    byte[][] b = new byte[keys.length][];
+    for (int i = 0; i < keys.length; i++) {
+      b[i] = keys[i].getBytes();
+    }
+    return b;
+  }
+
+  public void testSplit() {
+    JobInProgress job = new FakeJobInProgress(getConf(true));
+    assertTrue(job.splitReducePartition(2, keys("g", "p")));
+    assertEquals(PARTITIONS + 2, job.numReduceTasks);
+    assertEquals(PARTITIONS, job.numReducePartitions);
+    // the partition's own reduce takes the keys before the first split key
+    assertEquals("2:[,67)", job.reduces[2].getKeyRange().toString());
+    assertEquals("2:[,67)", job.reduceKeyRanges.get(2).toString());
+    // and the new reduces the rest
+    assertEquals("2:[67,70)",
+        job.reduceKeyRanges.get(PARTITIONS).toString());
+    assertEquals("2:[70,)",
+        job.reduceKeyRanges.get(PARTITIONS + 1).toString());
+    // the other partitions are untouched
+    assertNull(job.reduces[1].getKeyRange());
+
+    // a second partition goes after the reduces added for the first one
+    assertTrue(job.splitReducePartition(0, keys("m")));
+    assertEquals(PARTITIONS + 3, job.numReduceTasks);
+    assertEquals("0:[6d,)",
+        job.reduceKeyRanges.get(PARTITIONS + 2).toString());
+    // and the # of partitions stays what it was
+    assertEquals(PARTITIONS, job.numReducePartitions);
+  }
+
+  public void testBadSplits() {
+    JobInProgress job = new FakeJobInProgress(getConf(true));
+    // no such partition
+    assertFalse(job.splitReducePartition(PARTITIONS, keys("g")));
+    assertFalse(job.splitReducePartition(-1, keys("g")));
+    // nothing to split at
+    assertFalse(job.splitReducePartition(1, keys()));
+    // split keys out of order or repeated
+    assertFalse(job.splitReducePartition(1, keys("p", "g")));
+    assertFalse(job.splitReducePartition(1, keys("g", "g")));
+    assertEquals(PARTITIONS, job.numReduceTasks);
+    assertEquals(-1, job.numReducePartitions);
+
+    assertTrue(job.splitReducePartition(1, keys("g")));
+    // only once
+    assertFalse(job.splitReducePartition(1, keys("m")));
+    // and no more changing the # of reduces
+    assertFalse(job.setNumReduceTasks(2 * PARTITIONS));
+    // a new reduce isn't a partition
+    assertFalse(job.splitReducePartition(PARTITIONS, keys("m")));
+  }
+
+  /** The servlet takes only whole, non-empty hex keys. */
+  public void testParseSplitKeys() {
+    byte[][] splitKeys =
+      SailfishSplitReducePartitionServlet.parseSplitKeys("67,70Af");
+    assertEquals(2, splitKeys.length);
+    assertEquals("g", new String(splitKeys[0]));
+    assertEquals(2, splitKeys[1].length);
+    assertEquals(0x70, splitKeys[1][0]);
+    assertEquals((byte) 0xaf, splitKeys[1][1]);
+    for (String bad : new String[] { "", "67,", ",67", "67,,70", "6", "676",
+        "6g", "-1", "+f", "67 " }) {
+      try {
+        SailfishSplitReducePartitionServlet.parseSplitKeys(bad);
+        fail("took \"" + bad + "\"");
+      } catch (NumberFormatException e) {
+        // expected
+      }
+    }
+  }
+
+  /**
+   * The reduces added by a split or by more reduces being asked for don't
+   * get the ids of the setup and cleanup reduces.
+   */
+  public void testSetupCleanupIds() {
+    JobInProgress job = new FakeJobInProgress(getConf(true));
+    job.reduceTIPChunkSize = 100;
+    assertTrue(job.setNumReduceTasks(PARTITIONS + 2));
+    assertTrue(job.splitReducePartition(1, keys("g", "p")));
+    schedule(job, 0);
+    job.createReduceTIPsIfLow();
+    TaskInProgress[] reduces = job.getReduceTasks();
+    assertEquals(PARTITIONS + 4, reduces.length);
+    Set<TaskID> ids = new HashSet<TaskID>();
+    for (TaskInProgress tip : reduces) {
+      assertTrue(ids.add(tip.getTIPId()));
+      assertSame(tip, job.getTaskInProgress(tip.getTIPId()));
+    }
+    for (TaskInProgress tip : new TaskInProgress[] { job.cleanup[1],
+        job.setup[1] }) {
+      assertTrue(tip.getTIPId().toString(), ids.add(tip.getTIPId()));
+      assertSame(tip, job.getTaskInProgress(tip.getTIPId()));
+    }
+    assertEquals(JobInProgress.SAILFISH_CLEANUP_REDUCE_ID,
+        job.cleanup[1].getIdWithinJob());
+    assertEquals(JobInProgress.SAILFISH_SETUP_REDUCE_ID,
+        job.setup[1].getIdWithinJob());
+
+    // no reduce can be given those ids
+    job = new FakeJobInProgress(getConf(true));
+    assertFalse(
+        job.setNumReduceTasks(JobInProgress.SAILFISH_CLEANUP_REDUCE_ID + 1));
+    job.numReduceTasks = JobInProgress.SAILFISH_CLEANUP_REDUCE_ID - 1;
+    assertFalse(job.splitReducePartition(1, keys("g", "p")));
+    assertTrue(job.splitReducePartition(1, keys("g")));
+    assertEquals(JobInProgress.SAILFISH_CLEANUP_REDUCE_ID, job.numReduceTasks);
+  }
+
+  /** Other jobs keep the ids after their reduces for setup and cleanup. */
+  public void testNotSailfishSetupCleanupIds() {
+    JobInProgress job = new FakeJobInProgress(getConf(false));
+    assertEquals(PARTITIONS, job.cleanup[1].getIdWithinJob());
+    assertEquals(PARTITIONS + 1, job.setup[1].getIdWithinJob());
+  }
+
+  public void testNotSailfish() {
+    JobInProgress job = new FakeJobInProgress(getConf(false));
+    assertFalse(job.splitReducePartition(1, keys("g")));
+    assertEquals(PARTITIONS, job.numReduceTasks);
+  }
+
+  /** Once a partition's reduce has been handed out, it is too late. */
+  public void testTooLate() {
+    JobInProgress job = new FakeJobInProgress(getConf(true));
+    // an attempt of partition 3's reduce has been handed out
+    job.reduces[3].nextTaskId = 1;
+    assertFalse(job.splitReducePartition(3, keys("g")));
+    assertNull(job.reduces[3].getKeyRange());
+    assertEquals(PARTITIONS, job.numReduceTasks);
+    assertTrue(job.reduceKeyRanges.isEmpty());
+    assertEquals(-1, job.numReducePartitions);
+  }
+
+  /** Hand out the created reduces until only left aren't scheduled. */
+  private static void schedule(JobInProgress job, int left) {
+    while (job.nonRunningReduces.size() > left) {
+      job.nonRunningReduces.remove(0);
+    }
+  }
+
+  /**
+   * More reduces are created a chunk at a time, as the scheduler runs low on
+   * the ones that it has.
+   */
+  public void testChunkedReduceTIPs() {
+    JobInProgress job = new FakeJobInProgress(getConf(true));
+    job.reduceTIPChunkSize = 3;
+    assertTrue(job.setNumReduceTasks(10));
+    assertEquals(10, job.numReduceTasks);
+    // only the first chunk is created
+    assertEquals(PARTITIONS + 3, job.getReduceTasks().length);
+    assertEquals(PARTITIONS + 3, job.nonRunningReduces.size());
+    // but the ones not yet created are pending too
+    assertEquals(10, job.pendingReduces());
+
+    // a chunk or more left to hand out; no more are needed yet
+    schedule(job, 3);
+    job.createReduceTIPsIfLow();
+    assertEquals(PARTITIONS + 3, job.getReduceTasks().length);
+
+    // running low: the rest are created
+    schedule(job, 2);
+    job.createReduceTIPsIfLow();
+    TaskInProgress[] reduces = job.getReduceTasks();
+    assertEquals(10, reduces.length);
+    assertEquals(2 + 10 - PARTITIONS - 3, job.nonRunningReduces.size());
+    for (int i = 0; i < reduces.length; i++) {
+      assertEquals(i, reduces[i].getIdWithinJob());
+    }
+    assertEquals(10, job.pendingReduces());
+
+    // and that's all of them
+    schedule(job, 0);
+    job.createReduceTIPsIfLow();
+    assertSame(reduces, job.getReduceTasks());
+  }
+
+  /** Reduces created after a split get the key ranges of the split. */
+  public void testKeyRangesOnLateReduceTIPs() {
+    JobInProgress job = new FakeJobInProgress(getConf(true));
+    job.reduceTIPChunkSize = 2;
+    assertTrue(job.setNumReduceTasks(PARTITIONS + 2));
+    assertTrue(job.splitReducePartition(1, keys("g", "p")));
+    assertEquals(PARTITIONS + 4, job.numReduceTasks);
+    // the reduces for the split aren't there yet
+    assertEquals(PARTITIONS + 2, job.getReduceTasks().length);
+    assertEquals("1:[,67)", job.getReduceTasks()[1].getKeyRange().toString());
+
+    schedule(job, 1);
+    job.createReduceTIPsIfLow();
+    TaskInProgress[] reduces = job.getReduceTasks();
+    assertEquals(PARTITIONS + 4, reduces.length);
+    assertNull(reduces[PARTITIONS + 1].getKeyRange());
+    assertEquals("1:[67,70)",
+        reduces[PARTITIONS + 2].getKeyRange().toString());
+    assertEquals("1:[70,)", reduces[PARTITIONS + 3].getKeyRange().toString());
+  }
+
+  /**
+   * The task reports and web pages read the reduces without the job lock,
+   * while more of them are being created; they see every reduce, in order.
+   */
+  public void testReadReducesWhileAdding() throws Exception {
+    final JobInProgress job = new FakeJobInProgress(getConf(true));
+    job.reduceTIPChunkSize = 5;
+    final int numReduces = 500;
+    final List<String> errors =
+      Collections.synchronizedList(new ArrayList<String>());
+    final AtomicBoolean done = new AtomicBoolean(false);
+    Thread reader = new Thread() {
+      public void run() {
+        int lastLength = 0;
+        while (!done.get() && errors.isEmpty()) {
+          TaskInProgress[] reduces = job.getReduceTasks();
+          if (reduces.length < lastLength) {
+            errors.add("# of reduces went down to " + reduces.length);
+          }
+          lastLength = reduces.length;
+          for (int i = 0; i < reduces.length; i++) {
+            if ((reduces[i] == null) || (reduces[i].getIdWithinJob() != i)) {
+              errors.add("Bad reduce " + i + " of " + reduces.length);
+              return;
+            }
+          }
+          // as getReduceTaskReports() does
+          for (TaskInProgress tip : job.reportTasksInProgress(false, false)) {
+            if (tip.generateSingleReport() == null) {
+              errors.add("No report for reduce " + tip.getIdWithinJob());
+            }
+          }
+        }
+      }
+    };
+    reader.start();
+    try {
+      assertTrue(job.setNumReduceTasks(numReduces));
+      while (job.getReduceTasks().length < numReduces) {
+        synchronized (job) {
+          schedule(job, 0);
+          job.createReduceTIPsIfLow();
+        }
+        Thread.yield();
+      }
+    } finally {
+      done.set(true);
+      reader.join();
+    }
+    assertEquals(errors.toString(), 0, errors.size());
+    assertEquals(numReduces, job.getReduceTasks().length);
+  }
+}
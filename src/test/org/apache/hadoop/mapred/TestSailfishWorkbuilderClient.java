@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TestSailfishWorkbuilderClient extends TestCase {
+
+  /** A client that doesn't talk to a workbuilder. */
+  private static class FakeClient extends SailfishWorkbuilderClient {
+    final List<String> requests = new ArrayList<String>();
+    boolean fail = false;
+
+    FakeClient() {
+      super("http://localhost:1", new JobConf());
+    }
+
+    @Override
+    void execute(String request) throws IOException {
+      requests.add(request);
+      if (fail) {
+        throw new IOException("workbuilder is down");
+      }
+    }
+  }
+
+  public void testMapperStart() throws Exception {
+    FakeClient client = new FakeClient();
+    client.notifyMapperStart("job_1", "", 10, 2);
+    assertEquals(1, client.requests.size());
+    assertEquals("http://localhost:1/mapperstart/?jobid=job_1&debugid=&m=10&r=2",
+        client.requests.get(0));
+  }
+
+  /** The setup task fails, and is retried, if the workbuilder is down. */
+  public void testMapperStartFailure() throws Exception {
+    FakeClient client = new FakeClient();
+    client.fail = true;
+    try {
+      client.notifyMapperStart("job_1", "", 10, 2);
+      fail("notification went thru");
+    } catch (IOException e) {
+      assertEquals("workbuilder is down", e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.util.Random;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+import junit.framework.TestCase;
+
+public class TestSortKeyPrefixes extends TestCase {
+
+  private static byte[] serialize(Writable w) throws Exception {
+    DataOutputBuffer out = new DataOutputBuffer();
+    w.write(out);
+    byte[] b = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, b, 0, b.length);
+    return b;
+  }
+
+  private static byte[] randomBytes(Random r) {
+    // a small alphabet and short keys, so that there are plenty of ties
+    byte[] b = new byte[r.nextInt(7)];
+    for (int i = 0; i < b.length; i++) {
+      b[i] = (byte) (r.nextInt(4) * 85);
+    }
+    return b;
+  }
+
+  /**
+   * Check that the prefixes order the keys as the comparator does.
+   * @param seed the seed the keys were made with, to go with any failure
+   */
+  private void checkPrefixes(JobConf conf, Writable[] keys, long seed)
+      throws Exception {
+    RawComparator<?> comparator = conf.getOutputKeyComparator();
+    SortKeyPrefix prefix = SortKeyPrefixes.getSortKeyPrefix(conf, comparator);
+    assertNotNull(prefix);
+    for (int i = 0; i < keys.length; i++) {
+      byte[] a = serialize(keys[i]);
+      for (int j = 0; j < keys.length; j++) {
+        byte[] b = serialize(keys[j]);
+        int pa = prefix.getPrefix(a, 0, a.length);
+        int pb = prefix.getPrefix(b, 0, b.length);
+        int cmp = comparator.compare(a, 0, a.length, b, 0, b.length);
+        if (pa < pb) {
+          assertTrue("seed " + seed + ": " + keys[i] + " vs " + keys[j],
+              cmp < 0);
+        } else if (pa > pb) {
+          assertTrue("seed " + seed + ": " + keys[i] + " vs " + keys[j],
+              cmp > 0);
+        }
+      }
+    }
+  }
+
+  public void testText() throws Exception {
+    Random r = new Random();
+    long seed = r.nextLong();
+    r.setSeed(seed);
+    JobConf conf = new JobConf();
+    conf.setMapOutputKeyClass(Text.class);
+    Text[] keys = new Text[200];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new Text(randomBytes(r));
+    }
+    checkPrefixes(conf, keys, seed);
+  }
+
+  public void testBytesWritable() throws Exception {
+    Random r = new Random();
+    long seed = r.nextLong();
+    r.setSeed(seed);
+    JobConf conf = new JobConf();
+    conf.setMapOutputKeyClass(BytesWritable.class);
+    BytesWritable[] keys = new BytesWritable[200];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new BytesWritable(randomBytes(r));
+    }
+    checkPrefixes(conf, keys, seed);
+  }
+
+  public void testNoPrefix() throws Exception {
+    JobConf conf = new JobConf();
+    conf.setMapOutputKeyClass(IntWritable.class);
+    assertNull(SortKeyPrefixes.getSortKeyPrefix(conf,
+        conf.getOutputKeyComparator()));
+  }
+
+  /** Merges only take a prefix when asked to, and for the job's order. */
+  public void testMergeKeyPrefix() throws Exception {
+    JobConf conf = new JobConf();
+    conf.setMapOutputKeyClass(Text.class);
+    RawComparator<?> comparator = conf.getOutputKeyComparator();
+    assertNull(SortKeyPrefixes.getMergeKeyPrefix(conf, comparator));
+    conf.setBoolean("map.sort.key.prefix", true);
+    assertTrue(SortKeyPrefixes.getMergeKeyPrefix(conf, comparator)
+        instanceof SortKeyPrefixes.TextPrefix);
+    // the job's prefix class is for the job's order, not for some other
+    // comparator of the same keys
+    conf.setClass("map.sort.key.prefix.class",
+        SortKeyPrefixes.BytesWritablePrefix.class, SortKeyPrefix.class);
+    assertNull(SortKeyPrefixes.getMergeKeyPrefix(conf,
+        new BytesWritable.Comparator()));
+    assertTrue(SortKeyPrefixes.getMergeKeyPrefix(conf, comparator)
+        instanceof SortKeyPrefixes.BytesWritablePrefix);
+  }
+}
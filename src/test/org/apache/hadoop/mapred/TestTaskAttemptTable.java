@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class TestTaskAttemptTable extends TestCase {
+
+  private static TaskAttemptID attempt(JobID job, boolean isMap, int task,
+                                       int attempt) {
+    return new TaskAttemptID(new TaskID(job, isMap, task), attempt);
+  }
+
+  public void testCompactIds() {
+    JobID job = new JobID("200707121733", 3);
+    Set<Long> ids = new HashSet<Long>();
+    for (int task = 0; task < 10; task++) {
+      for (int attempt = 0; attempt < 10; attempt++) {
+        assertTrue(ids.add(TaskAttemptTable.getCompactId(
+            attempt(job, true, task, attempt))));
+        assertTrue(ids.add(TaskAttemptTable.getCompactId(
+            attempt(job, false, task, attempt))));
+      }
+    }
+    assertTrue(ids.add(TaskAttemptTable.getCompactId(
+        attempt(job, false, Integer.MAX_VALUE, Integer.MAX_VALUE))));
+  }
+
+  public void testTrackers() {
+    TaskAttemptTable table = new TaskAttemptTable();
+    JobID job = new JobID("200707121733", 3);
+    TaskAttemptID a0 = attempt(job, true, 0, 0);
+    TaskAttemptID a1 = attempt(job, true, 0, 1);
+    TaskAttemptID r0 = attempt(job, false, 0, 0);
+    table.add(a0, "tt1", null);
+    table.add(a1, "tt2", null);
+    table.add(r0, "tt1", null);
+
+    assertEquals("tt1", table.getTracker(a0));
+    assertEquals("tt2", table.getTracker(a1));
+    assertEquals("tt1", table.getTracker(attempt(job, false, 0, 0)));
+    assertNull(table.getTracker(attempt(job, false, 0, 1)));
+    assertNull(table.getTracker(
+        attempt(new JobID("200707121734", 3), true, 0, 0)));
+    assertEquals(2, table.getAttempts("tt1").size());
+
+    table.remove(r0);
+    assertNull(table.getTracker(r0));
+    assertEquals(1, table.getAttempts("tt1").size());
+    assertTrue(table.getAttempts("tt1").contains(a0));
+
+    Set<TaskAttemptID> lost = table.removeTracker("tt2");
+    assertEquals(1, lost.size());
+    assertNull(table.getAttempts("tt2"));
+    // the attempt is still known until it is removed
+    assertEquals("tt2", table.getTracker(a1));
+  }
+
+  public void testRemoveJob() {
+    TaskAttemptTable table = new TaskAttemptTable();
+    JobID job1 = new JobID("200707121733", 1);
+    JobID job2 = new JobID("200707121733", 2);
+    for (int task = 0; task < 100; task++) {
+      table.add(attempt(job1, true, task, 0), "tt" + (task % 4), null);
+      table.add(attempt(job2, false, task, 0), "tt" + (task % 4), null);
+    }
+    assertEquals(50, table.getAttempts("tt0").size());
+
+    table.removeJob(job1);
+    for (int task = 0; task < 100; task++) {
+      assertNull(table.getTracker(attempt(job1, true, task, 0)));
+      assertEquals("tt" + (task % 4),
+                   table.getTracker(attempt(job2, false, task, 0)));
+    }
+    for (int i = 0; i < 4; i++) {
+      assertEquals(25, table.getAttempts("tt" + i).size());
+    }
+    table.removeJob(job1);
+    table.removeJob(job2);
+    assertTrue(table.getAttempts("tt0").isEmpty());
+  }
+}
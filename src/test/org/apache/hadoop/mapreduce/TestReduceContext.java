@@ -0,0 +1,198 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.mapreduce;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.util.Progress;
+
+public class TestReduceContext extends TestCase {
+
+  /**
+   * A value that takes up whatever is left of its input, so that it sees
+   * any bytes past the end of the record.
+   */
+  public static class RestWritable implements Writable {
+    static int numDeserialized = 0;
+    String val;
+
+    public void write(DataOutput out) throws IOException {
+      out.write(val.getBytes("UTF-8"));
+    }
+
+    public void readFields(DataInput in) throws IOException {
+      byte[] b = new byte[((InputStream) in).available()];
+      in.readFully(b);
+      val = new String(b, "UTF-8");
+      numDeserialized++;
+    }
+  }
+
+  /**
+   * Hands out records that sit back to back in one array, so that none of
+   * them starts at offset 0.
+   */
+  private static class ArrayIterator implements RawKeyValueIterator {
+    private final byte[] data;
+    private final List<int[]> records = new ArrayList<int[]>();
+    private final DataInputBuffer key = new DataInputBuffer();
+    private final DataInputBuffer value = new DataInputBuffer();
+    private int next = 0;
+
+    ArrayIterator(String[] keys, String[] values) throws IOException {
+      DataOutputBuffer out = new DataOutputBuffer();
+      // some leading garbage
+      out.writeInt(0xDEADBEEF);
+      for (int i = 0; i < keys.length; i++) {
+        int keyStart = out.getLength();
+        new Text(keys[i]).write(out);
+        int valStart = out.getLength();
+        out.write(values[i].getBytes("UTF-8"));
+        records.add(new int[] { keyStart, valStart, out.getLength() });
+      }
+      data = out.getData();
+    }
+
+    public DataInputBuffer getKey() {
+      return key;
+    }
+
+    public DataInputBuffer getValue() {
+      return value;
+    }
+
+    public boolean next() {
+      if (next == records.size()) {
+        return false;
+      }
+      int[] rec = records.get(next++);
+      key.reset(data, rec[0], rec[1] - rec[0]);
+      value.reset(data, rec[1], rec[2] - rec[1]);
+      return true;
+    }
+
+    public void close() { }
+
+    public Progress getProgress() {
+      return new Progress();
+    }
+  }
+
+  private static class NullReporter extends StatusReporter {
+    public Counter getCounter(Enum<?> name) {
+      return new Counter();
+    }
+    public Counter getCounter(String group, String name) {
+      return new Counter();
+    }
+    public void progress() { }
+    public void setStatus(String status) { }
+  }
+
+  private static final String[] KEYS = { "a", "a", "b", "c", "c", "c" };
+  private static final String[] VALUES = { "1", "22", "3", "4", "55", "666" };
+
+  private ReduceContext<Text, RestWritable, Text, Text> getContext(
+      boolean raw, Counter keyCounter, Counter valueCounter)
+      throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean("sailfish.mapred.reduce.raw_iteration", raw);
+    return new ReduceContext<Text, RestWritable, Text, Text>(conf,
+        new TaskAttemptID(), new ArrayIterator(KEYS, VALUES), keyCounter,
+        valueCounter, null, null, new NullReporter(), new Text.Comparator(),
+        Text.class, RestWritable.class);
+  }
+
+  private List<String> readAll(boolean raw) throws Exception {
+    Counter keyCounter = new Counter();
+    Counter valueCounter = new Counter();
+    ReduceContext<Text, RestWritable, Text, Text> context =
+      getContext(raw, keyCounter, valueCounter);
+    List<String> records = new ArrayList<String>();
+    while (context.nextKey()) {
+      StringBuilder group = new StringBuilder();
+      group.append(context.getCurrentKey()).append(":");
+      for (RestWritable v : context.getValues()) {
+        group.append(" ").append(v.val);
+      }
+      records.add(group.toString());
+    }
+    assertEquals(3, keyCounter.getValue());
+    assertEquals(KEYS.length, valueCounter.getValue());
+    return records;
+  }
+
+  /** Values are read up to the end of the record and no further. */
+  public void testValueLength() throws Exception {
+    List<String> expected = new ArrayList<String>();
+    expected.add("a: 1 22");
+    expected.add("b: 3");
+    expected.add("c: 4 55 666");
+    assertEquals(expected, readAll(false));
+    assertEquals(expected, readAll(true));
+  }
+
+  /**
+   * In raw mode, the values that the reducer doesn't look at are skipped
+   * without being deserialized.
+   */
+  public void testRawSkipsValues() throws Exception {
+    for (boolean raw : new boolean[] { false, true }) {
+      Counter valueCounter = new Counter();
+      ReduceContext<Text, RestWritable, Text, Text> context =
+        getContext(raw, new Counter(), valueCounter);
+      RestWritable.numDeserialized = 0;
+      List<String> firsts = new ArrayList<String>();
+      while (context.nextKey()) {
+        // only the first value of each group
+        firsts.add(context.getCurrentKey() + "="
+            + context.getValues().iterator().next().val);
+      }
+      assertEquals("[a=1, b=3, c=4]", firsts.toString());
+      assertEquals(KEYS.length, valueCounter.getValue());
+      assertEquals(raw ? 3 : KEYS.length, RestWritable.numDeserialized);
+    }
+  }
+
+  /** In raw mode the key still follows the record that is current. */
+  public void testRawCurrentKey() throws Exception {
+    ReduceContext<Text, RestWritable, Text, Text> context =
+      getContext(true, new Counter(), new Counter());
+    List<String> records = new ArrayList<String>();
+    while (context.nextKeyValue()) {
+      records.add(context.getCurrentKey() + "="
+          + context.getCurrentValue().val);
+    }
+    assertEquals("[a=1, a=22, b=3, c=4, c=55, c=666]", records.toString());
+    assertNull(context.getCurrentKey());
+  }
+}